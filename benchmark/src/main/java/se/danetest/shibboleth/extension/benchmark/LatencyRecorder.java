@@ -0,0 +1,163 @@
+package se.danetest.shibboleth.extension.benchmark;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies with a relative error of about 3%, recorded by a single thread.
+ *
+ * <p>
+ * Values are counted in buckets whose width doubles every {@value #SUB_BUCKETS} buckets, so recording is a few
+ * arithmetic operations on a preallocated array. Each load generating thread records into its own instance and the
+ * instances are merged once the run is over.
+ * </p>
+ */
+public class LatencyRecorder {
+
+    /** Number of buckets per power of two. */
+    private static final int SUB_BUCKETS = 32;
+
+    /** Log2 of {@link #SUB_BUCKETS}. */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /** Number of buckets, enough for any positive long. */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Counts per bucket. */
+    private final long[] counts;
+
+    /** Number of recorded values. */
+    private long total;
+
+    /** Largest recorded value. */
+    private long max;
+
+    /** Constructor. */
+    public LatencyRecorder() {
+        counts = new long[BUCKETS];
+    }
+
+    /**
+     * Records a value.
+     * 
+     * @param value the value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        long v = Math.max(value, 0);
+        counts[bucket(v)]++;
+        total++;
+        if (v > max) {
+            max = v;
+        }
+    }
+
+    /**
+     * Adds the values recorded by another recorder.
+     * 
+     * @param other the other recorder
+     */
+    public void merge(LatencyRecorder other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Gets the number of recorded values.
+     * 
+     * @return number of values
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * Gets the largest recorded value.
+     * 
+     * @return the largest value, 0 if none was recorded
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Gets a percentile of the recorded values.
+     * 
+     * @param percentile the percentile, between 0 and 100
+     * 
+     * @return the upper bound of the bucket holding the percentile, 0 if no value was recorded
+     */
+    public long getPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /** Forgets all recorded values. */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        max = 0;
+    }
+
+    /**
+     * Gets the bucket of a value.
+     * 
+     * @param value the value, not negative
+     * 
+     * @return index of the bucket
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Gets the largest value counted in a bucket.
+     * 
+     * @param bucket index of the bucket
+     * 
+     * @return the largest value of the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,509 @@
+package se.danetest.shibboleth.extension.benchmark;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xml.signature.Signature;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TLSARecord;
+
+import se.danetest.shibboleth.extension.CachingKeyInfoCredentialResolver;
+import se.danetest.shibboleth.extension.DaneExplicitKeySignatureTrustEngine;
+import se.danetest.shibboleth.extension.DaneStaticExplicitKeySignatureTrustEngineFactoryBean;
+import se.danetest.shibboleth.extension.DaneTlsaCredentialResolver;
+import se.danetest.shibboleth.extension.DaneTlsaCredentialResolverFactoryBean;
+import se.danetest.shibboleth.extension.NegativeTrustCache;
+import se.danetest.shibboleth.extension.SignatureVerificationCache;
+import se.danetest.shibboleth.extension.TlsaRecordCache;
+import se.danetest.shibboleth.extension.TrustDecisionCache;
+
+/**
+ * End to end load test of the trust engine with its keys published in DNS, run offline against a {@link StubDnsServer}.
+ *
+ * <p>
+ * Each simulated issuer has its own signing key, published as a DANE-EE SPKI SHA-256 TLSA record of the issuer's host.
+ * A configurable fraction of the issuers publishes the record of another key, so their messages are untrusted. The
+ * messages are signed SAML 2 authentication requests carrying the signing certificate, signed before the run and
+ * validated by a fixed number of threads, each message by one thread at a time. The run is split into a warm-up and a
+ * measured phase, and throughput, latency percentiles and the hit rates of the caches are reported for the latter.
+ * </p>
+ *
+ * <p>
+ * Options are given as key=value arguments:
+ * </p>
+ * <ul>
+ * <li>issuers - number of simulated issuers, default 200</li>
+ * <li>messagesPerIssuer - number of distinct signed messages per issuer, default 4</li>
+ * <li>untrustedFraction - fraction of issuers whose messages are untrusted, default 0.05</li>
+ * <li>keyType - RSA_2048, RSA_4096 or EC_P256, default RSA_2048</li>
+ * <li>threads - number of validating threads, default twice the number of processors</li>
+ * <li>warmup - length of the warm-up phase in seconds, default 10</li>
+ * <li>duration - length of the measured phase in seconds, default 30</li>
+ * <li>dnsLatency - minimum delay of DNS responses in milliseconds, default 5</li>
+ * <li>dnsJitter - maximum random delay added to DNS responses in milliseconds, default 5</li>
+ * <li>dnsFailureRate - fraction of DNS queries answered with SERVFAIL, default 0</li>
+ * <li>dnsDropRate - fraction of DNS queries left unanswered, default 0</li>
+ * <li>dnsTimeout - DNS resolver timeout in milliseconds, default 2000</li>
+ * <li>tlsaTTL - time-to-live of the TLSA records in seconds, default 300</li>
+ * <li>cacheSize - size of the engine's verification, KeyInfo, trust decision and negative caches, 0 disables them,
+ * default 1000</li>
+ * </ul>
+ */
+public final class LoadTest {
+
+    /** Zone the simulated issuers' hosts are in. */
+    private static final String ZONE = "example.org.";
+
+    /** Options of the run. */
+    private final Map<String, String> options;
+
+    /** Number of messages validated as trusted. */
+    private final AtomicLong trusted;
+
+    /** Number of messages validated as untrusted. */
+    private final AtomicLong untrusted;
+
+    /** Number of validations which failed with an error. */
+    private final AtomicLong errors;
+
+    /** Set once the run is over. */
+    private volatile boolean stopped;
+
+    /** Set while the measured phase is running. */
+    private volatile boolean measuring;
+
+    /**
+     * Constructor.
+     * 
+     * @param runOptions options of the run
+     */
+    private LoadTest(Map<String, String> runOptions) {
+        options = runOptions;
+        trusted = new AtomicLong();
+        untrusted = new AtomicLong();
+        errors = new AtomicLong();
+    }
+
+    /**
+     * Runs the load test.
+     * 
+     * @param args options as key=value pairs
+     * 
+     * @throws Exception if the load test can not be set up
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value but got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    /**
+     * Sets up the stub DNS server and the trust engine, runs the load and prints the report.
+     * 
+     * @throws Exception if the load test can not be set up
+     */
+    private void run() throws Exception {
+        int issuers = intOption("issuers", 200);
+        int messagesPerIssuer = intOption("messagesPerIssuer", 4);
+        double untrustedFraction = doubleOption("untrustedFraction", 0.05);
+        TrustEngineFixture.KeyType keyType = TrustEngineFixture.KeyType.valueOf(stringOption("keyType", "RSA_2048"));
+        int threads = intOption("threads", Runtime.getRuntime().availableProcessors() * 2);
+        long warmup = longOption("warmup", 10) * 1000;
+        long duration = longOption("duration", 30) * 1000;
+        long tlsaTTL = longOption("tlsaTTL", 300);
+        int cacheSize = intOption("cacheSize", 1000);
+
+        DefaultBootstrap.bootstrap();
+
+        StubDnsServer dnsServer = new StubDnsServer(Name.fromString(ZONE), 60);
+        dnsServer.setLatency(longOption("dnsLatency", 5), longOption("dnsJitter", 5));
+        dnsServer.setFailureRate(doubleOption("dnsFailureRate", 0));
+        dnsServer.setDropRate(doubleOption("dnsDropRate", 0));
+        dnsServer.start();
+
+        DaneTlsaCredentialResolverFactoryBean resolverFactory = new DaneTlsaCredentialResolverFactoryBean();
+        resolverFactory.setNameServer("127.0.0.1");
+        resolverFactory.setNameServerPort(dnsServer.getPort());
+        resolverFactory.setTimeout(longOption("dnsTimeout", 2000));
+        // the stub DNS server does not sign its records
+        resolverFactory.setAllowInsecure(true);
+        resolverFactory.afterPropertiesSet();
+        DaneTlsaCredentialResolver tlsaResolver = (DaneTlsaCredentialResolver) resolverFactory.getObject();
+
+        DaneStaticExplicitKeySignatureTrustEngineFactoryBean engineFactory =
+                new DaneStaticExplicitKeySignatureTrustEngineFactoryBean();
+        engineFactory.setCredentials(Collections.<Credential> emptyList());
+        engineFactory.setTlsaResolver(tlsaResolver);
+        engineFactory.setVerificationCacheSize(cacheSize);
+        engineFactory.setKeyInfoCacheSize(cacheSize);
+        engineFactory.setTrustDecisionCacheSize(cacheSize);
+        engineFactory.setNegativeCacheSize(cacheSize);
+        engineFactory.afterPropertiesSet();
+        DaneExplicitKeySignatureTrustEngine engine = (DaneExplicitKeySignatureTrustEngine) engineFactory.getObject();
+
+        System.out.println("Signing " + issuers * messagesPerIssuer + " messages of " + issuers + " " + keyType
+                + " issuers...");
+        int untrustedIssuers = (int) Math.round(issuers * untrustedFraction);
+        List<SignedMessage> messages = new ArrayList<SignedMessage>(issuers * messagesPerIssuer);
+        for (int i = 0; i < issuers; i++) {
+            String host = "sp" + i + ".example.org";
+            KeyPair signer = TrustEngineFixture.generateKeyPair(keyType);
+            X509Certificate certificate = TrustEngineFixture.selfSignedCertificate(signer, keyType);
+            KeyPair published = i < untrustedIssuers ? TrustEngineFixture.generateKeyPair(keyType) : signer;
+            dnsServer.addRecord(new TLSARecord(Name.fromString(tlsaResolver.getOwnerName(host)), DClass.IN,
+                    tlsaTTL, TLSARecord.CertificateUsage.DOMAIN_ISSUED_CERTIFICATE,
+                    TLSARecord.Selector.SUBJECT_PUBLIC_KEY_INFO, TLSARecord.MatchingType.SHA256,
+                    MessageDigest.getInstance("SHA-256").digest(published.getPublic().getEncoded())));
+            String entityID = "https://" + host + "/shibboleth";
+            for (int j = 0; j < messagesPerIssuer; j++) {
+                messages.add(new SignedMessage(TrustEngineFixture.signAuthnRequest(signer, certificate, keyType,
+                        true, entityID), new CriteriaSet(new EntityIDCriteria(entityID))));
+            }
+        }
+        Collections.shuffle(messages);
+        BlockingQueue<SignedMessage> pool = new ArrayBlockingQueue<SignedMessage>(messages.size(), false, messages);
+
+        LatencyRecorder[] recorders = new LatencyRecorder[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            recorders[i] = new LatencyRecorder();
+            Thread worker = new Thread(new Worker(engine, pool, recorders[i], done), "load-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        System.out.println("Warming up for " + warmup / 1000 + "s with " + threads + " threads...");
+        Thread.sleep(warmup);
+        CacheCounters before = new CacheCounters(engine, tlsaResolver, dnsServer);
+        trusted.set(0);
+        untrusted.set(0);
+        errors.set(0);
+        measuring = true;
+        long start = System.nanoTime();
+        System.out.println("Measuring for " + duration / 1000 + "s...");
+        Thread.sleep(duration);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        CacheCounters after = new CacheCounters(engine, tlsaResolver, dnsServer);
+        stopped = true;
+        done.await();
+
+        LatencyRecorder latency = new LatencyRecorder();
+        for (LatencyRecorder recorder : recorders) {
+            latency.merge(recorder);
+        }
+        report(latency, elapsed, before, after);
+
+        engineFactory.destroy();
+        resolverFactory.destroy();
+        dnsServer.stop();
+    }
+
+    /**
+     * Prints the results of the measured phase.
+     * 
+     * @param latency latencies of the validations
+     * @param elapsed length of the measured phase in nanoseconds
+     * @param before counters at the start of the measured phase
+     * @param after counters at the end of the measured phase
+     */
+    private void report(LatencyRecorder latency, long elapsed, CacheCounters before, CacheCounters after) {
+        double seconds = elapsed / 1e9;
+        System.out.println();
+        System.out.printf("Validations:       %d (%.1f/s)%n", latency.getCount(), latency.getCount() / seconds);
+        System.out.printf("Trusted:           %d%n", trusted.get());
+        System.out.printf("Untrusted:         %d%n", untrusted.get());
+        System.out.printf("Errors:            %d%n", errors.get());
+        System.out.printf("Latency (us):      p50 %d, p99 %d, p999 %d, max %d%n", latency.getPercentile(50) / 1000,
+                latency.getPercentile(99) / 1000, latency.getPercentile(99.9) / 1000, latency.getMax() / 1000);
+        printHitRate("TLSA cache:", before.tlsaHits, after.tlsaHits, before.tlsaMisses, after.tlsaMisses);
+        System.out.printf("  stale hits %d, refreshes %d%n", after.tlsaStaleHits - before.tlsaStaleHits,
+                after.tlsaRefreshes - before.tlsaRefreshes);
+        printHitRate("KeyInfo cache:", before.keyInfoHits, after.keyInfoHits, before.keyInfoMisses,
+                after.keyInfoMisses);
+        printHitRate("Verification cache:", before.verificationHits, after.verificationHits,
+                before.verificationMisses, after.verificationMisses);
+        printHitRate("Decision cache:", before.decisionHits, after.decisionHits, before.decisionMisses,
+                after.decisionMisses);
+        printHitRate("Negative cache:", before.negativeHits, after.negativeHits, before.negativeMisses,
+                after.negativeMisses);
+        System.out.printf("DNS queries:       %d (%d failed, %d dropped)%n", after.dnsQueries - before.dnsQueries,
+                after.dnsFailures - before.dnsFailures, after.dnsDrops - before.dnsDrops);
+    }
+
+    /**
+     * Prints the hit rate of a cache over the measured phase.
+     * 
+     * @param label name of the cache
+     * @param hitsBefore hits at the start of the measured phase
+     * @param hitsAfter hits at the end of the measured phase
+     * @param missesBefore misses at the start of the measured phase
+     * @param missesAfter misses at the end of the measured phase
+     */
+    private static void printHitRate(String label, long hitsBefore, long hitsAfter, long missesBefore,
+            long missesAfter) {
+        long hits = hitsAfter - hitsBefore;
+        long lookups = hits + missesAfter - missesBefore;
+        if (lookups == 0) {
+            System.out.printf("%-19s no lookups%n", label);
+        } else {
+            System.out.printf("%-19s %.1f%% of %d lookups%n", label, 100.0 * hits / lookups, lookups);
+        }
+    }
+
+    /**
+     * Gets a string option.
+     * 
+     * @param name name of the option
+     * @param defaultValue value if the option is not given
+     * 
+     * @return the value of the option
+     */
+    private String stringOption(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Gets an integer option.
+     * 
+     * @param name name of the option
+     * @param defaultValue value if the option is not given
+     * 
+     * @return the value of the option
+     */
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(stringOption(name, Integer.toString(defaultValue)));
+    }
+
+    /**
+     * Gets a long option.
+     * 
+     * @param name name of the option
+     * @param defaultValue value if the option is not given
+     * 
+     * @return the value of the option
+     */
+    private long longOption(String name, long defaultValue) {
+        return Long.parseLong(stringOption(name, Long.toString(defaultValue)));
+    }
+
+    /**
+     * Gets a floating point option.
+     * 
+     * @param name name of the option
+     * @param defaultValue value if the option is not given
+     * 
+     * @return the value of the option
+     */
+    private double doubleOption(String name, double defaultValue) {
+        return Double.parseDouble(stringOption(name, Double.toString(defaultValue)));
+    }
+
+    /** A signed message with its trust basis criteria. */
+    private static final class SignedMessage {
+
+        /** Signature of the message. */
+        private final Signature signature;
+
+        /** Trust basis criteria naming the issuer. */
+        private final CriteriaSet criteriaSet;
+
+        /**
+         * Constructor.
+         * 
+         * @param messageSignature signature of the message
+         * @param criteria trust basis criteria naming the issuer
+         */
+        SignedMessage(Signature messageSignature, CriteriaSet criteria) {
+            signature = messageSignature;
+            criteriaSet = criteria;
+        }
+    }
+
+    /** Validates messages taken from the pool until the run is over. */
+    private final class Worker implements Runnable {
+
+        /** The trust engine. */
+        private final DaneExplicitKeySignatureTrustEngine engine;
+
+        /** Messages not being validated by another worker. */
+        private final BlockingQueue<SignedMessage> pool;
+
+        /** Latencies of this worker's validations in the measured phase. */
+        private final LatencyRecorder recorder;
+
+        /** Counted down when the worker stops. */
+        private final CountDownLatch done;
+
+        /**
+         * Constructor.
+         * 
+         * @param trustEngine the trust engine
+         * @param messagePool messages not being validated by another worker
+         * @param latencyRecorder latencies of this worker's validations
+         * @param stoppedLatch counted down when the worker stops
+         */
+        Worker(DaneExplicitKeySignatureTrustEngine trustEngine, BlockingQueue<SignedMessage> messagePool,
+                LatencyRecorder latencyRecorder, CountDownLatch stoppedLatch) {
+            engine = trustEngine;
+            pool = messagePool;
+            recorder = latencyRecorder;
+            done = stoppedLatch;
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                while (!stopped) {
+                    SignedMessage message = pool.take();
+                    boolean measured = measuring;
+                    long start = System.nanoTime();
+                    try {
+                        if (engine.validate(message.signature, message.criteriaSet)) {
+                            trusted.incrementAndGet();
+                        } else {
+                            untrusted.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        long latency = System.nanoTime() - start;
+                        pool.put(message);
+                        if (measured && measuring) {
+                            recorder.record(latency);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /** Counters of the caches and the DNS server at a point in time. */
+    private static final class CacheCounters {
+
+        /** TLSA cache hits. */
+        private final long tlsaHits;
+
+        /** TLSA cache misses. */
+        private final long tlsaMisses;
+
+        /** TLSA cache hits on expired record sets. */
+        private final long tlsaStaleHits;
+
+        /** TLSA record sets refreshed in the background. */
+        private final long tlsaRefreshes;
+
+        /** KeyInfo cache hits. */
+        private final long keyInfoHits;
+
+        /** KeyInfo cache misses. */
+        private final long keyInfoMisses;
+
+        /** Verification cache hits. */
+        private final long verificationHits;
+
+        /** Verification cache misses. */
+        private final long verificationMisses;
+
+        /** Trust decision cache hits. */
+        private final long decisionHits;
+
+        /** Trust decision cache misses. */
+        private final long decisionMisses;
+
+        /** Negative trust cache hits. */
+        private final long negativeHits;
+
+        /** Negative trust cache misses. */
+        private final long negativeMisses;
+
+        /** DNS queries received. */
+        private final long dnsQueries;
+
+        /** DNS queries answered with SERVFAIL. */
+        private final long dnsFailures;
+
+        /** DNS queries dropped. */
+        private final long dnsDrops;
+
+        /**
+         * Constructor. Reads the counters, treating disabled caches as never used.
+         * 
+         * @param engine the trust engine
+         * @param tlsaResolver the TLSA credential resolver
+         * @param dnsServer the stub DNS server
+         */
+        CacheCounters(DaneExplicitKeySignatureTrustEngine engine, DaneTlsaCredentialResolver tlsaResolver,
+                StubDnsServer dnsServer) {
+            TlsaRecordCache tlsaCache = tlsaResolver.getCache();
+            tlsaHits = tlsaCache.getHits();
+            tlsaMisses = tlsaCache.getMisses();
+            tlsaStaleHits = tlsaCache.getStaleHits();
+            tlsaRefreshes = tlsaCache.getRefreshes();
+            KeyInfoCredentialResolver keyInfoResolver = engine.getKeyInfoResolver();
+            if (keyInfoResolver instanceof CachingKeyInfoCredentialResolver) {
+                keyInfoHits = ((CachingKeyInfoCredentialResolver) keyInfoResolver).getHits();
+                keyInfoMisses = ((CachingKeyInfoCredentialResolver) keyInfoResolver).getMisses();
+            } else {
+                keyInfoHits = 0;
+                keyInfoMisses = 0;
+            }
+            SignatureVerificationCache verificationCache = engine.getVerificationCache();
+            verificationHits = verificationCache == null ? 0 : verificationCache.getHits();
+            verificationMisses = verificationCache == null ? 0 : verificationCache.getMisses();
+            TrustDecisionCache decisionCache = engine.getTrustDecisionCache();
+            decisionHits = decisionCache == null ? 0 : decisionCache.getHits();
+            decisionMisses = decisionCache == null ? 0 : decisionCache.getMisses();
+            NegativeTrustCache negativeCache = engine.getNegativeTrustCache();
+            negativeHits = negativeCache == null ? 0 : negativeCache.getHits();
+            negativeMisses = negativeCache == null ? 0 : negativeCache.getMisses();
+            dnsQueries = dnsServer.getQueries();
+            dnsFailures = dnsServer.getFailures();
+            dnsDrops = dnsServer.getDrops();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package se.danetest.shibboleth.extension.benchmark;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.xml.security.SecurityException;
+
+/**
+ * Throughput of {@link se.danetest.shibboleth.extension.DaneExplicitKeySignatureTrustEngine#validate(byte[], byte[],
+ * String, org.opensaml.xml.security.CriteriaSet, org.opensaml.xml.security.credential.Credential)}, the path used by
+ * the HTTP-Redirect and SimpleSign bindings.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawSignatureValidationBenchmark {
+
+    /**
+     * Validates the raw signature on a single thread.
+     * 
+     * @param fixture the benchmark state
+     * 
+     * @return the trust decision
+     * 
+     * @throws SecurityException if validation fails with an error
+     */
+    @Benchmark
+    @Threads(1)
+    public boolean validate(TrustEngineFixture fixture) throws SecurityException {
+        return validateRaw(fixture);
+    }
+
+    /**
+     * Validates the raw signature on as many threads as there are processors.
+     * 
+     * @param fixture the benchmark state
+     * 
+     * @return the trust decision
+     * 
+     * @throws SecurityException if validation fails with an error
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean validateConcurrently(TrustEngineFixture fixture) throws SecurityException {
+        return validateRaw(fixture);
+    }
+
+    /**
+     * Validates the raw signature of the fixture.
+     * 
+     * @param fixture the benchmark state
+     * 
+     * @return the trust decision
+     * 
+     * @throws SecurityException if validation fails with an error
+     */
+    private boolean validateRaw(TrustEngineFixture fixture) throws SecurityException {
+        return fixture.getTrustEngine().validate(fixture.getRawSignature(), fixture.getRawContent(),
+                fixture.keyType.getSignatureURI(), fixture.getCriteriaSet(), fixture.getRawCandidate());
+    }
+}
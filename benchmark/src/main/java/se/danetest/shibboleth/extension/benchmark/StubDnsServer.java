@@ -0,0 +1,304 @@
+package se.danetest.shibboleth.extension.benchmark;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+
+/**
+ * Minimal authoritative DNS responder on a local UDP port, answering from records held in memory.
+ *
+ * <p>
+ * Responses can be delayed and failures injected: a fraction of queries is answered with SERVFAIL and another fraction
+ * is dropped, so that the resolver times out. Delayed responses are sent from a small pool of threads, so latency does
+ * not limit the rate at which queries are accepted. Names without records are answered with NXDOMAIN and an SOA record
+ * carrying the negative time-to-live.
+ * </p>
+ */
+public class StubDnsServer {
+
+    /** Socket queries are received on and responses sent from. */
+    private final DatagramSocket socket;
+
+    /** Records, keyed by owner name. */
+    private final ConcurrentMap<Name, List<Record>> records;
+
+    /** SOA record returned with negative answers. */
+    private final SOARecord soa;
+
+    /** Threads sending the responses. */
+    private final ScheduledExecutorService responder;
+
+    /** Number of queries received. */
+    private final AtomicLong queries;
+
+    /** Number of queries answered with SERVFAIL. */
+    private final AtomicLong failures;
+
+    /** Number of queries dropped. */
+    private final AtomicLong drops;
+
+    /** Minimum delay of a response, in milliseconds. */
+    private volatile long latency;
+
+    /** Maximum random delay added to the minimum delay, in milliseconds. */
+    private volatile long jitter;
+
+    /** Fraction of queries answered with SERVFAIL. */
+    private volatile double failureRate;
+
+    /** Fraction of queries dropped. */
+    private volatile double dropRate;
+
+    /** Thread receiving queries, null until {@link #start()} is called. */
+    private Thread receiver;
+
+    /**
+     * Constructor. Binds an ephemeral port on the loopback address.
+     * 
+     * @param zone name of the zone the server is authoritative for
+     * @param negativeTTL negative time-to-live of the zone, in seconds
+     * 
+     * @throws SocketException if the port can not be bound
+     */
+    public StubDnsServer(Name zone, long negativeTTL) throws SocketException {
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByAddress(new byte[] {127, 0, 0, 1}), 0));
+        records = new ConcurrentHashMap<Name, List<Record>>();
+        soa = new SOARecord(zone, DClass.IN, negativeTTL, zone, zone, 1, 3600, 600, 86400, negativeTTL);
+        responder = new ScheduledThreadPoolExecutor(4, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stub-dns-responder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        queries = new AtomicLong();
+        failures = new AtomicLong();
+        drops = new AtomicLong();
+    }
+
+    /**
+     * Gets the port the server listens on.
+     * 
+     * @return the UDP port
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Adds a record.
+     * 
+     * @param record the record
+     */
+    public void addRecord(Record record) {
+        List<Record> nameRecords = records.get(record.getName());
+        if (nameRecords == null) {
+            nameRecords = new ArrayList<Record>();
+            List<Record> existing = records.putIfAbsent(record.getName(), nameRecords);
+            if (existing != null) {
+                nameRecords = existing;
+            }
+        }
+        synchronized (nameRecords) {
+            nameRecords.add(record);
+        }
+    }
+
+    /**
+     * Sets the delay of the responses.
+     * 
+     * @param minimum minimum delay in milliseconds
+     * @param random maximum random delay added to the minimum, in milliseconds
+     */
+    public void setLatency(long minimum, long random) {
+        latency = minimum;
+        jitter = random;
+    }
+
+    /**
+     * Sets the fraction of queries answered with SERVFAIL.
+     * 
+     * @param rate fraction between 0 and 1
+     */
+    public void setFailureRate(double rate) {
+        failureRate = rate;
+    }
+
+    /**
+     * Sets the fraction of queries dropped without a response.
+     * 
+     * @param rate fraction between 0 and 1
+     */
+    public void setDropRate(double rate) {
+        dropRate = rate;
+    }
+
+    /**
+     * Gets the number of queries received.
+     * 
+     * @return number of queries
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Gets the number of queries answered with SERVFAIL.
+     * 
+     * @return number of failed queries
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Gets the number of queries dropped.
+     * 
+     * @return number of dropped queries
+     */
+    public long getDrops() {
+        return drops.get();
+    }
+
+    /** Starts answering queries. */
+    public synchronized void start() {
+        if (receiver != null) {
+            return;
+        }
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "stub-dns-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /** Stops answering queries and closes the socket. */
+    public synchronized void stop() {
+        socket.close();
+        responder.shutdownNow();
+        receiver = null;
+    }
+
+    /** Receives queries until the socket is closed, scheduling a response to each. */
+    private void receive() {
+        Random random = new Random();
+        byte[] buffer = new byte[65535];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            queries.incrementAndGet();
+            double outcome = random.nextDouble();
+            if (outcome < dropRate) {
+                drops.incrementAndGet();
+                continue;
+            }
+            final boolean fail = outcome < dropRate + failureRate;
+            final byte[] query = new byte[packet.getLength()];
+            System.arraycopy(packet.getData(), packet.getOffset(), query, 0, query.length);
+            final SocketAddress client = packet.getSocketAddress();
+            long delay = latency;
+            if (jitter > 0) {
+                delay += (long) (random.nextDouble() * jitter);
+            }
+            responder.schedule(new Runnable() {
+                public void run() {
+                    respond(query, client, fail);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Answers a query.
+     * 
+     * @param query the query in wire format
+     * @param client address of the client
+     * @param fail whether to answer with SERVFAIL
+     */
+    private void respond(byte[] query, SocketAddress client, boolean fail) {
+        try {
+            Message request = new Message(query);
+            Record question = request.getQuestion();
+            Message response = new Message(request.getHeader().getID());
+            response.getHeader().setFlag(Flags.QR);
+            if (question != null) {
+                response.addRecord(question, Section.QUESTION);
+            }
+            if (fail || question == null) {
+                failures.incrementAndGet();
+                response.getHeader().setRcode(Rcode.SERVFAIL);
+            } else {
+                response.getHeader().setFlag(Flags.AA);
+                List<Record> nameRecords = records.get(question.getName());
+                boolean answered = false;
+                if (nameRecords != null) {
+                    synchronized (nameRecords) {
+                        for (Record record : nameRecords) {
+                            if (record.getType() == question.getType()) {
+                                response.addRecord(record, Section.ANSWER);
+                                answered = true;
+                            }
+                        }
+                    }
+                }
+                if (!answered) {
+                    if (nameRecords == null) {
+                        response.getHeader().setRcode(Rcode.NXDOMAIN);
+                    }
+                    response.addRecord(soa, Section.AUTHORITY);
+                }
+            }
+            byte[] wire = response.toWire();
+            socket.send(new DatagramPacket(wire, wire.length, client));
+        } catch (IOException e) {
+            // The client times out, as it would with a lost response
+            drops.incrementAndGet();
+        }
+    }
+}
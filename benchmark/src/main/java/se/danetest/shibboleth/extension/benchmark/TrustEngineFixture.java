@@ -0,0 +1,432 @@
+package se.danetest.shibboleth.extension.benchmark;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.joda.time.DateTime;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.Signer;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.danetest.shibboleth.extension.DaneExplicitKeySignatureTrustEngine;
+import se.danetest.shibboleth.extension.DaneStaticExplicitKeySignatureTrustEngineFactoryBean;
+
+/**
+ * Benchmark state holding a trust engine, its trusted credentials and a signed message in both the XML and the raw
+ * (HTTP-Redirect binding) form.
+ *
+ * <p>
+ * The signing key is the last of the trusted credentials, so validations that fall back to trying every trusted
+ * credential pay for the whole set. The other trusted keys only need to fail verification, so RSA ones are random
+ * moduli rather than generated key pairs, which keeps the setup of large sets fast.
+ * </p>
+ */
+@State(Scope.Benchmark)
+public class TrustEngineFixture {
+
+    /** URI of the ECDSA with SHA-256 signature algorithm. */
+    public static final String ALGO_ID_SIGNATURE_ECDSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256";
+
+    /** Entity ID of the signer. */
+    public static final String ENTITY_ID = "https://sp.example.org/shibboleth";
+
+    /** Kinds of signing keys. */
+    public enum KeyType {
+
+        /** 2048 bit RSA. */
+        RSA_2048("RSA", 2048, SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256, "SHA256withRSA"),
+
+        /** 4096 bit RSA. */
+        RSA_4096("RSA", 4096, SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256, "SHA256withRSA"),
+
+        /** ECDSA on the P-256 curve. */
+        EC_P256("EC", 256, ALGO_ID_SIGNATURE_ECDSA_SHA256, "SHA256withECDSA");
+
+        /** JCA key algorithm. */
+        private final String keyAlgorithm;
+
+        /** Key size in bits. */
+        private final int keySize;
+
+        /** Signature algorithm URI. */
+        private final String signatureURI;
+
+        /** JCA signature algorithm. */
+        private final String jcaSignatureAlgorithm;
+
+        /**
+         * Constructor.
+         * 
+         * @param algorithm JCA key algorithm
+         * @param size key size in bits
+         * @param uri signature algorithm URI
+         * @param jcaAlgorithm JCA signature algorithm
+         */
+        private KeyType(String algorithm, int size, String uri, String jcaAlgorithm) {
+            keyAlgorithm = algorithm;
+            keySize = size;
+            signatureURI = uri;
+            jcaSignatureAlgorithm = jcaAlgorithm;
+        }
+
+        /**
+         * Gets the signature algorithm URI.
+         * 
+         * @return the signature algorithm URI
+         */
+        public String getSignatureURI() {
+            return signatureURI;
+        }
+
+        /**
+         * Gets the JCA signature algorithm.
+         * 
+         * @return the JCA signature algorithm
+         */
+        public String getJCASignatureAlgorithm() {
+            return jcaSignatureAlgorithm;
+        }
+    }
+
+    /** Kind of signing key. */
+    @Param({"RSA_2048", "RSA_4096", "EC_P256"})
+    public KeyType keyType;
+
+    /** Number of trusted credentials. */
+    @Param({"1", "100", "10000"})
+    public int trustedSetSize;
+
+    /** Whether the signature carries the signing certificate, or for raw signatures a candidate credential is given. */
+    @Param({"true", "false"})
+    public boolean keyInfo;
+
+    /** Whether the optional verification, KeyInfo and trust decision caches are enabled. */
+    @Param({"false", "true"})
+    public boolean caches;
+
+    /** The trust engine. */
+    private DaneExplicitKeySignatureTrustEngine trustEngine;
+
+    /** Trust basis criteria. */
+    private CriteriaSet criteriaSet;
+
+    /** Signature of the XML message. */
+    private Signature xmlSignature;
+
+    /** Raw signed content. */
+    private byte[] rawContent;
+
+    /** Raw signature value. */
+    private byte[] rawSignature;
+
+    /** Candidate credential of the raw signature, null if none is given. */
+    private Credential rawCandidate;
+
+    /**
+     * Generates the keys, builds the trust engine and signs the messages.
+     * 
+     * @throws Exception if the fixture can not be built
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        DefaultBootstrap.bootstrap();
+
+        KeyPair signer = generateKeyPair(keyType);
+        X509Certificate certificate = selfSignedCertificate(signer, keyType);
+
+        trustEngine = buildTrustEngine(trustedCredentials(keyType, trustedSetSize, signer.getPublic()), caches);
+        criteriaSet = new CriteriaSet(new EntityIDCriteria(ENTITY_ID));
+
+        xmlSignature = signAuthnRequest(signer, certificate, keyType, keyInfo);
+
+        rawContent = ("SAMLRequest=fZFNT8MwDIbvk%2FgPUe5d0w6JKWo7DdAkJBBoDA7cTOq1lZqkxClP%2F56IYjI%2BDr7YfvW8dorVwXTsHT21"
+                + "&RelayState=ss%3Amem%3A1&SigAlg=" + keyType.getSignatureURI()).getBytes("UTF-8");
+        java.security.Signature signature = java.security.Signature.getInstance(keyType.getJCASignatureAlgorithm());
+        signature.initSign(signer.getPrivate());
+        signature.update(rawContent);
+        rawSignature = signature.sign();
+        rawCandidate = keyInfo ? SecurityHelper.getSimpleCredential(signer.getPublic(), null) : null;
+
+        if (!trustEngine.validate(xmlSignature, criteriaSet)) {
+            throw new IllegalStateException("XML signature of the fixture does not validate");
+        }
+        if (!trustEngine.validate(rawSignature, rawContent, keyType.getSignatureURI(), criteriaSet, rawCandidate)) {
+            throw new IllegalStateException("Raw signature of the fixture does not validate");
+        }
+    }
+
+    /**
+     * Gets the trust engine.
+     * 
+     * @return the trust engine
+     */
+    public DaneExplicitKeySignatureTrustEngine getTrustEngine() {
+        return trustEngine;
+    }
+
+    /**
+     * Gets the trust basis criteria.
+     * 
+     * @return the trust basis criteria
+     */
+    public CriteriaSet getCriteriaSet() {
+        return criteriaSet;
+    }
+
+    /**
+     * Gets the signature of the XML message.
+     * 
+     * @return the XML signature
+     */
+    public Signature getXmlSignature() {
+        return xmlSignature;
+    }
+
+    /**
+     * Gets the raw signed content.
+     * 
+     * @return the raw signed content
+     */
+    public byte[] getRawContent() {
+        return rawContent;
+    }
+
+    /**
+     * Gets the raw signature value.
+     * 
+     * @return the raw signature value
+     */
+    public byte[] getRawSignature() {
+        return rawSignature;
+    }
+
+    /**
+     * Gets the candidate credential of the raw signature.
+     * 
+     * @return the candidate credential, or null if none is given
+     */
+    public Credential getRawCandidate() {
+        return rawCandidate;
+    }
+
+    /**
+     * Generates a key pair.
+     * 
+     * @param type kind of key
+     * 
+     * @return the key pair
+     * 
+     * @throws Exception if the key pair can not be generated
+     */
+    public static KeyPair generateKeyPair(KeyType type) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(type.keyAlgorithm);
+        if ("EC".equals(type.keyAlgorithm)) {
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+        } else {
+            generator.initialize(new RSAKeyGenParameterSpec(type.keySize, RSAKeyGenParameterSpec.F4));
+        }
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Creates a public key of the given kind which verifies no signature.
+     * 
+     * @param type kind of key
+     * @param random source of randomness
+     * 
+     * @return the public key
+     * 
+     * @throws Exception if the key can not be created
+     */
+    public static PublicKey fillerKey(KeyType type, Random random) throws Exception {
+        if ("EC".equals(type.keyAlgorithm)) {
+            return generateKeyPair(type).getPublic();
+        }
+        BigInteger modulus = new BigInteger(type.keySize, random).setBit(type.keySize - 1).setBit(0);
+        return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, RSAKeyGenParameterSpec.F4));
+    }
+
+    /**
+     * Builds a list of trusted credentials ending with the signer's key.
+     * 
+     * @param type kind of key
+     * @param size number of credentials
+     * @param signerKey the signer's public key
+     * 
+     * @return the trusted credentials
+     * 
+     * @throws Exception if a key can not be created
+     */
+    public static List<Credential> trustedCredentials(KeyType type, int size, PublicKey signerKey) throws Exception {
+        Random random = new Random(size);
+        List<Credential> credentials = new ArrayList<Credential>(size);
+        for (int i = 1; i < size; i++) {
+            credentials.add(SecurityHelper.getSimpleCredential(fillerKey(type, random), null));
+        }
+        credentials.add(SecurityHelper.getSimpleCredential(signerKey, null));
+        return credentials;
+    }
+
+    /**
+     * Builds a trust engine the same way the IdP configuration does.
+     * 
+     * @param credentials the trusted credentials
+     * @param withCaches whether the optional caches are enabled
+     * 
+     * @return the trust engine
+     * 
+     * @throws Exception if the trust engine can not be built
+     */
+    public static DaneExplicitKeySignatureTrustEngine buildTrustEngine(List<Credential> credentials,
+            boolean withCaches) throws Exception {
+        DaneStaticExplicitKeySignatureTrustEngineFactoryBean factory =
+                new DaneStaticExplicitKeySignatureTrustEngineFactoryBean();
+        factory.setCredentials(credentials);
+        if (withCaches) {
+            factory.setVerificationCacheSize(1000);
+            factory.setKeyInfoCacheSize(1000);
+            factory.setTrustDecisionCacheSize(1000);
+        }
+        factory.afterPropertiesSet();
+        return (DaneExplicitKeySignatureTrustEngine) factory.getObject();
+    }
+
+    /**
+     * Creates a self-signed certificate.
+     * 
+     * @param keyPair the key pair
+     * @param type kind of key
+     * 
+     * @return the certificate
+     * 
+     * @throws Exception if the certificate can not be created
+     */
+    public static X509Certificate selfSignedCertificate(KeyPair keyPair, KeyType type) throws Exception {
+        X500Principal subject = new X500Principal("CN=sp.example.org");
+        X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+        generator.setSerialNumber(new BigInteger(64, new SecureRandom()));
+        generator.setIssuerDN(subject);
+        generator.setSubjectDN(subject);
+        generator.setNotBefore(new Date(System.currentTimeMillis() - 24L * 60 * 60 * 1000));
+        generator.setNotAfter(new Date(System.currentTimeMillis() + 365L * 24 * 60 * 60 * 1000));
+        generator.setPublicKey(keyPair.getPublic());
+        generator.setSignatureAlgorithm(type.jcaSignatureAlgorithm);
+        return generator.generate(keyPair.getPrivate());
+    }
+
+    /**
+     * Builds and signs a SAML 2 authentication request.
+     * 
+     * @param signer the signing key pair
+     * @param certificate the signing certificate
+     * @param type kind of key
+     * @param withKeyInfo whether the signature carries the signing certificate
+     * 
+     * @return the signature of the request
+     * 
+     * @throws Exception if the request can not be built or signed
+     */
+    public static Signature signAuthnRequest(KeyPair signer, X509Certificate certificate, KeyType type,
+            boolean withKeyInfo) throws Exception {
+        return signAuthnRequest(signer, certificate, type, withKeyInfo, ENTITY_ID);
+    }
+
+    /**
+     * Builds and signs a SAML 2 authentication request from a given issuer.
+     * 
+     * @param signer the signing key pair
+     * @param certificate the signing certificate
+     * @param type kind of key
+     * @param withKeyInfo whether the signature carries the signing certificate
+     * @param entityID entity ID of the issuer
+     * 
+     * @return the signature of the request
+     * 
+     * @throws Exception if the request can not be built or signed
+     */
+    public static Signature signAuthnRequest(KeyPair signer, X509Certificate certificate, KeyType type,
+            boolean withKeyInfo, String entityID) throws Exception {
+        XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+
+        AuthnRequest request = (AuthnRequest) builderFactory.getBuilder(AuthnRequest.DEFAULT_ELEMENT_NAME)
+                .buildObject(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        request.setID("_" + Long.toHexString(new SecureRandom().nextLong()));
+        request.setVersion(SAMLVersion.VERSION_20);
+        request.setIssueInstant(new DateTime());
+        Issuer issuer = (Issuer) builderFactory.getBuilder(Issuer.DEFAULT_ELEMENT_NAME).buildObject(
+                Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(entityID);
+        request.setIssuer(issuer);
+
+        BasicX509Credential signingCredential = new BasicX509Credential();
+        signingCredential.setEntityCertificate(certificate);
+        signingCredential.setPrivateKey(signer.getPrivate());
+
+        Signature signature = (Signature) builderFactory.getBuilder(Signature.DEFAULT_ELEMENT_NAME).buildObject(
+                Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(signingCredential);
+        signature.setSignatureAlgorithm(type.signatureURI);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        if (withKeyInfo) {
+            KeyInfo keyInfo = (KeyInfo) builderFactory.getBuilder(KeyInfo.DEFAULT_ELEMENT_NAME).buildObject(
+                    KeyInfo.DEFAULT_ELEMENT_NAME);
+            KeyInfoHelper.addCertificate(keyInfo, certificate);
+            signature.setKeyInfo(keyInfo);
+        }
+        request.setSignature(signature);
+
+        Configuration.getMarshallerFactory().getMarshaller(request).marshall(request);
+        Signer.signObject(signature);
+        return signature;
+    }
+}
@@ -0,0 +1,339 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.xml.security.Criteria;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.KeyAlgorithmCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xml.security.keyinfo.KeyInfoCriteria;
+import org.opensaml.xml.signature.KeyInfo;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * {@link KeyInfoCredentialResolver} which remembers the credentials another resolver built from a KeyInfo, so a
+ * certificate or key value sent with every message is decoded only once.
+ *
+ * <p>
+ * Results are keyed on a SHA-256 digest of the KeyInfo's DOM content together with the requested key algorithm and
+ * usage, and the least recently used result is evicted once the cache is full. Requests carrying other criteria, or
+ * whose KeyInfo has no DOM, are passed to the wrapped resolver uncached. A cached credential keeps the credential
+ * context of the KeyInfo it was first built from.
+ * </p>
+ */
+public class CachingKeyInfoCredentialResolver implements KeyInfoCredentialResolver {
+
+    /** The resolver doing the actual work. */
+    private final KeyInfoCredentialResolver delegate;
+
+    /** Maximum number of cached results. */
+    private final int maxEntries;
+
+    /** Cached results, in access order. */
+    private final Map<CacheKey, List<Credential>> cache;
+
+    /** Number of resolutions answered from the cache. */
+    private final AtomicLong hits;
+
+    /** Number of resolutions passed to the wrapped resolver. */
+    private final AtomicLong misses;
+
+    /**
+     * Constructor.
+     *
+     * @param resolver the resolver doing the actual work
+     * @param size maximum number of cached results, must be greater than zero
+     */
+    public CachingKeyInfoCredentialResolver(KeyInfoCredentialResolver resolver, int size) {
+        if (resolver == null) {
+            throw new IllegalArgumentException("KeyInfo credential resolver may not be null");
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than zero");
+        }
+        delegate = resolver;
+        maxEntries = size;
+        cache = new LinkedHashMap<CacheKey, List<Credential>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, List<Credential>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * Gets the wrapped resolver.
+     *
+     * @return the wrapped resolver
+     */
+    public KeyInfoCredentialResolver getDelegate() {
+        return delegate;
+    }
+
+    /** {@inheritDoc} */
+    public Iterable<Credential> resolve(CriteriaSet criteriaSet) throws SecurityException {
+        CacheKey key = buildKey(criteriaSet);
+        if (key == null) {
+            misses.incrementAndGet();
+            return delegate.resolve(criteriaSet);
+        }
+
+        List<Credential> credentials;
+        synchronized (cache) {
+            credentials = cache.get(key);
+        }
+        if (credentials != null) {
+            hits.incrementAndGet();
+            return credentials;
+        }
+
+        misses.incrementAndGet();
+        List<Credential> resolved = new ArrayList<Credential>();
+        for (Credential credential : delegate.resolve(criteriaSet)) {
+            resolved.add(credential);
+        }
+        credentials = Collections.unmodifiableList(resolved);
+        synchronized (cache) {
+            cache.put(key, credentials);
+        }
+        return credentials;
+    }
+
+    /** {@inheritDoc} */
+    public Credential resolveSingle(CriteriaSet criteriaSet) throws SecurityException {
+        Iterator<Credential> credentials = resolve(criteriaSet).iterator();
+        if (credentials.hasNext()) {
+            return credentials.next();
+        }
+        return null;
+    }
+
+    /** Removes all cached results. */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Gets the number of cached results.
+     *
+     * @return number of cached results
+     */
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Gets the number of resolutions answered from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of resolutions passed to the wrapped resolver.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Builds the cache key of a resolution request.
+     *
+     * @param criteriaSet the request criteria
+     *
+     * @return the cache key, or null if the request can not be cached
+     */
+    private CacheKey buildKey(CriteriaSet criteriaSet) {
+        if (criteriaSet == null) {
+            return null;
+        }
+        KeyInfoCriteria keyInfoCriteria = null;
+        String keyAlgorithm = null;
+        UsageType usage = null;
+        for (Criteria criteria : criteriaSet) {
+            if (criteria instanceof KeyInfoCriteria) {
+                keyInfoCriteria = (KeyInfoCriteria) criteria;
+            } else if (criteria instanceof KeyAlgorithmCriteria) {
+                keyAlgorithm = ((KeyAlgorithmCriteria) criteria).getKeyAlgorithm();
+            } else if (criteria instanceof UsageCriteria) {
+                usage = ((UsageCriteria) criteria).getUsage();
+            } else {
+                return null;
+            }
+        }
+        if (keyInfoCriteria == null) {
+            return null;
+        }
+        KeyInfo keyInfo = keyInfoCriteria.getKeyInfo();
+        if (keyInfo == null || keyInfo.getDOM() == null) {
+            return null;
+        }
+        return new CacheKey(digest(keyInfo.getDOM()), keyAlgorithm, usage);
+    }
+
+    /**
+     * Computes a digest of the names, attributes and text content of an element and its descendants.
+     *
+     * @param element the element
+     *
+     * @return the digest
+     */
+    private static KeyFingerprint digest(Element element) {
+        MessageDigest digest = KeyFingerprint.newDigest(KeyFingerprint.SHA256);
+        try {
+            update(digest, element);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported by the JVM", e);
+        }
+        return new KeyFingerprint(digest.digest());
+    }
+
+    /**
+     * Adds a node and its descendants to a digest.
+     *
+     * @param digest the digest
+     * @param node the node
+     *
+     * @throws UnsupportedEncodingException never, UTF-8 is always supported
+     */
+    private static void update(MessageDigest digest, Node node) throws UnsupportedEncodingException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                digest.update((byte) '<');
+                updateString(digest, node.getNamespaceURI());
+                updateString(digest, node.getLocalName());
+                NamedNodeMap attributes = node.getAttributes();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    Attr attribute = (Attr) attributes.item(i);
+                    digest.update((byte) '@');
+                    updateString(digest, attribute.getNamespaceURI());
+                    updateString(digest, attribute.getLocalName());
+                    updateString(digest, attribute.getValue());
+                }
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    update(digest, child);
+                }
+                digest.update((byte) '>');
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                digest.update((byte) '"');
+                updateString(digest, node.getNodeValue());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Adds a length-prefixed string to a digest.
+     *
+     * @param digest the digest
+     * @param value the string, may be null
+     *
+     * @throws UnsupportedEncodingException never, UTF-8 is always supported
+     */
+    private static void updateString(MessageDigest digest, String value) throws UnsupportedEncodingException {
+        if (value == null) {
+            digest.update((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        digest.update((byte) 1);
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+
+    /** Key of a cached resolution result. */
+    private static final class CacheKey {
+
+        /** Digest of the KeyInfo content. */
+        private final KeyFingerprint keyInfo;
+
+        /** Requested key algorithm, may be null. */
+        private final String keyAlgorithm;
+
+        /** Requested usage, may be null. */
+        private final UsageType usage;
+
+        /**
+         * Constructor.
+         *
+         * @param keyInfoDigest digest of the KeyInfo content
+         * @param algorithm requested key algorithm
+         * @param usageType requested usage
+         */
+        CacheKey(KeyFingerprint keyInfoDigest, String algorithm, UsageType usageType) {
+            keyInfo = keyInfoDigest;
+            keyAlgorithm = algorithm;
+            usage = usageType;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hash = keyInfo.hashCode();
+            hash = hash * 31 + (keyAlgorithm == null ? 0 : keyAlgorithm.hashCode());
+            return hash * 31 + (usage == null ? 0 : usage.hashCode());
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof CacheKey) {
+                CacheKey other = (CacheKey) obj;
+                return keyInfo.equals(other.keyInfo)
+                        && (keyAlgorithm == null ? other.keyAlgorithm == null : keyAlgorithm
+                                .equals(other.keyAlgorithm)) && usage == other.usage;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.AbstractCredentialResolver;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.CredentialResolver;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.KeyAlgorithmCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+
+/**
+ * Credential resolver which combines the trusted credentials of several resolvers into one
+ * {@link TrustedCredentialSet}.
+ *
+ * <p>
+ * Unions are remembered by the versions of the sets they were built from, so as long as the member resolvers keep
+ * returning the same sets the same union instance, with the same version, is returned.
+ * </p>
+ */
+public class ChainingTrustedCredentialResolver extends AbstractCredentialResolver implements
+        TrustedCredentialResolver {
+
+    /** Maximum number of remembered unions. */
+    private static final int MAX_UNIONS = 1024;
+
+    /** The member resolvers. */
+    private final List<CredentialResolver> resolvers;
+
+    /** Remembered unions, keyed by the versions of their members. */
+    private final Map<UnionKey, TrustedCredentialSet> unions;
+
+    /**
+     * Constructor.
+     *
+     * @param memberResolvers the member resolvers, in the order their credentials should be tried
+     */
+    public ChainingTrustedCredentialResolver(List<CredentialResolver> memberResolvers) {
+        if (memberResolvers == null || memberResolvers.isEmpty()) {
+            throw new IllegalArgumentException("At least one credential resolver is required");
+        }
+        resolvers = Collections.unmodifiableList(new ArrayList<CredentialResolver>(memberResolvers));
+        unions = new LinkedHashMap<UnionKey, TrustedCredentialSet>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<UnionKey, TrustedCredentialSet> eldest) {
+                return size() > MAX_UNIONS;
+            }
+        };
+    }
+
+    /**
+     * Gets the member resolvers.
+     *
+     * @return unmodifiable list of the member resolvers
+     */
+    public List<CredentialResolver> getResolvers() {
+        return resolvers;
+    }
+
+    /** {@inheritDoc} */
+    public Iterable<Credential> resolve(CriteriaSet criteriaSet) throws SecurityException {
+        return resolveTrusted(criteriaSet, null, null);
+    }
+
+    /** {@inheritDoc} */
+    public TrustedCredentialSet resolveTrusted(CriteriaSet criteriaSet, String keyAlgorithm, UsageType defaultUsage)
+            throws SecurityException {
+        TrustedCredentialSet[] sets = new TrustedCredentialSet[resolvers.size()];
+        long[] versions = new long[sets.length];
+        CriteriaSet memberCriteria = null;
+        for (int i = 0; i < sets.length; i++) {
+            CredentialResolver resolver = resolvers.get(i);
+            if (resolver instanceof TrustedCredentialResolver) {
+                sets[i] = ((TrustedCredentialResolver) resolver).resolveTrusted(criteriaSet, keyAlgorithm,
+                        defaultUsage);
+            } else {
+                if (memberCriteria == null) {
+                    memberCriteria = buildCriteria(criteriaSet, keyAlgorithm, defaultUsage);
+                }
+                sets[i] = toTrustedCredentialSet(resolver.resolve(memberCriteria));
+            }
+            versions[i] = sets[i].getVersion();
+        }
+        if (sets.length == 1) {
+            return sets[0];
+        }
+
+        UnionKey key = new UnionKey(versions);
+        synchronized (unions) {
+            TrustedCredentialSet union = unions.get(key);
+            if (union == null) {
+                union = TrustedCredentialSet.union(Arrays.asList(sets));
+                unions.put(key, union);
+            }
+            return union;
+        }
+    }
+
+    /**
+     * Builds the criteria passed to member resolvers which are not {@link TrustedCredentialResolver}s.
+     *
+     * @param criteriaSet the criteria
+     * @param keyAlgorithm key algorithm taking precedence over the criteria, may be null
+     * @param defaultUsage usage used if the criteria hold none, may be null
+     *
+     * @return the member criteria
+     */
+    private CriteriaSet buildCriteria(CriteriaSet criteriaSet, String keyAlgorithm, UsageType defaultUsage) {
+        if (keyAlgorithm == null && defaultUsage == null && criteriaSet != null) {
+            return criteriaSet;
+        }
+        CriteriaSet memberCriteria = new CriteriaSet();
+        if (criteriaSet != null) {
+            memberCriteria.addAll(criteriaSet);
+        }
+        if (defaultUsage != null && !memberCriteria.contains(UsageCriteria.class)) {
+            memberCriteria.add(new UsageCriteria(defaultUsage));
+        }
+        if (keyAlgorithm != null) {
+            memberCriteria.add(new KeyAlgorithmCriteria(keyAlgorithm), true);
+        }
+        return memberCriteria;
+    }
+
+    /**
+     * Converts the result of a member resolver into a trusted credential set.
+     *
+     * @param credentials the resolved credentials
+     *
+     * @return the trusted credential set
+     */
+    private TrustedCredentialSet toTrustedCredentialSet(Iterable<Credential> credentials) {
+        if (credentials instanceof TrustedCredentialSet) {
+            return (TrustedCredentialSet) credentials;
+        }
+        List<Credential> list = new ArrayList<Credential>();
+        if (credentials != null) {
+            for (Credential credential : credentials) {
+                list.add(credential);
+            }
+        }
+        return new TrustedCredentialSet(list);
+    }
+
+    /** Key of a remembered union. */
+    private static final class UnionKey {
+
+        /** Versions of the member sets. */
+        private final long[] versions;
+
+        /**
+         * Constructor.
+         *
+         * @param memberVersions versions of the member sets
+         */
+        UnionKey(long[] memberVersions) {
+            versions = memberVersions;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            return Arrays.hashCode(versions);
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            return obj instanceof UnionKey && Arrays.equals(versions, ((UnionKey) obj).versions);
+        }
+    }
+}
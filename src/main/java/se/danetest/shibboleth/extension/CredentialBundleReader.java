@@ -0,0 +1,391 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.BasicCredential;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads trusted credentials from a credential bundle, an XML file of base64 encoded certificates and public keys.
+ *
+ * <p>
+ * A bundle has a {urn:mace:danetest:danetrustengine}Credentials root element holding any number of Certificate
+ * elements, each with a DER encoded X.509 certificate, and PublicKey elements, each with a DER encoded
+ * SubjectPublicKeyInfo. Both take optional entityID and usage (signing, encryption or unspecified) attributes.
+ * </p>
+ *
+ * <p>
+ * The bundle is read with a streaming SAX parser, so only the encoded entries not yet decoded are held in memory, and
+ * the entries are decoded in batches on an executor while the rest of the bundle is being read. This avoids creating
+ * a DOM and a Spring bean definition for every credential when thousands are trusted.
+ * </p>
+ */
+public class CredentialBundleReader {
+
+    /** Namespace of the bundle elements. */
+    public static final String NAMESPACE = DaneExplicitKeySignatureTrustEngineNamespaceHandler.NAMESPACE;
+
+    /** Number of entries decoded by one task. */
+    private static final int BATCH_SIZE = 256;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CredentialBundleReader.class);
+
+    /** Executor decoding the entries, null to decode them in the reading thread. */
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param decodeExecutor executor decoding the entries, null to decode them in the reading thread
+     */
+    public CredentialBundleReader(ExecutorService decodeExecutor) {
+        executor = decodeExecutor;
+    }
+
+    /**
+     * Reads the credentials of a bundle.
+     *
+     * @param bundle the bundle file
+     *
+     * @return the credentials, in bundle order
+     *
+     * @throws IOException if the bundle can not be read or parsed
+     * @throws GeneralSecurityException if an entry can not be decoded
+     */
+    public List<Credential> read(File bundle) throws IOException, GeneralSecurityException {
+        BundleHandler handler = new BundleHandler();
+        try {
+            newParser().parse(bundle, handler);
+        } catch (SAXException e) {
+            handler.cancel();
+            throw new IOException("Unable to parse credential bundle " + bundle + ": " + e.getMessage());
+        } catch (IOException e) {
+            handler.cancel();
+            throw e;
+        }
+        handler.flush();
+
+        List<Credential> credentials = new ArrayList<Credential>(handler.count);
+        try {
+            for (Future<List<Credential>> batch : handler.batches) {
+                credentials.addAll(batch.get());
+            }
+        } catch (InterruptedException e) {
+            handler.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding credential bundle " + bundle);
+        } catch (ExecutionException e) {
+            handler.cancel();
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw new GeneralSecurityException("Unable to decode credential bundle " + bundle, e.getCause());
+        }
+        log.info("[DaneExtension] read {} trusted credentials from bundle {}", credentials.size(), bundle);
+        return credentials;
+    }
+
+    /**
+     * Creates a namespace aware SAX parser which does not process DTDs.
+     *
+     * @return the parser
+     *
+     * @throws IOException if the parser can not be created
+     */
+    private SAXParser newParser() throws IOException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setValidating(false);
+        try {
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        } catch (ParserConfigurationException e) {
+            log.debug("[DaneExtension] SAX parser does not support disallowing DTDs", e);
+        } catch (SAXException e) {
+            log.debug("[DaneExtension] SAX parser does not support disallowing DTDs", e);
+        }
+        try {
+            return factory.newSAXParser();
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to create SAX parser: " + e.getMessage());
+        } catch (SAXException e) {
+            throw new IOException("Unable to create SAX parser: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes a bundle entry.
+     *
+     * @param entry the entry
+     * @param certificateFactory factory decoding certificates
+     *
+     * @return the credential
+     *
+     * @throws GeneralSecurityException if the entry can not be decoded
+     */
+    private static Credential decode(Entry entry, CertificateFactory certificateFactory)
+            throws GeneralSecurityException {
+        byte[] encoded = Base64.decode(entry.encoded);
+        if (encoded == null || encoded.length == 0) {
+            throw new GeneralSecurityException("Invalid base64 content in credential bundle at line " + entry.line);
+        }
+        BasicCredential credential;
+        if (entry.certificate) {
+            X509Certificate certificate = (X509Certificate) certificateFactory
+                    .generateCertificate(new ByteArrayInputStream(encoded));
+            credential = SecurityHelper.getSimpleCredential(certificate, null);
+        } else {
+            credential = new BasicCredential();
+            credential.setPublicKey(decodePublicKey(encoded, entry.line));
+        }
+        credential.setEntityId(entry.entityID);
+        credential.setUsageType(entry.usage);
+        return credential;
+    }
+
+    /**
+     * Decodes a DER encoded SubjectPublicKeyInfo of an RSA, EC or DSA key.
+     *
+     * @param encoded the encoded key
+     * @param line line of the entry in the bundle
+     *
+     * @return the public key
+     *
+     * @throws GeneralSecurityException if the key can not be decoded
+     */
+    private static PublicKey decodePublicKey(byte[] encoded, int line) throws GeneralSecurityException {
+        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encoded);
+        for (String algorithm : new String[] {"RSA", "EC", "DSA"}) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePublic(keySpec);
+            } catch (InvalidKeySpecException e) {
+                continue;
+            }
+        }
+        throw new GeneralSecurityException("Unsupported public key in credential bundle at line " + line);
+    }
+
+    /** An encoded bundle entry. */
+    private static final class Entry {
+
+        /** Whether the entry is a certificate rather than a public key. */
+        private final boolean certificate;
+
+        /** Entity ID of the credential, may be null. */
+        private final String entityID;
+
+        /** Usage of the credential. */
+        private final UsageType usage;
+
+        /** The base64 encoded content. */
+        private final String encoded;
+
+        /** Line of the entry in the bundle. */
+        private final int line;
+
+        /**
+         * Constructor.
+         *
+         * @param isCertificate whether the entry is a certificate rather than a public key
+         * @param entity entity ID of the credential
+         * @param usageType usage of the credential
+         * @param content the base64 encoded content
+         * @param lineNumber line of the entry in the bundle
+         */
+        Entry(boolean isCertificate, String entity, UsageType usageType, String content, int lineNumber) {
+            certificate = isCertificate;
+            entityID = entity;
+            usage = usageType;
+            encoded = content;
+            line = lineNumber;
+        }
+    }
+
+    /** Decodes a batch of entries. */
+    private static final class DecodeTask implements Callable<List<Credential>> {
+
+        /** The entries. */
+        private final List<Entry> entries;
+
+        /**
+         * Constructor.
+         *
+         * @param batch the entries
+         */
+        DecodeTask(List<Entry> batch) {
+            entries = batch;
+        }
+
+        /** {@inheritDoc} */
+        public List<Credential> call() throws GeneralSecurityException {
+            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+            List<Credential> credentials = new ArrayList<Credential>(entries.size());
+            for (Entry entry : entries) {
+                credentials.add(decode(entry, certificateFactory));
+            }
+            return credentials;
+        }
+    }
+
+    /** SAX handler collecting the entries of a bundle and handing them to the decoding tasks in batches. */
+    private final class BundleHandler extends DefaultHandler {
+
+        /** Decoding tasks, in bundle order. */
+        private final List<Future<List<Credential>>> batches = new ArrayList<Future<List<Credential>>>();
+
+        /** Entries not yet handed to a decoding task. */
+        private List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+
+        /** Number of entries read. */
+        private int count;
+
+        /** Locator of the parser, may be null. */
+        private Locator locator;
+
+        /** Content of the entry being read, null outside of an entry. */
+        private StringBuilder content;
+
+        /** Whether the entry being read is a certificate. */
+        private boolean certificate;
+
+        /** Entity ID of the entry being read. */
+        private String entityID;
+
+        /** Usage of the entry being read. */
+        private UsageType usage;
+
+        /** Line of the entry being read. */
+        private int line;
+
+        /** {@inheritDoc} */
+        public void setDocumentLocator(Locator documentLocator) {
+            locator = documentLocator;
+        }
+
+        /** {@inheritDoc} */
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            if (!NAMESPACE.equals(uri)) {
+                return;
+            }
+            if ("Certificate".equals(localName) || "PublicKey".equals(localName)) {
+                certificate = "Certificate".equals(localName);
+                entityID = DatatypeHelper.safeTrimOrNullString(attributes.getValue("entityID"));
+                usage = parseUsage(attributes.getValue("usage"));
+                line = locator != null ? locator.getLineNumber() : -1;
+                content = new StringBuilder(2048);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void characters(char[] ch, int start, int length) {
+            if (content != null) {
+                content.append(ch, start, length);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void endElement(String uri, String localName, String qName) {
+            if (content != null && NAMESPACE.equals(uri)
+                    && ("Certificate".equals(localName) || "PublicKey".equals(localName))) {
+                batch.add(new Entry(certificate, entityID, usage, content.toString(), line));
+                content = null;
+                count++;
+                if (batch.size() >= BATCH_SIZE) {
+                    flush();
+                }
+            }
+        }
+
+        /** Hands the collected entries to a decoding task. */
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            DecodeTask task = new DecodeTask(batch);
+            batch = new ArrayList<Entry>(BATCH_SIZE);
+            if (executor != null) {
+                batches.add(executor.submit(task));
+            } else {
+                FutureTask<List<Credential>> future = new FutureTask<List<Credential>>(task);
+                future.run();
+                batches.add(future);
+            }
+        }
+
+        /** Cancels the decoding tasks not yet started. */
+        void cancel() {
+            for (Future<List<Credential>> future : batches) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * Parses the usage attribute of an entry.
+         *
+         * @param value the attribute value, may be null
+         *
+         * @return the usage
+         *
+         * @throws SAXException if the value is not a known usage
+         */
+        private UsageType parseUsage(String value) throws SAXException {
+            String trimmed = DatatypeHelper.safeTrimOrNullString(value);
+            if (trimmed == null || "unspecified".equals(trimmed)) {
+                return UsageType.UNSPECIFIED;
+            } else if ("signing".equals(trimmed)) {
+                return UsageType.SIGNING;
+            } else if ("encryption".equals(trimmed)) {
+                return UsageType.ENCRYPTION;
+            }
+            throw new SAXParseException("Unknown credential usage " + trimmed, locator);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.xml.security.credential.Credential;
+
+/**
+ * Bounded cache of the trusted credential which last verified a signature of an entity.
+ *
+ * <p>
+ * When a signature has to be verified by trying trusted credentials one after the other, the credential which verified
+ * the entity's previous signature with the same algorithm is tried first. Hints are keyed on the entity ID, the
+ * signature algorithm and the version of the {@link TrustedCredentialSet} the credential was taken from; as every
+ * change to the trusted credentials produces a set with a new version, hints into an older set are never returned and
+ * simply age out of the cache. Lookups do not lock, and the cache is emptied once it reaches its maximum size.
+ * </p>
+ */
+public class CredentialHintCache {
+
+    /** Maximum number of cached hints. */
+    private final int maxEntries;
+
+    /** Cached hints. */
+    private final ConcurrentMap<HintKey, Credential> hints;
+
+    /** Number of lookups answered from the cache. */
+    private final AtomicLong hits;
+
+    /** Number of lookups not answered from the cache. */
+    private final AtomicLong misses;
+
+    /**
+     * Constructor.
+     *
+     * @param size maximum number of cached hints, must be greater than zero
+     */
+    public CredentialHintCache(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than zero");
+        }
+        maxEntries = size;
+        hints = new ConcurrentHashMap<HintKey, Credential>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * Gets the trusted credential which last verified a signature of an entity.
+     *
+     * @param entityID the entity ID, may be null
+     * @param algorithmURI the signature algorithm URI, may be null
+     * @param version version of the trusted credential set
+     *
+     * @return the credential, or null if there is none
+     */
+    public Credential get(String entityID, String algorithmURI, long version) {
+        Credential credential = hints.get(new HintKey(entityID, algorithmURI, version));
+        if (credential != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return credential;
+    }
+
+    /**
+     * Records the trusted credential which verified a signature of an entity.
+     *
+     * @param entityID the entity ID, may be null
+     * @param algorithmURI the signature algorithm URI, may be null
+     * @param version version of the trusted credential set the credential was taken from
+     * @param credential the credential
+     */
+    public void put(String entityID, String algorithmURI, long version, Credential credential) {
+        if (hints.size() >= maxEntries) {
+            hints.clear();
+        }
+        hints.put(new HintKey(entityID, algorithmURI, version), credential);
+    }
+
+    /** Removes all cached hints. */
+    public void clear() {
+        hints.clear();
+    }
+
+    /**
+     * Gets the number of cached hints.
+     *
+     * @return number of cached hints
+     */
+    public int getSize() {
+        return hints.size();
+    }
+
+    /**
+     * Gets the maximum number of cached hints.
+     *
+     * @return maximum number of cached hints
+     */
+    public int getMaxSize() {
+        return maxEntries;
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups not answered from the cache.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Key of a cached hint. */
+    private static final class HintKey {
+
+        /** The entity ID, may be null. */
+        private final String entityID;
+
+        /** The signature algorithm URI, may be null. */
+        private final String algorithmURI;
+
+        /** Version of the trusted credential set. */
+        private final long version;
+
+        /**
+         * Constructor.
+         *
+         * @param entity the entity ID
+         * @param algorithm the signature algorithm URI
+         * @param setVersion version of the trusted credential set
+         */
+        HintKey(String entity, String algorithm, long setVersion) {
+            entityID = entity;
+            algorithmURI = algorithm;
+            version = setVersion;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hash = entityID == null ? 0 : entityID.hashCode();
+            hash = hash * 31 + (algorithmURI == null ? 0 : algorithmURI.hashCode());
+            return hash * 31 + (int) (version ^ (version >>> 32));
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof HintKey) {
+                HintKey other = (HintKey) obj;
+                return version == other.version
+                        && (entityID == null ? other.entityID == null : entityID.equals(other.entityID))
+                        && (algorithmURI == null ? other.algorithmURI == null : algorithmURI
+                                .equals(other.algorithmURI));
+            }
+            return false;
+        }
+    }
+}
@@ -17,6 +17,31 @@ package se.danetest.shibboleth.extension;
  * limitations under the License.
  */
 
+import java.io.UnsupportedEncodingException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.SignedInfo;
+import org.apache.xml.security.signature.XMLSignature;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.SecurityHelper;
@@ -24,17 +49,22 @@ import org.opensaml.xml.security.SigningUtil;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.credential.CredentialResolver;
 import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
 import org.opensaml.xml.security.criteria.KeyAlgorithmCriteria;
 import org.opensaml.xml.security.criteria.UsageCriteria;
 import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xml.security.keyinfo.KeyInfoCriteria;
 import org.opensaml.xml.security.trust.ExplicitKeyTrustEvaluator;
 import org.opensaml.xml.security.trust.TrustedCredentialTrustEngine;
 import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.signature.SignatureTrustEngine;
 import org.opensaml.xml.signature.impl.BaseSignatureTrustEngine;
-import org.opensaml.xml.util.DatatypeHelper;
+import org.opensaml.xml.util.XMLConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * An implementation of {@link SignatureTrustEngine} which evaluates the validity and trustworthiness of XML and raw
@@ -42,14 +72,53 @@ import org.slf4j.LoggerFactory;
  * 
  * <p>
  * Processing is first performed as described in {@link BaseSignatureTrustEngine}. If based on this processing, it is
- * determined that the Signature's KeyInfo is not present or does not contain a resolveable valid (and trusted) signing
- * key, then all trusted credentials obtained by the trusted credential resolver will be used to attempt to validate the
- * signature.
+ * determined that the Signature's KeyInfo is not present or does not contain a resolveable valid signing key, then
+ * all trusted credentials obtained by the trusted credential resolver will be used to attempt to validate the
+ * signature. If a KeyInfo key verifies the signature but is not trusted, no trusted credential can verify it either,
+ * and the signature is rejected straight away. Rejected signatures can be remembered for a short time in a
+ * {@link NegativeTrustCache}, so that repeated traffic which is not trusted is rejected without further work.
+ * </p>
+ * 
+ * <p>
+ * If the trusted credential resolver is a {@link TrustedCredentialResolver} the caller's trust basis criteria are
+ * passed to it as they are; otherwise they are copied into a new criteria set completed with shared usage and key
+ * algorithm criteria. Each validation emits at most one trace level log message.
+ * </p>
+ * 
+ * <p>
+ * Several signatures made under the same trust basis, such as a signed SAML response and its signed assertions, can be
+ * validated together with {@link #validateAll(List, CriteriaSet)}, which resolves the trusted credentials once per
+ * signature algorithm and, if an executor is set, verifies the signatures of different documents in parallel.
+ * </p>
+ * 
+ * <p>
+ * The work spent trying trusted credentials directly, which a peer can trigger by leaving out KeyInfo, can be bounded
+ * with a {@link VerificationBudget}; validations which run out of budget or are rate limited are not trusted.
  * </p>
  */
 public class DaneExplicitKeySignatureTrustEngine extends BaseSignatureTrustEngine<Iterable<Credential>> implements
         TrustedCredentialTrustEngine<Signature> {
 
+    /** Shared usage criteria added to trust basis criteria without one. */
+    private static final UsageCriteria SIGNING_USAGE = new UsageCriteria(UsageType.SIGNING);
+
+    /** Trace log descriptions of the {@link TrustEngineMetrics} OUTCOME constants. */
+    private static final String[] OUTCOME_NAMES = {"trusted", "not trusted", "failed",
+        "not trusted (budget exceeded)", "not trusted (rate limited)"};
+
+    /** KeyInfo result: a KeyInfo credential verified the signature and is trusted. */
+    private static final int KEY_INFO_TRUSTED = 0;
+
+    /** KeyInfo result: a KeyInfo credential verified the signature but none which did is trusted. */
+    private static final int KEY_INFO_UNTRUSTED = 1;
+
+    /** KeyInfo result: no KeyInfo credential verified the signature. */
+    private static final int KEY_INFO_UNVERIFIED = 2;
+
+    /** Shared key algorithm criteria, indexed by JCA key algorithm. */
+    private static final ConcurrentMap<String, KeyAlgorithmCriteria> KEY_ALGORITHM_CRITERIA =
+            new ConcurrentHashMap<String, KeyAlgorithmCriteria>();
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(DaneExplicitKeySignatureTrustEngine.class);
 
@@ -59,6 +128,39 @@ public class DaneExplicitKeySignatureTrustEngine extends BaseSignatureTrustEngin
     /** The external explicit key trust engine to use as a basis for trust in this implementation. */
     private ExplicitKeyTrustEvaluator keyTrust;
 
+    /** Optional cache of signature verification results, null if verification results are not cached. */
+    private SignatureVerificationCache verificationCache;
+
+    /** Optional cache of established trust decisions, null if trust decisions are not cached. */
+    private TrustDecisionCache trustDecisionCache;
+
+    /** Optional verifier of raw signatures, null if raw signatures are verified using {@link SigningUtil}. */
+    private PooledSignatureVerifier signatureVerifier;
+
+    /** Optional metrics of the decisions made, null if decisions are not recorded. */
+    private TrustEngineMetrics metrics;
+
+    /** Optional cache of the credentials which last verified an entity's signature, null if none are remembered. */
+    private CredentialHintCache credentialHintCache;
+
+    /** Optional budget of the work spent trying trusted credentials directly, null if the work is not limited. */
+    private VerificationBudget budget;
+
+    /** Optional executor verifying signatures in parallel, null if signatures are verified by the calling thread. */
+    private ExecutorService executor;
+
+    /**
+     * Minimum number of trusted credentials tried directly for which they are tried in parallel on the executor, 0 if
+     * they are always tried by the calling thread.
+     */
+    private int parallelVerificationThreshold;
+
+    /** Optional executor running asynchronous validations, null if they run in the calling thread. */
+    private ExecutorService asyncExecutor;
+
+    /** Optional cache of signatures found not to be trusted, null if rejections are not cached. */
+    private NegativeTrustCache negativeTrustCache;
+
     /**
      * Constructor.
      * 
@@ -67,134 +169,1399 @@ public class DaneExplicitKeySignatureTrustEngine extends BaseSignatureTrustEngin
      *            Signature's KeyInfo element.
      */
     public DaneExplicitKeySignatureTrustEngine(CredentialResolver resolver, KeyInfoCredentialResolver keyInfoResolver) {
-    	super(keyInfoResolver);
-        log.debug("[DaneExtension] passed super keyInfoResolver = {}", keyInfoResolver);
+        super(keyInfoResolver);
         if (resolver == null) {
-        	log.debug("[DaneExtension] resolver == 0");
             throw new IllegalArgumentException("Credential resolver may not be null");
         }
-        log.debug("[DaneExtension] before credentialResolver = resolver");
         credentialResolver = resolver;
-        log.debug("[DaneExtension] credentialResolver = resolver = {}", resolver);
         keyTrust = new ExplicitKeyTrustEvaluator();
     }
 
     /** {@inheritDoc} */
     public CredentialResolver getCredentialResolver() {
-    	log.debug("[DaneExtension] returning credentialResolver = {}", credentialResolver);
         return credentialResolver;
     }
 
+    /**
+     * Gets the cache of signature verification results.
+     * 
+     * @return the verification cache, or null if verification results are not cached
+     */
+    public SignatureVerificationCache getVerificationCache() {
+        return verificationCache;
+    }
+
+    /**
+     * Sets the cache of signature verification results.
+     * 
+     * @param cache the verification cache, or null to disable caching of verification results
+     */
+    public void setVerificationCache(SignatureVerificationCache cache) {
+        verificationCache = cache;
+    }
+
+    /**
+     * Gets the cache of established trust decisions.
+     * 
+     * @return the trust decision cache, or null if trust decisions are not cached
+     */
+    public TrustDecisionCache getTrustDecisionCache() {
+        return trustDecisionCache;
+    }
+
+    /**
+     * Sets the cache of established trust decisions. Decisions are only cached when the trusted credentials are
+     * resolved as a {@link TrustedCredentialSet}.
+     * 
+     * @param cache the trust decision cache, or null to disable caching of trust decisions
+     */
+    public void setTrustDecisionCache(TrustDecisionCache cache) {
+        trustDecisionCache = cache;
+    }
+
+    /**
+     * Gets the verifier of raw signatures.
+     * 
+     * @return the raw signature verifier, or null if raw signatures are verified using {@link SigningUtil}
+     */
+    public PooledSignatureVerifier getSignatureVerifier() {
+        return signatureVerifier;
+    }
+
+    /**
+     * Sets the verifier of raw signatures.
+     * 
+     * @param verifier the raw signature verifier, or null to verify raw signatures using {@link SigningUtil}
+     */
+    public void setSignatureVerifier(PooledSignatureVerifier verifier) {
+        signatureVerifier = verifier;
+    }
+
+    /**
+     * Gets the metrics of the decisions made.
+     * 
+     * @return the metrics, or null if decisions are not recorded
+     */
+    public TrustEngineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics of the decisions made.
+     * 
+     * @param newMetrics the metrics, or null to stop recording decisions
+     */
+    public void setMetrics(TrustEngineMetrics newMetrics) {
+        metrics = newMetrics;
+    }
+
+    /**
+     * Gets the cache of the trusted credentials which last verified an entity's signature.
+     * 
+     * @return the credential hint cache, or null if no credentials are remembered
+     */
+    public CredentialHintCache getCredentialHintCache() {
+        return credentialHintCache;
+    }
+
+    /**
+     * Sets the cache of the trusted credentials which last verified an entity's signature. Credentials are only
+     * remembered when the trusted credentials are resolved as a {@link TrustedCredentialSet}.
+     * 
+     * @param cache the credential hint cache, or null to stop remembering credentials
+     */
+    public void setCredentialHintCache(CredentialHintCache cache) {
+        credentialHintCache = cache;
+    }
+
+    /**
+     * Gets the budget of the work spent trying trusted credentials directly.
+     * 
+     * @return the verification budget, or null if the work is not limited
+     */
+    public VerificationBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Sets the budget of the work spent trying trusted credentials directly.
+     * 
+     * @param newBudget the verification budget, or null to not limit the work
+     */
+    public void setBudget(VerificationBudget newBudget) {
+        budget = newBudget;
+    }
+
+    /**
+     * Gets the executor verifying signatures in parallel.
+     * 
+     * @return the executor, or null if signatures are verified by the calling thread
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor verifying signatures in parallel. The engine does not shut the executor down.
+     * 
+     * @param newExecutor the executor, or null to verify signatures in the calling thread
+     */
+    public void setExecutor(ExecutorService newExecutor) {
+        executor = newExecutor;
+    }
+
+    /**
+     * Gets the minimum number of trusted credentials tried directly for which they are tried in parallel.
+     * 
+     * @return the threshold, 0 if trusted credentials are always tried by the calling thread
+     */
+    public int getParallelVerificationThreshold() {
+        return parallelVerificationThreshold;
+    }
+
+    /**
+     * Sets the minimum number of trusted credentials tried directly for which they are tried in parallel on the
+     * executor. Smaller sets are tried by the calling thread, as handing them to other threads costs more than it
+     * saves.
+     * 
+     * @param threshold the threshold, 0 to always try trusted credentials in the calling thread
+     */
+    public void setParallelVerificationThreshold(int threshold) {
+        parallelVerificationThreshold = threshold;
+    }
+
+    /**
+     * Gets the cache of signatures found not to be trusted.
+     * 
+     * @return the negative trust cache, or null if rejections are not cached
+     */
+    public NegativeTrustCache getNegativeTrustCache() {
+        return negativeTrustCache;
+    }
+
+    /**
+     * Sets the cache of signatures found not to be trusted. Rejections are only cached if the credential resolver
+     * yields {@link TrustedCredentialSet}s, whose versions tell when the trusted credentials change.
+     * 
+     * @param cache the negative trust cache, or null to not cache rejections
+     */
+    public void setNegativeTrustCache(NegativeTrustCache cache) {
+        negativeTrustCache = cache;
+    }
+
+    /**
+     * Gets the executor running asynchronous validations.
+     * 
+     * @return the executor, or null if asynchronous validations run in the calling thread
+     */
+    public ExecutorService getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * Sets the executor running asynchronous validations. It must not be the executor set with
+     * {@link #setExecutor(ExecutorService)}, as validations may wait for tasks on that one. The engine does not shut
+     * the executor down.
+     * 
+     * @param newExecutor the executor, or null to run asynchronous validations in the calling thread
+     */
+    public void setAsyncExecutor(ExecutorService newExecutor) {
+        asyncExecutor = newExecutor;
+    }
+
+    /**
+     * Validates an XML signature on the asynchronous executor, so the calling thread is not held up while trust
+     * material is resolved. The signature's DOM must not be used by the caller until the returned future is done,
+     * because DOM implementations are not safe for concurrent reads.
+     * 
+     * @param signature the signature to validate
+     * @param trustBasisCriteria criteria used to resolve the trusted credentials
+     * @return future of the trust decision, whose {@link Future#get()} throws an {@link ExecutionException} wrapping a
+     *         {@link SecurityException} if the validation failed
+     */
+    public Future<Boolean> validateAsync(final Signature signature, final CriteriaSet trustBasisCriteria) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() throws SecurityException {
+                return Boolean.valueOf(validate(signature, trustBasisCriteria));
+            }
+        });
+    }
+
+    /**
+     * Validates a raw signature on the asynchronous executor, so the calling thread is not held up while trust
+     * material is resolved. The arrays must not be modified until the returned future is done.
+     * 
+     * @param signature the signature value
+     * @param content the signed content
+     * @param algorithmURI the signature algorithm URI
+     * @param trustBasisCriteria criteria used to resolve the trusted credentials
+     * @param candidateCredential the untrusted candidate credential, may be null
+     * @return future of the trust decision, whose {@link Future#get()} throws an {@link ExecutionException} wrapping a
+     *         {@link SecurityException} if the validation failed
+     */
+    public Future<Boolean> validateAsync(final byte[] signature, final byte[] content, final String algorithmURI,
+            final CriteriaSet trustBasisCriteria, final Credential candidateCredential) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() throws SecurityException {
+                return Boolean.valueOf(validate(signature, content, algorithmURI, trustBasisCriteria,
+                        candidateCredential));
+            }
+        });
+    }
+
+    /**
+     * Submits a validation to the asynchronous executor. The validation runs in the calling thread if there is no
+     * executor or the executor rejects it.
+     * 
+     * @param validation the validation
+     * @return future of the trust decision
+     */
+    private Future<Boolean> submitAsync(Callable<Boolean> validation) {
+        ExecutorService currentExecutor = asyncExecutor;
+        if (currentExecutor != null) {
+            try {
+                return currentExecutor.submit(validation);
+            } catch (RejectedExecutionException e) {
+                log.debug("[DaneExtension] asynchronous validation rejected, validating in the calling thread");
+            }
+        }
+        FutureTask<Boolean> task = new FutureTask<Boolean>(validation);
+        task.run();
+        return task;
+    }
+
     /** {@inheritDoc} */
     public boolean validate(Signature signature, CriteriaSet trustBasisCriteria) throws SecurityException {
-    	log.debug("[DaneExtension] validating with signature = {} and trustBasisCriteria = {}", signature,trustBasisCriteria);
         checkParams(signature, trustBasisCriteria);
-        log.debug("[DaneExtension] signature = {} and trustBasisCriteria = {} parameters checked", signature, trustBasisCriteria);
-        CriteriaSet criteriaSet = new CriteriaSet();
-        log.debug("[DaneExtension] created new CriteriaSet called criteriaSet = {}", criteriaSet);
-        criteriaSet.addAll(trustBasisCriteria);
-        log.debug("[DaneExtension] added trustBasisCreteria to criteriaSet");
-        if (!criteriaSet.contains(UsageCriteria.class)) {
-        	log.debug("[DaneExtension] criteriaSet does not contain UsageCriteria.class");
-            criteriaSet.add(new UsageCriteria(UsageType.SIGNING));
-            log.debug("[DaneExtension] added new UsageCriteria to criteriaSet");
-        }
-        String jcaAlgorithm = SecurityHelper.getKeyAlgorithmFromURI(signature.getSignatureAlgorithm());
-        log.debug("[DaneExtension] SecurityHelper has fetched jcaAlgorithm(KeyAlgorithm from URI) = {} with Signature Algorithm", jcaAlgorithm);
-        if (!DatatypeHelper.isEmpty(jcaAlgorithm)) {
-        	log.debug("[DaneExtension] DatatypeHelper does not contain jcaAlgorithm");
-            criteriaSet.add(new KeyAlgorithmCriteria(jcaAlgorithm), true);
-            log.debug("[DaneExtension] added new KeyAlgorithmCirteria(jcaAlgoritm) = {} to criteriaSet, returned true", jcaAlgorithm);
-        }
-
-        Iterable<Credential> trustedCredentials = getCredentialResolver().resolve(criteriaSet);
-        log.debug("[DaneExtension] trustedCredentials is set to getCredentialResolver().resolve(criteriaSet)");
-        if (validate(signature, trustedCredentials)) {
-        	log.debug("[DaneExtension] signature = {} and trustedCredentials = {} is validated, returns true", signature, trustBasisCriteria);
+        TrustEngineMetrics currentMetrics = metrics;
+        if (currentMetrics == null) {
+            return validateSignature(signature, trustBasisCriteria, null, 0L);
+        }
+        long start = System.nanoTime();
+        try {
+            return validateSignature(signature, trustBasisCriteria, currentMetrics, start);
+        } catch (SecurityException e) {
+            currentMetrics.record(TrustEngineMetrics.BINDING_XML, TrustEngineMetrics.getAlgorithmFamily(signature
+                    .getSignatureAlgorithm()), TrustEngineMetrics.PATH_KEY_INFO, TrustEngineMetrics.OUTCOME_ERROR, 0,
+                    0L, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Validates an XML signature, recording the decision in the metrics if given.
+     * 
+     * @param signature the signature to validate
+     * @param trustBasisCriteria criteria used to resolve the trusted credentials
+     * @param currentMetrics the metrics to record the decision in, may be null
+     * @param start time, from {@link System#nanoTime()}, the validation started
+     * @return true if the signature is valid and trusted, otherwise false
+     * @throws SecurityException if an error occurs during validation
+     */
+    private boolean validateSignature(Signature signature, CriteriaSet trustBasisCriteria,
+            TrustEngineMetrics currentMetrics, long start) throws SecurityException {
+        String algorithmURI = signature.getSignatureAlgorithm();
+        Iterable<Credential> trustedCredentials = resolveTrustedCredentials(trustBasisCriteria, algorithmURI);
+        long resolved = currentMetrics != null ? System.nanoTime() : 0L;
+        return validateSignature(signature, getEntityID(trustBasisCriteria), trustedCredentials, true,
+                currentMetrics, start, resolved);
+    }
+
+    /**
+     * Validates an XML signature against resolved trusted credentials, recording the decision in the metrics if given.
+     * 
+     * @param signature the signature to validate
+     * @param entityID the entity ID of the trust basis criteria, may be null
+     * @param trustedCredentials the trusted credentials of the signature's algorithm
+     * @param parallel whether trusted credentials may be tried in parallel, false on the executor's own threads
+     * @param currentMetrics the metrics to record the decision in, may be null
+     * @param start time, from {@link System#nanoTime()}, the validation started
+     * @param resolved time, from {@link System#nanoTime()}, the trusted credentials were resolved
+     * @return true if the signature is valid and trusted, otherwise false
+     * @throws SecurityException if an error occurs during validation
+     */
+    private boolean validateSignature(final Signature signature, String entityID,
+            Iterable<Credential> trustedCredentials, boolean parallel, TrustEngineMetrics currentMetrics, long start,
+            long resolved) throws SecurityException {
+        String algorithmURI = signature.getSignatureAlgorithm();
+        NegativeTrustCache negativeCache = trustedCredentials instanceof TrustedCredentialSet ? negativeTrustCache
+                : null;
+        final KeyFingerprint signedContentDigest = verificationCache != null || negativeCache != null
+                ? SignatureVerificationCache.digestSignedContent(signature) : null;
+        if (isKnownUntrusted(negativeCache, entityID, signedContentDigest, trustedCredentials)) {
+            decided(currentMetrics, TrustEngineMetrics.BINDING_XML, algorithmURI, TrustEngineMetrics.PATH_KEY_INFO,
+                    TrustEngineMetrics.OUTCOME_UNTRUSTED, 0, start, resolved);
+            return false;
+        }
+
+        int keyInfoResult = validateKeyInfo(signature, trustedCredentials, signedContentDigest);
+        if (keyInfoResult == KEY_INFO_TRUSTED) {
+            decided(currentMetrics, TrustEngineMetrics.BINDING_XML, algorithmURI, TrustEngineMetrics.PATH_KEY_INFO,
+                    TrustEngineMetrics.OUTCOME_TRUSTED, 0, start, resolved);
             return true;
         }
+        if (keyInfoResult == KEY_INFO_UNTRUSTED && negativeCache != null) {
+            // The signature was made with an untrusted KeyInfo key. A trusted credential could only verify it if it
+            // held the same key, in which case the KeyInfo key would have been trusted, so the rejection is cached
+            // without trying the trusted credentials. Without a negative cache they are still tried, as trust
+            // evaluation compares keys by their encoding and may miss an equal key encoded differently.
+            rejected(negativeCache, entityID, signedContentDigest, trustedCredentials);
+            decided(currentMetrics, TrustEngineMetrics.BINDING_XML, algorithmURI, TrustEngineMetrics.PATH_KEY_INFO,
+                    TrustEngineMetrics.OUTCOME_UNTRUSTED, 0, start, resolved);
+            return false;
+        }
 
         // If the credentials extracted from Signature's KeyInfo (if any) did not verify the
-        // signature and/or establish trust, as a fall back attempt to verify the signature with
+        // signature, as a fall back attempt to verify the signature with
         // the trusted credentials directly.
-        log.debug("[DaneExtension] Attempting to verify signature using trusted credentials");
+        Iterable<Credential> candidates = trustedCredentials;
+        if (trustedCredentials instanceof TrustedCredentialSet) {
+            candidates = narrowToSignature((TrustedCredentialSet) trustedCredentials, algorithmURI,
+                    getSignatureValueLength(signature), null);
+            if (((TrustedCredentialSet) candidates).size() == 0) {
+                // No trusted key is of a length which can have produced the signature.
+                decided(currentMetrics, TrustEngineMetrics.BINDING_XML, algorithmURI,
+                        TrustEngineMetrics.PATH_TRUSTED_CREDENTIALS, TrustEngineMetrics.OUTCOME_UNTRUSTED, 0, start,
+                        resolved);
+                return false;
+            }
+        }
+        final String signatureAlgorithm = algorithmURI;
+        return tryTrustedCredentials(new Verification() {
+            boolean verify(Credential credential) {
+                return verifySignature(signature, credential, signedContentDigest);
+            }
 
-        for (Credential trustedCredential : trustedCredentials) {
-            log.debug("[DaneExtension] for(Credentials trustedCredential : trustedCredentials), signature = {}, trustedCredential = {}", signature, trustedCredential);
-            if (verifySignature(signature, trustedCredential)) {
-                log.debug("[DaneExtension] Successfully verified signature = {} using resolved trustedCredential = {}", signature, trustedCredentials);
-                return true;
+            SignedInfoContent prepare() {
+                return getSignedInfoContent(signature, signatureAlgorithm);
             }
+        }, TrustEngineMetrics.BINDING_XML, algorithmURI, entityID, signedContentDigest, trustedCredentials,
+                candidates, parallel, currentMetrics, start, resolved);
+    }
+
+    /**
+     * Validates several XML signatures made under the same trust basis. The trusted credentials are resolved once per
+     * signature algorithm and shared by all signatures using it.
+     * 
+     * <p>
+     * If an executor is set, the signatures of each DOM document are verified by a separate task, with the first
+     * document verified by the calling thread. Signatures of the same document are always verified one after the other
+     * because DOM implementations are not safe for concurrent reads.
+     * </p>
+     * 
+     * @param signatures the signatures to validate
+     * @param trustBasisCriteria criteria used to resolve the trusted credentials
+     * @return for each signature, in order, true if it is valid and trusted, false if it is not or its validation
+     *         failed
+     * @throws SecurityException if the trusted credentials can not be resolved or the validation is interrupted
+     */
+    public boolean[] validateAll(List<Signature> signatures, CriteriaSet trustBasisCriteria) throws SecurityException {
+        if (signatures == null) {
+            throw new SecurityException("Signature list was null");
         }
-        log.debug("[DaneExtension] Failed to verify signature using either KeyInfo-derived or directly trusted credentials, return false");
-        return false;
+        for (Signature signature : signatures) {
+            checkParams(signature, trustBasisCriteria);
+        }
+        TrustEngineMetrics currentMetrics = metrics;
+        long start = currentMetrics != null ? System.nanoTime() : 0L;
+
+        Map<String, Iterable<Credential>> trustedByAlgorithm = new HashMap<String, Iterable<Credential>>();
+        Map<Document, List<Integer>> byDocument = new IdentityHashMap<Document, List<Integer>>();
+        List<List<Integer>> groups = new ArrayList<List<Integer>>();
+        for (int i = 0; i < signatures.size(); i++) {
+            Signature signature = signatures.get(i);
+            String algorithmURI = signature.getSignatureAlgorithm();
+            if (!trustedByAlgorithm.containsKey(algorithmURI)) {
+                trustedByAlgorithm.put(algorithmURI, resolveTrustedCredentials(trustBasisCriteria, algorithmURI));
+            }
+            Document document = signature.getDOM() != null ? signature.getDOM().getOwnerDocument() : null;
+            List<Integer> group = document != null ? byDocument.get(document) : null;
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.add(group);
+                if (document != null) {
+                    byDocument.put(document, group);
+                }
+            }
+            group.add(Integer.valueOf(i));
+        }
+        long resolved = currentMetrics != null ? System.nanoTime() : 0L;
+
+        String entityID = getEntityID(trustBasisCriteria);
+        boolean[] results = new boolean[signatures.size()];
+        ExecutorService currentExecutor = executor;
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        if (currentExecutor != null) {
+            for (int i = 1; i < groups.size(); i++) {
+                futures.add(currentExecutor.submit(new BatchTask(signatures, groups.get(i), entityID, true,
+                        trustedByAlgorithm, results, currentMetrics, start, resolved)));
+            }
+        } else {
+            for (int i = 1; i < groups.size(); i++) {
+                new BatchTask(signatures, groups.get(i), entityID, false, trustedByAlgorithm, results,
+                        currentMetrics, start, resolved).call();
+            }
+        }
+        if (!groups.isEmpty()) {
+            new BatchTask(signatures, groups.get(0), entityID, false, trustedByAlgorithm, results, currentMetrics,
+                    start, resolved).call();
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new SecurityException("Interrupted while validating signatures", e);
+        } catch (ExecutionException e) {
+            throw new SecurityException("Unable to validate signatures", e.getCause());
+        }
+        return results;
     }
 
     /** {@inheritDoc} */
     public boolean validate(byte[] signature, byte[] content, String algorithmURI, CriteriaSet trustBasisCriteria,
             Credential candidateCredential) throws SecurityException {
-       
-    	log.debug("[DaneExtension] validating");
         checkParamsRaw(signature, content, algorithmURI, trustBasisCriteria);
-        log.debug("[DaneExtension] parameters signature = {}, content = {}, algorithmURI = {} and trustBasisCriteria = {} checked");
+        TrustEngineMetrics currentMetrics = metrics;
+        if (currentMetrics == null) {
+            return validateRaw(signature, content, algorithmURI, trustBasisCriteria, candidateCredential, null, 0L);
+        }
+        long start = System.nanoTime();
+        try {
+            return validateRaw(signature, content, algorithmURI, trustBasisCriteria, candidateCredential,
+                    currentMetrics, start);
+        } catch (SecurityException e) {
+            currentMetrics.record(TrustEngineMetrics.BINDING_RAW, TrustEngineMetrics.getAlgorithmFamily(algorithmURI),
+                    TrustEngineMetrics.PATH_KEY_INFO, TrustEngineMetrics.OUTCOME_ERROR, 0, 0L, System.nanoTime()
+                            - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Validates a raw signature, recording the decision in the metrics if given.
+     * 
+     * @param signature the signature value
+     * @param content the signed content
+     * @param algorithmURI the signature algorithm URI
+     * @param trustBasisCriteria criteria used to resolve the trusted credentials
+     * @param candidateCredential optional credential which may have produced the signature
+     * @param currentMetrics the metrics to record the decision in, may be null
+     * @param start time, from {@link System#nanoTime()}, the validation started
+     * @return true if the signature is valid and trusted, otherwise false
+     * @throws SecurityException if an error occurs during validation
+     */
+    private boolean validateRaw(final byte[] signature, final byte[] content, final String algorithmURI,
+            CriteriaSet trustBasisCriteria, Credential candidateCredential, TrustEngineMetrics currentMetrics,
+            long start) throws SecurityException {
+        Iterable<Credential> trustedCredentials = resolveTrustedCredentials(trustBasisCriteria, algorithmURI);
+        long resolved = currentMetrics != null ? System.nanoTime() : 0L;
+        String entityID = getEntityID(trustBasisCriteria);
+        NegativeTrustCache negativeCache = trustedCredentials instanceof TrustedCredentialSet ? negativeTrustCache
+                : null;
+        KeyFingerprint signatureFingerprint = negativeCache != null ? fingerprintRawSignature(signature, content,
+                algorithmURI) : null;
+        if (isKnownUntrusted(negativeCache, entityID, signatureFingerprint, trustedCredentials)) {
+            decided(currentMetrics, TrustEngineMetrics.BINDING_RAW, algorithmURI, TrustEngineMetrics.PATH_KEY_INFO,
+                    TrustEngineMetrics.OUTCOME_UNTRUSTED, 0, start, resolved);
+            return false;
+        }
+
+        // First try the optional supplied candidate credential
+        if (candidateCredential != null && verifyRaw(candidateCredential, algorithmURI, signature, content)) {
+            if (evaluateTrust(candidateCredential, trustedCredentials)) {
+                decided(currentMetrics, TrustEngineMetrics.BINDING_RAW, algorithmURI,
+                        TrustEngineMetrics.PATH_KEY_INFO, TrustEngineMetrics.OUTCOME_TRUSTED, 0, start, resolved);
+                return true;
+            }
+            if (negativeCache != null) {
+                // The signature was made with the untrusted candidate key, which no trusted credential can verify.
+                rejected(negativeCache, entityID, signatureFingerprint, trustedCredentials);
+                decided(currentMetrics, TrustEngineMetrics.BINDING_RAW, algorithmURI,
+                        TrustEngineMetrics.PATH_KEY_INFO, TrustEngineMetrics.OUTCOME_UNTRUSTED, 0, start, resolved);
+                return false;
+            }
+        }
+
+        // If the candidate verification credential did not verify the
+        // signature, or if no candidate was supplied,
+        // as a fall back attempt to verify the signature with the trusted credentials directly.
+        Iterable<Credential> candidates = trustedCredentials;
+        if (trustedCredentials instanceof TrustedCredentialSet) {
+            candidates = narrowToSignature((TrustedCredentialSet) trustedCredentials, algorithmURI, signature.length,
+                    signature);
+            if (((TrustedCredentialSet) candidates).size() == 0) {
+                // No trusted key is of a length which can have produced the signature.
+                decided(currentMetrics, TrustEngineMetrics.BINDING_RAW, algorithmURI,
+                        TrustEngineMetrics.PATH_TRUSTED_CREDENTIALS, TrustEngineMetrics.OUTCOME_UNTRUSTED, 0, start,
+                        resolved);
+                return false;
+            }
+        }
+        return tryTrustedCredentials(new Verification() {
+            boolean verify(Credential credential) throws SecurityException {
+                return verifyRaw(credential, algorithmURI, signature, content);
+            }
+
+            SignedInfoContent prepare() {
+                return new SignedInfoContent(true, signature, content);
+            }
+        }, TrustEngineMetrics.BINDING_RAW, algorithmURI, entityID, signatureFingerprint, trustedCredentials,
+                candidates, true, currentMetrics, start, resolved);
+    }
+
+    /**
+     * Verifies an XML signature with the credentials resolved from its KeyInfo and evaluates their trust, in the same
+     * way as {@link BaseSignatureTrustEngine}, but also tells whether a KeyInfo credential verified the signature
+     * without being trusted.
+     * 
+     * @param signature the signature to validate
+     * @param trustedCredentials the trusted credentials of the signature's algorithm
+     * @param signedContentDigest digest of the signed content, may be null if verification results are not cached
+     * @return {@link #KEY_INFO_TRUSTED}, {@link #KEY_INFO_UNTRUSTED} or {@link #KEY_INFO_UNVERIFIED}
+     * @throws SecurityException if the KeyInfo credentials can not be resolved or their trust can not be evaluated
+     */
+    private int validateKeyInfo(Signature signature, Iterable<Credential> trustedCredentials,
+            KeyFingerprint signedContentDigest) throws SecurityException {
+        if (signature.getKeyInfo() == null) {
+            log.debug("[DaneExtension] signature contains no KeyInfo element");
+            return KEY_INFO_UNVERIFIED;
+        }
+        int result = KEY_INFO_UNVERIFIED;
+        CriteriaSet keyInfoCriteriaSet = new CriteriaSet(new KeyInfoCriteria(signature.getKeyInfo()));
+        for (Credential keyInfoCredential : getKeyInfoResolver().resolve(keyInfoCriteriaSet)) {
+            if (verifySignature(signature, keyInfoCredential, signedContentDigest)) {
+                if (evaluateTrust(keyInfoCredential, trustedCredentials)) {
+                    return KEY_INFO_TRUSTED;
+                }
+                result = KEY_INFO_UNTRUSTED;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether a signature was recently found not to be trusted.
+     * 
+     * @param negativeCache the negative trust cache, may be null
+     * @param entityID the entity ID of the trust basis criteria, may be null
+     * @param signatureFingerprint fingerprint of the signature and its content, may be null
+     * @param trustedCredentials the trusted credentials of the signature's algorithm
+     * @return true if the signature is known not to be trusted
+     */
+    private static boolean isKnownUntrusted(NegativeTrustCache negativeCache, String entityID,
+            KeyFingerprint signatureFingerprint, Iterable<Credential> trustedCredentials) {
+        return negativeCache != null && signatureFingerprint != null
+                && negativeCache.isUntrusted(entityID, signatureFingerprint,
+                        ((TrustedCredentialSet) trustedCredentials).getVersion());
+    }
+
+    /**
+     * Records that a signature was found not to be trusted.
+     * 
+     * @param negativeCache the negative trust cache, may be null
+     * @param entityID the entity ID of the trust basis criteria, may be null
+     * @param signatureFingerprint fingerprint of the signature and its content, may be null
+     * @param trustedCredentials the trusted credentials of the signature's algorithm
+     */
+    private static void rejected(NegativeTrustCache negativeCache, String entityID,
+            KeyFingerprint signatureFingerprint, Iterable<Credential> trustedCredentials) {
+        if (negativeCache != null && signatureFingerprint != null) {
+            negativeCache.untrusted(entityID, signatureFingerprint,
+                    ((TrustedCredentialSet) trustedCredentials).getVersion());
+        }
+    }
+
+    /**
+     * Computes the fingerprint of a raw signature together with its content and algorithm.
+     * 
+     * @param signature the signature value
+     * @param content the signed content
+     * @param algorithmURI the signature algorithm URI
+     * @return the fingerprint
+     */
+    private static KeyFingerprint fingerprintRawSignature(byte[] signature, byte[] content, String algorithmURI) {
+        try {
+            return KeyFingerprint.sha256(signature, content, algorithmURI.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported by the JVM", e);
+        }
+    }
+
+    /**
+     * Tries trusted credentials directly until one verifies a signature, recording the decision in the metrics if
+     * given. The credential which last verified a signature of the entity, if known, is tried first. The trusted
+     * credentials are not tried at all if the entity exceeded its fallback rate, and trying stops once the
+     * verification budget is spent.
+     * 
+     * @param verification verification of the signature with a credential
+     * @param binding one of the {@link TrustEngineMetrics} BINDING constants
+     * @param algorithmURI the signature algorithm URI
+     * @param entityID the entity ID of the trust basis criteria, may be null
+     * @param signatureFingerprint fingerprint of the signature and its content, may be null
+     * @param trustedCredentials the trusted credentials of the signature's algorithm
+     * @param candidates the trusted credentials which may have produced the signature
+     * @param parallel whether the credentials may be tried in parallel
+     * @param currentMetrics the metrics to record the decision in, may be null
+     * @param start time, from {@link System#nanoTime()}, the validation started
+     * @param resolved time, from {@link System#nanoTime()}, the trusted credentials were resolved
+     * @return true if a trusted credential verified the signature, otherwise false
+     * @throws SecurityException if an error occurs during verification
+     */
+    private boolean tryTrustedCredentials(Verification verification, int binding, String algorithmURI,
+            String entityID, KeyFingerprint signatureFingerprint, Iterable<Credential> trustedCredentials,
+            Iterable<Credential> candidates, boolean parallel, TrustEngineMetrics currentMetrics, long start,
+            long resolved) throws SecurityException {
+        VerificationBudget currentBudget = budget;
+        if (currentBudget != null && !currentBudget.tryAcquire(entityID)) {
+            decided(currentMetrics, binding, algorithmURI, TrustEngineMetrics.PATH_TRUSTED_CREDENTIALS,
+                    TrustEngineMetrics.OUTCOME_RATE_LIMITED, 0, start, resolved);
+            return false;
+        }
+        long cpuStart = currentBudget != null ? currentBudget.getCpuTime() : 0L;
+
+        CredentialHintCache hintCache = trustedCredentials instanceof TrustedCredentialSet ? credentialHintCache : null;
+        long version = 0L;
+        Credential hint = null;
+        int tried = 0;
+        if (hintCache != null) {
+            version = ((TrustedCredentialSet) trustedCredentials).getVersion();
+            hint = hintCache.get(entityID, algorithmURI, version);
+            if (hint != null) {
+                tried++;
+                if (verification.verify(hint)) {
+                    decided(currentMetrics, binding, algorithmURI, TrustEngineMetrics.PATH_TRUSTED_CREDENTIALS,
+                            TrustEngineMetrics.OUTCOME_TRUSTED, tried, start, resolved);
+                    return true;
+                }
+            }
+        }
+
+        Credential verified = null;
+        boolean exceeded = false;
+        ExecutorService parallelExecutor = parallel ? getParallelExecutor(candidates) : null;
+        SignedInfoContent prepared = parallelExecutor != null ? verification.prepare() : null;
+        if (prepared != null) {
+            if (prepared.referencesValid) {
+                AtomicInteger parallelTried = new AtomicInteger(tried);
+                AtomicBoolean budgetExceeded = new AtomicBoolean();
+                verified = verifyInParallel(parallelExecutor, (TrustedCredentialSet) candidates, hint, algorithmURI,
+                        prepared.signatureValue, prepared.content, currentBudget, parallelTried, budgetExceeded);
+                tried = parallelTried.get();
+                exceeded = verified == null && budgetExceeded.get();
+            }
+        } else {
+            for (Credential trustedCredential : candidates) {
+                if (trustedCredential == hint) {
+                    continue;
+                }
+                if (currentBudget != null && currentBudget.isExceeded(tried, currentBudget.getCpuTime() - cpuStart)) {
+                    exceeded = true;
+                    break;
+                }
+                tried++;
+                if (verification.verify(trustedCredential)) {
+                    verified = trustedCredential;
+                    break;
+                }
+            }
+        }
+
+        int outcome;
+        if (verified != null) {
+            if (hintCache != null) {
+                hintCache.put(entityID, algorithmURI, version, verified);
+            }
+            outcome = TrustEngineMetrics.OUTCOME_TRUSTED;
+        } else if (exceeded) {
+            outcome = TrustEngineMetrics.OUTCOME_BUDGET_EXCEEDED;
+        } else {
+            if (trustedCredentials instanceof TrustedCredentialSet) {
+                rejected(negativeTrustCache, entityID, signatureFingerprint, trustedCredentials);
+            }
+            outcome = TrustEngineMetrics.OUTCOME_UNTRUSTED;
+        }
+        decided(currentMetrics, binding, algorithmURI, TrustEngineMetrics.PATH_TRUSTED_CREDENTIALS, outcome, tried,
+                start, resolved);
+        return verified != null;
+    }
+
+    /**
+     * Resolves the trusted credentials for a signature, restricted to signing credentials (unless the criteria
+     * specify another usage) with a key of the signature algorithm.
+     * 
+     * @param trustBasisCriteria the caller's trust basis criteria, which are not modified
+     * @param algorithmURI the signature algorithm URI
+     * @return the trusted credentials
+     * @throws SecurityException if the trusted credentials can not be resolved
+     */
+    protected Iterable<Credential> resolveTrustedCredentials(CriteriaSet trustBasisCriteria, String algorithmURI)
+            throws SecurityException {
+        String keyAlgorithm = getKeyAlgorithm(algorithmURI);
+        CredentialResolver resolver = getCredentialResolver();
+        if (resolver instanceof TrustedCredentialResolver) {
+            return ((TrustedCredentialResolver) resolver).resolveTrusted(trustBasisCriteria, keyAlgorithm,
+                    UsageType.SIGNING);
+        }
+
         CriteriaSet criteriaSet = new CriteriaSet();
-        log.debug("[DaneExtension] created new CriteriaSet called criteriaSet = {}", criteriaSet);
         criteriaSet.addAll(trustBasisCriteria);
-        log.debug("[DaneExtension] added trustBasisCreteria to criteriaSet");
         if (!criteriaSet.contains(UsageCriteria.class)) {
-        	log.debug("[DaneExtension] criteriaSet does not contain UsageCriteria.class");
-            criteriaSet.add(new UsageCriteria(UsageType.SIGNING));
-            log.debug("[DaneExtension] added new UsageCriteria to criteriaSet");
+            criteriaSet.add(SIGNING_USAGE);
         }
-        String jcaAlgorithm = SecurityHelper.getKeyAlgorithmFromURI(algorithmURI);
-        log.debug("[DaneExtension] SecurityHelper has fetched jcaAlgorithm(KeyAlgorithm from URI) = {} with algorithmURI", jcaAlgorithm);
-        if (!DatatypeHelper.isEmpty(jcaAlgorithm)) {
-        	log.debug("[DaneExtension] DatatypeHelper does not contain jcaAlgorithm");
-            criteriaSet.add(new KeyAlgorithmCriteria(jcaAlgorithm), true);
-            log.debug("[DaneExtension] added new KeyAlgorithmCirteria(jcaAlgoritm) to criteriaSet");
+        if (keyAlgorithm != null) {
+            KeyAlgorithmCriteria keyAlgorithmCriteria = KEY_ALGORITHM_CRITERIA.get(keyAlgorithm);
+            if (keyAlgorithmCriteria == null) {
+                keyAlgorithmCriteria = new KeyAlgorithmCriteria(keyAlgorithm);
+                KEY_ALGORITHM_CRITERIA.putIfAbsent(keyAlgorithm, keyAlgorithmCriteria);
+            }
+            criteriaSet.add(keyAlgorithmCriteria, true);
         }
+        return resolver.resolve(criteriaSet);
+    }
+
+    /**
+     * Gets the JCA key algorithm of a signature algorithm.
+     * 
+     * @param algorithmURI the signature algorithm URI, may be null
+     * @return the JCA key algorithm, or null if it can not be determined
+     */
+    protected static String getKeyAlgorithm(String algorithmURI) {
+        return SignatureAlgorithms.getKeyAlgorithm(algorithmURI);
+    }
 
-        Iterable<Credential> trustedCredentials = getCredentialResolver().resolve(criteriaSet);
-        log.debug("[DaneExtension] trustedCredentials is set to getCredentialResolver().resolve(criteriaSet)=",trustedCredentials);
+    /**
+     * Gets the entity ID of trust basis criteria.
+     * 
+     * @param trustBasisCriteria the trust basis criteria
+     * @return the entity ID, or null if the criteria have none
+     */
+    private static String getEntityID(CriteriaSet trustBasisCriteria) {
+        EntityIDCriteria entityIDCriteria = trustBasisCriteria.get(EntityIDCriteria.class);
+        return entityIDCriteria != null ? entityIDCriteria.getEntityID() : null;
+    }
 
-        // First try the optional supplied candidate credential
-        if (candidateCredential != null) {
-        	 log.debug("[DaneExtension] candidateCredentials != null");
-
-            if (SigningUtil.verifyWithURI(candidateCredential, algorithmURI, signature, content)) {
-                log.debug("[DaneExtension] Successfully verified signature using supplied candidate credential = {}, algorithmURO = {}, signature = {}, content = {}");
-                log.debug("[DaneExtension] Attempting to establish trust of supplied candidate credential");
-                if (evaluateTrust(candidateCredential, trustedCredentials)) {
-                    log.debug("[DaneExtension]  Successfully established trustedCredentials = {} of supplied candidateCredential = {}, return true", trustedCredentials, candidateCredential);
-                    return true;
-                } else {
-                    log.debug("[DaneExtension] Failed to established trustedCredentials = {} of supplied candidateCredential = {}", trustedCredentials, candidateCredential);
+    /**
+     * Narrows trusted credentials to those whose key is of a length which can have produced a signature. An RSA
+     * signature is as long as the key's modulus, which may only be a few bytes longer than the signature when the
+     * signature has leading zero bytes. An XML ECDSA signature holds two integers about as long as the key's field,
+     * shorter when leading zero bytes were dropped and longer when the curve's order exceeds its field, while the
+     * integers of a DER encoded ECDSA signature are at most as long as the order.
+     * 
+     * @param trustedCredentials the trusted credentials
+     * @param algorithmURI the signature algorithm URI
+     * @param signatureLength length of the signature value in bytes, negative if unknown
+     * @param derSignature the signature value if ECDSA signatures are DER encoded, null if they are XML encoded
+     * @return the credentials which may have produced the signature
+     */
+    protected TrustedCredentialSet narrowToSignature(TrustedCredentialSet trustedCredentials, String algorithmURI,
+            int signatureLength, byte[] derSignature) {
+        if (signatureLength <= 0) {
+            return trustedCredentials;
+        }
+        String keyAlgorithm = TrustedCredentialSet.normalizeKeyAlgorithm(getKeyAlgorithm(algorithmURI));
+        if ("RSA".equals(keyAlgorithm)) {
+            return trustedCredentials.forKeyLength(signatureLength, signatureLength
+                    + TrustedCredentialSet.RSA_SIGNATURE_SLACK);
+        }
+        if ("EC".equals(keyAlgorithm)) {
+            if (derSignature == null) {
+                int integerLength = (signatureLength + 1) / 2;
+                return trustedCredentials.forKeyLength(integerLength - TrustedCredentialSet.EC_SIGNATURE_SLACK,
+                        integerLength + TrustedCredentialSet.EC_SIGNATURE_SLACK);
+            } else {
+                int integerLength = getDerIntegerLength(derSignature);
+                if (integerLength > 0) {
+                    return trustedCredentials.forKeyLength(integerLength - TrustedCredentialSet.EC_SIGNATURE_SLACK,
+                            Integer.MAX_VALUE);
                 }
             }
         }
+        return trustedCredentials;
+    }
 
-        // If the candidate verification credential did not verify the
-        // signature and/or establish trust, or if no candidate was supplied,
-        // as a fall back attempt to verify the signature with the trusted credentials directly.
-        log.debug("[DaneExtension] Attempting to verify signature using trusted credentials");
+    /**
+     * Gets the length of the decoded ds:SignatureValue of an XML signature without decoding it.
+     * 
+     * @param signature the signature
+     * @return length of the signature value in bytes, or -1 if it can not be determined
+     */
+    private static int getSignatureValueLength(Signature signature) {
+        Element signatureElement = signature.getDOM();
+        if (signatureElement == null) {
+            return -1;
+        }
+        for (Node child = signatureElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && "SignatureValue".equals(child.getLocalName())
+                    && XMLConstants.XMLSIG_NS.equals(child.getNamespaceURI())) {
+                int characters = 0;
+                int padding = 0;
+                for (Node text = child.getFirstChild(); text != null; text = text.getNextSibling()) {
+                    String value = text.getNodeValue();
+                    if (value == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < value.length(); i++) {
+                        char c = value.charAt(i);
+                        if (c == '=') {
+                            padding++;
+                        } else if (!Character.isWhitespace(c)) {
+                            characters++;
+                        }
+                    }
+                }
+                int length = characters + padding;
+                if (length == 0 || length % 4 != 0 || padding > 2) {
+                    return -1;
+                }
+                return length / 4 * 3 - padding;
+            }
+        }
+        return -1;
+    }
 
-        for (Credential trustedCredential : trustedCredentials) {
-        	log.debug("[DaneExtension] for(Credentials trustedCredential : trustedCredentials)");
-            if (SigningUtil.verifyWithURI(trustedCredential, algorithmURI, signature, content)) {
-                log.debug("[DaneExtension] Successfully verified signature = {} using resolved trustedCredentials = {}, algorithmURI = {}, content = {}, return true");
-                return true;
+    /**
+     * Gets the length of the longer integer, without leading zero bytes, of a DER encoded ECDSA signature.
+     * 
+     * @param signature the DER encoded signature
+     * @return the integer length in bytes, or -1 if the signature is not a DER encoded sequence of two integers
+     */
+    private static int getDerIntegerLength(byte[] signature) {
+        if (signature.length < 8 || signature[0] != 0x30) {
+            return -1;
+        }
+        int offset = signature[1] == (byte) 0x81 ? 3 : 2;
+        int maxLength = 0;
+        for (int i = 0; i < 2; i++) {
+            if (offset + 2 > signature.length || signature[offset] != 0x02) {
+                return -1;
+            }
+            int length = signature[offset + 1] & 0xff;
+            offset += 2;
+            if (length > 0x7f || offset + length > signature.length) {
+                return -1;
             }
+            int start = offset;
+            while (start < offset + length - 1 && signature[start] == 0) {
+                start++;
+            }
+            maxLength = Math.max(maxLength, offset + length - start);
+            offset += length;
+        }
+        return maxLength;
+    }
+
+    /**
+     * Gets the executor to try trusted credentials on in parallel.
+     * 
+     * @param candidates the trusted credentials to try
+     * @return the executor, or null if the credentials are to be tried by the calling thread
+     */
+    private ExecutorService getParallelExecutor(Iterable<Credential> candidates) {
+        ExecutorService currentExecutor = executor;
+        int threshold = parallelVerificationThreshold;
+        if (currentExecutor == null || threshold <= 0 || !(candidates instanceof TrustedCredentialSet)
+                || ((TrustedCredentialSet) candidates).size() < threshold) {
+            return null;
+        }
+        return currentExecutor;
+    }
+
+    /**
+     * Tries trusted credentials in parallel until one verifies a signature. The credentials are dealt out over as many
+     * tasks as the executor has threads; once a credential verifies the signature or the verification budget, which
+     * covers the CPU time of all tasks, is spent, tasks not yet started are cancelled and running tasks stop before
+     * trying their next credential.
+     * 
+     * @param parallelExecutor the executor
+     * @param candidates the trusted credentials
+     * @param skip credential which was already tried, may be null
+     * @param algorithmURI the signature algorithm URI
+     * @param signature the signature value, DER encoded for DSA and ECDSA
+     * @param content the signed content
+     * @param currentBudget the verification budget, may be null
+     * @param tried counter of the credentials tried
+     * @param exceeded set when the verification budget ran out
+     * @return the credential which verified the signature, or null if none did
+     * @throws SecurityException if an error occurs during verification or the calling thread is interrupted
+     */
+    private Credential verifyInParallel(ExecutorService parallelExecutor, TrustedCredentialSet candidates,
+            Credential skip, String algorithmURI, byte[] signature, byte[] content, VerificationBudget currentBudget,
+            AtomicInteger tried, AtomicBoolean exceeded) throws SecurityException {
+        List<Credential> credentials = candidates.getCredentials();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if (parallelExecutor instanceof ThreadPoolExecutor) {
+            parallelism = ((ThreadPoolExecutor) parallelExecutor).getMaximumPoolSize();
+        }
+        int taskCount = Math.max(1, Math.min(parallelism, credentials.size()));
+
+        CompletionService<Credential> completion = new ExecutorCompletionService<Credential>(parallelExecutor);
+        List<Future<Credential>> futures = new ArrayList<Future<Credential>>(taskCount);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong cpuTime = new AtomicLong();
+        try {
+            for (int i = 0; i < taskCount; i++) {
+                futures.add(completion.submit(new VerificationTask(credentials, i, taskCount, skip, algorithmURI,
+                        signature, content, done, currentBudget, tried, cpuTime, exceeded)));
+            }
+            for (int i = 0; i < taskCount; i++) {
+                Credential verified = completion.take().get();
+                if (verified != null) {
+                    return verified;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityException("Interrupted while verifying signature", e);
+        } catch (ExecutionException e) {
+            throw new SecurityException("Unable to verify signature", e.getCause());
+        } finally {
+            done.set(true);
+            for (Future<Credential> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Prepares an XML signature for verification with {@link #verifyRaw(Credential, String, byte[], byte[])}. The
+     * references are validated and the SignedInfo canonicalized once, by the calling thread, so that only the
+     * signature value is verified on other threads and the DOM, which is not safe for concurrent reads, is not touched
+     * by them.
+     * 
+     * @param signature the signature
+     * @param algorithmURI the signature algorithm URI
+     * @return the signature value and canonicalized SignedInfo, or null if the signature can not be prepared
+     */
+    private SignedInfoContent getSignedInfoContent(Signature signature, String algorithmURI) {
+        String keyAlgorithm = TrustedCredentialSet.normalizeKeyAlgorithm(getKeyAlgorithm(algorithmURI));
+        if (signature.getDOM() == null
+                || !("RSA".equals(keyAlgorithm) || "EC".equals(keyAlgorithm) || "DSA".equals(keyAlgorithm))) {
+            return null;
+        }
+        try {
+            XMLSignature xmlSignature = new XMLSignature(signature.getDOM(), "");
+            SignedInfo signedInfo = xmlSignature.getSignedInfo();
+            if (!signedInfo.verify()) {
+                return new SignedInfoContent(false, null, null);
+            }
+            byte[] signatureValue = xmlSignature.getSignatureValue();
+            if (!"RSA".equals(keyAlgorithm)) {
+                signatureValue = toDerSignature(signatureValue);
+                if (signatureValue == null) {
+                    return null;
+                }
+            }
+            return new SignedInfoContent(true, signatureValue, signedInfo.getCanonicalizedOctetStream());
+        } catch (XMLSecurityException e) {
+            log.debug("[DaneExtension] unable to prepare signature for parallel verification", e);
+            return null;
+        }
+    }
+
+    /**
+     * Converts a DSA or ECDSA signature value from the XML signature form, the two integers concatenated, to DER.
+     * 
+     * @param signatureValue the XML signature value
+     * @return the DER encoded signature value, or null if the value is not of even length
+     */
+    private static byte[] toDerSignature(byte[] signatureValue) {
+        if (signatureValue == null || signatureValue.length == 0 || signatureValue.length % 2 != 0) {
+            return null;
+        }
+        int half = signatureValue.length / 2;
+        byte[] r = toDerInteger(signatureValue, 0, half);
+        byte[] s = toDerInteger(signatureValue, half, half);
+        int length = r.length + s.length;
+        byte[] der = new byte[length + (length > 0x7f ? 3 : 2)];
+        int offset = 0;
+        der[offset++] = 0x30;
+        if (length > 0x7f) {
+            der[offset++] = (byte) 0x81;
+        }
+        der[offset++] = (byte) length;
+        System.arraycopy(r, 0, der, offset, r.length);
+        System.arraycopy(s, 0, der, offset + r.length, s.length);
+        return der;
+    }
+
+    /**
+     * Encodes an unsigned big-endian integer as a DER INTEGER.
+     * 
+     * @param value array holding the integer
+     * @param offset offset of the integer
+     * @param length length of the integer
+     * @return the DER encoded integer
+     */
+    private static byte[] toDerInteger(byte[] value, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        while (start < end - 1 && value[start] == 0) {
+            start++;
+        }
+        int pad = (value[start] & 0x80) != 0 ? 1 : 0;
+        byte[] der = new byte[2 + pad + end - start];
+        der[0] = 0x02;
+        der[1] = (byte) (pad + end - start);
+        System.arraycopy(value, start, der, 2 + pad, end - start);
+        return der;
+    }
+
+    /**
+     * Records a trust decision in the metrics, if given, and the trace log.
+     * 
+     * @param currentMetrics the metrics, may be null
+     * @param binding one of the {@link TrustEngineMetrics} BINDING constants
+     * @param algorithmURI the signature algorithm URI
+     * @param path one of the {@link TrustEngineMetrics} PATH constants
+     * @param outcome one of the {@link TrustEngineMetrics} OUTCOME constants
+     * @param tried number of trusted credentials tried directly
+     * @param start time, from {@link System#nanoTime()}, the validation started
+     * @param resolved time, from {@link System#nanoTime()}, the trusted credentials were resolved
+     */
+    private void decided(TrustEngineMetrics currentMetrics, int binding, String algorithmURI, int path,
+            int outcome, int tried, long start, long resolved) {
+        if (currentMetrics != null) {
+            currentMetrics.record(binding, TrustEngineMetrics.getAlgorithmFamily(algorithmURI), path,
+                    outcome, tried, resolved - start, System.nanoTime() - start);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("[DaneExtension] {} signature ({}) {} via {} after trying {} trusted credentials", new Object[] {
+                    binding == TrustEngineMetrics.BINDING_XML ? "XML" : "raw", algorithmURI,
+                    OUTCOME_NAMES[outcome],
+                    path == TrustEngineMetrics.PATH_KEY_INFO ? "KeyInfo" : "trusted credentials", tried});
         }
-        log.debug("[DaneExtension] Failed to verify signature using either supplied candidate credential"
-                + " or directly trusted credentials, return false");
-        return false;
     }
 
     /** {@inheritDoc} */
     protected boolean evaluateTrust(Credential untrustedCredential, Iterable<Credential> trustedCredentials)
             throws SecurityException {
-         log.debug("[DaneExtension]  evaluateTrust(Credential untrustedCredential = {}, Iterable<Credential> trustedCredentials = {})", untrustedCredential, trustedCredentials);
-        return keyTrust.validate(untrustedCredential, trustedCredentials);
+        if (!(trustedCredentials instanceof TrustedCredentialSet)) {
+            return keyTrust.validate(untrustedCredential, trustedCredentials);
+        }
+        TrustedCredentialSet trustedSet = (TrustedCredentialSet) trustedCredentials;
+        Key key = SecurityHelper.extractVerificationKey(untrustedCredential);
+        KeyFingerprint fingerprint = KeyFingerprint.sha256(key);
+        if (trustDecisionCache == null || fingerprint == null) {
+            return trustedSet.contains(untrustedCredential, key, fingerprint);
+        }
+        if (trustDecisionCache.isTrusted(fingerprint, trustedSet.getVersion())) {
+            return true;
+        }
+        if (trustedSet.contains(untrustedCredential, key, fingerprint)) {
+            trustDecisionCache.trusted(fingerprint, trustedSet.getVersion());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Attempt to verify a signature using the key from the supplied credential, consulting the verification cache
+     * if one is configured.
+     * 
+     * @param signature the signature on which to attempt verification
+     * @param credential the credential containing the candidate validation key
+     * @return true if the signature can be verified using the key from the credential, otherwise false
+     */
+    protected boolean verifySignature(Signature signature, Credential credential) {
+        if (verificationCache == null) {
+            return super.verifySignature(signature, credential);
+        }
+        return verifySignature(signature, credential, SignatureVerificationCache.digestSignedContent(signature));
+    }
+
+    /**
+     * Attempt to verify a signature using the key from the supplied credential, consulting the verification cache
+     * if one is configured.
+     * 
+     * @param signature the signature on which to attempt verification
+     * @param credential the credential containing the candidate validation key
+     * @param signedContentDigest digest of the signed content, may be null if the result should not be cached
+     * @return true if the signature can be verified using the key from the credential, otherwise false
+     */
+    protected boolean verifySignature(Signature signature, Credential credential, KeyFingerprint signedContentDigest) {
+        SignatureVerificationCache.CacheKey cacheKey = null;
+        if (verificationCache != null) {
+            cacheKey = SignatureVerificationCache.buildKey(signedContentDigest, signature, credential);
+            if (cacheKey != null) {
+                Boolean cached = verificationCache.get(cacheKey);
+                if (cached != null) {
+                    return cached.booleanValue();
+                }
+            }
+        }
+        boolean valid = super.verifySignature(signature, credential);
+        if (cacheKey != null) {
+            verificationCache.put(cacheKey, valid);
+        }
+        return valid;
+    }
+
+    /**
+     * Attempt to verify a raw signature using the key from the supplied credential, consulting the verification cache
+     * if one is configured and reusing initialized signature instances if a pooled verifier is configured.
+     * 
+     * @param credential the credential containing the candidate validation key
+     * @param algorithmURI the signature algorithm URI
+     * @param signature the signature value
+     * @param content the signed content
+     * @return true if the signature can be verified using the key from the credential, otherwise false
+     * @throws SecurityException if there is a problem computing the signature
+     */
+    protected boolean verifyRaw(Credential credential, String algorithmURI, byte[] signature, byte[] content)
+            throws SecurityException {
+        SignatureVerificationCache.CacheKey cacheKey = null;
+        if (verificationCache != null) {
+            cacheKey = SignatureVerificationCache.buildKey(signature, content, algorithmURI, credential);
+            if (cacheKey != null) {
+                Boolean cached = verificationCache.get(cacheKey);
+                if (cached != null) {
+                    return cached.booleanValue();
+                }
+            }
+        }
+        boolean valid;
+        if (signatureVerifier != null) {
+            valid = signatureVerifier.verify(credential, algorithmURI, signature, content);
+        } else {
+            valid = SigningUtil.verifyWithURI(credential, algorithmURI, signature, content);
+        }
+        if (cacheKey != null) {
+            verificationCache.put(cacheKey, valid);
+        }
+        return valid;
+    }
+
+    /** Validates the signatures of one DOM document of a batch. */
+    private final class BatchTask implements Callable<Object> {
+
+        /** All signatures of the batch. */
+        private final List<Signature> signatures;
+
+        /** Indexes of the signatures validated by this task. */
+        private final List<Integer> indexes;
+
+        /** The entity ID of the trust basis criteria, may be null. */
+        private final String entityID;
+
+        /** Whether the task runs on the executor, whose threads must not wait for further tasks on it. */
+        private final boolean onExecutor;
+
+        /** The trusted credentials, keyed by signature algorithm URI. */
+        private final Map<String, Iterable<Credential>> trustedByAlgorithm;
+
+        /** Results of the batch, written at the indexes of this task. */
+        private final boolean[] results;
+
+        /** The metrics to record the decisions in, may be null. */
+        private final TrustEngineMetrics currentMetrics;
+
+        /** Time, from {@link System#nanoTime()}, the batch started. */
+        private final long start;
+
+        /** Time, from {@link System#nanoTime()}, the trusted credentials were resolved. */
+        private final long resolved;
+
+        /**
+         * Constructor.
+         * 
+         * @param batch all signatures of the batch
+         * @param taskIndexes indexes of the signatures validated by this task
+         * @param entity the entity ID of the trust basis criteria
+         * @param executorTask whether the task runs on the executor
+         * @param trusted the trusted credentials, keyed by signature algorithm URI
+         * @param batchResults results of the batch
+         * @param batchMetrics the metrics to record the decisions in, may be null
+         * @param batchStart time the batch started
+         * @param batchResolved time the trusted credentials were resolved
+         */
+        BatchTask(List<Signature> batch, List<Integer> taskIndexes, String entity, boolean executorTask,
+                Map<String, Iterable<Credential>> trusted, boolean[] batchResults, TrustEngineMetrics batchMetrics,
+                long batchStart, long batchResolved) {
+            signatures = batch;
+            indexes = taskIndexes;
+            entityID = entity;
+            onExecutor = executorTask;
+            trustedByAlgorithm = trusted;
+            results = batchResults;
+            currentMetrics = batchMetrics;
+            start = batchStart;
+            resolved = batchResolved;
+        }
+
+        /** {@inheritDoc} */
+        public Object call() {
+            for (Integer index : indexes) {
+                Signature signature = signatures.get(index.intValue());
+                String algorithmURI = signature.getSignatureAlgorithm();
+                try {
+                    results[index.intValue()] = validateSignature(signature, entityID, trustedByAlgorithm
+                            .get(algorithmURI), !onExecutor, currentMetrics, start, resolved);
+                } catch (SecurityException e) {
+                    log.warn("[DaneExtension] error validating signature " + index + " of batch", e);
+                    if (currentMetrics != null) {
+                        currentMetrics.record(TrustEngineMetrics.BINDING_XML, TrustEngineMetrics
+                                .getAlgorithmFamily(algorithmURI), TrustEngineMetrics.PATH_KEY_INFO,
+                                TrustEngineMetrics.OUTCOME_ERROR, 0, 0L, System.nanoTime() - start);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Verification of a signature with a trusted credential. */
+    private abstract class Verification {
+
+        /**
+         * Verifies the signature with a credential.
+         * 
+         * @param credential the credential
+         * @return true if the credential verified the signature, otherwise false
+         * @throws SecurityException if an error occurs during verification
+         */
+        abstract boolean verify(Credential credential) throws SecurityException;
+
+        /**
+         * Prepares the signature for verification of its value as a raw signature on other threads.
+         * 
+         * @return the signature value and signed content, or null if the signature can not be prepared
+         */
+        abstract SignedInfoContent prepare();
+    }
+
+    /** A signature prepared for verification of its value as a raw signature. */
+    private static final class SignedInfoContent {
+
+        /** Whether the references of the signature are valid, always true for raw signatures. */
+        private final boolean referencesValid;
+
+        /** The signature value, DER encoded for DSA and ECDSA. */
+        private final byte[] signatureValue;
+
+        /** The canonicalized SignedInfo. */
+        private final byte[] content;
+
+        /**
+         * Constructor.
+         * 
+         * @param valid whether the references of the signature are valid
+         * @param value the signature value
+         * @param signedInfo the canonicalized SignedInfo
+         */
+        SignedInfoContent(boolean valid, byte[] value, byte[] signedInfo) {
+            referencesValid = valid;
+            signatureValue = value;
+            content = signedInfo;
+        }
+    }
+
+    /** Tries every n-th credential of a list until one verifies a signature. */
+    private final class VerificationTask implements Callable<Credential> {
+
+        /** The credentials. */
+        private final List<Credential> credentials;
+
+        /** Index of the first credential tried. */
+        private final int first;
+
+        /** Distance between the credentials tried. */
+        private final int step;
+
+        /** Credential which was already tried, may be null. */
+        private final Credential skip;
+
+        /** The signature algorithm URI. */
+        private final String algorithmURI;
+
+        /** The signature value. */
+        private final byte[] signature;
+
+        /** The signed content. */
+        private final byte[] content;
+
+        /** Whether the verification is over, set once any task verified the signature. */
+        private final AtomicBoolean done;
+
+        /** The verification budget, may be null. */
+        private final VerificationBudget budget;
+
+        /** Counter of the credentials tried. */
+        private final AtomicInteger tried;
+
+        /** CPU time spent by all tasks, in nanoseconds. */
+        private final AtomicLong cpuTime;
+
+        /** Set when the verification budget ran out. */
+        private final AtomicBoolean exceeded;
+
+        /**
+         * Constructor.
+         * 
+         * @param candidates the credentials
+         * @param firstIndex index of the first credential tried
+         * @param stride distance between the credentials tried
+         * @param skipCredential credential which was already tried
+         * @param algorithm the signature algorithm URI
+         * @param signatureValue the signature value
+         * @param signedContent the signed content
+         * @param verificationDone whether the verification is over
+         * @param verificationBudget the verification budget, may be null
+         * @param triedCounter counter of the credentials tried
+         * @param cpuTimeCounter CPU time spent by all tasks
+         * @param budgetExceeded set when the verification budget ran out
+         */
+        VerificationTask(List<Credential> candidates, int firstIndex, int stride, Credential skipCredential,
+                String algorithm, byte[] signatureValue, byte[] signedContent, AtomicBoolean verificationDone,
+                VerificationBudget verificationBudget, AtomicInteger triedCounter, AtomicLong cpuTimeCounter,
+                AtomicBoolean budgetExceeded) {
+            credentials = candidates;
+            first = firstIndex;
+            step = stride;
+            skip = skipCredential;
+            algorithmURI = algorithm;
+            signature = signatureValue;
+            content = signedContent;
+            done = verificationDone;
+            budget = verificationBudget;
+            tried = triedCounter;
+            cpuTime = cpuTimeCounter;
+            exceeded = budgetExceeded;
+        }
+
+        /** {@inheritDoc} */
+        public Credential call() throws SecurityException {
+            for (int i = first; i < credentials.size() && !done.get(); i += step) {
+                Credential credential = credentials.get(i);
+                if (credential == skip) {
+                    continue;
+                }
+                long cpuStart = 0L;
+                if (budget != null) {
+                    if (budget.isExceeded(tried.get(), cpuTime.get())) {
+                        exceeded.set(true);
+                        done.set(true);
+                        return null;
+                    }
+                    cpuStart = budget.getCpuTime();
+                }
+                tried.incrementAndGet();
+                boolean valid = verifyRaw(credential, algorithmURI, signature, content);
+                if (budget != null) {
+                    cpuTime.addAndGet(budget.getCpuTime() - cpuStart);
+                }
+                if (valid) {
+                    done.set(true);
+                    return credential;
+                }
+            }
+            return null;
+        }
     }
 }
 
@@ -16,6 +16,9 @@ public class DaneExplicitKeySignatureTrustEngineNamespaceHandler extends BaseSpr
     	registerBeanDefinitionParser(DaneStaticExplicitKeySignatureTrustEngineBeanDefinitionParser.SCHEMA_TYPE, 
     									new DaneStaticExplicitKeySignatureTrustEngineBeanDefinitionParser());
     	
+    	registerBeanDefinitionParser(DaneTlsaCredentialResolverBeanDefinitionParser.ELEMENT_NAME,
+    									new DaneTlsaCredentialResolverBeanDefinitionParser());
+    	
     	log.debug("[DaneExtension] DaneExplicitKeySignatureTrustEngineNamespaceHandler has been registered. ");
     }
 }
@@ -17,6 +17,7 @@ package se.danetest.shibboleth.extension;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.namespace.QName;
@@ -57,6 +58,135 @@ public class DaneStaticExplicitKeySignatureTrustEngineBeanDefinitionParser exten
                 "Credential");
         builder.addPropertyValue("credentials", SpringConfigurationUtils
                         .parseCustomElements(childElems, parserContext));
+
+        List<Element> bundleElems = XMLHelper.getChildElementsByTagNameNS(element,
+                DaneExplicitKeySignatureTrustEngineNamespaceHandler.NAMESPACE, "CredentialBundle");
+        if (!bundleElems.isEmpty()) {
+            List<String> bundles = new ArrayList<String>(bundleElems.size());
+            for (Element bundleElem : bundleElems) {
+                String file = DatatypeHelper.safeTrimOrNullString(bundleElem.getAttributeNS(null, "file"));
+                if (file != null) {
+                    bundles.add(file);
+                }
+            }
+            builder.addPropertyValue("credentialBundles", bundles);
+        }
+
+        List<Element> tlsaElems = XMLHelper.getChildElementsByTagNameNS(element,
+                DaneExplicitKeySignatureTrustEngineNamespaceHandler.NAMESPACE, "TLSAResolver");
+        if (!tlsaElems.isEmpty()) {
+            builder.addPropertyValue("tlsaResolver", SpringConfigurationUtils.parseInnerCustomElement(tlsaElems.get(0),
+                    parserContext));
+        }
+
+        if (element.hasAttributeNS(null, "verificationCacheSize")) {
+            builder.addPropertyValue("verificationCacheSize", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "verificationCacheSize"))));
+        }
+
+        if (element.hasAttributeNS(null, "verificationCacheTTL")) {
+            long ttl = SpringConfigurationUtils.parseDurationToMillis("verificationCacheTTL on trust engine "
+                    + element.getAttributeNS(null, "id"), element.getAttributeNS(null, "verificationCacheTTL"), 1);
+            builder.addPropertyValue("verificationCacheTTL", ttl);
+        }
+
+        if (element.hasAttributeNS(null, "keyInfoCacheSize")) {
+            builder.addPropertyValue("keyInfoCacheSize", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "keyInfoCacheSize"))));
+        }
+
+        if (element.hasAttributeNS(null, "trustDecisionCacheSize")) {
+            builder.addPropertyValue("trustDecisionCacheSize", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "trustDecisionCacheSize"))));
+        }
+
+        if (element.hasAttributeNS(null, "credentialHintCacheSize")) {
+            builder.addPropertyValue("credentialHintCacheSize", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "credentialHintCacheSize"))));
+        }
+
+        if (element.hasAttributeNS(null, "negativeCacheSize")) {
+            builder.addPropertyValue("negativeCacheSize", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "negativeCacheSize"))));
+        }
+
+        if (element.hasAttributeNS(null, "negativeCacheTTL")) {
+            long ttl = SpringConfigurationUtils.parseDurationToMillis("negativeCacheTTL on trust engine "
+                    + element.getAttributeNS(null, "id"), element.getAttributeNS(null, "negativeCacheTTL"), 1);
+            builder.addPropertyValue("negativeCacheTTL", ttl);
+        }
+
+        if (element.hasAttributeNS(null, "signaturePoolSize")) {
+            builder.addPropertyValue("signaturePoolSize", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "signaturePoolSize"))));
+        }
+
+        if (element.hasAttributeNS(null, "metricsObjectName")) {
+            builder.addPropertyValue("metricsObjectName", DatatypeHelper.safeTrimOrNullString(element.getAttributeNS(
+                    null, "metricsObjectName")));
+        }
+
+        if (element.hasAttributeNS(null, "traceBufferSize")) {
+            builder.addPropertyValue("traceBufferSize", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "traceBufferSize"))));
+        }
+
+        if (element.hasAttributeNS(null, "traceSampleRate")) {
+            builder.addPropertyValue("traceSampleRate", Double.parseDouble(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "traceSampleRate"))));
+        }
+
+        if (element.hasAttributeNS(null, "trustedCredentialsPath")) {
+            builder.addPropertyValue("trustedCredentialsPath", DatatypeHelper.safeTrimOrNullString(element
+                    .getAttributeNS(null, "trustedCredentialsPath")));
+        }
+
+        if (element.hasAttributeNS(null, "reloadInterval")) {
+            long interval = SpringConfigurationUtils.parseDurationToMillis("reloadInterval on trust engine "
+                    + element.getAttributeNS(null, "id"), element.getAttributeNS(null, "reloadInterval"), 1);
+            builder.addPropertyValue("reloadInterval", interval);
+        }
+
+        if (element.hasAttributeNS(null, "asyncThreads")) {
+            builder.addPropertyValue("asyncThreads", Integer.parseInt(DatatypeHelper.safeTrim(element.getAttributeNS(
+                    null, "asyncThreads"))));
+        }
+
+        if (element.hasAttributeNS(null, "warmUpVerifications")) {
+            builder.addPropertyValue("warmUpVerifications", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "warmUpVerifications"))));
+        }
+
+        if (element.hasAttributeNS(null, "verificationThreads")) {
+            builder.addPropertyValue("verificationThreads", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "verificationThreads"))));
+        }
+
+        if (element.hasAttributeNS(null, "maxCredentialsTried")) {
+            builder.addPropertyValue("maxCredentialsTried", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "maxCredentialsTried"))));
+        }
+
+        if (element.hasAttributeNS(null, "maxVerificationTime")) {
+            long time = SpringConfigurationUtils.parseDurationToMillis("maxVerificationTime on trust engine "
+                    + element.getAttributeNS(null, "id"), element.getAttributeNS(null, "maxVerificationTime"), 1);
+            builder.addPropertyValue("maxVerificationTime", time);
+        }
+
+        if (element.hasAttributeNS(null, "fallbackRate")) {
+            builder.addPropertyValue("fallbackRate", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "fallbackRate"))));
+        }
+
+        if (element.hasAttributeNS(null, "fallbackBurst")) {
+            builder.addPropertyValue("fallbackBurst", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "fallbackBurst"))));
+        }
+
+        if (element.hasAttributeNS(null, "parallelVerificationThreshold")) {
+            builder.addPropertyValue("parallelVerificationThreshold", Integer.parseInt(DatatypeHelper
+                    .safeTrim(element.getAttributeNS(null, "parallelVerificationThreshold"))));
+        }
     }
 
     /** {@inheritDoc} */
@@ -17,10 +17,23 @@ package se.danetest.shibboleth.extension;
  * limitations under the License.
  */
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.opensaml.xml.security.credential.Credential;
-import org.opensaml.xml.security.credential.StaticCredentialResolver;
+import org.opensaml.xml.security.credential.CredentialResolver;
 import org.opensaml.xml.security.keyinfo.BasicProviderKeyInfoCredentialResolver;
 import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
 import org.opensaml.xml.security.keyinfo.KeyInfoProvider;
@@ -28,12 +41,14 @@ import org.opensaml.xml.security.keyinfo.provider.DSAKeyValueProvider;
 import org.opensaml.xml.security.keyinfo.provider.InlineX509DataProvider;
 import org.opensaml.xml.security.keyinfo.provider.RSAKeyValueProvider;
 import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
+import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.config.AbstractFactoryBean;
 
 /**
- * Spring factory bean used to created {@link ExplicitKeySignatureTrustEngine}s based on a static credential resolver.
+ * Spring factory bean used to created {@link ExplicitKeySignatureTrustEngine}s based on an indexed static credential
+ * resolver.
  */
 public class DaneStaticExplicitKeySignatureTrustEngineFactoryBean extends AbstractFactoryBean {
 	
@@ -43,6 +58,99 @@ public class DaneStaticExplicitKeySignatureTrustEngineFactoryBean extends Abstra
     /** List of trusted credentials. */
     private List<Credential> credentials;
 
+    /** Paths of credential bundles holding further trusted credentials, null if there are none. */
+    private List<String> credentialBundles;
+
+    /** Optional resolver of trusted credentials published in DANE TLSA records. */
+    private DaneTlsaCredentialResolver tlsaResolver;
+
+    /** Maximum number of cached signature verification results, 0 disables the cache. */
+    private int verificationCacheSize;
+
+    /** Time-to-live of a cached signature verification result, in milliseconds. Default value: 5 minutes */
+    private long verificationCacheTTL = 5 * 60 * 1000;
+
+    /** Maximum number of cached KeyInfo resolution results, 0 disables the cache. */
+    private int keyInfoCacheSize;
+
+    /** Maximum number of cached trust decisions, 0 disables the cache. */
+    private int trustDecisionCacheSize;
+
+    /** Maximum number of remembered credentials which last verified an entity's signature, 0 disables the cache. */
+    private int credentialHintCacheSize;
+
+    /** Maximum number of cached rejected signatures, 0 disables the cache. */
+    private int negativeCacheSize;
+
+    /** Time, in milliseconds, a rejected signature is cached. Default value: 1 minute */
+    private long negativeCacheTTL = 60 * 1000;
+
+    /**
+     * Maximum number of initialized signature instances kept per thread for raw signature verification, 0 disables
+     * pooling. Default value: 16
+     */
+    private int signaturePoolSize = 16;
+
+    /** JMX object name the trust engine metrics are registered under, null if no metrics are recorded. */
+    private String metricsObjectName;
+
+    /** Number of sampled decisions kept in the trace of the metrics, 0 disables tracing. Default value: 1024 */
+    private int traceBufferSize = 1024;
+
+    /** Fraction of decisions traced, which can be changed through JMX. Default value: 0 */
+    private double traceSampleRate;
+
+    /** Path of a file or directory of additional trusted certificates, null if there are none. */
+    private String trustedCredentialsPath;
+
+    /**
+     * Interval, in milliseconds, at which the trusted certificate files are checked for changes, 0 disables reloading.
+     * Default value: 1 minute
+     */
+    private long reloadInterval = 60 * 1000;
+
+    /** Watcher reloading the trusted certificate files, null if there are none. */
+    private TrustedCredentialFileWatcher credentialWatcher;
+
+    /** Number of threads verifying signatures in parallel, 0 verifies signatures in the calling thread. */
+    private int verificationThreads;
+
+    /**
+     * Minimum number of trusted credentials tried directly for which they are tried in parallel, 0 always tries them in
+     * the calling thread.
+     */
+    private int parallelVerificationThreshold;
+
+    /** Maximum number of trusted credentials tried directly per validation, 0 if unlimited. */
+    private int maxCredentialsTried;
+
+    /** Maximum CPU time spent trying trusted credentials directly per validation, in milliseconds, 0 if unlimited. */
+    private long maxVerificationTime;
+
+    /** Number of times per second an entity may have trusted credentials tried directly, 0 if unlimited. */
+    private int fallbackRate;
+
+    /** Number of times an entity may have trusted credentials tried directly in a burst. Default value: 10 */
+    private int fallbackBurst = 10;
+
+    /** Executor verifying signatures in parallel, null if there is none. */
+    private ExecutorService verificationExecutor;
+
+    /**
+     * Number of threads running asynchronous validations if virtual threads are not available, 0 runs them in the
+     * calling thread.
+     */
+    private int asyncThreads;
+
+    /** Executor running asynchronous validations, null if there is none. */
+    private ExecutorService asyncExecutor;
+
+    /**
+     * Number of synthetic validations per kind of key and signature algorithm run in parallel to warm up the trust
+     * engine before it is returned, 0 disables the warm-up. Default value: 0
+     */
+    private int warmUpVerifications;
+
     /**
      * Gets the list of trusted credentials.
      * 
@@ -64,6 +172,422 @@ public class DaneStaticExplicitKeySignatureTrustEngineFactoryBean extends Abstra
         log.debug("[DaneExtension] Set credentials to newCredentials");
     }
 
+    /**
+     * Gets the paths of the credential bundles holding further trusted credentials.
+     * 
+     * @return the bundle paths, or null if there are none
+     */
+    public List<String> getCredentialBundles() {
+        return credentialBundles;
+    }
+
+    /**
+     * Sets the paths of the credential bundles holding further trusted credentials.
+     * 
+     * @param bundles the bundle paths, or null if there are none
+     */
+    public void setCredentialBundles(List<String> bundles) {
+        credentialBundles = bundles;
+    }
+
+    /**
+     * Gets the resolver of trusted credentials published in DANE TLSA records.
+     * 
+     * @return the TLSA credential resolver, or null if TLSA records are not used
+     */
+    public DaneTlsaCredentialResolver getTlsaResolver() {
+        return tlsaResolver;
+    }
+
+    /**
+     * Sets the resolver of trusted credentials published in DANE TLSA records.
+     * 
+     * @param resolver the TLSA credential resolver, or null if TLSA records are not used
+     */
+    public void setTlsaResolver(DaneTlsaCredentialResolver resolver) {
+        tlsaResolver = resolver;
+    }
+
+    /**
+     * Gets the maximum number of cached signature verification results.
+     * 
+     * @return maximum number of cached signature verification results, 0 if the cache is disabled
+     */
+    public int getVerificationCacheSize() {
+        return verificationCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of cached signature verification results.
+     * 
+     * @param size maximum number of cached signature verification results, 0 disables the cache
+     */
+    public void setVerificationCacheSize(int size) {
+        verificationCacheSize = size;
+    }
+
+    /**
+     * Gets the time-to-live of a cached signature verification result.
+     * 
+     * @return time-to-live in milliseconds
+     */
+    public long getVerificationCacheTTL() {
+        return verificationCacheTTL;
+    }
+
+    /**
+     * Sets the time-to-live of a cached signature verification result.
+     * 
+     * @param ttl time-to-live in milliseconds
+     */
+    public void setVerificationCacheTTL(long ttl) {
+        verificationCacheTTL = ttl;
+    }
+
+    /**
+     * Gets the maximum number of cached KeyInfo resolution results.
+     * 
+     * @return maximum number of cached KeyInfo resolution results, 0 if the cache is disabled
+     */
+    public int getKeyInfoCacheSize() {
+        return keyInfoCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of cached KeyInfo resolution results.
+     * 
+     * @param size maximum number of cached KeyInfo resolution results, 0 disables the cache
+     */
+    public void setKeyInfoCacheSize(int size) {
+        keyInfoCacheSize = size;
+    }
+
+    /**
+     * Gets the maximum number of cached trust decisions.
+     * 
+     * @return maximum number of cached trust decisions, 0 if the cache is disabled
+     */
+    public int getTrustDecisionCacheSize() {
+        return trustDecisionCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of cached trust decisions.
+     * 
+     * @param size maximum number of cached trust decisions, 0 disables the cache
+     */
+    public void setTrustDecisionCacheSize(int size) {
+        trustDecisionCacheSize = size;
+    }
+
+    /**
+     * Gets the maximum number of remembered credentials which last verified an entity's signature.
+     * 
+     * @return maximum number of remembered credentials, 0 if none are remembered
+     */
+    public int getCredentialHintCacheSize() {
+        return credentialHintCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of remembered credentials which last verified an entity's signature.
+     * 
+     * @param size maximum number of remembered credentials, 0 to remember none
+     */
+    public void setCredentialHintCacheSize(int size) {
+        credentialHintCacheSize = size;
+    }
+
+    /**
+     * Gets the maximum number of cached rejected signatures.
+     * 
+     * @return maximum number of cached rejected signatures, 0 if the cache is disabled
+     */
+    public int getNegativeCacheSize() {
+        return negativeCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of cached rejected signatures.
+     * 
+     * @param size maximum number of cached rejected signatures, 0 to disable the cache
+     */
+    public void setNegativeCacheSize(int size) {
+        negativeCacheSize = size;
+    }
+
+    /**
+     * Gets the time a rejected signature is cached.
+     * 
+     * @return the time-to-live in milliseconds
+     */
+    public long getNegativeCacheTTL() {
+        return negativeCacheTTL;
+    }
+
+    /**
+     * Sets the time a rejected signature is cached.
+     * 
+     * @param ttl the time-to-live in milliseconds
+     */
+    public void setNegativeCacheTTL(long ttl) {
+        negativeCacheTTL = ttl;
+    }
+
+    /**
+     * Gets the maximum number of initialized signature instances kept per thread.
+     * 
+     * @return maximum number of pooled signature instances per thread, 0 if pooling is disabled
+     */
+    public int getSignaturePoolSize() {
+        return signaturePoolSize;
+    }
+
+    /**
+     * Sets the maximum number of initialized signature instances kept per thread.
+     * 
+     * @param size maximum number of pooled signature instances per thread, 0 disables pooling
+     */
+    public void setSignaturePoolSize(int size) {
+        signaturePoolSize = size;
+    }
+
+    /**
+     * Gets the JMX object name the trust engine metrics are registered under.
+     * 
+     * @return the object name, or null if no metrics are recorded
+     */
+    public String getMetricsObjectName() {
+        return metricsObjectName;
+    }
+
+    /**
+     * Sets the JMX object name the trust engine metrics are registered under.
+     * 
+     * @param name the object name, or null if no metrics should be recorded
+     */
+    public void setMetricsObjectName(String name) {
+        metricsObjectName = DatatypeHelper.safeTrimOrNullString(name);
+    }
+
+    /**
+     * Gets the number of sampled decisions kept in the trace of the metrics.
+     * 
+     * @return the number of decisions, 0 if tracing is disabled
+     */
+    public int getTraceBufferSize() {
+        return traceBufferSize;
+    }
+
+    /**
+     * Sets the number of sampled decisions kept in the trace of the metrics.
+     * 
+     * @param size the number of decisions, 0 to disable tracing
+     */
+    public void setTraceBufferSize(int size) {
+        traceBufferSize = size;
+    }
+
+    /**
+     * Gets the fraction of decisions traced.
+     * 
+     * @return the sample rate between 0 and 1
+     */
+    public double getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    /**
+     * Sets the fraction of decisions traced.
+     * 
+     * @param rate the sample rate between 0 and 1, 0 to trace no decisions until sampling is turned on through JMX
+     */
+    public void setTraceSampleRate(double rate) {
+        traceSampleRate = rate;
+    }
+
+    /**
+     * Gets the path of the file or directory of additional trusted certificates.
+     * 
+     * @return the path, or null if there are no additional trusted certificates
+     */
+    public String getTrustedCredentialsPath() {
+        return trustedCredentialsPath;
+    }
+
+    /**
+     * Sets the path of the file or directory of additional trusted certificates.
+     * 
+     * @param path the path, or null if there are no additional trusted certificates
+     */
+    public void setTrustedCredentialsPath(String path) {
+        trustedCredentialsPath = DatatypeHelper.safeTrimOrNullString(path);
+    }
+
+    /**
+     * Gets the interval at which the trusted certificate files are checked for changes.
+     * 
+     * @return the reload interval in milliseconds, 0 if reloading is disabled
+     */
+    public long getReloadInterval() {
+        return reloadInterval;
+    }
+
+    /**
+     * Sets the interval at which the trusted certificate files are checked for changes.
+     * 
+     * @param interval the reload interval in milliseconds, 0 disables reloading
+     */
+    public void setReloadInterval(long interval) {
+        reloadInterval = interval;
+    }
+
+    /**
+     * Gets the number of threads verifying signatures in parallel.
+     * 
+     * @return the number of threads, 0 if signatures are verified in the calling thread
+     */
+    public int getVerificationThreads() {
+        return verificationThreads;
+    }
+
+    /**
+     * Sets the number of threads verifying signatures in parallel.
+     * 
+     * @param threads the number of threads, 0 to verify signatures in the calling thread
+     */
+    public void setVerificationThreads(int threads) {
+        verificationThreads = threads;
+    }
+
+    /**
+     * Gets the number of threads running asynchronous validations if virtual threads are not available.
+     * 
+     * @return the number of threads, 0 if asynchronous validations run in the calling thread
+     */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    /**
+     * Sets the number of threads running asynchronous validations if virtual threads are not available. Any value
+     * greater than 0 enables asynchronous validation, on a virtual thread per validation where the JVM supports them.
+     * 
+     * @param threads the number of threads, 0 to run asynchronous validations in the calling thread
+     */
+    public void setAsyncThreads(int threads) {
+        asyncThreads = threads;
+    }
+
+    /**
+     * Gets the number of synthetic validations per kind of key and signature algorithm run to warm up the trust engine.
+     * 
+     * @return the number of validations, 0 if the trust engine is not warmed up
+     */
+    public int getWarmUpVerifications() {
+        return warmUpVerifications;
+    }
+
+    /**
+     * Sets the number of synthetic validations per kind of key and signature algorithm run to warm up the trust engine.
+     * Any value greater than 0 also prepares every trusted key for verification before the trust engine is returned.
+     * 
+     * @param verifications the number of validations, 0 to not warm up the trust engine
+     */
+    public void setWarmUpVerifications(int verifications) {
+        warmUpVerifications = verifications;
+    }
+
+    /**
+     * Gets the minimum number of trusted credentials tried directly for which they are tried in parallel.
+     * 
+     * @return the threshold, 0 if trusted credentials are always tried in the calling thread
+     */
+    public int getParallelVerificationThreshold() {
+        return parallelVerificationThreshold;
+    }
+
+    /**
+     * Sets the minimum number of trusted credentials tried directly for which they are tried in parallel.
+     * 
+     * @param threshold the threshold, 0 to always try trusted credentials in the calling thread
+     */
+    public void setParallelVerificationThreshold(int threshold) {
+        parallelVerificationThreshold = threshold;
+    }
+
+    /**
+     * Gets the maximum number of trusted credentials tried directly per validation.
+     * 
+     * @return maximum number of credentials, 0 if unlimited
+     */
+    public int getMaxCredentialsTried() {
+        return maxCredentialsTried;
+    }
+
+    /**
+     * Sets the maximum number of trusted credentials tried directly per validation.
+     * 
+     * @param max maximum number of credentials, 0 for no limit
+     */
+    public void setMaxCredentialsTried(int max) {
+        maxCredentialsTried = max;
+    }
+
+    /**
+     * Gets the maximum CPU time spent trying trusted credentials directly per validation.
+     * 
+     * @return maximum CPU time in milliseconds, 0 if unlimited
+     */
+    public long getMaxVerificationTime() {
+        return maxVerificationTime;
+    }
+
+    /**
+     * Sets the maximum CPU time spent trying trusted credentials directly per validation.
+     * 
+     * @param max maximum CPU time in milliseconds, 0 for no limit
+     */
+    public void setMaxVerificationTime(long max) {
+        maxVerificationTime = max;
+    }
+
+    /**
+     * Gets the number of times per second an entity may have trusted credentials tried directly.
+     * 
+     * @return the rate, 0 if unlimited
+     */
+    public int getFallbackRate() {
+        return fallbackRate;
+    }
+
+    /**
+     * Sets the number of times per second an entity may have trusted credentials tried directly.
+     * 
+     * @param rate the rate, 0 for no limit
+     */
+    public void setFallbackRate(int rate) {
+        fallbackRate = rate;
+    }
+
+    /**
+     * Gets the number of times an entity may have trusted credentials tried directly in a burst.
+     * 
+     * @return the burst size
+     */
+    public int getFallbackBurst() {
+        return fallbackBurst;
+    }
+
+    /**
+     * Sets the number of times an entity may have trusted credentials tried directly in a burst.
+     * 
+     * @param burst the burst size
+     */
+    public void setFallbackBurst(int burst) {
+        fallbackBurst = burst;
+    }
+
     /** {@inheritDoc} */
     @SuppressWarnings("rawtypes")
 	public Class getObjectType() {
@@ -74,8 +598,49 @@ public class DaneStaticExplicitKeySignatureTrustEngineFactoryBean extends Abstra
     /** {@inheritDoc} */
     protected Object createInstance() throws Exception {
     	log.debug("[DaneExtension] createInstance()");
-        StaticCredentialResolver credResolver = new StaticCredentialResolver(getCredentials());
-        log.debug("[DaneExtension] created credResolver with a new StaticCredentialResolver(getCredentials())");
+        try {
+            return createEngine();
+        } catch (Exception e) {
+            log.debug("[DaneExtension] trust engine could not be created, stopping the components already started");
+            stopComponents();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the trust engine and the components it uses. Components which are started are kept in fields, so that
+     * they can be stopped if a later step fails or the instance is destroyed.
+     * 
+     * @return the trust engine
+     * 
+     * @throws Exception if the trust engine can not be created
+     */
+    private DaneExplicitKeySignatureTrustEngine createEngine() throws Exception {
+        List<Credential> staticCredentials = getCredentials();
+        if (staticCredentials == null) {
+            staticCredentials = Collections.emptyList();
+        }
+        if (credentialBundles != null && !credentialBundles.isEmpty()) {
+            staticCredentials = new ArrayList<Credential>(staticCredentials);
+            staticCredentials.addAll(readCredentialBundles());
+        }
+        IndexedCredentialResolver indexedResolver = new IndexedCredentialResolver(staticCredentials);
+        log.debug("[DaneExtension] created credResolver with a new IndexedCredentialResolver(getCredentials())");
+        if (trustedCredentialsPath != null) {
+            credentialWatcher = new TrustedCredentialFileWatcher(new File(trustedCredentialsPath), indexedResolver,
+                    staticCredentials);
+            credentialWatcher.setReloadInterval(reloadInterval);
+            credentialWatcher.load();
+            credentialWatcher.start();
+        }
+        CredentialResolver credResolver = indexedResolver;
+        if (tlsaResolver != null) {
+            List<CredentialResolver> resolvers = new ArrayList<CredentialResolver>();
+            resolvers.add(credResolver);
+            resolvers.add(tlsaResolver);
+            credResolver = new ChainingTrustedCredentialResolver(resolvers);
+            log.debug("[DaneExtension] chained TLSA credential resolver after the static credentials");
+        }
         List<KeyInfoProvider> keyInfoProviders = new ArrayList<KeyInfoProvider>();
         log.debug("[DaneExtension] created a arraylist of keyInfoProviders");
         keyInfoProviders.add(new DSAKeyValueProvider());
@@ -86,8 +651,168 @@ public class DaneStaticExplicitKeySignatureTrustEngineFactoryBean extends Abstra
         log.debug("[DaneExtension] added InlineX509DataProvider");
         KeyInfoCredentialResolver keyInfoCredResolver = new BasicProviderKeyInfoCredentialResolver(keyInfoProviders);
         log.debug("[DaneExtension] created keyInfoCredResolver from new BasicProviderKeyInfoCredentialResolver");
+        if (keyInfoCacheSize > 0) {
+            log.debug("[DaneExtension] enabling KeyInfo resolution cache with size {}", keyInfoCacheSize);
+            keyInfoCredResolver = new CachingKeyInfoCredentialResolver(keyInfoCredResolver, keyInfoCacheSize);
+        }
+        DaneExplicitKeySignatureTrustEngine engine = new DaneExplicitKeySignatureTrustEngine(credResolver,
+                keyInfoCredResolver);
+        if (verificationCacheSize > 0) {
+            log.debug("[DaneExtension] enabling verification cache with size {} and TTL {}ms", verificationCacheSize,
+                    verificationCacheTTL);
+            engine.setVerificationCache(new SignatureVerificationCache(verificationCacheSize, verificationCacheTTL));
+        }
+        if (trustDecisionCacheSize > 0) {
+            log.debug("[DaneExtension] enabling trust decision cache with size {}", trustDecisionCacheSize);
+            engine.setTrustDecisionCache(new TrustDecisionCache(trustDecisionCacheSize));
+        }
+        if (credentialHintCacheSize > 0) {
+            log.debug("[DaneExtension] enabling credential hint cache with size {}", credentialHintCacheSize);
+            engine.setCredentialHintCache(new CredentialHintCache(credentialHintCacheSize));
+        }
+        if (negativeCacheSize > 0 && negativeCacheTTL > 0) {
+            log.debug("[DaneExtension] enabling negative trust cache with size {} and time-to-live {}ms",
+                    negativeCacheSize, negativeCacheTTL);
+            engine.setNegativeTrustCache(new NegativeTrustCache(negativeCacheSize, negativeCacheTTL));
+        }
+        if (signaturePoolSize > 0) {
+            engine.setSignatureVerifier(new PooledSignatureVerifier(signaturePoolSize));
+        }
+        if (maxCredentialsTried > 0 || maxVerificationTime > 0 || fallbackRate > 0) {
+            log.debug("[DaneExtension] limiting trusted credentials tried to {} in {}ms, at {} per second per entity",
+                    new Object[] {maxCredentialsTried, maxVerificationTime, fallbackRate});
+            VerificationBudget budget = new VerificationBudget();
+            budget.setMaxCredentials(maxCredentialsTried);
+            budget.setMaxCpuTime(maxVerificationTime);
+            budget.setFallbackRate(fallbackRate);
+            budget.setFallbackBurst(fallbackBurst);
+            engine.setBudget(budget);
+        }
+        if (verificationThreads > 0) {
+            log.debug("[DaneExtension] verifying signatures in parallel with {} threads", verificationThreads);
+            verificationExecutor = Executors.newFixedThreadPool(verificationThreads,
+                    new TlsaRecordCache.DaemonThreadFactory("dane-verify"));
+            engine.setExecutor(verificationExecutor);
+            engine.setParallelVerificationThreshold(parallelVerificationThreshold);
+        }
+        if (asyncThreads > 0) {
+            asyncExecutor = createAsyncExecutor();
+            engine.setAsyncExecutor(asyncExecutor);
+        }
+        if (warmUpVerifications > 0) {
+            warmUp(engine, indexedResolver.getTrustedCredentials().getCredentials());
+        }
+        if (metricsObjectName != null) {
+            TrustEngineMetrics metrics = new TrustEngineMetrics();
+            if (traceBufferSize > 0) {
+                DecisionTraceBuffer trace = new DecisionTraceBuffer(traceBufferSize);
+                trace.setSampleRate(traceSampleRate);
+                metrics.setTrace(trace);
+                log.debug("[DaneExtension] tracing {} of the decisions in a buffer of {}", traceSampleRate,
+                        trace.getCapacity());
+            }
+            metrics.setEngine(engine);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(metricsObjectName));
+            log.debug("[DaneExtension] registered trust engine metrics as {}", metricsObjectName);
+            engine.setMetrics(metrics);
+        }
         log.debug("[DaneExtension] returning DaneExplicitKeySignatureTrustEngine(credResolver, keyUnfoResolver)");
-        return new DaneExplicitKeySignatureTrustEngine(credResolver, keyInfoCredResolver);
+        return engine;
+    }
+
+    /**
+     * Creates the executor running asynchronous validations. Virtual threads are used if the JVM provides them; they
+     * are looked up reflectively, as this code targets a Java version without them. Otherwise a pool of
+     * {@link #getAsyncThreads()} threads is used, whose bounded queue rejects validations once it is full, so that the
+     * trust engine runs them in the calling thread.
+     * 
+     * @return the executor
+     */
+    private ExecutorService createAsyncExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executorService = (ExecutorService) factory.invoke(null);
+            log.debug("[DaneExtension] running asynchronous validations on virtual threads");
+            return executorService;
+        } catch (NoSuchMethodException e) {
+            log.debug("[DaneExtension] virtual threads are not available");
+        } catch (Exception e) {
+            log.warn("[DaneExtension] unable to create virtual thread executor", e);
+        }
+        log.debug("[DaneExtension] running asynchronous validations on {} threads", asyncThreads);
+        return new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(asyncThreads * 64), new TlsaRecordCache.DaemonThreadFactory(
+                        "dane-async"));
+    }
+
+    /**
+     * Warms up the trust engine on a thread per processor, before any metrics are recorded.
+     * 
+     * @param engine the trust engine
+     * @param trustedCredentials the trusted credentials
+     * 
+     * @throws InterruptedException if the thread is interrupted while the trust engine is warmed up
+     */
+    private void warmUp(DaneExplicitKeySignatureTrustEngine engine, List<Credential> trustedCredentials)
+            throws InterruptedException {
+        log.debug("[DaneExtension] warming up trust engine with {} validations per kind of key", warmUpVerifications);
+        ExecutorService warmUpExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new TlsaRecordCache.DaemonThreadFactory("dane-warm-up"));
+        try {
+            new TrustEngineWarmer(engine, warmUpExecutor).warmUp(trustedCredentials, warmUpVerifications);
+        } finally {
+            warmUpExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the trusted credentials of the credential bundles, decoding them on a thread per processor.
+     * 
+     * @return the trusted credentials
+     * 
+     * @throws Exception if a bundle can not be read
+     */
+    private List<Credential> readCredentialBundles() throws Exception {
+        ExecutorService decodeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new TlsaRecordCache.DaemonThreadFactory("dane-bundle-decode"));
+        try {
+            CredentialBundleReader reader = new CredentialBundleReader(decodeExecutor);
+            List<Credential> bundleCredentials = new ArrayList<Credential>();
+            for (String bundle : credentialBundles) {
+                bundleCredentials.addAll(reader.read(new File(bundle)));
+            }
+            return bundleCredentials;
+        } finally {
+            decodeExecutor.shutdownNow();
+        }
+    }
+
+    /** {@inheritDoc} */
+    protected void destroyInstance(Object instance) throws Exception {
+        stopComponents();
+        if (metricsObjectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(metricsObjectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+    }
+
+    /** Stops the credential watcher and executors started for the trust engine. */
+    private void stopComponents() {
+        if (credentialWatcher != null) {
+            credentialWatcher.stop();
+            credentialWatcher = null;
+        }
+        if (verificationExecutor != null) {
+            verificationExecutor.shutdownNow();
+            verificationExecutor = null;
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+            asyncExecutor = null;
+        }
     }
 }
 
@@ -112,8 +837,7 @@ public class DaneStaticExplicitKeySignatureTrustEngineFactoryBean extends Abstra
 //import java.util.List;
 //
 //import org.opensaml.xml.security.credential.Credential;
-//import org.opensaml.xml.security.credential.StaticCredentialResolver;
-//import org.slf4j.Logger;
+////import org.slf4j.Logger;
 //import org.slf4j.LoggerFactory;
 //import org.springframework.beans.factory.config.AbstractFactoryBean;
 //
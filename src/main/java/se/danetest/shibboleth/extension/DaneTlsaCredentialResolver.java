@@ -0,0 +1,255 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.AbstractCredentialResolver;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.KeyAlgorithmCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Credential resolver which derives trusted credentials from the DANE TLSA records of the signer's host.
+ *
+ * <p>
+ * The signer's host is taken from the {@link EntityIDCriteria}: the host of an http or https entity ID, or the entity
+ * ID itself if it is a plain host name. Trusted credentials are then read from the TLSA records at
+ * <code>_&lt;port&gt;._&lt;protocol&gt;.&lt;host&gt;</code> through a {@link TlsaRecordCache}, so steady-state
+ * resolution never touches DNS. Entity IDs from which no host name can be derived yield no trusted credentials.
+ * </p>
+ */
+public class DaneTlsaCredentialResolver extends AbstractCredentialResolver implements TrustedCredentialResolver {
+
+    /** Set returned when there is no trust material for a request. */
+    private static final TrustedCredentialSet EMPTY = new TrustedCredentialSet(Collections.<Credential> emptyList());
+
+    /** Pattern of a DNS host name. */
+    private static final Pattern HOST_NAME = Pattern
+            .compile("^([a-zA-Z0-9]([a-zA-Z0-9\\-]*[a-zA-Z0-9])?\\.)+[a-zA-Z0-9]([a-zA-Z0-9\\-]*[a-zA-Z0-9])?\\.?$");
+
+    /** Maximum number of remembered owner names. */
+    private static final int MAX_OWNER_NAMES = 10000;
+
+    /** Marker of entity IDs from which no host name can be derived. */
+    private static final String NO_OWNER_NAME = "";
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(DaneTlsaCredentialResolver.class);
+
+    /** Cache of TLSA record sets. */
+    private final TlsaRecordCache cache;
+
+    /** TLSA owner names, indexed by entity ID. */
+    private final ConcurrentMap<String, String> ownerNames;
+
+    /** Port of the TLSA owner name. Default value: 443 */
+    private int servicePort = 443;
+
+    /** Transport protocol of the TLSA owner name. Default value: tcp */
+    private String protocol = "tcp";
+
+    /**
+     * Constructor.
+     *
+     * @param tlsaCache cache of TLSA record sets
+     */
+    public DaneTlsaCredentialResolver(TlsaRecordCache tlsaCache) {
+        if (tlsaCache == null) {
+            throw new IllegalArgumentException("TLSA record cache may not be null");
+        }
+        cache = tlsaCache;
+        ownerNames = new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * Gets the cache of TLSA record sets.
+     *
+     * @return the TLSA record cache
+     */
+    public TlsaRecordCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Gets the port of the TLSA owner name.
+     *
+     * @return the service port
+     */
+    public int getServicePort() {
+        return servicePort;
+    }
+
+    /**
+     * Sets the port of the TLSA owner name.
+     *
+     * @param port the service port
+     */
+    public void setServicePort(int port) {
+        servicePort = port;
+        ownerNames.clear();
+    }
+
+    /**
+     * Gets the transport protocol of the TLSA owner name.
+     *
+     * @return the protocol
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Sets the transport protocol of the TLSA owner name.
+     *
+     * @param newProtocol the protocol
+     */
+    public void setProtocol(String newProtocol) {
+        protocol = DatatypeHelper.safeTrimOrNullString(newProtocol);
+        ownerNames.clear();
+    }
+
+    /** {@inheritDoc} */
+    public Iterable<Credential> resolve(CriteriaSet criteriaSet) throws SecurityException {
+        return resolveTrusted(criteriaSet, null, null);
+    }
+
+    /** {@inheritDoc} */
+    public TrustedCredentialSet resolveTrusted(CriteriaSet criteriaSet, String keyAlgorithm, UsageType defaultUsage)
+            throws SecurityException {
+        if (criteriaSet == null) {
+            return EMPTY;
+        }
+        EntityIDCriteria entityIDCriteria = criteriaSet.get(EntityIDCriteria.class);
+        if (entityIDCriteria == null || entityIDCriteria.getEntityID() == null) {
+            return EMPTY;
+        }
+        String ownerName = getOwnerNameForEntity(entityIDCriteria.getEntityID());
+        if (ownerName == null) {
+            return EMPTY;
+        }
+
+        TrustedCredentialSet result;
+        try {
+            result = cache.get(ownerName);
+        } catch (IOException e) {
+            log.warn("[DaneExtension] unable to obtain TLSA records for " + ownerName, e);
+            return EMPTY;
+        }
+
+        String algorithm = keyAlgorithm;
+        if (algorithm == null) {
+            KeyAlgorithmCriteria keyAlgorithmCriteria = criteriaSet.get(KeyAlgorithmCriteria.class);
+            if (keyAlgorithmCriteria != null) {
+                algorithm = keyAlgorithmCriteria.getKeyAlgorithm();
+            }
+        }
+        if (algorithm != null) {
+            result = result.forAlgorithm(algorithm);
+        }
+        UsageCriteria usageCriteria = criteriaSet.get(UsageCriteria.class);
+        UsageType usage = usageCriteria != null ? usageCriteria.getUsage() : defaultUsage;
+        if (usage != null) {
+            result = result.forUsage(usage);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the TLSA owner name of an entity, remembering it for later requests.
+     *
+     * @param entityId the entity ID
+     *
+     * @return the TLSA owner name, or null if no host name can be derived from the entity ID
+     */
+    private String getOwnerNameForEntity(String entityId) {
+        String ownerName = ownerNames.get(entityId);
+        if (ownerName == null) {
+            String host = getHostName(entityId);
+            if (host == null) {
+                log.debug("[DaneExtension] no host name in entity ID {}, no TLSA lookup", entityId);
+                ownerName = NO_OWNER_NAME;
+            } else {
+                ownerName = getOwnerName(host);
+            }
+            if (ownerNames.size() >= MAX_OWNER_NAMES) {
+                ownerNames.clear();
+            }
+            ownerNames.put(entityId, ownerName);
+        }
+        return ownerName == NO_OWNER_NAME ? null : ownerName;
+    }
+
+    /**
+     * Builds the absolute TLSA owner name for a host.
+     *
+     * @param host the host name
+     *
+     * @return the TLSA owner name
+     */
+    public String getOwnerName(String host) {
+        String ownerName = "_" + servicePort + "._" + protocol + "." + host.toLowerCase();
+        if (!ownerName.endsWith(".")) {
+            ownerName = ownerName + ".";
+        }
+        return ownerName;
+    }
+
+    /**
+     * Derives the signer's host name from an entity ID.
+     *
+     * @param entityId the entity ID
+     *
+     * @return the host name, or null if none can be derived
+     */
+    public static String getHostName(String entityId) {
+        String trimmed = DatatypeHelper.safeTrimOrNullString(entityId);
+        if (trimmed == null) {
+            return null;
+        }
+        if (HOST_NAME.matcher(trimmed).matches()) {
+            return trimmed;
+        }
+        try {
+            URI uri = new URI(trimmed);
+            String scheme = uri.getScheme();
+            if ("https".equalsIgnoreCase(scheme) || "http".equalsIgnoreCase(scheme)) {
+                String host = uri.getHost();
+                if (host != null && HOST_NAME.matcher(host).matches()) {
+                    return host;
+                }
+            }
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,139 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.xml.util.DatatypeHelper;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.AbstractSingleBeanDefinitionParser;
+import org.springframework.beans.factory.xml.ParserContext;
+import org.w3c.dom.Element;
+
+import edu.internet2.middleware.shibboleth.common.config.SpringConfigurationUtils;
+
+/** Spring bean definition parser for {urn:mace:danetest:danetrustengine}TLSAResolver elements. */
+public class DaneTlsaCredentialResolverBeanDefinitionParser extends AbstractSingleBeanDefinitionParser {
+
+    /** Element name. */
+    public static final QName ELEMENT_NAME = new QName(DaneExplicitKeySignatureTrustEngineNamespaceHandler.NAMESPACE,
+            "TLSAResolver");
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(DaneTlsaCredentialResolverBeanDefinitionParser.class);
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("rawtypes")
+    protected Class getBeanClass(Element element) {
+        return DaneTlsaCredentialResolverFactoryBean.class;
+    }
+
+    /** {@inheritDoc} */
+    protected void doParse(Element element, ParserContext parserContext, BeanDefinitionBuilder builder) {
+        log.debug("[DaneExtension] Parsing TLSA resolver configuration");
+
+        if (element.hasAttributeNS(null, "nameServer")) {
+            builder.addPropertyValue("nameServer", DatatypeHelper.safeTrimOrNullString(element.getAttributeNS(null,
+                    "nameServer")));
+        }
+
+        if (element.hasAttributeNS(null, "nameServerPort")) {
+            builder.addPropertyValue("nameServerPort", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "nameServerPort"))));
+        }
+
+        if (element.hasAttributeNS(null, "timeout")) {
+            builder.addPropertyValue("timeout", SpringConfigurationUtils.parseDurationToMillis("timeout on TLSA resolver",
+                    element.getAttributeNS(null, "timeout"), 1));
+        }
+
+        if (element.hasAttributeNS(null, "servicePort")) {
+            builder.addPropertyValue("servicePort", Integer.parseInt(DatatypeHelper.safeTrim(element.getAttributeNS(
+                    null, "servicePort"))));
+        }
+
+        if (element.hasAttributeNS(null, "protocol")) {
+            builder.addPropertyValue("protocol", DatatypeHelper.safeTrimOrNullString(element.getAttributeNS(null,
+                    "protocol")));
+        }
+
+        if (element.hasAttributeNS(null, "minCacheTTL")) {
+            builder.addPropertyValue("minCacheTTL", SpringConfigurationUtils.parseDurationToMillis(
+                    "minCacheTTL on TLSA resolver", element.getAttributeNS(null, "minCacheTTL"), 1));
+        }
+
+        if (element.hasAttributeNS(null, "maxCacheTTL")) {
+            builder.addPropertyValue("maxCacheTTL", SpringConfigurationUtils.parseDurationToMillis(
+                    "maxCacheTTL on TLSA resolver", element.getAttributeNS(null, "maxCacheTTL"), 1));
+        }
+
+        if (element.hasAttributeNS(null, "refreshAhead")) {
+            builder.addPropertyValue("refreshAhead", SpringConfigurationUtils.parseDurationToMillis(
+                    "refreshAhead on TLSA resolver", element.getAttributeNS(null, "refreshAhead"), 1));
+        }
+
+        if (element.hasAttributeNS(null, "maxStale")) {
+            builder.addPropertyValue("maxStale", SpringConfigurationUtils.parseDurationToMillis(
+                    "maxStale on TLSA resolver", element.getAttributeNS(null, "maxStale"), 1));
+        }
+
+        if (element.hasAttributeNS(null, "failureTTL")) {
+            builder.addPropertyValue("failureTTL", SpringConfigurationUtils.parseDurationToMillis(
+                    "failureTTL on TLSA resolver", element.getAttributeNS(null, "failureTTL"), 1));
+        }
+
+        if (element.hasAttributeNS(null, "snapshotFile")) {
+            builder.addPropertyValue("snapshotFile", DatatypeHelper.safeTrimOrNullString(element.getAttributeNS(null,
+                    "snapshotFile")));
+        }
+
+        if (element.hasAttributeNS(null, "zoneFile")) {
+            builder.addPropertyValue("zoneFile", DatatypeHelper.safeTrimOrNullString(element.getAttributeNS(null,
+                    "zoneFile")));
+        }
+
+        if (element.hasAttributeNS(null, "zoneFileReloadInterval")) {
+            builder.addPropertyValue("zoneFileReloadInterval", SpringConfigurationUtils.parseDurationToMillis(
+                    "zoneFileReloadInterval on TLSA resolver", element.getAttributeNS(null, "zoneFileReloadInterval"),
+                    1));
+        }
+
+        if (element.hasAttributeNS(null, "trustAnchorFile")) {
+            builder.addPropertyValue("trustAnchorFile", DatatypeHelper.safeTrimOrNullString(element.getAttributeNS(
+                    null, "trustAnchorFile")));
+        }
+
+        if (element.hasAttributeNS(null, "allowInsecure")) {
+            builder.addPropertyValue("allowInsecure", XMLHelper.getAttributeValueAsBoolean(element
+                    .getAttributeNodeNS(null, "allowInsecure")));
+        }
+
+        if (element.hasAttributeNS(null, "maxCacheSize")) {
+            builder.addPropertyValue("maxCacheSize", Integer.parseInt(DatatypeHelper.safeTrim(element
+                    .getAttributeNS(null, "maxCacheSize"))));
+        }
+    }
+
+    /** {@inheritDoc} */
+    protected boolean shouldGenerateId() {
+        return true;
+    }
+}
@@ -0,0 +1,483 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.AbstractFactoryBean;
+import org.xbill.DNS.SimpleResolver;
+
+/**
+ * Spring factory bean used to create {@link DaneTlsaCredentialResolver}s backed by a DNS server or by local zone files.
+ */
+public class DaneTlsaCredentialResolverFactoryBean extends AbstractFactoryBean {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(DaneTlsaCredentialResolverFactoryBean.class);
+
+    /** Name server to query, null to use the system configured name server. */
+    private String nameServer;
+
+    /** Port of the name server. Default value: 53 */
+    private int nameServerPort = 53;
+
+    /** Query timeout, in milliseconds. Default value: 5 seconds */
+    private long timeout = 5 * 1000;
+
+    /** Port of the TLSA owner name. Default value: 443 */
+    private int servicePort = 443;
+
+    /** Transport protocol of the TLSA owner name. Default value: tcp */
+    private String protocol = "tcp";
+
+    /** Minimum time a record set is cached, in milliseconds. Default value: 1 minute */
+    private long minCacheTTL = 60 * 1000;
+
+    /** Maximum time a record set is cached, in milliseconds. Default value: 1 day */
+    private long maxCacheTTL = 24 * 60 * 60 * 1000;
+
+    /** Maximum number of cached record sets. Default value: 10000 */
+    private int maxCacheSize = 10000;
+
+    /** How long before expiry a used record set is refreshed, in milliseconds. Default value: 1 minute */
+    private long refreshAhead = 60 * 1000;
+
+    /** How long after expiry a record set may still be served, in milliseconds. Default value: 1 hour */
+    private long maxStale = 60 * 60 * 1000;
+
+    /** How long a failed lookup is remembered, in milliseconds. Default value: 5 seconds */
+    private long failureTTL = 5 * 1000;
+
+    /** Path of the file resolved trust material is persisted to, null if it is not persisted. */
+    private String snapshotFile;
+
+    /** Path of the zone file or directory TLSA records are read from, null if they are queried from DNS. */
+    private String zoneFile;
+
+    /** Interval at which the zone files are checked for changes, in milliseconds. Default value: 1 minute */
+    private long zoneFileReloadInterval = 60 * 1000;
+
+    /** Path of the DNSSEC trust anchor file, null if TLSA records are not validated. */
+    private String trustAnchorFile;
+
+    /** Whether TLSA records queried from DNS may be trusted without DNSSEC validation. Default value: false */
+    private boolean allowInsecure;
+
+    /**
+     * Gets the name server to query.
+     *
+     * @return the name server, or null if the system configured name server is used
+     */
+    public String getNameServer() {
+        return nameServer;
+    }
+
+    /**
+     * Sets the name server to query.
+     *
+     * @param server the name server, or null to use the system configured name server
+     */
+    public void setNameServer(String server) {
+        nameServer = DatatypeHelper.safeTrimOrNullString(server);
+    }
+
+    /**
+     * Gets the port of the name server.
+     *
+     * @return the name server port
+     */
+    public int getNameServerPort() {
+        return nameServerPort;
+    }
+
+    /**
+     * Sets the port of the name server.
+     *
+     * @param port the name server port
+     */
+    public void setNameServerPort(int port) {
+        nameServerPort = port;
+    }
+
+    /**
+     * Gets the query timeout.
+     *
+     * @return the query timeout in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the query timeout.
+     *
+     * @param newTimeout the query timeout in milliseconds
+     */
+    public void setTimeout(long newTimeout) {
+        timeout = newTimeout;
+    }
+
+    /**
+     * Gets the port of the TLSA owner name.
+     *
+     * @return the service port
+     */
+    public int getServicePort() {
+        return servicePort;
+    }
+
+    /**
+     * Sets the port of the TLSA owner name.
+     *
+     * @param port the service port
+     */
+    public void setServicePort(int port) {
+        servicePort = port;
+    }
+
+    /**
+     * Gets the transport protocol of the TLSA owner name.
+     *
+     * @return the protocol
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Sets the transport protocol of the TLSA owner name.
+     *
+     * @param newProtocol the protocol
+     */
+    public void setProtocol(String newProtocol) {
+        protocol = newProtocol;
+    }
+
+    /**
+     * Gets the minimum time a record set is cached.
+     *
+     * @return minimum cache time in milliseconds
+     */
+    public long getMinCacheTTL() {
+        return minCacheTTL;
+    }
+
+    /**
+     * Sets the minimum time a record set is cached.
+     *
+     * @param ttl minimum cache time in milliseconds
+     */
+    public void setMinCacheTTL(long ttl) {
+        minCacheTTL = ttl;
+    }
+
+    /**
+     * Gets the maximum time a record set is cached.
+     *
+     * @return maximum cache time in milliseconds
+     */
+    public long getMaxCacheTTL() {
+        return maxCacheTTL;
+    }
+
+    /**
+     * Sets the maximum time a record set is cached.
+     *
+     * @param ttl maximum cache time in milliseconds
+     */
+    public void setMaxCacheTTL(long ttl) {
+        maxCacheTTL = ttl;
+    }
+
+    /**
+     * Gets the maximum number of cached record sets.
+     *
+     * @return maximum number of cached record sets
+     */
+    public int getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of cached record sets.
+     *
+     * @param size maximum number of cached record sets
+     */
+    public void setMaxCacheSize(int size) {
+        maxCacheSize = size;
+    }
+
+    /**
+     * Gets how long before expiry a used record set is refreshed in the background.
+     *
+     * @return refresh lead time in milliseconds, 0 if background refresh is disabled
+     */
+    public long getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * Sets how long before expiry a used record set is refreshed in the background.
+     *
+     * @param time refresh lead time in milliseconds, 0 disables background refresh
+     */
+    public void setRefreshAhead(long time) {
+        refreshAhead = time;
+    }
+
+    /**
+     * Gets how long after expiry a record set may still be served while it is refreshed.
+     *
+     * @return maximum staleness in milliseconds
+     */
+    public long getMaxStale() {
+        return maxStale;
+    }
+
+    /**
+     * Sets how long after expiry a record set may still be served while it is refreshed.
+     *
+     * @param time maximum staleness in milliseconds
+     */
+    public void setMaxStale(long time) {
+        maxStale = time;
+    }
+
+    /**
+     * Gets how long a failed lookup is remembered.
+     *
+     * @return failure cache time in milliseconds
+     */
+    public long getFailureTTL() {
+        return failureTTL;
+    }
+
+    /**
+     * Sets how long a failed lookup is remembered.
+     *
+     * @param ttl failure cache time in milliseconds, 0 to look up again on every miss
+     */
+    public void setFailureTTL(long ttl) {
+        failureTTL = ttl;
+    }
+
+    /**
+     * Gets the path of the file resolved trust material is persisted to.
+     *
+     * @return the snapshot file path, or null if trust material is not persisted
+     */
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Sets the path of the file resolved trust material is persisted to.
+     *
+     * @param path the snapshot file path, or null if trust material should not be persisted
+     */
+    public void setSnapshotFile(String path) {
+        snapshotFile = DatatypeHelper.safeTrimOrNullString(path);
+    }
+
+    /**
+     * Gets the path of the zone file or directory of zone files TLSA records are read from.
+     *
+     * @return the zone file path, or null if TLSA records are queried from DNS
+     */
+    public String getZoneFile() {
+        return zoneFile;
+    }
+
+    /**
+     * Sets the path of the zone file or directory of zone files TLSA records are read from.
+     *
+     * @param path the zone file path, or null to query TLSA records from DNS
+     */
+    public void setZoneFile(String path) {
+        zoneFile = DatatypeHelper.safeTrimOrNullString(path);
+    }
+
+    /**
+     * Gets the interval at which the zone files are checked for changes.
+     *
+     * @return the reload interval in milliseconds
+     */
+    public long getZoneFileReloadInterval() {
+        return zoneFileReloadInterval;
+    }
+
+    /**
+     * Sets the interval at which the zone files are checked for changes.
+     *
+     * @param interval the reload interval in milliseconds, 0 disables reloading
+     */
+    public void setZoneFileReloadInterval(long interval) {
+        zoneFileReloadInterval = interval;
+    }
+
+    /**
+     * Gets the path of the file holding the DNSSEC trust anchors TLSA records are validated with.
+     *
+     * @return the trust anchor file path, or null if TLSA records are not validated
+     */
+    public String getTrustAnchorFile() {
+        return trustAnchorFile;
+    }
+
+    /**
+     * Sets the path of the file holding the DNSSEC trust anchors TLSA records are validated with.
+     *
+     * @param path the trust anchor file path, or null to not validate TLSA records
+     */
+    public void setTrustAnchorFile(String path) {
+        trustAnchorFile = DatatypeHelper.safeTrimOrNullString(path);
+    }
+
+    /**
+     * Gets whether TLSA records queried from DNS may be trusted without DNSSEC validation.
+     *
+     * @return true if no trust anchor file is required for DNS queries, otherwise false
+     */
+    public boolean isAllowInsecure() {
+        return allowInsecure;
+    }
+
+    /**
+     * Sets whether TLSA records queried from DNS may be trusted without DNSSEC validation. Without validation anyone
+     * able to spoof DNS responses can have any key trusted, so this is only meant for testing.
+     *
+     * @param insecure true to not require a trust anchor file for DNS queries
+     */
+    public void setAllowInsecure(boolean insecure) {
+        allowInsecure = insecure;
+    }
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("rawtypes")
+    public Class getObjectType() {
+        return DaneTlsaCredentialResolver.class;
+    }
+
+    /** {@inheritDoc} */
+    protected Object createInstance() throws Exception {
+        TlsaRecordSource source = createRecordSource();
+        TlsaRecordCache cache = new TlsaRecordCache(source);
+        cache.setValidation(getValidation(source));
+        cache.setMinTTL(minCacheTTL);
+        cache.setMaxTTL(maxCacheTTL);
+        cache.setMaxSize(maxCacheSize);
+        cache.setRefreshAhead(refreshAhead);
+        cache.setMaxStale(maxStale);
+        cache.setFailureTTL(failureTTL);
+        if (snapshotFile != null) {
+            cache.setSnapshotFile(new File(snapshotFile));
+        }
+        cache.start();
+        cache.loadSnapshot();
+
+        DaneTlsaCredentialResolver resolver = new DaneTlsaCredentialResolver(cache);
+        resolver.setServicePort(servicePort);
+        resolver.setProtocol(protocol);
+        return resolver;
+    }
+
+    /** {@inheritDoc} */
+    protected void destroyInstance(Object instance) throws Exception {
+        ((DaneTlsaCredentialResolver) instance).getCache().stop();
+    }
+
+    /**
+     * Creates the source of TLSA record sets, which reads the configured zone file if there is one and queries DNS
+     * otherwise.
+     *
+     * @return the TLSA record source
+     *
+     * @throws Exception if the source can not be created
+     */
+    protected TlsaRecordSource createRecordSource() throws Exception {
+        if (zoneFile != null) {
+            ZoneFileTlsaRecordSource zoneFileSource = new ZoneFileTlsaRecordSource(new File(zoneFile));
+            zoneFileSource.setReloadInterval(zoneFileReloadInterval);
+            zoneFileSource.setValidator(createValidator(zoneFileSource));
+            zoneFileSource.load();
+            log.debug("[DaneExtension] TLSA records are read from zone file {}", zoneFile);
+            return zoneFileSource;
+        }
+        SimpleResolver dnsResolver;
+        if (nameServer == null) {
+            dnsResolver = new SimpleResolver();
+        } else {
+            dnsResolver = new SimpleResolver(nameServer);
+        }
+        dnsResolver.setPort(nameServerPort);
+        dnsResolver.setTimeout((int) (timeout / 1000), (int) (timeout % 1000));
+        log.debug("[DaneExtension] TLSA records are resolved using name server {}:{}", nameServer, nameServerPort);
+        DnsTlsaRecordSource dnsSource = new DnsTlsaRecordSource(dnsResolver);
+        DnssecValidator validator = createValidator(dnsSource);
+        if (validator == null) {
+            if (!allowInsecure) {
+                throw new IllegalStateException("TLSA records queried from DNS must be validated with DNSSEC, "
+                        + "a trust anchor file is required");
+            }
+            log.warn("[DaneExtension] TLSA records queried from DNS are NOT validated with DNSSEC, "
+                    + "anyone able to spoof DNS responses can have any key trusted");
+        }
+        dnsSource.setValidator(validator);
+        return dnsSource;
+    }
+
+    /**
+     * Describes how the record sets of a source are validated, which the TLSA snapshot is bound to.
+     *
+     * @param source the TLSA record source
+     *
+     * @return "dnssec:" followed by the trust anchor fingerprint if the record sets are validated, otherwise
+     *         "unvalidated"
+     */
+    private static String getValidation(TlsaRecordSource source) {
+        DnssecValidator validator = null;
+        if (source instanceof DnsTlsaRecordSource) {
+            validator = ((DnsTlsaRecordSource) source).getValidator();
+        } else if (source instanceof ZoneFileTlsaRecordSource) {
+            validator = ((ZoneFileTlsaRecordSource) source).getValidator();
+        }
+        return validator != null ? "dnssec:" + validator.getTrustAnchorFingerprint() : "unvalidated";
+    }
+
+    /**
+     * Creates the DNSSEC validator TLSA records are validated with.
+     *
+     * @param source source of the DS and DNSKEY records
+     *
+     * @return the validator, or null if no trust anchor file is configured
+     *
+     * @throws Exception if the trust anchors can not be read
+     */
+    protected DnssecValidator createValidator(DnssecRecordSource source) throws Exception {
+        if (trustAnchorFile == null) {
+            return null;
+        }
+        DnssecValidator validator = new DnssecValidator(source, DnssecValidator.readTrustAnchors(new File(
+                trustAnchorFile)));
+        log.debug("[DaneExtension] TLSA records are validated with the DNSSEC trust anchors in {}", trustAnchorFile);
+        return validator;
+    }
+}
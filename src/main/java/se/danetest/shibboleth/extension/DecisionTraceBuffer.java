@@ -0,0 +1,232 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer of trace events of a sampled fraction of the decisions made by a
+ * {@link DaneExplicitKeySignatureTrustEngine}.
+ * 
+ * <p>
+ * Each event records the binding, key algorithm, deciding path, outcome, number of trusted credentials tried and
+ * timings of a validation. The slots are allocated up front and claimed by incrementing a sequence number, so recording
+ * an event takes no lock and allocates nothing, and the oldest events are overwritten once the buffer is full. While
+ * sampling is off, deciding not to record an event is a single volatile read. The events can be read at any time
+ * without stopping writers; events being overwritten while they are read are skipped.
+ * </p>
+ */
+public class DecisionTraceBuffer {
+
+    /** The slots, a power of two in number. */
+    private final Slot[] slots;
+
+    /** Mask mapping a sequence number to its slot. */
+    private final int mask;
+
+    /** Sequence number of the next event. */
+    private final AtomicLong sequence;
+
+    /** Fraction of decisions traced, scaled to 0 to {@link Integer#MAX_VALUE}; 0 if sampling is off. */
+    private volatile int sampleThreshold;
+
+    /** Fraction of decisions traced. */
+    private volatile double sampleRate;
+
+    /** State of the sampling random number generator, updated without synchronization. */
+    private int seed;
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    public DecisionTraceBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Trace buffer capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+        sequence = new AtomicLong();
+        seed = (int) System.nanoTime() | 1;
+    }
+
+    /**
+     * Gets the number of events kept.
+     * 
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Gets the fraction of decisions traced.
+     * 
+     * @return the sample rate between 0 and 1
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Sets the fraction of decisions traced.
+     * 
+     * @param rate the sample rate between 0 and 1, 0 turns sampling off
+     */
+    public void setSampleRate(double rate) {
+        if (rate >= 1) {
+            sampleRate = 1;
+            sampleThreshold = Integer.MAX_VALUE;
+        } else if (rate > 0) {
+            sampleRate = rate;
+            sampleThreshold = Math.max(1, (int) (rate * Integer.MAX_VALUE));
+        } else {
+            sampleRate = 0;
+            sampleThreshold = 0;
+        }
+    }
+
+    /**
+     * Gets the number of events recorded since the buffer was created, including overwritten ones.
+     * 
+     * @return number of events
+     */
+    public long getRecorded() {
+        return sequence.get();
+    }
+
+    /**
+     * Decides whether a decision is traced.
+     * 
+     * @return true if the decision should be recorded, otherwise false
+     */
+    public boolean isSampled() {
+        int threshold = sampleThreshold;
+        if (threshold == 0) {
+            return false;
+        }
+        // A racy xorshift step: threads may see the same state, which only makes samples slightly correlated
+        int x = seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        seed = x;
+        return (x & Integer.MAX_VALUE) <= threshold;
+    }
+
+    /**
+     * Records a trace event, overwriting the oldest one if the buffer is full.
+     * 
+     * @param binding one of the {@link TrustEngineMetrics} BINDING constants
+     * @param algorithm one of the {@link TrustEngineMetrics} ALGORITHM constants
+     * @param path one of the {@link TrustEngineMetrics} PATH constants
+     * @param outcome one of the {@link TrustEngineMetrics} OUTCOME constants
+     * @param triedCredentials number of trusted credentials tried directly
+     * @param resolutionNanos time spent resolving trusted credentials, in nanoseconds
+     * @param totalNanos time spent on the whole validation, in nanoseconds
+     */
+    public void record(int binding, int algorithm, int path, int outcome, int triedCredentials,
+            long resolutionNanos, long totalNanos) {
+        long number = sequence.getAndIncrement();
+        Slot slot = slots[(int) number & mask];
+        slot.sequence = -1;
+        slot.time = System.currentTimeMillis();
+        slot.decision = binding << 24 | algorithm << 16 | path << 8 | outcome;
+        slot.tried = triedCredentials;
+        slot.resolutionNanos = resolutionNanos;
+        slot.totalNanos = totalNanos;
+        slot.sequence = number;
+    }
+
+    /**
+     * Formats the events in the buffer, oldest first.
+     * 
+     * @return one line per event
+     */
+    public String[] dump() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long end = sequence.get();
+        long begin = Math.max(0, end - slots.length);
+        List<String> lines = new ArrayList<String>((int) (end - begin));
+        for (long number = begin; number < end; number++) {
+            Slot slot = slots[(int) number & mask];
+            if (slot.sequence != number) {
+                continue;
+            }
+            long time = slot.time;
+            int decision = slot.decision;
+            int tried = slot.tried;
+            long resolutionNanos = slot.resolutionNanos;
+            long totalNanos = slot.totalNanos;
+            if (slot.sequence != number) {
+                continue;
+            }
+            lines.add("#" + number + " " + format.format(new Date(time)) + " "
+                    + TrustEngineMetrics.describe(decision >>> 24, decision >>> 16 & 0xff, decision >>> 8 & 0xff,
+                            decision & 0xff) + " tried=" + tried + " resolution=" + resolutionNanos / 1000
+                    + "us total=" + totalNanos / 1000 + "us");
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /** Forgets all events. */
+    public void clear() {
+        for (Slot slot : slots) {
+            slot.sequence = -1;
+        }
+    }
+
+    /**
+     * A slot of the ring buffer. The fields are volatile so that a reader seeing the same sequence number before and
+     * after reading them has read a consistent event.
+     */
+    private static final class Slot {
+
+        /** Sequence number of the event, -1 while it is written or if the slot is empty. */
+        private volatile long sequence = -1;
+
+        /** Time the event was recorded, in milliseconds since the epoch. */
+        private volatile long time;
+
+        /** Binding, algorithm, path and outcome, a byte each. */
+        private volatile int decision;
+
+        /** Number of trusted credentials tried directly. */
+        private volatile int tried;
+
+        /** Time spent resolving trusted credentials, in nanoseconds. */
+        private volatile long resolutionNanos;
+
+        /** Time spent on the whole validation, in nanoseconds. */
+        private volatile long totalNanos;
+    }
+}
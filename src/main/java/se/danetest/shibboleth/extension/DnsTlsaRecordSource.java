@@ -0,0 +1,234 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.ExtendedFlags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TLSARecord;
+import org.xbill.DNS.Type;
+
+/**
+ * {@link TlsaRecordSource} which queries a DNS server.
+ *
+ * <p>
+ * Every call results in a DNS query; callers are expected to cache results, see {@link TlsaRecordCache}. The resolver
+ * may point at any server and port, including a local stub server used for testing.
+ * </p>
+ *
+ * <p>
+ * If a {@link DnssecValidator} is set, TLSA record sets are validated with DNSSEC and only secure ones are used. The
+ * source then also answers the validator's DS and DNSKEY lookups.
+ * </p>
+ */
+public class DnsTlsaRecordSource implements TlsaRecordSource, DnssecRecordSource {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(DnsTlsaRecordSource.class);
+
+    /** Resolver used to send queries. */
+    private final Resolver resolver;
+
+    /** Validator TLSA record sets are validated with, null if they are not validated. */
+    private DnssecValidator validator;
+
+    /**
+     * Constructor.
+     *
+     * @param dnsResolver resolver used to send queries
+     */
+    public DnsTlsaRecordSource(Resolver dnsResolver) {
+        if (dnsResolver == null) {
+            throw new IllegalArgumentException("DNS resolver may not be null");
+        }
+        resolver = dnsResolver;
+    }
+
+    /**
+     * Gets the validator TLSA record sets are validated with.
+     *
+     * @return the DNSSEC validator, or null if record sets are not validated
+     */
+    public DnssecValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Sets the validator TLSA record sets are validated with, and requests DNSSEC records in all queries. Record sets
+     * which are not secure are treated as empty.
+     *
+     * @param dnssecValidator the DNSSEC validator, or null to not validate record sets
+     */
+    public void setValidator(DnssecValidator dnssecValidator) {
+        validator = dnssecValidator;
+        if (validator != null) {
+            resolver.setEDNS(0, 0, ExtendedFlags.DO, null);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public TlsaRRset lookup(String ownerName) throws IOException {
+        Name name = Name.fromString(ownerName, Name.root);
+        if (validator != null) {
+            return lookupValidated(ownerName, name);
+        }
+        Message response = query(name, Type.TLSA);
+        RRset rrset = findRRset(response, name, Type.TLSA);
+        if (rrset == null) {
+            log.debug("[DaneExtension] no TLSA records at {}", name);
+            return new TlsaRRset(ownerName, null, getNegativeTTL(response));
+        }
+        List<TlsaAssociation> associations = getAssociations(rrset);
+        log.debug("[DaneExtension] found {} TLSA records at {}", associations.size(), name);
+        return new TlsaRRset(ownerName, associations, rrset.getTTL());
+    }
+
+    /** {@inheritDoc} */
+    public RRset lookupSigned(Name name, int type) throws IOException {
+        return findRRset(query(name, type), name, type);
+    }
+
+    /**
+     * Finds a record set, with its signatures, in the answer section of a response.
+     *
+     * @param response the response
+     * @param name the name
+     * @param type the record type
+     *
+     * @return the record set, or null if the name has no records of the type
+     *
+     * @throws IOException if the response reports an error
+     */
+    private RRset findRRset(Message response, Name name, int type) throws IOException {
+        int rcode = response.getRcode();
+        if (rcode == Rcode.NXDOMAIN) {
+            return null;
+        }
+        if (rcode != Rcode.NOERROR) {
+            throw new IOException(Type.string(type) + " lookup of " + name + " failed with " + Rcode.string(rcode));
+        }
+        for (RRset rrset : response.getSectionRRsets(Section.ANSWER)) {
+            if (rrset.getType() == type && rrset.getName().equals(name)) {
+                return rrset;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets how long a response without the requested records may be cached, which following RFC 2308 is the lower of
+     * the time-to-live and the minimum field of the SOA record in the authority section.
+     *
+     * @param response the response
+     *
+     * @return the negative time-to-live in seconds, 0 if the response holds no SOA record
+     */
+    private static long getNegativeTTL(Message response) {
+        for (Record record : response.getSectionArray(Section.AUTHORITY)) {
+            if (record instanceof SOARecord) {
+                SOARecord soa = (SOARecord) record;
+                return Math.min(soa.getTTL(), soa.getMinimum());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Looks up the TLSA record set at an owner name and validates it. A record set which is not secure is treated as
+     * empty, and the time-to-live of a secure one is capped at the expiry of its chain of trust.
+     *
+     * <p>
+     * The NSEC or NSEC3 records proving that there are no TLSA records are not validated, so neither is the SOA record
+     * giving the negative time-to-live. A negative answer is therefore returned with a time-to-live of 0, which the
+     * cache raises to its minimum lifetime, so that a spoofed denial can not suppress the records for long.
+     * </p>
+     *
+     * @param ownerName absolute TLSA owner name
+     * @param name the owner name as a DNS name
+     *
+     * @return the record set
+     *
+     * @throws IOException if the record set can not be obtained or is bogus
+     */
+    private TlsaRRset lookupValidated(String ownerName, Name name) throws IOException {
+        Message response = query(name, Type.TLSA);
+        RRset rrset = findRRset(response, name, Type.TLSA);
+        if (rrset == null) {
+            log.debug("[DaneExtension] no TLSA records at {}, the denial of existence is not validated", name);
+            return new TlsaRRset(ownerName, null, 0);
+        }
+        long validUntil = validator.validate(rrset);
+        if (validUntil == 0) {
+            log.warn("[DaneExtension] ignoring TLSA records at {}, they are not secured by DNSSEC", name);
+            return new TlsaRRset(ownerName, null, 0);
+        }
+
+        List<TlsaAssociation> associations = getAssociations(rrset);
+        long ttl = Math.min(rrset.getTTL(), Math.max(0, (validUntil - System.currentTimeMillis()) / 1000));
+        log.debug("[DaneExtension] found {} DNSSEC validated TLSA records at {}", associations.size(), name);
+        return new TlsaRRset(ownerName, associations, ttl);
+    }
+
+    /**
+     * Converts the records of a TLSA record set into associations.
+     *
+     * @param rrset the TLSA record set
+     *
+     * @return the associations
+     */
+    private static List<TlsaAssociation> getAssociations(RRset rrset) {
+        List<TlsaAssociation> associations = new ArrayList<TlsaAssociation>();
+        Iterator<?> records = rrset.rrs();
+        while (records.hasNext()) {
+            TLSARecord tlsa = (TLSARecord) records.next();
+            associations.add(new TlsaAssociation(tlsa.getCertificateUsage(), tlsa.getSelector(), tlsa
+                    .getMatchingType(), tlsa.getCertificateAssociationData()));
+        }
+        return associations;
+    }
+
+    /**
+     * Sends a query.
+     *
+     * @param name the name
+     * @param type the record type
+     *
+     * @return the response
+     *
+     * @throws IOException if the query fails
+     */
+    private Message query(Name name, int type) throws IOException {
+        Message query = Message.newQuery(Record.newRecord(name, type, DClass.IN));
+        log.debug("[DaneExtension] querying DNS for {} records at {}", Type.string(type), name);
+        return resolver.send(query);
+    }
+}
@@ -0,0 +1,41 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRset;
+
+/**
+ * A source of DNS record sets together with the RRSIG records covering them, as needed for DNSSEC validation.
+ */
+public interface DnssecRecordSource {
+
+    /**
+     * Looks up the record set of a type at a name, including its signatures.
+     *
+     * @param name absolute name
+     * @param type record type, see {@link org.xbill.DNS.Type}
+     *
+     * @return the record set, or null if the name has no records of the type
+     *
+     * @throws IOException if the record set can not be obtained
+     */
+    RRset lookupSigned(Name name, int type) throws IOException;
+}
@@ -0,0 +1,477 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DNSKEYRecord;
+import org.xbill.DNS.DNSSEC;
+import org.xbill.DNS.DSRecord;
+import org.xbill.DNS.Master;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRSIGRecord;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Validates DNS record sets with DNSSEC, following the chain of DS and DNSKEY record sets from the signer's zone up to
+ * a configured trust anchor.
+ *
+ * <p>
+ * The validated DNSKEY set of each zone is cached until the earliest expiry of the signatures and the time-to-live of
+ * the records it was validated with, so on most lookups only the signature of the record set itself is verified. The
+ * cache does not lock, and is emptied once it reaches its maximum size.
+ * </p>
+ *
+ * <p>
+ * A record set is secure if it is signed by a validated key of its zone. It is insecure if it is unsigned or a zone
+ * on the way to the trust anchor has no DS records; since the absence of DS records is not proven, insecure data must
+ * never be trusted. It is bogus if it, or a DS or DNSKEY set on the chain, is signed but no signature verifies.
+ * </p>
+ */
+public class DnssecValidator {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(DnssecValidator.class);
+
+    /** Source of the DS and DNSKEY record sets. */
+    private final DnssecRecordSource source;
+
+    /** Trust anchor DS and DNSKEY records, keyed by zone. */
+    private final Map<Name, List<Record>> trustAnchors;
+
+    /** Fingerprint of the trust anchors, independent of their order. */
+    private final KeyFingerprint trustAnchorFingerprint;
+
+    /** Validated DNSKEY sets, keyed by zone. */
+    private final ConcurrentMap<Name, ValidatedKeys> validatedKeys;
+
+    /** Maximum number of cached DNSKEY sets. Default value: 1000 */
+    private int maxCacheSize = 1000;
+
+    /** Number of DNSKEY lookups answered from the cache. */
+    private final AtomicLong hits;
+
+    /** Number of DNSKEY lookups which had to validate the chain. */
+    private final AtomicLong misses;
+
+    /**
+     * Constructor.
+     *
+     * @param recordSource source of the DS and DNSKEY record sets
+     * @param anchors trust anchor DS and DNSKEY records
+     */
+    public DnssecValidator(DnssecRecordSource recordSource, Collection<Record> anchors) {
+        if (recordSource == null) {
+            throw new IllegalArgumentException("DNSSEC record source may not be null");
+        }
+        if (anchors == null || anchors.isEmpty()) {
+            throw new IllegalArgumentException("At least one DNSSEC trust anchor is required");
+        }
+        source = recordSource;
+        trustAnchors = new HashMap<Name, List<Record>>();
+        for (Record anchor : anchors) {
+            if (!(anchor instanceof DSRecord) && !(anchor instanceof DNSKEYRecord)) {
+                throw new IllegalArgumentException("DNSSEC trust anchors must be DS or DNSKEY records: " + anchor);
+            }
+            List<Record> zoneAnchors = trustAnchors.get(anchor.getName());
+            if (zoneAnchors == null) {
+                zoneAnchors = new ArrayList<Record>();
+                trustAnchors.put(anchor.getName(), zoneAnchors);
+            }
+            zoneAnchors.add(anchor);
+        }
+        List<Record> sortedAnchors = new ArrayList<Record>(anchors);
+        Collections.sort(sortedAnchors);
+        byte[][] encodedAnchors = new byte[sortedAnchors.size()][];
+        for (int i = 0; i < encodedAnchors.length; i++) {
+            encodedAnchors[i] = sortedAnchors.get(i).toWireCanonical();
+        }
+        trustAnchorFingerprint = KeyFingerprint.sha256(encodedAnchors);
+        validatedKeys = new ConcurrentHashMap<Name, ValidatedKeys>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * Reads trust anchor DS and DNSKEY records from a file in DNS master file format. Records of other types are
+     * ignored.
+     *
+     * @param file the trust anchor file
+     *
+     * @return the trust anchor records
+     *
+     * @throws IOException if the file can not be read or holds no trust anchors
+     */
+    public static List<Record> readTrustAnchors(File file) throws IOException {
+        List<Record> anchors = new ArrayList<Record>();
+        InputStream in = new FileInputStream(file);
+        try {
+            Master master = new Master(in, Name.root);
+            Record record;
+            while ((record = master.nextRecord()) != null) {
+                if (record instanceof DSRecord || record instanceof DNSKEYRecord) {
+                    anchors.add(record);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (anchors.isEmpty()) {
+            throw new IOException("No DS or DNSKEY trust anchors found in " + file);
+        }
+        return anchors;
+    }
+
+    /**
+     * Gets the SHA-256 fingerprint of the canonical wire form of the trust anchors, which does not depend on the order
+     * they were given in.
+     *
+     * @return the fingerprint
+     */
+    public KeyFingerprint getTrustAnchorFingerprint() {
+        return trustAnchorFingerprint;
+    }
+
+    /**
+     * Gets the maximum number of cached DNSKEY sets.
+     *
+     * @return maximum number of cached DNSKEY sets
+     */
+    public int getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of cached DNSKEY sets.
+     *
+     * @param size maximum number of cached DNSKEY sets
+     */
+    public void setMaxCacheSize(int size) {
+        maxCacheSize = size;
+    }
+
+    /**
+     * Gets the number of DNSKEY lookups answered from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of DNSKEY lookups which had to validate the chain of trust.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Empties the cache of validated DNSKEY sets. */
+    public void clear() {
+        validatedKeys.clear();
+    }
+
+    /**
+     * Validates a record set.
+     *
+     * @param rrset the record set, with its signatures
+     *
+     * @return the time, in milliseconds, until which the record set is known to be secure, or 0 if it is insecure
+     *
+     * @throws DnssecValidationException if the record set, or a record set on its chain of trust, is bogus
+     * @throws IOException if a record set on the chain of trust can not be obtained
+     */
+    public long validate(RRset rrset) throws IOException {
+        long now = System.currentTimeMillis();
+        List<RRSIGRecord> signatures = getSignatures(rrset);
+        if (signatures.isEmpty()) {
+            log.debug("[DaneExtension] {} {} is not signed", rrset.getName(), Type.string(rrset.getType()));
+            return 0;
+        }
+
+        boolean insecure = false;
+        for (RRSIGRecord signature : signatures) {
+            if (!rrset.getName().subdomain(signature.getSigner())) {
+                continue;
+            }
+            ValidatedKeys keys = getValidatedKeys(signature.getSigner(), now);
+            if (keys.keys == null) {
+                insecure = true;
+                continue;
+            }
+            if (verify(rrset, signature, keys.keys)) {
+                long validUntil = Math.min(keys.validUntil, validUntil(rrset, signature, now));
+                log.debug("[DaneExtension] {} {} is secure", rrset.getName(), Type.string(rrset.getType()));
+                return validUntil;
+            }
+        }
+        if (insecure) {
+            log.debug("[DaneExtension] {} {} is insecure", rrset.getName(), Type.string(rrset.getType()));
+            return 0;
+        }
+        throw new DnssecValidationException("No valid signature on " + rrset.getName() + " "
+                + Type.string(rrset.getType()));
+    }
+
+    /**
+     * Gets the validated DNSKEY set of a zone, from the cache or by validating it against the DS records of its parent
+     * or a trust anchor.
+     *
+     * @param zone the zone
+     * @param now the current time in milliseconds
+     *
+     * @return the validated keys, whose key list is null if the zone is insecure
+     *
+     * @throws IOException if the keys are bogus or can not be obtained
+     */
+    private ValidatedKeys getValidatedKeys(Name zone, long now) throws IOException {
+        ValidatedKeys cached = validatedKeys.get(zone);
+        if (cached != null && cached.validUntil > now) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+
+        ValidatedKeys keys;
+        List<Record> anchors = trustAnchors.get(zone);
+        if (anchors != null) {
+            keys = validateKeys(zone, anchors, Long.MAX_VALUE, now);
+        } else if (zone.equals(Name.root)) {
+            log.debug("[DaneExtension] no DNSSEC trust anchor covers the root zone");
+            keys = ValidatedKeys.INSECURE;
+        } else {
+            RRset dsSet = source.lookupSigned(zone, Type.DS);
+            if (dsSet == null || dsSet.size() == 0) {
+                log.debug("[DaneExtension] zone {} has no DS records", zone);
+                keys = ValidatedKeys.INSECURE;
+            } else {
+                for (RRSIGRecord signature : getSignatures(dsSet)) {
+                    if (signature.getSigner().equals(zone)) {
+                        throw new DnssecValidationException("DS records of " + zone + " are signed by the zone itself");
+                    }
+                }
+                long dsValidUntil = validate(dsSet);
+                if (dsValidUntil == 0) {
+                    keys = ValidatedKeys.INSECURE;
+                } else {
+                    keys = validateKeys(zone, getRecords(dsSet), dsValidUntil, now);
+                }
+            }
+        }
+        if (keys.keys != null) {
+            if (validatedKeys.size() >= maxCacheSize) {
+                validatedKeys.clear();
+            }
+            validatedKeys.put(zone, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Validates the DNSKEY set of a zone against trusted DS or DNSKEY records. The set is secure if a key matching a
+     * trusted record signs it.
+     *
+     * @param zone the zone
+     * @param trusted the trusted DS or DNSKEY records
+     * @param trustedUntil time, in milliseconds, until which the trusted records are valid
+     * @param now the current time in milliseconds
+     *
+     * @return the validated keys
+     *
+     * @throws IOException if the keys are bogus or can not be obtained
+     */
+    private ValidatedKeys validateKeys(Name zone, List<Record> trusted, long trustedUntil, long now)
+            throws IOException {
+        RRset keySet = source.lookupSigned(zone, Type.DNSKEY);
+        if (keySet == null || keySet.size() == 0) {
+            throw new DnssecValidationException("Zone " + zone + " has DS records but no DNSKEY records");
+        }
+        List<DNSKEYRecord> keys = new ArrayList<DNSKEYRecord>();
+        List<DNSKEYRecord> trustedKeys = new ArrayList<DNSKEYRecord>();
+        for (Record record : getRecords(keySet)) {
+            DNSKEYRecord key = (DNSKEYRecord) record;
+            if ((key.getFlags() & DNSKEYRecord.Flags.ZONE_KEY) == 0) {
+                continue;
+            }
+            keys.add(key);
+            if (matchesAny(key, trusted)) {
+                trustedKeys.add(key);
+            }
+        }
+        if (trustedKeys.isEmpty()) {
+            throw new DnssecValidationException("No DNSKEY of " + zone + " matches its DS records or trust anchor");
+        }
+        for (RRSIGRecord signature : getSignatures(keySet)) {
+            if (signature.getSigner().equals(zone) && verify(keySet, signature, trustedKeys)) {
+                long validUntil = Math.min(trustedUntil, validUntil(keySet, signature, now));
+                log.debug("[DaneExtension] validated {} DNSKEY records of {}", keys.size(), zone);
+                return new ValidatedKeys(Collections.unmodifiableList(keys), validUntil);
+            }
+        }
+        throw new DnssecValidationException("DNSKEY records of " + zone + " are not signed by a trusted key");
+    }
+
+    /**
+     * Checks whether a key matches one of a list of trusted DS or DNSKEY records.
+     *
+     * @param key the key
+     * @param trusted the trusted records
+     *
+     * @return true if the key matches a trusted record
+     */
+    private boolean matchesAny(DNSKEYRecord key, List<Record> trusted) {
+        for (Record record : trusted) {
+            if (record instanceof DNSKEYRecord) {
+                if (record.equals(key)) {
+                    return true;
+                }
+            } else if (record instanceof DSRecord) {
+                DSRecord ds = (DSRecord) record;
+                if (ds.getFootprint() != key.getFootprint() || ds.getAlgorithm() != key.getAlgorithm()) {
+                    continue;
+                }
+                try {
+                    DSRecord computed = new DSRecord(key.getName(), key.getDClass(), 0, ds.getDigestID(), key);
+                    if (Arrays.equals(ds.getDigest(), computed.getDigest())) {
+                        return true;
+                    }
+                } catch (IllegalArgumentException e) {
+                    log.debug("[DaneExtension] unsupported DS digest type {}", ds.getDigestID());
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Verifies a signature on a record set with the matching key of a list.
+     *
+     * @param rrset the record set
+     * @param signature the signature
+     * @param keys the candidate keys
+     *
+     * @return true if a key verifies the signature, which must be within its validity period
+     */
+    private boolean verify(RRset rrset, RRSIGRecord signature, List<DNSKEYRecord> keys) {
+        for (DNSKEYRecord key : keys) {
+            if (key.getFootprint() != signature.getFootprint() || key.getAlgorithm() != signature.getAlgorithm()
+                    || !key.getName().equals(signature.getSigner())) {
+                continue;
+            }
+            try {
+                DNSSEC.verify(rrset, signature, key);
+                return true;
+            } catch (DNSSEC.DNSSECException e) {
+                log.debug("[DaneExtension] signature on {} {} by key {} does not verify: {}", new Object[] {
+                        rrset.getName(), Type.string(rrset.getType()), key.getFootprint(), e.getMessage()});
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes until when a verified record set may be relied on, which is the earlier of the signature expiry and the
+     * time-to-live of the record set.
+     *
+     * @param rrset the record set
+     * @param signature the verified signature
+     * @param now the current time in milliseconds
+     *
+     * @return the time in milliseconds
+     */
+    private long validUntil(RRset rrset, RRSIGRecord signature, long now) {
+        long ttl = Math.min(rrset.getTTL(), signature.getOrigTTL());
+        return Math.min(signature.getExpire().getTime(), now + ttl * 1000);
+    }
+
+    /**
+     * Gets the signatures of a record set.
+     *
+     * @param rrset the record set
+     *
+     * @return the signatures
+     */
+    private static List<RRSIGRecord> getSignatures(RRset rrset) {
+        List<RRSIGRecord> signatures = new ArrayList<RRSIGRecord>();
+        Iterator<?> sigs = rrset.sigs();
+        while (sigs.hasNext()) {
+            signatures.add((RRSIGRecord) sigs.next());
+        }
+        return signatures;
+    }
+
+    /**
+     * Gets the records of a record set.
+     *
+     * @param rrset the record set
+     *
+     * @return the records
+     */
+    private static List<Record> getRecords(RRset rrset) {
+        List<Record> records = new ArrayList<Record>();
+        Iterator<?> rrs = rrset.rrs();
+        while (rrs.hasNext()) {
+            records.add((Record) rrs.next());
+        }
+        return records;
+    }
+
+    /** A validated DNSKEY set and the time until which it may be relied on. */
+    private static final class ValidatedKeys {
+
+        /** Result for zones which are not signed. */
+        static final ValidatedKeys INSECURE = new ValidatedKeys(null, 0);
+
+        /** The zone keys, null if the zone is insecure. */
+        private final List<DNSKEYRecord> keys;
+
+        /** Time, in milliseconds, until which the keys may be relied on. */
+        private final long validUntil;
+
+        /**
+         * Constructor.
+         *
+         * @param zoneKeys the zone keys, null if the zone is insecure
+         * @param expiry time, in milliseconds, until which the keys may be relied on
+         */
+        ValidatedKeys(List<DNSKEYRecord> zoneKeys, long expiry) {
+            keys = zoneKeys;
+            validUntil = expiry;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opensaml.xml.security.Criteria;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.AbstractCredentialResolver;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.credential.criteria.EvaluableCredentialCriteria;
+import org.opensaml.xml.security.credential.criteria.EvaluableCredentialCriteriaRegistry;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.KeyAlgorithmCriteria;
+import org.opensaml.xml.security.criteria.PublicKeyCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Credential resolver over a static set of trusted credentials which answers lookups from a
+ * {@link TrustedCredentialSet} index instead of scanning every credential.
+ *
+ * <p>
+ * {@link PublicKeyCriteria}, {@link EntityIDCriteria}, {@link KeyAlgorithmCriteria} and {@link UsageCriteria} are
+ * answered from the index. Any other criteria are evaluated against the narrowed set in the same way
+ * {@link org.opensaml.xml.security.credential.StaticCredentialResolver} evaluates them against the full list.
+ * </p>
+ *
+ * <p>
+ * The trusted credentials may be replaced at any time with {@link #setTrustedCredentials(Collection)}. The new index
+ * is built by the calling thread and then published with a single reference swap, so lookups never wait for a reload
+ * and always see either the complete old or the complete new set.
+ * </p>
+ */
+public class IndexedCredentialResolver extends AbstractCredentialResolver implements TrustedCredentialResolver {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(IndexedCredentialResolver.class);
+
+    /** The indexed trusted credentials. */
+    private final AtomicReference<TrustedCredentialSet> trustedCredentials;
+
+    /**
+     * Constructor.
+     *
+     * @param credentials the trusted credentials
+     */
+    public IndexedCredentialResolver(Collection<Credential> credentials) {
+        trustedCredentials = new AtomicReference<TrustedCredentialSet>(index(credentials));
+    }
+
+    /**
+     * Gets the current indexed set of trusted credentials.
+     *
+     * @return the trusted credentials
+     */
+    public TrustedCredentialSet getTrustedCredentials() {
+        return trustedCredentials.get();
+    }
+
+    /**
+     * Replaces the trusted credentials. Lookups in progress complete against the previous set.
+     *
+     * @param credentials the new trusted credentials
+     */
+    public void setTrustedCredentials(Collection<Credential> credentials) {
+        trustedCredentials.set(index(credentials));
+    }
+
+    /**
+     * Builds the partitioned index of a collection of trusted credentials.
+     *
+     * @param credentials the trusted credentials
+     *
+     * @return the index
+     */
+    private TrustedCredentialSet index(Collection<Credential> credentials) {
+        if (credentials == null) {
+            throw new IllegalArgumentException("Input credentials list may not be null");
+        }
+        TrustedCredentialSet index = new TrustedCredentialSet(credentials).partition();
+        log.debug("[DaneExtension] indexed and partitioned {} trusted credentials", index.size());
+        return index;
+    }
+
+    /** {@inheritDoc} */
+    public Iterable<Credential> resolve(CriteriaSet criteriaSet) throws SecurityException {
+        return resolveTrusted(criteriaSet, null, null);
+    }
+
+    /** {@inheritDoc} */
+    public TrustedCredentialSet resolveTrusted(CriteriaSet criteriaSet, String keyAlgorithm, UsageType defaultUsage)
+            throws SecurityException {
+        TrustedCredentialSet result = trustedCredentials.get();
+        String algorithm = keyAlgorithm;
+        UsageType usage = defaultUsage;
+        if (criteriaSet != null && !criteriaSet.isEmpty()) {
+            PublicKeyCriteria publicKeyCriteria = criteriaSet.get(PublicKeyCriteria.class);
+            if (publicKeyCriteria != null && publicKeyCriteria.getPublicKey() != null) {
+                result = result.forKey(publicKeyCriteria.getPublicKey());
+            }
+            EntityIDCriteria entityIDCriteria = criteriaSet.get(EntityIDCriteria.class);
+            if (entityIDCriteria != null && entityIDCriteria.getEntityID() != null) {
+                result = result.forEntity(entityIDCriteria.getEntityID());
+            }
+            if (algorithm == null) {
+                KeyAlgorithmCriteria keyAlgorithmCriteria = criteriaSet.get(KeyAlgorithmCriteria.class);
+                if (keyAlgorithmCriteria != null) {
+                    algorithm = keyAlgorithmCriteria.getKeyAlgorithm();
+                }
+            }
+            UsageCriteria usageCriteria = criteriaSet.get(UsageCriteria.class);
+            if (usageCriteria != null) {
+                usage = usageCriteria.getUsage();
+            }
+        }
+        if (algorithm != null) {
+            result = result.forAlgorithm(algorithm);
+        }
+        if (usage != null) {
+            result = result.forUsage(usage);
+        }
+        if (criteriaSet == null || criteriaSet.isEmpty()) {
+            return result;
+        }
+        return filter(result, criteriaSet);
+    }
+
+    /**
+     * Evaluates the criteria not answered by the index against the narrowed credential set.
+     *
+     * @param candidates the credentials selected by the index
+     * @param criteriaSet the criteria
+     *
+     * @return the credentials satisfying all criteria
+     *
+     * @throws SecurityException if a criteria evaluator can not be obtained
+     */
+    private TrustedCredentialSet filter(TrustedCredentialSet candidates, CriteriaSet criteriaSet)
+            throws SecurityException {
+        List<EvaluableCredentialCriteria> evaluators = null;
+        for (Criteria criteria : criteriaSet) {
+            if (criteria instanceof PublicKeyCriteria || criteria instanceof EntityIDCriteria
+                    || criteria instanceof KeyAlgorithmCriteria || criteria instanceof UsageCriteria) {
+                continue;
+            }
+            EvaluableCredentialCriteria evaluator = EvaluableCredentialCriteriaRegistry.getEvaluator(criteria);
+            if (evaluator != null) {
+                if (evaluators == null) {
+                    evaluators = new ArrayList<EvaluableCredentialCriteria>();
+                }
+                evaluators.add(evaluator);
+            }
+        }
+        if (evaluators == null) {
+            return candidates;
+        }
+
+        List<Credential> matches = new ArrayList<Credential>();
+        for (Credential credential : candidates) {
+            boolean satisfied = true;
+            for (EvaluableCredentialCriteria evaluator : evaluators) {
+                Boolean result = evaluator.evaluate(credential);
+                if (result != null && !result.booleanValue()) {
+                    satisfied = false;
+                    break;
+                }
+            }
+            if (satisfied) {
+                matches.add(credential);
+            }
+        }
+        if (matches.size() == candidates.size()) {
+            return candidates;
+        }
+        return new TrustedCredentialSet(matches);
+    }
+}
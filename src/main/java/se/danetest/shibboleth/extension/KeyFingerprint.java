@@ -0,0 +1,188 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Immutable digest value usable as a hash key.
+ *
+ * <p>
+ * Fingerprints of public keys are always computed over the DER encoded SubjectPublicKeyInfo, which is the form DANE
+ * TLSA records use for selector 1 ("SPKI").
+ * </p>
+ */
+public final class KeyFingerprint {
+
+    /** JCA name of the SHA-256 digest. */
+    public static final String SHA256 = "SHA-256";
+
+    /** JCA name of the SHA-512 digest. */
+    public static final String SHA512 = "SHA-512";
+
+    /** Hex digits used by {@link #toString()}. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** The digest value. */
+    private final byte[] value;
+
+    /** Cached hash code of the digest value. */
+    private final int hashCode;
+
+    /**
+     * Constructor.
+     *
+     * @param digest the digest value, which is copied
+     */
+    public KeyFingerprint(byte[] digest) {
+        if (digest == null) {
+            throw new IllegalArgumentException("Digest value may not be null");
+        }
+        value = digest.clone();
+        hashCode = Arrays.hashCode(value);
+    }
+
+    /**
+     * Computes the SHA-256 fingerprint of the encoded form of a key.
+     *
+     * @param key the key to fingerprint
+     *
+     * @return the fingerprint, or null if the key has no encoded form
+     */
+    public static KeyFingerprint sha256(Key key) {
+        return digest(SHA256, key);
+    }
+
+    /**
+     * Computes the SHA-512 fingerprint of the encoded form of a key.
+     *
+     * @param key the key to fingerprint
+     *
+     * @return the fingerprint, or null if the key has no encoded form
+     */
+    public static KeyFingerprint sha512(Key key) {
+        return digest(SHA512, key);
+    }
+
+    /**
+     * Computes a fingerprint of the encoded form of a key.
+     *
+     * @param digestAlgorithm JCA name of the digest algorithm
+     * @param key the key to fingerprint
+     *
+     * @return the fingerprint, or null if the key is null or has no encoded form
+     */
+    public static KeyFingerprint digest(String digestAlgorithm, Key key) {
+        if (key == null) {
+            return null;
+        }
+        byte[] encoded = key.getEncoded();
+        if (encoded == null) {
+            return null;
+        }
+        return new KeyFingerprint(newDigest(digestAlgorithm).digest(encoded));
+    }
+
+    /**
+     * Computes the SHA-256 fingerprint of an arbitrary sequence of byte arrays. Each part is prefixed by its length so
+     * that different splits of the same bytes never collide.
+     *
+     * @param parts the data to digest, null parts are treated as empty
+     *
+     * @return the fingerprint
+     */
+    public static KeyFingerprint sha256(byte[]... parts) {
+        MessageDigest digest = newDigest(SHA256);
+        for (byte[] part : parts) {
+            int length = part == null ? 0 : part.length;
+            digest.update((byte) (length >>> 24));
+            digest.update((byte) (length >>> 16));
+            digest.update((byte) (length >>> 8));
+            digest.update((byte) length);
+            if (part != null) {
+                digest.update(part);
+            }
+        }
+        return new KeyFingerprint(digest.digest());
+    }
+
+    /**
+     * Creates a new message digest instance.
+     *
+     * @param digestAlgorithm JCA name of the digest algorithm
+     *
+     * @return the message digest
+     */
+    static MessageDigest newDigest(String digestAlgorithm) {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Digest algorithm " + digestAlgorithm + " is not supported by the JVM", e);
+        }
+    }
+
+    /**
+     * Gets a copy of the digest value.
+     *
+     * @return the digest value
+     */
+    public byte[] getValue() {
+        return value.clone();
+    }
+
+    /**
+     * Checks whether this fingerprint equals the given raw digest value.
+     *
+     * @param digest the raw digest value
+     *
+     * @return true if the values are equal
+     */
+    public boolean matches(byte[] digest) {
+        return Arrays.equals(value, digest);
+    }
+
+    /** {@inheritDoc} */
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /** {@inheritDoc} */
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (obj instanceof KeyFingerprint) {
+            KeyFingerprint other = (KeyFingerprint) obj;
+            return hashCode == other.hashCode && Arrays.equals(value, other.value);
+        }
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        char[] hex = new char[value.length * 2];
+        for (int i = 0; i < value.length; i++) {
+            hex[i * 2] = HEX[(value[i] >>> 4) & 0x0f];
+            hex[i * 2 + 1] = HEX[value[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,132 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values in power of two buckets.
+ *
+ * <p>
+ * Bucket 0 counts the value 0 and bucket <i>n</i> counts values from 2<sup>n-1</sup> up to 2<sup>n</sup>-1, so
+ * recording a value is a single atomic increment and percentiles are accurate to within a factor of two.
+ * </p>
+ */
+public class Log2Histogram {
+
+    /** Number of buckets, enough for any long value. */
+    public static final int BUCKETS = 64;
+
+    /** Bucket counts. */
+    private final AtomicLongArray buckets;
+
+    /** Constructor. */
+    public Log2Histogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        if (value <= 0) {
+            buckets.incrementAndGet(0);
+        } else {
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return number of recorded values
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the bucket counts.
+     *
+     * @return a copy of the bucket counts
+     */
+    public long[] getBuckets() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Gets an upper bound of a percentile of the recorded values.
+     *
+     * @param fraction the percentile as a fraction between 0 and 1, e.g. 0.99
+     *
+     * @return the largest value of the bucket holding the percentile, or 0 if no values were recorded
+     */
+    public long getPercentile(double fraction) {
+        long[] counts = getBuckets();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /** Removes all recorded values. */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+    }
+
+    /**
+     * Gets the largest value counted by a bucket.
+     *
+     * @param bucket the bucket
+     *
+     * @return the largest value of the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket == 0) {
+            return 0;
+        }
+        if (bucket >= 63) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,206 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, short-lived cache of signatures which were found not to be trusted, so that repeated traffic from
+ * misconfigured or hostile peers is rejected without resolving KeyInfo or trying trusted credentials again.
+ *
+ * <p>
+ * Entries are keyed on the issuer's entity ID, a fingerprint of the signature together with the content it covers, and
+ * the version of the {@link TrustedCredentialSet} the signature was rejected against; as every change to the trusted
+ * credentials produces a set with a new version, a rejection never outlives the trusted credentials it was made
+ * against. Entries also expire after a fixed time-to-live. Only signatures which were definitely not trusted are
+ * cached, never ones rejected because the verification budget was spent or the validation failed. Lookups do not lock,
+ * and the cache is emptied once it reaches its maximum size.
+ * </p>
+ */
+public class NegativeTrustCache {
+
+    /** Maximum number of cached rejections. */
+    private final int maxEntries;
+
+    /** Time, in milliseconds, a rejection is cached. */
+    private final long ttl;
+
+    /** Expiry time in milliseconds of the cached rejections. */
+    private final ConcurrentMap<RejectionKey, Long> rejections;
+
+    /** Number of lookups answered from the cache. */
+    private final AtomicLong hits;
+
+    /** Number of lookups not answered from the cache. */
+    private final AtomicLong misses;
+
+    /**
+     * Constructor.
+     *
+     * @param size maximum number of cached rejections, must be greater than zero
+     * @param timeToLive time, in milliseconds, a rejection is cached, must be greater than zero
+     */
+    public NegativeTrustCache(int size, long timeToLive) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than zero");
+        }
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("Cache time-to-live must be greater than zero");
+        }
+        maxEntries = size;
+        ttl = timeToLive;
+        rejections = new ConcurrentHashMap<RejectionKey, Long>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * Checks whether a signature was recently found not to be trusted.
+     *
+     * @param entityID the issuer's entity ID, may be null
+     * @param signatureFingerprint fingerprint of the signature and the content it covers
+     * @param version version of the trusted credential set
+     *
+     * @return true if the signature was rejected before and the rejection has not expired, false if it is unknown
+     */
+    public boolean isUntrusted(String entityID, KeyFingerprint signatureFingerprint, long version) {
+        RejectionKey key = new RejectionKey(entityID, signatureFingerprint, version);
+        Long expiry = rejections.get(key);
+        if (expiry != null) {
+            if (expiry.longValue() > System.currentTimeMillis()) {
+                hits.incrementAndGet();
+                return true;
+            }
+            rejections.remove(key, expiry);
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records that a signature was found not to be trusted.
+     *
+     * @param entityID the issuer's entity ID, may be null
+     * @param signatureFingerprint fingerprint of the signature and the content it covers
+     * @param version version of the trusted credential set
+     */
+    public void untrusted(String entityID, KeyFingerprint signatureFingerprint, long version) {
+        if (rejections.size() >= maxEntries) {
+            rejections.clear();
+        }
+        rejections.put(new RejectionKey(entityID, signatureFingerprint, version), Long.valueOf(System
+                .currentTimeMillis() + ttl));
+    }
+
+    /** Removes all cached rejections. */
+    public void clear() {
+        rejections.clear();
+    }
+
+    /**
+     * Gets the number of cached rejections, including expired ones not yet removed.
+     *
+     * @return number of cached rejections
+     */
+    public int getSize() {
+        return rejections.size();
+    }
+
+    /**
+     * Gets the maximum number of cached rejections.
+     *
+     * @return maximum number of cached rejections
+     */
+    public int getMaxSize() {
+        return maxEntries;
+    }
+
+    /**
+     * Gets the time a rejection is cached.
+     *
+     * @return the time-to-live in milliseconds
+     */
+    public long getTTL() {
+        return ttl;
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups not answered from the cache.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Key of a cached rejection. */
+    private static final class RejectionKey {
+
+        /** The issuer's entity ID, may be null. */
+        private final String entityID;
+
+        /** Fingerprint of the signature and the content it covers. */
+        private final KeyFingerprint signatureFingerprint;
+
+        /** Version of the trusted credential set. */
+        private final long version;
+
+        /**
+         * Constructor.
+         *
+         * @param entity the issuer's entity ID, may be null
+         * @param fingerprint fingerprint of the signature and the content it covers
+         * @param setVersion version of the trusted credential set
+         */
+        RejectionKey(String entity, KeyFingerprint fingerprint, long setVersion) {
+            entityID = entity;
+            signatureFingerprint = fingerprint;
+            version = setVersion;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hash = signatureFingerprint.hashCode() * 31 + (int) (version ^ (version >>> 32));
+            return entityID == null ? hash : hash * 31 + entityID.hashCode();
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof RejectionKey) {
+                RejectionKey other = (RejectionKey) obj;
+                return version == other.version && signatureFingerprint.equals(other.signatureFingerprint)
+                        && (entityID == null ? other.entityID == null : entityID.equals(other.entityID));
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.SigningUtil;
+import org.opensaml.xml.security.credential.Credential;
+
+/**
+ * Verifier of raw signatures which reuses initialized {@link java.security.Signature} instances.
+ *
+ * <p>
+ * {@link SigningUtil#verifyWithURI(Credential, String, byte[], byte[])} maps the algorithm URI, looks up a provider
+ * and initializes a new {@link java.security.Signature} for every verification. This verifier maps each algorithm URI
+ * once and keeps, per thread, the least recently used {@link java.security.Signature} instances already initialized
+ * for a given algorithm and public key; a completed verification leaves the instance ready for the next one. HMAC
+ * algorithms and credentials without a public key are handed to {@link SigningUtil}.
+ * </p>
+ */
+public class PooledSignatureVerifier {
+
+    /** Maximum number of initialized instances kept per thread. */
+    private final int maxPerThread;
+
+    /** Initialized instances of the current thread, in access order. */
+    private final ThreadLocal<Map<VerifierKey, java.security.Signature>> verifiers;
+
+    /**
+     * Constructor.
+     *
+     * @param size maximum number of initialized instances kept per thread, must be greater than zero
+     */
+    public PooledSignatureVerifier(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool size must be greater than zero");
+        }
+        maxPerThread = size;
+        verifiers = new ThreadLocal<Map<VerifierKey, java.security.Signature>>() {
+            protected Map<VerifierKey, java.security.Signature> initialValue() {
+                return new LinkedHashMap<VerifierKey, java.security.Signature>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    protected boolean removeEldestEntry(Map.Entry<VerifierKey, java.security.Signature> eldest) {
+                        return size() > maxPerThread;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Gets the maximum number of initialized instances kept per thread.
+     *
+     * @return maximum number of instances per thread
+     */
+    public int getMaxPerThread() {
+        return maxPerThread;
+    }
+
+    /**
+     * Gets the JCA signature algorithm of an algorithm URI.
+     *
+     * @param algorithmURI the algorithm URI
+     *
+     * @return the JCA algorithm name, or null if the URI is unknown
+     */
+    public static String getJCAAlgorithm(String algorithmURI) {
+        return SignatureAlgorithms.getJCAAlgorithm(algorithmURI);
+    }
+
+    /**
+     * Verifies a raw signature.
+     *
+     * @param credential the credential holding the verification key
+     * @param algorithmURI the signature algorithm URI
+     * @param signature the signature value
+     * @param content the signed content
+     *
+     * @return true if the signature verifies, false otherwise
+     *
+     * @throws SecurityException if the algorithm is unknown or the verification can not be performed
+     */
+    public boolean verify(Credential credential, String algorithmURI, byte[] signature, byte[] content)
+            throws SecurityException {
+        if (SecurityHelper.isHMAC(algorithmURI)) {
+            return SigningUtil.verifyWithURI(credential, algorithmURI, signature, content);
+        }
+        Key key = SecurityHelper.extractVerificationKey(credential);
+        if (!(key instanceof PublicKey)) {
+            return SigningUtil.verifyWithURI(credential, algorithmURI, signature, content);
+        }
+        String jcaAlgorithm = getJCAAlgorithm(algorithmURI);
+        if (jcaAlgorithm == null) {
+            throw new SecurityException("Could not determine signing JCA algorithm identifier from URI: "
+                    + algorithmURI);
+        }
+
+        Map<VerifierKey, java.security.Signature> pool = verifiers.get();
+        VerifierKey verifierKey = new VerifierKey(jcaAlgorithm, (PublicKey) key);
+        java.security.Signature verifier = pool.remove(verifierKey);
+        try {
+            if (verifier == null) {
+                verifier = java.security.Signature.getInstance(jcaAlgorithm);
+                verifier.initVerify((PublicKey) key);
+            }
+            verifier.update(content);
+            boolean valid = verifier.verify(signature);
+            // a completed verify() resets the instance to its initialized state
+            pool.put(verifierKey, verifier);
+            return valid;
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException("Error during signature verification", e);
+        }
+    }
+
+    /** Key of a pooled instance. */
+    private static final class VerifierKey {
+
+        /** JCA signature algorithm. */
+        private final String algorithm;
+
+        /** Verification key. */
+        private final PublicKey key;
+
+        /**
+         * Constructor.
+         *
+         * @param jcaAlgorithm JCA signature algorithm
+         * @param publicKey verification key
+         */
+        VerifierKey(String jcaAlgorithm, PublicKey publicKey) {
+            algorithm = jcaAlgorithm;
+            key = publicKey;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            return algorithm.hashCode() * 31 + key.hashCode();
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof VerifierKey) {
+                VerifierKey other = (VerifierKey) obj;
+                return algorithm.equals(other.algorithm) && (key == other.key || key.equals(other.key));
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.util.DatatypeHelper;
+
+/**
+ * Lookup of the JCA algorithms of XML signature algorithm URIs.
+ *
+ * <p>
+ * Algorithm URIs come from unauthenticated messages, so only URIs {@link SecurityHelper} knows are cached; the
+ * number of cached URIs is bounded by the algorithms it knows. Unknown URIs are looked up again each time.
+ * </p>
+ */
+public final class SignatureAlgorithms {
+
+    /** Algorithms of the known algorithm URIs seen so far, indexed by algorithm URI. */
+    private static final ConcurrentMap<String, SignatureAlgorithms> KNOWN =
+            new ConcurrentHashMap<String, SignatureAlgorithms>();
+
+    /** JCA key algorithm, null if there is none. */
+    private final String keyAlgorithm;
+
+    /** JCA signature or MAC algorithm, null if there is none. */
+    private final String jcaAlgorithm;
+
+    /**
+     * Constructor.
+     *
+     * @param key JCA key algorithm, may be null
+     * @param jca JCA signature or MAC algorithm, may be null
+     */
+    private SignatureAlgorithms(String key, String jca) {
+        keyAlgorithm = key;
+        jcaAlgorithm = jca;
+    }
+
+    /**
+     * Gets the JCA key algorithm of a signature algorithm.
+     *
+     * @param algorithmURI the signature algorithm URI, may be null
+     *
+     * @return the JCA key algorithm, or null if it can not be determined
+     */
+    public static String getKeyAlgorithm(String algorithmURI) {
+        SignatureAlgorithms algorithms = lookup(algorithmURI);
+        return algorithms != null ? algorithms.keyAlgorithm : null;
+    }
+
+    /**
+     * Gets the JCA signature or MAC algorithm of a signature algorithm.
+     *
+     * @param algorithmURI the signature algorithm URI, may be null
+     *
+     * @return the JCA algorithm name, or null if the URI is unknown
+     */
+    public static String getJCAAlgorithm(String algorithmURI) {
+        SignatureAlgorithms algorithms = lookup(algorithmURI);
+        return algorithms != null ? algorithms.jcaAlgorithm : null;
+    }
+
+    /**
+     * Looks up the algorithms of an algorithm URI, caching them if the URI is known.
+     *
+     * @param algorithmURI the signature algorithm URI, may be null
+     *
+     * @return the algorithms, or null if the URI is unknown
+     */
+    private static SignatureAlgorithms lookup(String algorithmURI) {
+        if (algorithmURI == null) {
+            return null;
+        }
+        SignatureAlgorithms algorithms = KNOWN.get(algorithmURI);
+        if (algorithms == null) {
+            String key = DatatypeHelper.safeTrimOrNullString(SecurityHelper.getKeyAlgorithmFromURI(algorithmURI));
+            String jca = DatatypeHelper.safeTrimOrNullString(SecurityHelper.getAlgorithmIDFromURI(algorithmURI));
+            if (key == null && jca == null) {
+                return null;
+            }
+            algorithms = new SignatureAlgorithms(key, jca);
+            SignatureAlgorithms existing = KNOWN.putIfAbsent(algorithmURI, algorithms);
+            if (existing != null) {
+                algorithms = existing;
+            }
+        }
+        return algorithms;
+    }
+}
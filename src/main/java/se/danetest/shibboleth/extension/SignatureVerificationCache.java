@@ -0,0 +1,326 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.Key;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.SignedInfo;
+import org.apache.xml.security.signature.XMLSignature;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.Signature;
+import org.w3c.dom.Element;
+
+/**
+ * Bounded, time-limited cache of signature verification results.
+ *
+ * <p>
+ * Entries are keyed on a digest of the signed content together with the signature value, the signature algorithm URI
+ * and the fingerprint of the verification key, so a cached result is only ever reused for exactly the same bytes
+ * verified with exactly the same key. For XML signatures the signed bytes are the canonicalized SignedInfo, which
+ * {@link #digestSignedContent(Signature)} only digests once the references it holds were checked against the content.
+ * The least recently used entry is evicted once the cache is full and entries older than the configured time-to-live
+ * are never returned.
+ * </p>
+ */
+public class SignatureVerificationCache {
+
+    /** Maximum number of cached results. */
+    private final int maxEntries;
+
+    /** Time-to-live of a cached result, in milliseconds. */
+    private final long timeToLive;
+
+    /** Cached results, in access order. */
+    private final Map<CacheKey, CacheEntry> entries;
+
+    /** Number of lookups answered from the cache. */
+    private final AtomicLong hits;
+
+    /** Number of lookups not answered from the cache. */
+    private final AtomicLong misses;
+
+    /**
+     * Constructor.
+     *
+     * @param size maximum number of cached results, must be greater than zero
+     * @param ttl time-to-live of a cached result in milliseconds, must be greater than zero
+     */
+    public SignatureVerificationCache(int size, long ttl) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than zero");
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Cache time-to-live must be greater than zero");
+        }
+        maxEntries = size;
+        timeToLive = ttl;
+        entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * Builds the cache key for a raw signature verification.
+     *
+     * @param signature the signature value
+     * @param content the signed content
+     * @param algorithmURI the signature algorithm URI
+     * @param credential the credential holding the verification key
+     *
+     * @return the cache key, or null if the verification can not be cached
+     */
+    public static CacheKey buildKey(byte[] signature, byte[] content, String algorithmURI, Credential credential) {
+        KeyFingerprint keyFingerprint = fingerprintVerificationKey(credential);
+        if (keyFingerprint == null || algorithmURI == null) {
+            return null;
+        }
+        return new CacheKey(KeyFingerprint.sha256(content, signature), algorithmURI, keyFingerprint);
+    }
+
+    /**
+     * Builds the cache key for an XML signature verification.
+     *
+     * @param signedContentDigest digest of the signed content as produced by {@link #digestSignedContent(Signature)}
+     * @param signature the signature being verified
+     * @param credential the credential holding the verification key
+     *
+     * @return the cache key, or null if the verification can not be cached
+     */
+    public static CacheKey buildKey(KeyFingerprint signedContentDigest, Signature signature, Credential credential) {
+        if (signedContentDigest == null || signature.getSignatureAlgorithm() == null) {
+            return null;
+        }
+        KeyFingerprint keyFingerprint = fingerprintVerificationKey(credential);
+        if (keyFingerprint == null) {
+            return null;
+        }
+        return new CacheKey(signedContentDigest, signature.getSignatureAlgorithm(), keyFingerprint);
+    }
+
+    /**
+     * Computes a digest identifying an XML signature and binding it to the content it signs.
+     *
+     * <p>
+     * The digest covers the canonicalized SignedInfo, i.e. the bytes the signature value is computed over, holding the
+     * reference URIs, transforms and digests, and the signature value. The signed content itself is not serialized:
+     * it is bound to the SignedInfo by checking the reference digests, once per signature, before the digest is
+     * returned. A signature whose references do not verify can not be valid under any key and is not cached.
+     * </p>
+     *
+     * @param signature the signature
+     *
+     * @return the digest, or null if the signature has no DOM or its references can not be verified
+     */
+    public static KeyFingerprint digestSignedContent(Signature signature) {
+        Element signatureElement = signature.getDOM();
+        if (signatureElement == null) {
+            return null;
+        }
+        try {
+            XMLSignature xmlSignature = new XMLSignature(signatureElement, "");
+            SignedInfo signedInfo = xmlSignature.getSignedInfo();
+            if (!signedInfo.verify()) {
+                return null;
+            }
+            return KeyFingerprint.sha256(signedInfo.getCanonicalizedOctetStream(), xmlSignature.getSignatureValue());
+        } catch (XMLSecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Computes the fingerprint of the verification key held by a credential.
+     *
+     * @param credential the credential
+     *
+     * @return the fingerprint, or null if the credential holds no encodable verification key
+     */
+    private static KeyFingerprint fingerprintVerificationKey(Credential credential) {
+        if (credential == null) {
+            return null;
+        }
+        Key key = SecurityHelper.extractVerificationKey(credential);
+        return KeyFingerprint.sha256(key);
+    }
+
+    /**
+     * Looks up a cached verification result.
+     *
+     * @param key the cache key
+     *
+     * @return the cached result, or null if there is no live entry for the key
+     */
+    public Boolean get(CacheKey key) {
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.expiration < System.currentTimeMillis()) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return Boolean.valueOf(entry.valid);
+    }
+
+    /**
+     * Caches a verification result.
+     *
+     * @param key the cache key
+     * @param valid whether the signature verified
+     */
+    public void put(CacheKey key, boolean valid) {
+        CacheEntry entry = new CacheEntry(valid, System.currentTimeMillis() + timeToLive);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /** Removes all cached results. Hit and miss counters are left untouched. */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Gets the number of currently cached results, including expired ones not yet evicted.
+     *
+     * @return number of cached results
+     */
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Gets the maximum number of cached results.
+     *
+     * @return maximum number of cached results
+     */
+    public int getMaxSize() {
+        return maxEntries;
+    }
+
+    /**
+     * Gets the time-to-live of a cached result.
+     *
+     * @return time-to-live in milliseconds
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups not answered from the cache.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Key of a cached verification result. */
+    public static final class CacheKey {
+
+        /** Digest of the signed content and signature value. */
+        private final KeyFingerprint content;
+
+        /** Signature algorithm URI. */
+        private final String algorithm;
+
+        /** Fingerprint of the verification key. */
+        private final KeyFingerprint key;
+
+        /**
+         * Constructor.
+         *
+         * @param contentDigest digest of the signed content and signature value
+         * @param algorithmURI signature algorithm URI
+         * @param keyFingerprint fingerprint of the verification key
+         */
+        CacheKey(KeyFingerprint contentDigest, String algorithmURI, KeyFingerprint keyFingerprint) {
+            content = contentDigest;
+            algorithm = algorithmURI;
+            key = keyFingerprint;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            return (content.hashCode() * 31 + algorithm.hashCode()) * 31 + key.hashCode();
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof CacheKey) {
+                CacheKey other = (CacheKey) obj;
+                return content.equals(other.content) && algorithm.equals(other.algorithm) && key.equals(other.key);
+            }
+            return false;
+        }
+    }
+
+    /** A cached verification result. */
+    private static final class CacheEntry {
+
+        /** Whether the signature verified. */
+        private final boolean valid;
+
+        /** Time, in milliseconds since the epoch, after which the entry is no longer used. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         *
+         * @param isValid whether the signature verified
+         * @param expires time after which the entry is no longer used
+         */
+        CacheEntry(boolean isValid, long expires) {
+            valid = isValid;
+            expiration = expires;
+        }
+    }
+}
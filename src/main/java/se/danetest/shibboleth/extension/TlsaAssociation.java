@@ -0,0 +1,226 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.BasicCredential;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+
+/**
+ * The certificate association carried by a single DANE TLSA record (RFC 6698).
+ */
+public final class TlsaAssociation {
+
+    /** Certificate usage 3, DANE-EE: the association identifies the end entity certificate or key itself. */
+    public static final int USAGE_DANE_EE = 3;
+
+    /** Selector 0: the association covers the full DER encoded certificate. */
+    public static final int SELECTOR_FULL_CERTIFICATE = 0;
+
+    /** Selector 1: the association covers the DER encoded SubjectPublicKeyInfo. */
+    public static final int SELECTOR_SPKI = 1;
+
+    /** Matching type 0: the association data is the selected content itself. */
+    public static final int MATCHING_EXACT = 0;
+
+    /** Matching type 1: the association data is the SHA-256 digest of the selected content. */
+    public static final int MATCHING_SHA256 = 1;
+
+    /** Matching type 2: the association data is the SHA-512 digest of the selected content. */
+    public static final int MATCHING_SHA512 = 2;
+
+    /** Key algorithms tried when decoding an exact SubjectPublicKeyInfo association. */
+    private static final String[] KEY_ALGORITHMS = {"RSA", "EC", "DSA"};
+
+    /** Certificate usage field. */
+    private final int usage;
+
+    /** Selector field. */
+    private final int selector;
+
+    /** Matching type field. */
+    private final int matchingType;
+
+    /** Certificate association data. */
+    private final byte[] data;
+
+    /**
+     * Constructor.
+     *
+     * @param certificateUsage certificate usage field
+     * @param selectorField selector field
+     * @param matchingTypeField matching type field
+     * @param associationData certificate association data, which is copied
+     */
+    public TlsaAssociation(int certificateUsage, int selectorField, int matchingTypeField, byte[] associationData) {
+        if (associationData == null) {
+            throw new IllegalArgumentException("Certificate association data may not be null");
+        }
+        usage = certificateUsage;
+        selector = selectorField;
+        matchingType = matchingTypeField;
+        data = associationData.clone();
+    }
+
+    /**
+     * Gets the certificate usage field.
+     *
+     * @return the certificate usage
+     */
+    public int getUsage() {
+        return usage;
+    }
+
+    /**
+     * Gets the selector field.
+     *
+     * @return the selector
+     */
+    public int getSelector() {
+        return selector;
+    }
+
+    /**
+     * Gets the matching type field.
+     *
+     * @return the matching type
+     */
+    public int getMatchingType() {
+        return matchingType;
+    }
+
+    /**
+     * Gets a copy of the certificate association data.
+     *
+     * @return the certificate association data
+     */
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    /**
+     * Gets whether this association can serve as direct trust in a signing key. Only DANE-EE associations identify
+     * the end entity key without further PKIX path validation, and only the selectors and matching types defined by
+     * RFC 6698 are understood.
+     *
+     * @return true if this association can be used as trust material
+     */
+    public boolean isUsable() {
+        return usage == USAGE_DANE_EE && (selector == SELECTOR_FULL_CERTIFICATE || selector == SELECTOR_SPKI)
+                && matchingType >= MATCHING_EXACT && matchingType <= MATCHING_SHA512;
+    }
+
+    /**
+     * Gets whether this association carries the selected content itself rather than a digest of it.
+     *
+     * @return true if the matching type is exact
+     */
+    public boolean isExact() {
+        return matchingType == MATCHING_EXACT;
+    }
+
+    /**
+     * Gets the digest carried by this association.
+     *
+     * @return the digest, or null if this association carries the selected content itself
+     */
+    public KeyFingerprint getDigest() {
+        if (isExact()) {
+            return null;
+        }
+        return new KeyFingerprint(data);
+    }
+
+    /**
+     * Builds a trusted credential from an exact association.
+     *
+     * @return the credential, or null if this association is a digest
+     *
+     * @throws GeneralSecurityException if the association data can not be decoded
+     */
+    public Credential toCredential() throws GeneralSecurityException {
+        if (!isExact()) {
+            return null;
+        }
+        BasicCredential credential;
+        if (selector == SELECTOR_FULL_CERTIFICATE) {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            X509Certificate certificate = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(data));
+            credential = SecurityHelper.getSimpleCredential(certificate, null);
+        } else {
+            credential = SecurityHelper.getSimpleCredential(decodePublicKey(data), null);
+        }
+        credential.setUsageType(UsageType.UNSPECIFIED);
+        return credential;
+    }
+
+    /**
+     * Decodes a DER encoded SubjectPublicKeyInfo.
+     *
+     * @param spki the encoded SubjectPublicKeyInfo
+     *
+     * @return the public key
+     *
+     * @throws GeneralSecurityException if the key is not of a supported algorithm
+     */
+    static PublicKey decodePublicKey(byte[] spki) throws GeneralSecurityException {
+        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(spki);
+        GeneralSecurityException failure = null;
+        for (String algorithm : KEY_ALGORITHMS) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePublic(keySpec);
+            } catch (GeneralSecurityException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /** {@inheritDoc} */
+    public int hashCode() {
+        return ((usage * 31 + selector) * 31 + matchingType) * 31 + Arrays.hashCode(data);
+    }
+
+    /** {@inheritDoc} */
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (obj instanceof TlsaAssociation) {
+            TlsaAssociation other = (TlsaAssociation) obj;
+            return usage == other.usage && selector == other.selector && matchingType == other.matchingType
+                    && Arrays.equals(data, other.data);
+        }
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return usage + " " + selector + " " + matchingType + " " + new KeyFingerprint(data);
+    }
+}
@@ -0,0 +1,134 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opensaml.xml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The TLSA resource record set found at a TLSA owner name, together with the time-to-live DNS assigned to it.
+ */
+public final class TlsaRRset {
+
+    /** Class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(TlsaRRset.class);
+
+    /** TLSA owner name, such as <code>_443._tcp.idp.example.org.</code>. */
+    private final String ownerName;
+
+    /** The certificate associations of the record set. */
+    private final List<TlsaAssociation> associations;
+
+    /** Time-to-live of the record set, in seconds. */
+    private final long ttl;
+
+    /**
+     * Constructor.
+     *
+     * @param name TLSA owner name
+     * @param tlsaAssociations certificate associations of the record set
+     * @param timeToLive time-to-live of the record set, in seconds
+     */
+    public TlsaRRset(String name, List<TlsaAssociation> tlsaAssociations, long timeToLive) {
+        ownerName = name;
+        if (tlsaAssociations == null) {
+            associations = Collections.emptyList();
+        } else {
+            associations = Collections.unmodifiableList(new ArrayList<TlsaAssociation>(tlsaAssociations));
+        }
+        ttl = timeToLive;
+    }
+
+    /**
+     * Gets the TLSA owner name.
+     *
+     * @return the owner name
+     */
+    public String getOwnerName() {
+        return ownerName;
+    }
+
+    /**
+     * Gets the certificate associations.
+     *
+     * @return unmodifiable list of certificate associations
+     */
+    public List<TlsaAssociation> getAssociations() {
+        return associations;
+    }
+
+    /**
+     * Gets the time-to-live of the record set.
+     *
+     * @return the time-to-live, in seconds
+     */
+    public long getTTL() {
+        return ttl;
+    }
+
+    /**
+     * Gets whether the record set holds no associations.
+     *
+     * @return true if the record set is empty
+     */
+    public boolean isEmpty() {
+        return associations.isEmpty();
+    }
+
+    /**
+     * Materialises the usable associations of this record set into a set of trusted credentials. Exact associations
+     * become credentials, digest associations become trusted digests. Associations which can not be used or decoded
+     * are skipped.
+     *
+     * @return the trusted credentials
+     */
+    public TrustedCredentialSet toTrustedCredentialSet() {
+        List<Credential> credentials = new ArrayList<Credential>();
+        List<KeyFingerprint> keyDigests = new ArrayList<KeyFingerprint>();
+        List<KeyFingerprint> certificateDigests = new ArrayList<KeyFingerprint>();
+        for (TlsaAssociation association : associations) {
+            if (!association.isUsable()) {
+                LOG.debug("[DaneExtension] ignoring unsupported TLSA association {} at {}", association, ownerName);
+                continue;
+            }
+            if (association.isExact()) {
+                try {
+                    credentials.add(association.toCredential());
+                } catch (GeneralSecurityException e) {
+                    LOG.warn("[DaneExtension] unable to decode TLSA association at " + ownerName, e);
+                }
+            } else if (association.getSelector() == TlsaAssociation.SELECTOR_SPKI) {
+                keyDigests.add(association.getDigest());
+            } else {
+                certificateDigests.add(association.getDigest());
+            }
+        }
+        return new TrustedCredentialSet(credentials, keyDigests, certificateDigests);
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return ownerName + " " + ttl + " " + associations;
+    }
+}
@@ -0,0 +1,929 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process cache of TLSA record sets, materialised as {@link TrustedCredentialSet}s.
+ *
+ * <p>
+ * A record set is kept for the time-to-live DNS assigned to it, bounded below by {@link #getMinTTL()} and above by
+ * {@link #getMaxTTL()}. The same {@link TrustedCredentialSet} instance is returned for as long as the entry is cached,
+ * so its version stays stable and caches keyed on it stay warm.
+ * </p>
+ *
+ * <p>
+ * Once {@link #start()} has been called a background task re-resolves record sets which were used during their
+ * lifetime shortly before they expire, so request threads normally never wait for DNS. An expired record set is still
+ * served for up to {@link #getMaxStale()} while it is being refreshed, and if the refresh fails. Concurrent misses for
+ * the same owner name are coalesced into a single lookup. A failed lookup, e.g. a DNS timeout, is remembered for
+ * {@link #getFailureTTL()}, during which the owner name is not looked up again: a stale record set is served if there
+ * is one, otherwise the lookup fails right away instead of waiting for the source again.
+ * </p>
+ *
+ * <p>
+ * If a {@link #setSnapshotFile(File) snapshot file} is configured, the cached record sets are persisted with
+ * {@link TrustMaterialSnapshot} whenever they change and on {@link #stop()}, and {@link #loadSnapshot()} restores the
+ * still fresh ones after a restart.
+ * </p>
+ */
+public class TlsaRecordCache {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(TlsaRecordCache.class);
+
+    /** Source of record sets. */
+    private final TlsaRecordSource source;
+
+    /** Cached record sets, keyed by owner name. */
+    private final ConcurrentMap<String, CachedRRset> entries;
+
+    /** Number of lookups answered from the cache. */
+    private final AtomicLong hits;
+
+    /** Number of lookups which went to the record source. */
+    private final AtomicLong misses;
+
+    /** Minimum time a record set is cached, in milliseconds. Default value: 1 minute */
+    private long minTTL = 60 * 1000;
+
+    /** Maximum time a record set is cached, in milliseconds. Default value: 1 day */
+    private long maxTTL = 24 * 60 * 60 * 1000;
+
+    /** Maximum number of cached record sets. Default value: 10000 */
+    private int maxSize = 10000;
+
+    /** How long before expiry a used record set is refreshed, in milliseconds. Default value: 1 minute */
+    private long refreshAhead = 60 * 1000;
+
+    /** How long after expiry a record set may still be served, in milliseconds. Default value: 1 hour */
+    private long maxStale = 60 * 60 * 1000;
+
+    /** How long a failed lookup is remembered, in milliseconds. Default value: 5 seconds */
+    private long failureTTL = 5 * 1000;
+
+    /** Recently failed lookups, keyed by owner name. */
+    private final ConcurrentMap<String, FailedLookup> failures;
+
+    /** Maximum wait for a lookup of the same owner name in progress, in milliseconds. Default value: 30 seconds */
+    private long lookupTimeout = 30 * 1000;
+
+    /** Lookups currently in progress, keyed by owner name. */
+    private final ConcurrentMap<String, FutureTask<CachedRRset>> inFlight;
+
+    /** Number of lookups served with an expired record set. */
+    private final AtomicLong staleHits;
+
+    /** Number of background refreshes performed. */
+    private final AtomicLong refreshes;
+
+    /** Executor running background refreshes, null until {@link #start()} is called. */
+    private ScheduledExecutorService refreshExecutor;
+
+    /** File the cached record sets are persisted to, null if they are not persisted. */
+    private File snapshotFile;
+
+    /** How the record sets of the source are validated, recorded in the snapshot. Default value: unvalidated */
+    private String validation = "unvalidated";
+
+    /** Whether the cache changed since the snapshot was last written. */
+    private final AtomicBoolean snapshotDirty;
+
+    /** Lock serializing snapshot writes, which share a temporary file. */
+    private final Object snapshotLock;
+
+    /**
+     * Constructor.
+     *
+     * @param recordSource source of record sets
+     */
+    public TlsaRecordCache(TlsaRecordSource recordSource) {
+        if (recordSource == null) {
+            throw new IllegalArgumentException("TLSA record source may not be null");
+        }
+        source = recordSource;
+        entries = new ConcurrentHashMap<String, CachedRRset>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        failures = new ConcurrentHashMap<String, FailedLookup>();
+        inFlight = new ConcurrentHashMap<String, FutureTask<CachedRRset>>();
+        staleHits = new AtomicLong();
+        refreshes = new AtomicLong();
+        snapshotDirty = new AtomicBoolean();
+        snapshotLock = new Object();
+    }
+
+    /**
+     * Starts the background refresh of record sets which are about to expire. Does nothing if
+     * {@link #getRefreshAhead()} is 0 or the refresh is already running.
+     */
+    public synchronized void start() {
+        if (refreshExecutor != null || refreshAhead <= 0) {
+            return;
+        }
+        refreshExecutor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("dane-tlsa-refresh"));
+        long period = Math.max(1000, refreshAhead / 2);
+        refreshExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refreshExpiring();
+                if (snapshotDirty.get()) {
+                    writeSnapshot();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        log.debug("[DaneExtension] started TLSA refresh every {}ms", period);
+    }
+
+    /**
+     * Stops the background refresh and writes the snapshot if one is configured. A snapshot write already started by
+     * the refresh thread is waited for, for up to {@link #getLookupTimeout()}, so the final snapshot is written last.
+     */
+    public synchronized void stop() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            try {
+                if (!refreshExecutor.awaitTermination(lookupTimeout, TimeUnit.MILLISECONDS)) {
+                    log.warn("[DaneExtension] TLSA refresh did not stop within {}ms", lookupTimeout);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            refreshExecutor = null;
+        }
+        writeSnapshot();
+    }
+
+    /**
+     * Restores the record sets of the snapshot file which have not expired yet. Expired record sets are left to live
+     * resolution; if the background refresh is running they are re-resolved right away.
+     *
+     * @return the number of restored record sets
+     */
+    public int loadSnapshot() {
+        if (snapshotFile == null) {
+            return 0;
+        }
+        List<TrustMaterialSnapshot.Entry> snapshot;
+        try {
+            snapshot = TrustMaterialSnapshot.read(snapshotFile, validation);
+        } catch (IOException e) {
+            log.warn("[DaneExtension] ignoring unreadable TLSA snapshot " + snapshotFile, e);
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        for (TrustMaterialSnapshot.Entry entry : snapshot) {
+            String ownerName = entry.getRRset().getOwnerName();
+            if (entry.getExpiration() > now) {
+                entries.putIfAbsent(ownerName, new CachedRRset(entry.getRRset(), entry.getExpiration()));
+                restored++;
+            } else {
+                refreshAsync(ownerName);
+            }
+        }
+        log.info("[DaneExtension] restored {} of {} TLSA record sets from snapshot {}", new Object[] {restored,
+                snapshot.size(), snapshotFile,});
+        return restored;
+    }
+
+    /**
+     * Writes the cached, not yet expired, record sets to the snapshot file if one is configured. Concurrent writes are
+     * serialized.
+     */
+    public void writeSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        synchronized (snapshotLock) {
+            snapshotDirty.set(false);
+            long now = System.currentTimeMillis();
+            List<TrustMaterialSnapshot.Entry> snapshot = new ArrayList<TrustMaterialSnapshot.Entry>();
+            for (CachedRRset entry : entries.values()) {
+                if (!entry.isExpired(now)) {
+                    snapshot.add(new TrustMaterialSnapshot.Entry(entry.getRRset(), entry.getExpiration()));
+                }
+            }
+            try {
+                TrustMaterialSnapshot.write(snapshotFile, validation, snapshot);
+            } catch (IOException e) {
+                snapshotDirty.set(true);
+                log.warn("[DaneExtension] unable to write TLSA snapshot " + snapshotFile, e);
+            }
+        }
+    }
+
+    /**
+     * Gets the trusted credentials published at a TLSA owner name, looking them up if they are not cached.
+     *
+     * @param ownerName absolute TLSA owner name
+     *
+     * @return the trusted credentials
+     *
+     * @throws IOException if the record set is not cached and can not be looked up
+     */
+    public TrustedCredentialSet get(String ownerName) throws IOException {
+        long now = System.currentTimeMillis();
+        CachedRRset entry = entries.get(ownerName);
+        FailedLookup failure = null;
+        if (entry != null) {
+            entry.touch(now);
+            if (!entry.isExpired(now)) {
+                hits.incrementAndGet();
+                return entry.getCredentials();
+            }
+            failure = getRecentFailure(ownerName, now);
+            if (now < entry.getExpiration() + maxStale && (failure != null || refreshAsync(ownerName))) {
+                staleHits.incrementAndGet();
+                return entry.getCredentials();
+            }
+        } else {
+            failure = getRecentFailure(ownerName, now);
+        }
+        misses.incrementAndGet();
+        if (failure != null) {
+            throw new IOException("TLSA lookup of " + ownerName + " failed less than " + failureTTL + "ms ago: "
+                    + failure.message);
+        }
+        try {
+            return load(ownerName).getCredentials();
+        } catch (IOException e) {
+            if (entry != null && now < entry.getExpiration() + maxStale) {
+                log.warn("[DaneExtension] TLSA lookup of {} failed, serving stale record set: {}", ownerName, e
+                        .getMessage());
+                staleHits.incrementAndGet();
+                return entry.getCredentials();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Looks up a record set from the source and caches it. If a lookup for the same owner name is already in progress
+     * its result is awaited instead of starting another one. A background lookup which has not started yet, e.g.
+     * because it is queued behind the refresh task calling this method, is run by the calling thread instead.
+     *
+     * @param ownerName absolute TLSA owner name
+     *
+     * @return the cache entry
+     *
+     * @throws IOException if the record set can not be looked up
+     */
+    protected CachedRRset load(String ownerName) throws IOException {
+        FutureTask<CachedRRset> task = newLoadTask(ownerName);
+        FutureTask<CachedRRset> existing = inFlight.putIfAbsent(ownerName, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(ownerName, task);
+            }
+        } else {
+            task = existing;
+            task.run();
+            if (task.isDone()) {
+                inFlight.remove(ownerName, task);
+            }
+        }
+        return awaitLoad(ownerName, task);
+    }
+
+    /**
+     * Starts a background lookup of a record set unless one is already in progress.
+     *
+     * @param ownerName absolute TLSA owner name
+     *
+     * @return true if a lookup is in progress in the background, false if there is no background executor
+     */
+    protected boolean refreshAsync(final String ownerName) {
+        ScheduledExecutorService executor = refreshExecutor;
+        if (executor == null) {
+            return false;
+        }
+        final FutureTask<CachedRRset> task = newLoadTask(ownerName);
+        if (inFlight.putIfAbsent(ownerName, task) != null) {
+            return true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.remove(ownerName, task);
+                    }
+                    refreshed(ownerName, task);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(ownerName, task);
+            return false;
+        }
+        return true;
+    }
+
+    /** Refreshes the used record sets which are about to expire. Called periodically by the background task. */
+    protected void refreshExpiring() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CachedRRset> cached : entries.entrySet()) {
+            CachedRRset entry = cached.getValue();
+            if (now >= entry.getExpiration() + maxStale) {
+                entries.remove(cached.getKey(), entry);
+            } else if (entry.isRefreshDue(now, refreshAhead) && getRecentFailure(cached.getKey(), now) == null) {
+                refreshAsync(cached.getKey());
+            }
+        }
+    }
+
+    /**
+     * Accounts for a completed background lookup. Does nothing if another thread took the lookup over and is still
+     * running it.
+     *
+     * @param ownerName absolute TLSA owner name
+     * @param task the lookup task
+     */
+    private void refreshed(String ownerName, FutureTask<CachedRRset> task) {
+        if (!task.isDone()) {
+            return;
+        }
+        try {
+            task.get();
+            refreshes.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("[DaneExtension] background refresh of TLSA records at {} failed: {}", ownerName, e.getCause()
+                    .getMessage());
+        }
+    }
+
+    /**
+     * Creates the task looking up and caching a record set.
+     *
+     * @param ownerName absolute TLSA owner name
+     *
+     * @return the lookup task
+     */
+    private FutureTask<CachedRRset> newLoadTask(final String ownerName) {
+        return new FutureTask<CachedRRset>(new Callable<CachedRRset>() {
+            public CachedRRset call() throws IOException {
+                TlsaRRset rrset;
+                try {
+                    rrset = source.lookup(ownerName);
+                } catch (IOException e) {
+                    recordFailure(ownerName, e);
+                    throw e;
+                }
+                failures.remove(ownerName);
+                CachedRRset previous = entries.get(ownerName);
+                CachedRRset entry = new CachedRRset(rrset, System.currentTimeMillis() + computeLifetime(rrset),
+                        previous);
+                store(ownerName, entry);
+                return entry;
+            }
+        });
+    }
+
+    /**
+     * Remembers a failed lookup for {@link #getFailureTTL()}. Expired failures are evicted first if as many failures
+     * as record sets may be cached are remembered, and the failure is not remembered if there is still no room.
+     *
+     * @param ownerName absolute TLSA owner name
+     * @param e the failure
+     */
+    private void recordFailure(String ownerName, IOException e) {
+        if (failureTTL <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (failures.size() >= maxSize && !failures.containsKey(ownerName)) {
+            Iterator<FailedLookup> values = failures.values().iterator();
+            while (values.hasNext()) {
+                if (values.next().expiration <= now) {
+                    values.remove();
+                }
+            }
+            if (failures.size() >= maxSize) {
+                return;
+            }
+        }
+        failures.put(ownerName, new FailedLookup(e.getMessage(), now + failureTTL));
+    }
+
+    /**
+     * Gets the failure of the last lookup of an owner name if it is still remembered.
+     *
+     * @param ownerName absolute TLSA owner name
+     * @param now the current time in milliseconds
+     *
+     * @return the failure, or null if the last lookup did not fail recently
+     */
+    private FailedLookup getRecentFailure(String ownerName, long now) {
+        FailedLookup failure = failures.get(ownerName);
+        if (failure != null && failure.expiration <= now) {
+            failures.remove(ownerName, failure);
+            return null;
+        }
+        return failure;
+    }
+
+    /**
+     * Waits for a lookup task to complete.
+     *
+     * @param ownerName absolute TLSA owner name
+     * @param task the lookup task
+     *
+     * @return the cache entry produced by the task
+     *
+     * @throws IOException if the lookup failed or the wait was interrupted
+     */
+    private CachedRRset awaitLoad(String ownerName, FutureTask<CachedRRset> task) throws IOException {
+        try {
+            return task.get(lookupTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for TLSA lookup of " + ownerName);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out after " + lookupTimeout + "ms waiting for TLSA lookup of " + ownerName);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            IOException wrapped = new IOException("TLSA lookup of " + ownerName + " failed");
+            wrapped.initCause(cause);
+            throw wrapped;
+        }
+    }
+
+    /**
+     * Computes how long a record set is cached.
+     *
+     * @param rrset the record set
+     *
+     * @return the lifetime in milliseconds
+     */
+    protected long computeLifetime(TlsaRRset rrset) {
+        long ttl = rrset.getTTL() * 1000;
+        return Math.max(minTTL, Math.min(maxTTL, ttl));
+    }
+
+    /**
+     * Stores an entry, first evicting expired entries if the cache is full. If the cache is still full the entry is
+     * not stored.
+     *
+     * @param ownerName absolute TLSA owner name
+     * @param entry the entry
+     */
+    protected void store(String ownerName, CachedRRset entry) {
+        if (entries.size() >= maxSize && !entries.containsKey(ownerName)) {
+            evictExpired();
+            if (entries.size() >= maxSize) {
+                log.warn("[DaneExtension] TLSA cache is full, not caching {}", ownerName);
+                return;
+            }
+        }
+        entries.put(ownerName, entry);
+        snapshotDirty.set(true);
+    }
+
+    /** Removes all expired entries. */
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedRRset> values = entries.values().iterator();
+        while (values.hasNext()) {
+            if (values.next().isExpired(now)) {
+                values.remove();
+            }
+        }
+    }
+
+    /** Removes all entries and remembered failures. */
+    public void clear() {
+        entries.clear();
+        failures.clear();
+    }
+
+    /**
+     * Gets the cached entries.
+     *
+     * @return the live map of cached entries, keyed by owner name
+     */
+    protected ConcurrentMap<String, CachedRRset> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Gets the source of record sets.
+     *
+     * @return the record source
+     */
+    public TlsaRecordSource getSource() {
+        return source;
+    }
+
+    /**
+     * Gets the number of cached record sets.
+     *
+     * @return the number of cached record sets
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups which went to the record source.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the file the cached record sets are persisted to.
+     *
+     * @return the snapshot file, or null if the record sets are not persisted
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Sets the file the cached record sets are persisted to.
+     *
+     * @param file the snapshot file, or null if the record sets should not be persisted
+     */
+    public void setSnapshotFile(File file) {
+        snapshotFile = file;
+    }
+
+    /**
+     * Gets the description of how the record sets of the source are validated.
+     *
+     * @return the validation description
+     */
+    public String getValidation() {
+        return validation;
+    }
+
+    /**
+     * Sets the description of how the record sets of the source are validated. It is written to the snapshot, and
+     * snapshots written under another validation are not restored.
+     *
+     * @param description the validation description, e.g. including a fingerprint of the DNSSEC trust anchors
+     */
+    public void setValidation(String description) {
+        validation = description;
+    }
+
+    /**
+     * Gets the number of lookups served with an expired record set.
+     *
+     * @return number of stale hits
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * Gets the number of background refreshes performed.
+     *
+     * @return number of background refreshes
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Gets how long before expiry a used record set is refreshed in the background.
+     *
+     * @return refresh lead time in milliseconds, 0 if background refresh is disabled
+     */
+    public long getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * Sets how long before expiry a used record set is refreshed in the background.
+     *
+     * @param time refresh lead time in milliseconds, 0 disables background refresh
+     */
+    public void setRefreshAhead(long time) {
+        refreshAhead = time;
+    }
+
+    /**
+     * Gets how long after expiry a record set may still be served while it is refreshed.
+     *
+     * @return maximum staleness in milliseconds
+     */
+    public long getMaxStale() {
+        return maxStale;
+    }
+
+    /**
+     * Sets how long after expiry a record set may still be served while it is refreshed.
+     *
+     * @param time maximum staleness in milliseconds
+     */
+    public void setMaxStale(long time) {
+        maxStale = time;
+    }
+
+    /**
+     * Gets the maximum time a lookup waits for a lookup of the same owner name already in progress.
+     *
+     * @return the wait timeout in milliseconds
+     */
+    public long getLookupTimeout() {
+        return lookupTimeout;
+    }
+
+    /**
+     * Sets the maximum time a lookup waits for a lookup of the same owner name already in progress.
+     *
+     * @param timeout the wait timeout in milliseconds
+     */
+    public void setLookupTimeout(long timeout) {
+        lookupTimeout = timeout;
+    }
+
+    /**
+     * Gets how long a failed lookup is remembered.
+     *
+     * @return failure cache time in milliseconds, 0 if failures are not remembered
+     */
+    public long getFailureTTL() {
+        return failureTTL;
+    }
+
+    /**
+     * Sets how long a failed lookup is remembered.
+     *
+     * @param ttl failure cache time in milliseconds, 0 to look up again on every miss
+     */
+    public void setFailureTTL(long ttl) {
+        failureTTL = ttl;
+    }
+
+    /**
+     * Gets the minimum time a record set is cached.
+     *
+     * @return minimum cache time in milliseconds
+     */
+    public long getMinTTL() {
+        return minTTL;
+    }
+
+    /**
+     * Sets the minimum time a record set is cached.
+     *
+     * @param ttl minimum cache time in milliseconds
+     */
+    public void setMinTTL(long ttl) {
+        minTTL = ttl;
+    }
+
+    /**
+     * Gets the maximum time a record set is cached.
+     *
+     * @return maximum cache time in milliseconds
+     */
+    public long getMaxTTL() {
+        return maxTTL;
+    }
+
+    /**
+     * Sets the maximum time a record set is cached.
+     *
+     * @param ttl maximum cache time in milliseconds
+     */
+    public void setMaxTTL(long ttl) {
+        maxTTL = ttl;
+    }
+
+    /**
+     * Gets the maximum number of cached record sets.
+     *
+     * @return maximum number of cached record sets
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum number of cached record sets.
+     *
+     * @param size maximum number of cached record sets
+     */
+    public void setMaxSize(int size) {
+        maxSize = size;
+    }
+
+    /** A failed lookup and the time until which it is remembered. */
+    private static final class FailedLookup {
+
+        /** Message of the failure. */
+        private final String message;
+
+        /** Time, in milliseconds since the epoch, until which the failure is remembered. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         *
+         * @param failureMessage message of the failure
+         * @param expires time until which the failure is remembered
+         */
+        FailedLookup(String failureMessage, long expires) {
+            message = failureMessage;
+            expiration = expires;
+        }
+    }
+
+    /** A cached record set. */
+    protected static class CachedRRset {
+
+        /** The record set. */
+        private final TlsaRRset rrset;
+
+        /** The trusted credentials materialised from the record set. */
+        private final TrustedCredentialSet credentials;
+
+        /** Time, in milliseconds since the epoch, at which the entry was created. */
+        private final long created;
+
+        /** Time, in milliseconds since the epoch, at which the entry expires. */
+        private final long expiration;
+
+        /** Time, in milliseconds since the epoch, at which the entry was last used. */
+        private volatile long lastAccess;
+
+        /**
+         * Constructor.
+         *
+         * @param tlsaRRset the record set
+         * @param expires time at which the entry expires
+         */
+        public CachedRRset(TlsaRRset tlsaRRset, long expires) {
+            this(tlsaRRset, expires, null);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param tlsaRRset the record set
+         * @param expires time at which the entry expires
+         * @param previous the entry this entry replaces, may be null
+         */
+        public CachedRRset(TlsaRRset tlsaRRset, long expires, CachedRRset previous) {
+            rrset = tlsaRRset;
+            created = System.currentTimeMillis();
+            expiration = expires;
+            if (previous != null && previous.rrset.getAssociations().equals(tlsaRRset.getAssociations())) {
+                credentials = previous.credentials;
+                lastAccess = previous.lastAccess;
+            } else {
+                credentials = tlsaRRset.toTrustedCredentialSet();
+                lastAccess = created;
+            }
+        }
+
+        /**
+         * Gets the record set.
+         *
+         * @return the record set
+         */
+        public TlsaRRset getRRset() {
+            return rrset;
+        }
+
+        /**
+         * Gets the trusted credentials materialised from the record set.
+         *
+         * @return the trusted credentials
+         */
+        public TrustedCredentialSet getCredentials() {
+            return credentials;
+        }
+
+        /**
+         * Gets the time at which the entry expires.
+         *
+         * @return expiration time in milliseconds since the epoch
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * Gets whether the entry has expired.
+         *
+         * @param now the current time in milliseconds since the epoch
+         *
+         * @return true if the entry has expired
+         */
+        public boolean isExpired(long now) {
+            return now >= expiration;
+        }
+
+        /**
+         * Records a use of the entry.
+         *
+         * @param now the current time in milliseconds since the epoch
+         */
+        void touch(long now) {
+            lastAccess = now;
+        }
+
+        /**
+         * Gets whether the entry should be refreshed in the background: it is within the refresh lead time of its
+         * expiry, or already expired, and it was used since it was created. The lead time is capped at half the
+         * entry's lifetime so short-lived entries are not refreshed continuously.
+         *
+         * @param now the current time in milliseconds since the epoch
+         * @param refreshAhead the refresh lead time in milliseconds
+         *
+         * @return true if the entry should be refreshed
+         */
+        boolean isRefreshDue(long now, long refreshAhead) {
+            long lead = Math.min(refreshAhead, (expiration - created) / 2);
+            return now >= expiration - lead && lastAccess > created;
+        }
+    }
+
+    /** Thread factory creating named daemon threads, so background work never keeps the JVM alive. */
+    static class DaemonThreadFactory implements ThreadFactory {
+
+        /** Prefix of the thread names. */
+        private final String prefix;
+
+        /** Number of threads created so far. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Constructor.
+         *
+         * @param namePrefix prefix of the thread names
+         */
+        DaemonThreadFactory(String namePrefix) {
+            prefix = namePrefix;
+        }
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+/**
+ * A source of DANE TLSA record sets.
+ */
+public interface TlsaRecordSource {
+
+    /**
+     * Looks up the TLSA record set at an owner name.
+     *
+     * @param ownerName absolute TLSA owner name, such as <code>_443._tcp.idp.example.org.</code>
+     *
+     * @return the record set, which is empty if the name has no TLSA records
+     *
+     * @throws IOException if the record set can not be obtained
+     */
+    TlsaRRset lookup(String ownerName) throws IOException;
+}
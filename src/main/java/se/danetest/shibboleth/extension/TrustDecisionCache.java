@@ -0,0 +1,171 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of established trust decisions.
+ *
+ * <p>
+ * Only positive decisions are cached. Entries are keyed on the fingerprint of the untrusted verification key together
+ * with the version of the {@link TrustedCredentialSet} trust was established against; as every change to the trusted
+ * credentials produces a set with a new version, decisions made against an older set are never returned and simply
+ * age out of the cache. Lookups do not lock, and the cache is emptied once it reaches its maximum size.
+ * </p>
+ */
+public class TrustDecisionCache {
+
+    /** Maximum number of cached decisions. */
+    private final int maxEntries;
+
+    /** Cached positive decisions. */
+    private final ConcurrentMap<DecisionKey, Boolean> decisions;
+
+    /** Number of lookups answered from the cache. */
+    private final AtomicLong hits;
+
+    /** Number of lookups not answered from the cache. */
+    private final AtomicLong misses;
+
+    /**
+     * Constructor.
+     *
+     * @param size maximum number of cached decisions, must be greater than zero
+     */
+    public TrustDecisionCache(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than zero");
+        }
+        maxEntries = size;
+        decisions = new ConcurrentHashMap<DecisionKey, Boolean>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * Checks whether a key was established as trusted against a version of the trusted credentials.
+     *
+     * @param keyFingerprint fingerprint of the untrusted verification key
+     * @param version version of the trusted credential set
+     *
+     * @return true if trust was established before, false if it is unknown
+     */
+    public boolean isTrusted(KeyFingerprint keyFingerprint, long version) {
+        if (decisions.containsKey(new DecisionKey(keyFingerprint, version))) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records that a key was established as trusted against a version of the trusted credentials.
+     *
+     * @param keyFingerprint fingerprint of the untrusted verification key
+     * @param version version of the trusted credential set
+     */
+    public void trusted(KeyFingerprint keyFingerprint, long version) {
+        if (decisions.size() >= maxEntries) {
+            decisions.clear();
+        }
+        decisions.put(new DecisionKey(keyFingerprint, version), Boolean.TRUE);
+    }
+
+    /** Removes all cached decisions. */
+    public void clear() {
+        decisions.clear();
+    }
+
+    /**
+     * Gets the number of cached decisions.
+     *
+     * @return number of cached decisions
+     */
+    public int getSize() {
+        return decisions.size();
+    }
+
+    /**
+     * Gets the maximum number of cached decisions.
+     *
+     * @return maximum number of cached decisions
+     */
+    public int getMaxSize() {
+        return maxEntries;
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups not answered from the cache.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Key of a cached decision. */
+    private static final class DecisionKey {
+
+        /** Fingerprint of the untrusted verification key. */
+        private final KeyFingerprint keyFingerprint;
+
+        /** Version of the trusted credential set. */
+        private final long version;
+
+        /**
+         * Constructor.
+         *
+         * @param fingerprint fingerprint of the untrusted verification key
+         * @param setVersion version of the trusted credential set
+         */
+        DecisionKey(KeyFingerprint fingerprint, long setVersion) {
+            keyFingerprint = fingerprint;
+            version = setVersion;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            return keyFingerprint.hashCode() * 31 + (int) (version ^ (version >>> 32));
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof DecisionKey) {
+                DecisionKey other = (DecisionKey) obj;
+                return version == other.version && keyFingerprint.equals(other.keyFingerprint);
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.opensaml.xml.security.SecurityHelper;
+
+/**
+ * Counters and latency histograms of the decisions made by a {@link DaneExplicitKeySignatureTrustEngine}.
+ * 
+ * <p>
+ * Validations are counted per binding (XML or raw signature), deciding path (KeyInfo or supplied candidate credential
+ * versus the trusted credentials tried directly), outcome and signature key algorithm. Recording a validation only
+ * updates preallocated atomic counters and allocates nothing.
+ * </p>
+ * 
+ * <p>
+ * A sampled fraction of the decisions can also be kept in a {@link DecisionTraceBuffer} and dumped through JMX. The
+ * hits and misses of the engine's caches are reported alongside the decisions.
+ * </p>
+ */
+public class TrustEngineMetrics implements TrustEngineMetricsMBean {
+
+    /** Binding of XML signatures. */
+    public static final int BINDING_XML = 0;
+
+    /** Binding of raw signatures, e.g. HTTP-Redirect and SimpleSign. */
+    public static final int BINDING_RAW = 1;
+
+    /** Path using the KeyInfo-derived or supplied candidate credentials. */
+    public static final int PATH_KEY_INFO = 0;
+
+    /** Path trying the trusted credentials directly. */
+    public static final int PATH_TRUSTED_CREDENTIALS = 1;
+
+    /** Outcome of a signature established as trusted. */
+    public static final int OUTCOME_TRUSTED = 0;
+
+    /** Outcome of a signature which could not be established as trusted. */
+    public static final int OUTCOME_UNTRUSTED = 1;
+
+    /** Outcome of a validation which failed with an error. */
+    public static final int OUTCOME_ERROR = 2;
+
+    /** Outcome of a validation which gave up trying trusted credentials when its verification budget ran out. */
+    public static final int OUTCOME_BUDGET_EXCEEDED = 3;
+
+    /** Outcome of a validation which did not try trusted credentials as its source exceeded its fallback rate. */
+    public static final int OUTCOME_RATE_LIMITED = 4;
+
+    /** RSA signature algorithms. */
+    public static final int ALGORITHM_RSA = 0;
+
+    /** ECDSA signature algorithms. */
+    public static final int ALGORITHM_EC = 1;
+
+    /** DSA signature algorithms. */
+    public static final int ALGORITHM_DSA = 2;
+
+    /** HMAC signature algorithms. */
+    public static final int ALGORITHM_HMAC = 3;
+
+    /** Unknown signature algorithms. */
+    public static final int ALGORITHM_OTHER = 4;
+
+    /** Number of bindings. */
+    private static final int BINDINGS = 2;
+
+    /** Number of paths. */
+    private static final int PATHS = 2;
+
+    /** Number of outcomes. */
+    private static final int OUTCOMES = 5;
+
+    /** Number of algorithm families. */
+    private static final int ALGORITHMS = 5;
+
+    /** Names of the bindings. */
+    private static final String[] BINDING_NAMES = {"xml", "raw"};
+
+    /** Names of the paths. */
+    private static final String[] PATH_NAMES = {"keyInfo", "trustedCredentials"};
+
+    /** Names of the algorithm families. */
+    private static final String[] ALGORITHM_NAMES = {"RSA", "EC", "DSA", "HMAC", "other"};
+
+    /** Names of the outcomes. */
+    private static final String[] OUTCOME_NAMES = {"trusted", "untrusted", "error", "budgetExceeded", "rateLimited"};
+
+    /** Algorithm families, indexed by signature algorithm URI. */
+    private static final ConcurrentMap<String, Integer> ALGORITHM_FAMILIES = new ConcurrentHashMap<String, Integer>();
+
+    /** Validations per binding, path and outcome. */
+    private final AtomicLongArray outcomes;
+
+    /** Validations per algorithm family and outcome. */
+    private final AtomicLongArray algorithmOutcomes;
+
+    /** Total number of trusted credentials tried directly. */
+    private final AtomicLong credentialsTried;
+
+    /** Trusted credentials tried directly per validation. */
+    private final Log2Histogram credentialsTriedHistogram;
+
+    /** Validation latency in nanoseconds, per binding and path. */
+    private final Log2Histogram[] latency;
+
+    /** Trusted credential resolution latency in nanoseconds. */
+    private final Log2Histogram resolutionLatency;
+
+    /** Optional trace of sampled decisions, null if no decisions are traced. */
+    private volatile DecisionTraceBuffer trace;
+
+    /** Engine whose caches are reported, null if caches are not reported. */
+    private volatile DaneExplicitKeySignatureTrustEngine engine;
+
+    /** Constructor. */
+    public TrustEngineMetrics() {
+        outcomes = new AtomicLongArray(BINDINGS * PATHS * OUTCOMES);
+        algorithmOutcomes = new AtomicLongArray(ALGORITHMS * OUTCOMES);
+        credentialsTried = new AtomicLong();
+        credentialsTriedHistogram = new Log2Histogram();
+        latency = new Log2Histogram[BINDINGS * PATHS];
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new Log2Histogram();
+        }
+        resolutionLatency = new Log2Histogram();
+    }
+
+    /**
+     * Gets the algorithm family of a signature algorithm.
+     * 
+     * @param algorithmURI the signature algorithm URI, may be null
+     * 
+     * @return one of the ALGORITHM constants
+     */
+    public static int getAlgorithmFamily(String algorithmURI) {
+        if (algorithmURI == null) {
+            return ALGORITHM_OTHER;
+        }
+        Integer family = ALGORITHM_FAMILIES.get(algorithmURI);
+        if (family == null) {
+            family = Integer.valueOf(computeAlgorithmFamily(algorithmURI));
+            ALGORITHM_FAMILIES.putIfAbsent(algorithmURI, family);
+        }
+        return family.intValue();
+    }
+
+    /**
+     * Determines the algorithm family of a signature algorithm.
+     * 
+     * @param algorithmURI the signature algorithm URI
+     * 
+     * @return one of the ALGORITHM constants
+     */
+    private static int computeAlgorithmFamily(String algorithmURI) {
+        if (SecurityHelper.isHMAC(algorithmURI)) {
+            return ALGORITHM_HMAC;
+        }
+        String keyAlgorithm = TrustedCredentialSet.normalizeKeyAlgorithm(SecurityHelper
+                .getKeyAlgorithmFromURI(algorithmURI));
+        if ("RSA".equals(keyAlgorithm)) {
+            return ALGORITHM_RSA;
+        } else if ("EC".equals(keyAlgorithm)) {
+            return ALGORITHM_EC;
+        } else if ("DSA".equals(keyAlgorithm)) {
+            return ALGORITHM_DSA;
+        }
+        return ALGORITHM_OTHER;
+    }
+
+    /**
+     * Records a completed validation.
+     * 
+     * @param binding one of the BINDING constants
+     * @param algorithm one of the ALGORITHM constants
+     * @param path one of the PATH constants, the path which decided the outcome
+     * @param outcome one of the OUTCOME constants
+     * @param triedCredentials number of trusted credentials tried directly
+     * @param resolutionNanos time spent resolving trusted credentials, in nanoseconds
+     * @param totalNanos time spent on the whole validation, in nanoseconds
+     */
+    public void record(int binding, int algorithm, int path, int outcome, int triedCredentials,
+            long resolutionNanos, long totalNanos) {
+        outcomes.incrementAndGet((binding * PATHS + path) * OUTCOMES + outcome);
+        algorithmOutcomes.incrementAndGet(algorithm * OUTCOMES + outcome);
+        if (triedCredentials > 0) {
+            credentialsTried.addAndGet(triedCredentials);
+        }
+        credentialsTriedHistogram.record(triedCredentials);
+        latency[binding * PATHS + path].record(totalNanos);
+        resolutionLatency.record(resolutionNanos);
+        DecisionTraceBuffer currentTrace = trace;
+        if (currentTrace != null && currentTrace.isSampled()) {
+            currentTrace.record(binding, algorithm, path, outcome, triedCredentials, resolutionNanos, totalNanos);
+        }
+    }
+
+    /**
+     * Gets the trace of sampled decisions.
+     * 
+     * @return the trace, or null if no decisions are traced
+     */
+    public DecisionTraceBuffer getTrace() {
+        return trace;
+    }
+
+    /**
+     * Sets the trace of sampled decisions.
+     * 
+     * @param newTrace the trace, or null to stop tracing decisions
+     */
+    public void setTrace(DecisionTraceBuffer newTrace) {
+        trace = newTrace;
+    }
+
+    /**
+     * Gets the engine whose caches are reported.
+     * 
+     * @return the engine, or null if caches are not reported
+     */
+    public DaneExplicitKeySignatureTrustEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the engine whose caches are reported. The caches are looked up on every read, so caches the engine is
+     * given later are reported as well.
+     * 
+     * @param trustEngine the engine, or null to not report caches
+     */
+    public void setEngine(DaneExplicitKeySignatureTrustEngine trustEngine) {
+        engine = trustEngine;
+    }
+
+    /**
+     * Describes a decision.
+     * 
+     * @param binding one of the BINDING constants
+     * @param algorithm one of the ALGORITHM constants
+     * @param path one of the PATH constants
+     * @param outcome one of the OUTCOME constants
+     * 
+     * @return the description
+     */
+    static String describe(int binding, int algorithm, int path, int outcome) {
+        return "binding=" + BINDING_NAMES[binding] + " algorithm=" + ALGORITHM_NAMES[algorithm] + " path="
+                + PATH_NAMES[path] + " outcome=" + OUTCOME_NAMES[outcome];
+    }
+
+    /** {@inheritDoc} */
+    public long getValidations() {
+        long count = 0;
+        for (int i = 0; i < outcomes.length(); i++) {
+            count += outcomes.get(i);
+        }
+        return count;
+    }
+
+    /** {@inheritDoc} */
+    public long getTrusted() {
+        return getTrustedViaKeyInfo() + getTrustedViaTrustedCredentials();
+    }
+
+    /** {@inheritDoc} */
+    public long getTrustedViaKeyInfo() {
+        return sumOutcome(PATH_KEY_INFO, OUTCOME_TRUSTED);
+    }
+
+    /** {@inheritDoc} */
+    public long getTrustedViaTrustedCredentials() {
+        return sumOutcome(PATH_TRUSTED_CREDENTIALS, OUTCOME_TRUSTED);
+    }
+
+    /** {@inheritDoc} */
+    public long getUntrusted() {
+        return sumOutcome(PATH_KEY_INFO, OUTCOME_UNTRUSTED) + sumOutcome(PATH_TRUSTED_CREDENTIALS, OUTCOME_UNTRUSTED);
+    }
+
+    /** {@inheritDoc} */
+    public long getErrors() {
+        return sumOutcome(PATH_KEY_INFO, OUTCOME_ERROR) + sumOutcome(PATH_TRUSTED_CREDENTIALS, OUTCOME_ERROR);
+    }
+
+    /** {@inheritDoc} */
+    public long getBudgetExceeded() {
+        return sumOutcome(PATH_TRUSTED_CREDENTIALS, OUTCOME_BUDGET_EXCEEDED);
+    }
+
+    /** {@inheritDoc} */
+    public long getRateLimited() {
+        return sumOutcome(PATH_TRUSTED_CREDENTIALS, OUTCOME_RATE_LIMITED);
+    }
+
+    /** {@inheritDoc} */
+    public long getCredentialsTried() {
+        return credentialsTried.get();
+    }
+
+    /** {@inheritDoc} */
+    public String getCredentialsTriedPercentiles() {
+        return formatPercentiles(credentialsTriedHistogram, 1);
+    }
+
+    /** {@inheritDoc} */
+    public long[] getCredentialsTriedHistogram() {
+        return credentialsTriedHistogram.getBuckets();
+    }
+
+    /** {@inheritDoc} */
+    public String[] getOutcomesByAlgorithm() {
+        String[] lines = new String[ALGORITHMS];
+        for (int i = 0; i < ALGORITHMS; i++) {
+            lines[i] = ALGORITHM_NAMES[i] + ": trusted=" + algorithmOutcomes.get(i * OUTCOMES + OUTCOME_TRUSTED)
+                    + " untrusted=" + algorithmOutcomes.get(i * OUTCOMES + OUTCOME_UNTRUSTED) + " errors="
+                    + algorithmOutcomes.get(i * OUTCOMES + OUTCOME_ERROR) + " budgetExceeded="
+                    + algorithmOutcomes.get(i * OUTCOMES + OUTCOME_BUDGET_EXCEEDED) + " rateLimited="
+                    + algorithmOutcomes.get(i * OUTCOMES + OUTCOME_RATE_LIMITED);
+        }
+        return lines;
+    }
+
+    /** {@inheritDoc} */
+    public String[] getLatencyPercentiles() {
+        String[] lines = new String[BINDINGS * PATHS];
+        for (int binding = 0; binding < BINDINGS; binding++) {
+            for (int path = 0; path < PATHS; path++) {
+                Log2Histogram histogram = latency[binding * PATHS + path];
+                lines[binding * PATHS + path] = BINDING_NAMES[binding] + "/" + PATH_NAMES[path] + ": count="
+                        + histogram.getCount() + " " + formatPercentiles(histogram, 1000) + " (microseconds)";
+            }
+        }
+        return lines;
+    }
+
+    /** {@inheritDoc} */
+    public String getResolutionLatencyPercentiles() {
+        return formatPercentiles(resolutionLatency, 1000) + " (microseconds)";
+    }
+
+    /** {@inheritDoc} */
+    public long getVerificationCacheHits() {
+        SignatureVerificationCache cache = getVerificationCache();
+        return cache != null ? cache.getHits() : 0;
+    }
+
+    /** {@inheritDoc} */
+    public long getVerificationCacheMisses() {
+        SignatureVerificationCache cache = getVerificationCache();
+        return cache != null ? cache.getMisses() : 0;
+    }
+
+    /** {@inheritDoc} */
+    public String[] getCacheStatistics() {
+        DaneExplicitKeySignatureTrustEngine currentEngine = engine;
+        if (currentEngine == null) {
+            return new String[0];
+        }
+        List<String> lines = new ArrayList<String>(4);
+        SignatureVerificationCache verificationCache = currentEngine.getVerificationCache();
+        if (verificationCache != null) {
+            lines.add(formatCache("verification", verificationCache.getHits(), verificationCache.getMisses(),
+                    verificationCache.getSize(), verificationCache.getMaxSize()));
+        }
+        TrustDecisionCache decisionCache = currentEngine.getTrustDecisionCache();
+        if (decisionCache != null) {
+            lines.add(formatCache("trustDecision", decisionCache.getHits(), decisionCache.getMisses(), decisionCache
+                    .getSize(), decisionCache.getMaxSize()));
+        }
+        NegativeTrustCache negativeCache = currentEngine.getNegativeTrustCache();
+        if (negativeCache != null) {
+            lines.add(formatCache("negativeTrust", negativeCache.getHits(), negativeCache.getMisses(), negativeCache
+                    .getSize(), negativeCache.getMaxSize()));
+        }
+        CredentialHintCache hintCache = currentEngine.getCredentialHintCache();
+        if (hintCache != null) {
+            lines.add(formatCache("credentialHint", hintCache.getHits(), hintCache.getMisses(), hintCache.getSize(),
+                    hintCache.getMaxSize()));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Gets the verification cache of the reported engine.
+     * 
+     * @return the verification cache, or null if there is none
+     */
+    private SignatureVerificationCache getVerificationCache() {
+        DaneExplicitKeySignatureTrustEngine currentEngine = engine;
+        return currentEngine != null ? currentEngine.getVerificationCache() : null;
+    }
+
+    /**
+     * Formats the counters of a cache.
+     * 
+     * @param name name of the cache
+     * @param hits number of cache hits
+     * @param misses number of cache misses
+     * @param size number of cached entries
+     * @param maxSize maximum number of cached entries
+     * 
+     * @return the formatted counters
+     */
+    private static String formatCache(String name, long hits, long misses, int size, int maxSize) {
+        return name + ": hits=" + hits + " misses=" + misses + " size=" + size + "/" + maxSize;
+    }
+
+    /** {@inheritDoc} */
+    public double getTraceSampleRate() {
+        DecisionTraceBuffer currentTrace = trace;
+        return currentTrace != null ? currentTrace.getSampleRate() : 0;
+    }
+
+    /** {@inheritDoc} */
+    public void setTraceSampleRate(double rate) {
+        DecisionTraceBuffer currentTrace = trace;
+        if (currentTrace == null) {
+            throw new IllegalStateException("Decision tracing is not enabled");
+        }
+        currentTrace.setSampleRate(rate);
+    }
+
+    /** {@inheritDoc} */
+    public long getTracedDecisions() {
+        DecisionTraceBuffer currentTrace = trace;
+        return currentTrace != null ? currentTrace.getRecorded() : 0;
+    }
+
+    /** {@inheritDoc} */
+    public String[] dumpTrace() {
+        DecisionTraceBuffer currentTrace = trace;
+        return currentTrace != null ? currentTrace.dump() : new String[0];
+    }
+
+    /** {@inheritDoc} */
+    public void reset() {
+        for (int i = 0; i < outcomes.length(); i++) {
+            outcomes.set(i, 0);
+        }
+        for (int i = 0; i < algorithmOutcomes.length(); i++) {
+            algorithmOutcomes.set(i, 0);
+        }
+        credentialsTried.set(0);
+        credentialsTriedHistogram.reset();
+        for (Log2Histogram histogram : latency) {
+            histogram.reset();
+        }
+        resolutionLatency.reset();
+    }
+
+    /**
+     * Sums the validations with a given path and outcome over all bindings.
+     * 
+     * @param path one of the PATH constants
+     * @param outcome one of the OUTCOME constants
+     * 
+     * @return number of validations
+     */
+    private long sumOutcome(int path, int outcome) {
+        long count = 0;
+        for (int binding = 0; binding < BINDINGS; binding++) {
+            count += outcomes.get((binding * PATHS + path) * OUTCOMES + outcome);
+        }
+        return count;
+    }
+
+    /**
+     * Formats the 50th, 99th and 99.9th percentile of a histogram.
+     * 
+     * @param histogram the histogram
+     * @param divisor unit divisor applied to the percentiles
+     * 
+     * @return the formatted percentiles
+     */
+    private static String formatPercentiles(Log2Histogram histogram, long divisor) {
+        return "p50<=" + histogram.getPercentile(0.5) / divisor + " p99<=" + histogram.getPercentile(0.99) / divisor
+                + " p999<=" + histogram.getPercentile(0.999) / divisor;
+    }
+}
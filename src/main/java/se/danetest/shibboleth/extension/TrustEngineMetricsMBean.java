@@ -0,0 +1,172 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** JMX management interface of {@link TrustEngineMetrics}. */
+public interface TrustEngineMetricsMBean {
+
+    /**
+     * Gets the number of completed validations.
+     * 
+     * @return number of validations
+     */
+    public long getValidations();
+
+    /**
+     * Gets the number of signatures established as trusted.
+     * 
+     * @return number of trusted signatures
+     */
+    public long getTrusted();
+
+    /**
+     * Gets the number of signatures established as trusted using a KeyInfo-derived or supplied candidate credential.
+     * 
+     * @return number of signatures trusted through KeyInfo
+     */
+    public long getTrustedViaKeyInfo();
+
+    /**
+     * Gets the number of signatures established as trusted by trying the trusted credentials directly.
+     * 
+     * @return number of signatures trusted through the trusted credentials
+     */
+    public long getTrustedViaTrustedCredentials();
+
+    /**
+     * Gets the number of signatures which could not be established as trusted.
+     * 
+     * @return number of untrusted signatures
+     */
+    public long getUntrusted();
+
+    /**
+     * Gets the number of validations which failed with an error.
+     * 
+     * @return number of errors
+     */
+    public long getErrors();
+
+    /**
+     * Gets the number of validations which gave up trying trusted credentials when their verification budget ran out.
+     * 
+     * @return number of validations exceeding their budget
+     */
+    public long getBudgetExceeded();
+
+    /**
+     * Gets the number of validations which did not try trusted credentials as their source exceeded its fallback rate.
+     * 
+     * @return number of rate limited validations
+     */
+    public long getRateLimited();
+
+    /**
+     * Gets the total number of trusted credentials tried directly.
+     * 
+     * @return number of trusted credentials tried
+     */
+    public long getCredentialsTried();
+
+    /**
+     * Gets the 50th, 99th and 99.9th percentile of the number of trusted credentials tried directly per validation.
+     * 
+     * @return the percentiles
+     */
+    public String getCredentialsTriedPercentiles();
+
+    /**
+     * Gets the number of validations per number of trusted credentials tried, in power of two buckets.
+     * 
+     * @return the histogram buckets
+     */
+    public long[] getCredentialsTriedHistogram();
+
+    /**
+     * Gets the number of validations per signature key algorithm and outcome.
+     * 
+     * @return one line per key algorithm
+     */
+    public String[] getOutcomesByAlgorithm();
+
+    /**
+     * Gets the latency percentiles of validations per binding and deciding path.
+     * 
+     * @return one line per binding and path
+     */
+    public String[] getLatencyPercentiles();
+
+    /**
+     * Gets the latency percentiles of trusted credential resolution.
+     * 
+     * @return the percentiles
+     */
+    public String getResolutionLatencyPercentiles();
+
+    /**
+     * Gets the number of signature verifications answered from the verification cache.
+     * 
+     * @return number of verification cache hits, 0 if there is no verification cache
+     */
+    public long getVerificationCacheHits();
+
+    /**
+     * Gets the number of signature verifications not answered from the verification cache.
+     * 
+     * @return number of verification cache misses, 0 if there is no verification cache
+     */
+    public long getVerificationCacheMisses();
+
+    /**
+     * Gets the hits, misses and size of each cache of the trust engine.
+     * 
+     * @return one line per configured cache
+     */
+    public String[] getCacheStatistics();
+
+    /**
+     * Gets the fraction of decisions recorded in the trace.
+     * 
+     * @return the sample rate between 0 and 1, 0 if sampling is off or tracing is not enabled
+     */
+    public double getTraceSampleRate();
+
+    /**
+     * Sets the fraction of decisions recorded in the trace.
+     * 
+     * @param rate the sample rate between 0 and 1, 0 turns sampling off
+     */
+    public void setTraceSampleRate(double rate);
+
+    /**
+     * Gets the number of decisions recorded in the trace, including those since overwritten.
+     * 
+     * @return number of traced decisions
+     */
+    public long getTracedDecisions();
+
+    /**
+     * Gets the decisions held in the trace, oldest first.
+     * 
+     * @return one line per traced decision
+     */
+    public String[] dumpTrace();
+
+    /** Resets all counters and histograms, except the counters of the caches. */
+    public void reset();
+}
@@ -0,0 +1,436 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.DSAKey;
+import java.security.interfaces.DSAParams;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.DSAParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.SigningUtil;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.signature.Signer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up a {@link DaneExplicitKeySignatureTrustEngine} before it serves requests, so that the first validations
+ * after a restart do not pay for lazily initialized JCA providers, algorithm lookups and interpreted code.
+ *
+ * <p>
+ * Two kinds of tasks run on an executor. The first initializes a JCA verifier with every trusted key, in batches. The
+ * second generates a throwaway key pair for every kind of trusted key, e.g. RSA of each modulus length present or EC
+ * on each curve, and has the engine validate raw and XML signatures made with it, once per signature algorithm of the
+ * key. If no trusted credentials are configured, as when only TLSA records are trusted, 2048 bit RSA and P-256 EC
+ * keys are used.
+ * </p>
+ *
+ * <p>
+ * The synthetic signatures carry their key, as a candidate credential or a KeyInfo key value, and have no trust basis,
+ * so they are verified but never trusted and no trusted credential is tried, no TLSA record looked up and no fallback
+ * budget spent. XML signatures are only made if the OpenSAML library is initialized and the key can be expressed as a
+ * key value, which excludes EC keys. The verification and negative trust caches are detached while the engine is
+ * warmed up, so that every validation runs the whole verification, and the KeyInfo cache is cleared afterwards.
+ * Failures are logged and never prevent the engine from being used.
+ * </p>
+ */
+public class TrustEngineWarmer {
+
+    /** URI of the ECDSA with SHA-256 signature algorithm. */
+    public static final String ALGO_ID_SIGNATURE_ECDSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256";
+
+    /** Number of trusted credentials whose keys are prepared by one task. */
+    private static final int BATCH_SIZE = 256;
+
+    /** Content signed by the synthetic raw signatures. */
+    private static final byte[] CONTENT = "SAMLRequest=warm-up&RelayState=warm-up".getBytes();
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(TrustEngineWarmer.class);
+
+    /** The trust engine warmed up. */
+    private final DaneExplicitKeySignatureTrustEngine engine;
+
+    /** Executor running the tasks, null to run them in the calling thread. */
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param trustEngine the trust engine warmed up
+     * @param warmUpExecutor executor running the tasks, null to run them in the calling thread
+     */
+    public TrustEngineWarmer(DaneExplicitKeySignatureTrustEngine trustEngine, ExecutorService warmUpExecutor) {
+        if (trustEngine == null) {
+            throw new IllegalArgumentException("Trust engine may not be null");
+        }
+        engine = trustEngine;
+        executor = warmUpExecutor;
+    }
+
+    /**
+     * Warms up the trust engine, returning once all tasks are done.
+     *
+     * @param trustedCredentials the trusted credentials whose keys are prepared
+     * @param verifications number of synthetic validations per kind of key and signature algorithm
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for the tasks
+     */
+    public void warmUp(Collection<Credential> trustedCredentials, int verifications) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<Credential> credentials = new ArrayList<Credential>(trustedCredentials);
+        Map<String, KeyKind> kinds = getKeyKinds(credentials);
+
+        SignatureVerificationCache verificationCache = engine.getVerificationCache();
+        NegativeTrustCache negativeCache = engine.getNegativeTrustCache();
+        engine.setVerificationCache(null);
+        engine.setNegativeTrustCache(null);
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < credentials.size(); i += BATCH_SIZE) {
+                tasks.add(submit(new KeyTask(credentials.subList(i, Math.min(credentials.size(), i + BATCH_SIZE)))));
+            }
+            for (KeyKind kind : kinds.values()) {
+                tasks.add(submit(new VerificationTask(kind, verifications)));
+            }
+            for (Future<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    log.warn("[DaneExtension] trust engine warm-up task failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> task : tasks) {
+                task.cancel(true);
+            }
+            throw e;
+        } finally {
+            engine.setVerificationCache(verificationCache);
+            engine.setNegativeTrustCache(negativeCache);
+            KeyInfoCredentialResolver keyInfoResolver = engine.getKeyInfoResolver();
+            if (keyInfoResolver instanceof CachingKeyInfoCredentialResolver) {
+                ((CachingKeyInfoCredentialResolver) keyInfoResolver).clear();
+            }
+        }
+        log.info("[DaneExtension] warmed up trust engine with {} trusted keys and {} kinds of keys in {}ms",
+                new Object[] {credentials.size(), kinds.size(), System.currentTimeMillis() - start});
+    }
+
+    /**
+     * Runs a task on the executor, or in the calling thread if there is none.
+     *
+     * @param task the task
+     *
+     * @return the result of the task
+     */
+    private Future<Void> submit(Callable<Void> task) {
+        if (executor != null) {
+            return executor.submit(task);
+        }
+        FutureTask<Void> future = new FutureTask<Void>(task);
+        future.run();
+        return future;
+    }
+
+    /**
+     * Gets the kinds of the trusted keys, or the default kinds if there are no trusted keys.
+     *
+     * @param credentials the trusted credentials
+     *
+     * @return the kinds of keys, keyed by description
+     */
+    private Map<String, KeyKind> getKeyKinds(List<Credential> credentials) {
+        Map<String, KeyKind> kinds = new LinkedHashMap<String, KeyKind>();
+        for (Credential credential : credentials) {
+            Key key = SecurityHelper.extractVerificationKey(credential);
+            KeyKind kind = null;
+            if (key instanceof RSAKey) {
+                kind = new KeyKind("RSA", ((RSAKey) key).getModulus().bitLength(), null);
+            } else if (key instanceof ECKey) {
+                kind = new KeyKind("EC", 0, ((ECKey) key).getParams());
+            } else if (key instanceof DSAKey) {
+                DSAParams params = ((DSAKey) key).getParams();
+                kind = new KeyKind("DSA", 0, new DSAParameterSpec(params.getP(), params.getQ(), params.getG()));
+            }
+            if (kind != null && !kinds.containsKey(kind.toString())) {
+                kinds.put(kind.toString(), kind);
+            }
+        }
+        if (kinds.isEmpty()) {
+            KeyKind rsa = new KeyKind("RSA", 2048, null);
+            kinds.put(rsa.toString(), rsa);
+            KeyKind ec = new KeyKind("EC", 0, new ECGenParameterSpec("secp256r1"));
+            kinds.put(ec.toString(), ec);
+        }
+        return kinds;
+    }
+
+    /**
+     * Gets the signature algorithms warmed up for a key algorithm.
+     *
+     * @param keyAlgorithm the JCA key algorithm
+     *
+     * @return the signature algorithm URIs
+     */
+    private static String[] getSignatureAlgorithms(String keyAlgorithm) {
+        if ("RSA".equals(keyAlgorithm)) {
+            return new String[] {SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256,
+                SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1};
+        } else if ("EC".equals(keyAlgorithm)) {
+            return new String[] {ALGO_ID_SIGNATURE_ECDSA_SHA256};
+        }
+        return new String[] {SignatureConstants.ALGO_ID_SIGNATURE_DSA};
+    }
+
+    /**
+     * Builds and signs a SAML 2 authentication request carrying the signing key.
+     *
+     * @param keyPair the signing key pair
+     * @param algorithmURI the signature algorithm URI
+     *
+     * @return the signature of the request, or null if OpenSAML is not initialized or the key can not be carried
+     */
+    private Signature signXml(KeyPair keyPair, String algorithmURI) {
+        XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+        XMLObjectBuilder<?> requestBuilder = builderFactory.getBuilder(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        if (requestBuilder == null || "EC".equals(keyPair.getPublic().getAlgorithm())) {
+            return null;
+        }
+        AuthnRequest request = (AuthnRequest) requestBuilder.buildObject(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        request.setID("_warm-up");
+        request.setVersion(SAMLVersion.VERSION_20);
+
+        Signature signature = (Signature) builderFactory.getBuilder(Signature.DEFAULT_ELEMENT_NAME).buildObject(
+                Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(SecurityHelper.getSimpleCredential(keyPair.getPublic(),
+                keyPair.getPrivate()));
+        signature.setSignatureAlgorithm(algorithmURI);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        KeyInfo keyInfo = (KeyInfo) builderFactory.getBuilder(KeyInfo.DEFAULT_ELEMENT_NAME).buildObject(
+                KeyInfo.DEFAULT_ELEMENT_NAME);
+        KeyInfoHelper.addPublicKey(keyInfo, keyPair.getPublic());
+        signature.setKeyInfo(keyInfo);
+        request.setSignature(signature);
+
+        try {
+            Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(request);
+            marshaller.marshall(request);
+            Signer.signObject(signature);
+        } catch (MarshallingException e) {
+            log.debug("[DaneExtension] unable to marshall warm-up request, not warming up XML signatures", e);
+            return null;
+        } catch (SignatureException e) {
+            log.debug("[DaneExtension] unable to sign warm-up request, not warming up XML signatures", e);
+            return null;
+        }
+        return signature;
+    }
+
+    /** Kind of a key, with what is needed to generate a key pair of the same kind. */
+    private static final class KeyKind {
+
+        /** JCA key algorithm. */
+        private final String algorithm;
+
+        /** Key size in bits, if no parameters are given. */
+        private final int size;
+
+        /** Key generation parameters, may be null. */
+        private final AlgorithmParameterSpec parameters;
+
+        /** Description, unique per kind. */
+        private final String description;
+
+        /**
+         * Constructor.
+         *
+         * @param keyAlgorithm JCA key algorithm
+         * @param keySize key size in bits, if no parameters are given
+         * @param keyParameters key generation parameters, may be null
+         */
+        KeyKind(String keyAlgorithm, int keySize, AlgorithmParameterSpec keyParameters) {
+            algorithm = keyAlgorithm;
+            size = keySize;
+            parameters = keyParameters;
+            if (keyParameters instanceof ECParameterSpec) {
+                description = algorithm + "/" + ((ECParameterSpec) keyParameters).getOrder();
+            } else if (keyParameters instanceof ECGenParameterSpec) {
+                description = algorithm + "/" + ((ECGenParameterSpec) keyParameters).getName();
+            } else if (keyParameters instanceof DSAParameterSpec) {
+                description = algorithm + "/" + ((DSAParameterSpec) keyParameters).getP().bitLength();
+            } else {
+                description = algorithm + "/" + keySize;
+            }
+        }
+
+        /**
+         * Generates a key pair of this kind.
+         *
+         * @return the key pair
+         *
+         * @throws GeneralSecurityException if the key pair can not be generated
+         */
+        KeyPair generate() throws GeneralSecurityException {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+            if (parameters != null) {
+                generator.initialize(parameters);
+            } else {
+                generator.initialize(size);
+            }
+            return generator.generateKeyPair();
+        }
+
+        /** {@inheritDoc} */
+        public String toString() {
+            return description;
+        }
+    }
+
+    /** Initializes a JCA verifier with each key of a batch of trusted credentials. */
+    private final class KeyTask implements Callable<Void> {
+
+        /** The trusted credentials. */
+        private final List<Credential> credentials;
+
+        /**
+         * Constructor.
+         *
+         * @param batch the trusted credentials
+         */
+        KeyTask(List<Credential> batch) {
+            credentials = batch;
+        }
+
+        /** {@inheritDoc} */
+        public Void call() throws Exception {
+            Map<String, java.security.Signature> verifiers = new LinkedHashMap<String, java.security.Signature>();
+            for (Credential credential : credentials) {
+                Key key = SecurityHelper.extractVerificationKey(credential);
+                if (!(key instanceof PublicKey)) {
+                    continue;
+                }
+                String keyAlgorithm = TrustedCredentialSet.normalizeKeyAlgorithm(key.getAlgorithm());
+                String jcaAlgorithm = PooledSignatureVerifier.getJCAAlgorithm(getSignatureAlgorithms(keyAlgorithm)[0]);
+                if (jcaAlgorithm == null) {
+                    continue;
+                }
+                java.security.Signature verifier = verifiers.get(jcaAlgorithm);
+                if (verifier == null) {
+                    verifier = java.security.Signature.getInstance(jcaAlgorithm);
+                    verifiers.put(jcaAlgorithm, verifier);
+                }
+                try {
+                    verifier.initVerify((PublicKey) key);
+                } catch (GeneralSecurityException e) {
+                    log.debug("[DaneExtension] unable to initialize verifier with a trusted " + keyAlgorithm
+                            + " key", e);
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Validates synthetic signatures made with a throwaway key of a given kind. */
+    private final class VerificationTask implements Callable<Void> {
+
+        /** Kind of key. */
+        private final KeyKind kind;
+
+        /** Number of validations per signature algorithm. */
+        private final int verifications;
+
+        /**
+         * Constructor.
+         *
+         * @param keyKind kind of key
+         * @param count number of validations per signature algorithm
+         */
+        VerificationTask(KeyKind keyKind, int count) {
+            kind = keyKind;
+            verifications = count;
+        }
+
+        /** {@inheritDoc} */
+        public Void call() throws Exception {
+            KeyPair keyPair = kind.generate();
+            Credential candidate = SecurityHelper.getSimpleCredential(keyPair.getPublic(), null);
+            CriteriaSet criteriaSet = new CriteriaSet();
+            for (String algorithmURI : getSignatureAlgorithms(kind.algorithm)) {
+                String jcaAlgorithm = PooledSignatureVerifier.getJCAAlgorithm(algorithmURI);
+                if (jcaAlgorithm == null) {
+                    log.debug("[DaneExtension] no JCA algorithm for {}, not warming it up", algorithmURI);
+                    continue;
+                }
+                java.security.Signature signer = java.security.Signature.getInstance(jcaAlgorithm);
+                signer.initSign(keyPair.getPrivate());
+                signer.update(CONTENT);
+                byte[] rawSignature = signer.sign();
+                Signature xmlSignature = signXml(keyPair, algorithmURI);
+                try {
+                    SigningUtil.verifyWithURI(candidate, algorithmURI, rawSignature, CONTENT);
+                    for (int i = 0; i < verifications; i++) {
+                        engine.validate(rawSignature, CONTENT, algorithmURI, criteriaSet, candidate);
+                        if (xmlSignature != null) {
+                            engine.validate(xmlSignature, criteriaSet);
+                        }
+                    }
+                } catch (SecurityException e) {
+                    log.debug("[DaneExtension] unable to warm up " + algorithmURI + " with a " + kind + " key", e);
+                }
+            }
+            log.debug("[DaneExtension] warmed up {} keys with {} validations", kind, verifications);
+            return null;
+        }
+    }
+}
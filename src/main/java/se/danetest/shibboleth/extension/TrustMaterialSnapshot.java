@@ -0,0 +1,247 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact binary snapshot of resolved TLSA trust material, used to warm the {@link TlsaRecordCache} after a restart.
+ *
+ * <p>
+ * The file holds, per owner name, the absolute expiry time and the certificate associations (encoded keys,
+ * certificates or their digests). It is written to a temporary file which then replaces the snapshot, so readers never
+ * see a partially written snapshot, and is read through a read-only memory mapping.
+ * </p>
+ *
+ * <p>
+ * The header records how the record sets were validated, e.g. the DNSSEC trust anchors used, and a snapshot is only
+ * read back under the same validation, so that enabling or changing DNSSEC validation never restores record sets
+ * which were not validated under it. Lengths are checked against the file, so a truncated or corrupt snapshot is
+ * rejected rather than read.
+ * </p>
+ *
+ * <pre>
+ * snapshot := magic:int32 version:int16 validationLength:int16 validation:utf8 count:int32 entry*
+ * entry    := nameLength:int16 name:utf8 expiration:int64 ttl:int64 associationCount:int16 association*
+ * association := usage:int8 selector:int8 matchingType:int8 dataLength:int32 data
+ * </pre>
+ */
+public final class TrustMaterialSnapshot {
+
+    /** Magic number identifying a snapshot file, "DANE". */
+    private static final int MAGIC = 0x44414E45;
+
+    /** Current format version. */
+    private static final short VERSION = 2;
+
+    /** Class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(TrustMaterialSnapshot.class);
+
+    /** Constructor. */
+    private TrustMaterialSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot.
+     *
+     * @param file the snapshot file
+     * @param validation description of how the record sets were validated
+     * @param entries the entries to write
+     *
+     * @throws IOException if the snapshot can not be written
+     */
+    public static void write(File file, String validation, Collection<Entry> entries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeUTF(validation);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.getRRset().getOwnerName());
+                out.writeLong(entry.getExpiration());
+                out.writeLong(entry.getRRset().getTTL());
+                List<TlsaAssociation> associations = entry.getRRset().getAssociations();
+                out.writeShort(associations.size());
+                for (TlsaAssociation association : associations) {
+                    out.writeByte(association.getUsage());
+                    out.writeByte(association.getSelector());
+                    out.writeByte(association.getMatchingType());
+                    byte[] data = association.getData();
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            // Windows does not replace existing files on rename
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to replace snapshot file " + file);
+            }
+        }
+        LOG.debug("[DaneExtension] wrote {} TLSA record sets to snapshot {}", entries.size(), file);
+    }
+
+    /**
+     * Reads a snapshot. A missing file yields no entries.
+     *
+     * @param file the snapshot file
+     * @param validation description of how the record sets must have been validated
+     *
+     * @return the entries of the snapshot
+     *
+     * @throws IOException if the file exists but is not a readable snapshot or was written under another validation
+     */
+    public static List<Entry> read(File file, String validation) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (!file.isFile()) {
+            return entries;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a trust material snapshot");
+            }
+            short version = buffer.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trust material snapshot version " + version + " in " + file);
+            }
+            String snapshotValidation = readUTF(buffer);
+            if (!snapshotValidation.equals(validation)) {
+                throw new IOException("Trust material snapshot " + file + " was written with validation "
+                        + snapshotValidation + ", not " + validation);
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String ownerName = readUTF(buffer);
+                long expiration = buffer.getLong();
+                long ttl = buffer.getLong();
+                int associationCount = buffer.getShort() & 0xffff;
+                List<TlsaAssociation> associations = new ArrayList<TlsaAssociation>(associationCount);
+                for (int j = 0; j < associationCount; j++) {
+                    int usage = buffer.get() & 0xff;
+                    int selector = buffer.get() & 0xff;
+                    int matchingType = buffer.get() & 0xff;
+                    byte[] data = new byte[checkLength(buffer, buffer.getInt())];
+                    buffer.get(data);
+                    associations.add(new TlsaAssociation(usage, selector, matchingType, data));
+                }
+                entries.add(new Entry(new TlsaRRset(ownerName, associations, ttl), expiration));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Trust material snapshot " + file + " is truncated");
+        } finally {
+            in.close();
+        }
+        LOG.debug("[DaneExtension] read {} TLSA record sets from snapshot {}", entries.size(), file);
+        return entries;
+    }
+
+    /**
+     * Reads a string written by {@link DataOutputStream#writeUTF(String)}.
+     *
+     * @param buffer the buffer to read from
+     *
+     * @return the string
+     *
+     * @throws IOException if the string is not valid modified UTF-8
+     */
+    private static String readUTF(MappedByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[checkLength(buffer, buffer.getShort() & 0xffff)];
+        buffer.get(bytes);
+        // owner names are ASCII, for which modified UTF-8 and UTF-8 are identical
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Checks that a length read from the snapshot fits in the rest of it.
+     *
+     * @param buffer the buffer being read
+     * @param length the length
+     *
+     * @return the length
+     *
+     * @throws IOException if the length is negative or exceeds the remaining bytes
+     */
+    private static int checkLength(MappedByteBuffer buffer, int length) throws IOException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Trust material snapshot is corrupt, length " + length + " exceeds the "
+                    + buffer.remaining() + " remaining bytes");
+        }
+        return length;
+    }
+
+    /** A snapshot entry. */
+    public static final class Entry {
+
+        /** The record set. */
+        private final TlsaRRset rrset;
+
+        /** Time, in milliseconds since the epoch, at which the record set expires. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         *
+         * @param tlsaRRset the record set
+         * @param expires time at which the record set expires
+         */
+        public Entry(TlsaRRset tlsaRRset, long expires) {
+            rrset = tlsaRRset;
+            expiration = expires;
+        }
+
+        /**
+         * Gets the record set.
+         *
+         * @return the record set
+         */
+        public TlsaRRset getRRset() {
+            return rrset;
+        }
+
+        /**
+         * Gets the time at which the record set expires.
+         *
+         * @return expiration time in milliseconds since the epoch
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.X509Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads trusted certificates from a file, or from every file in a directory, into an {@link IndexedCredentialResolver}
+ * and reloads them whenever the files change.
+ *
+ * <p>
+ * Each file may hold any number of PEM or DER encoded certificates. The loaded credentials are not bound to an entity
+ * and are added to the statically configured credentials. Changes are detected by polling the modification time and
+ * length of the files on a background thread, which also decodes the changed files and builds the new index before
+ * it is swapped into the resolver, so requests are never held up by a reload. Only files which changed since the
+ * previous load are decoded again. If a reload fails the previous credentials stay in use.
+ * </p>
+ */
+public class TrustedCredentialFileWatcher {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(TrustedCredentialFileWatcher.class);
+
+    /** The file or directory holding the certificates. */
+    private final File path;
+
+    /** The resolver the credentials are published to. */
+    private final IndexedCredentialResolver resolver;
+
+    /** The statically configured credentials, which are always trusted. */
+    private final List<Credential> staticCredentials;
+
+    /** Credentials of the files loaded so far, keyed by file path. */
+    private Map<String, LoadedFile> loadedFiles;
+
+    /** Interval, in milliseconds, at which the files are checked for changes. Default value: 1 minute */
+    private long reloadInterval = 60 * 1000;
+
+    /** Executor polling the files, null until {@link #start()} is called. */
+    private ScheduledExecutorService reloadExecutor;
+
+    /**
+     * Constructor.
+     *
+     * @param credentialsPath the file or directory holding the certificates
+     * @param credentialResolver the resolver the credentials are published to
+     * @param credentials the statically configured credentials, may be null
+     */
+    public TrustedCredentialFileWatcher(File credentialsPath, IndexedCredentialResolver credentialResolver,
+            Collection<Credential> credentials) {
+        if (credentialsPath == null) {
+            throw new IllegalArgumentException("Trusted credentials path may not be null");
+        }
+        if (credentialResolver == null) {
+            throw new IllegalArgumentException("Credential resolver may not be null");
+        }
+        path = credentialsPath;
+        resolver = credentialResolver;
+        if (credentials == null) {
+            staticCredentials = Collections.emptyList();
+        } else {
+            staticCredentials = new ArrayList<Credential>(credentials);
+        }
+        loadedFiles = Collections.emptyMap();
+    }
+
+    /**
+     * Gets the file or directory holding the certificates.
+     *
+     * @return the certificate file or directory
+     */
+    public File getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the interval at which the files are checked for changes.
+     *
+     * @return the reload interval in milliseconds
+     */
+    public long getReloadInterval() {
+        return reloadInterval;
+    }
+
+    /**
+     * Sets the interval at which the files are checked for changes.
+     *
+     * @param interval the reload interval in milliseconds, 0 disables reloading
+     */
+    public void setReloadInterval(long interval) {
+        reloadInterval = interval;
+    }
+
+    /**
+     * Starts checking the files for changes. Does nothing if {@link #getReloadInterval()} is 0 or the check is already
+     * running.
+     */
+    public synchronized void start() {
+        if (reloadExecutor != null || reloadInterval <= 0) {
+            return;
+        }
+        reloadExecutor = new ScheduledThreadPoolExecutor(1, new TlsaRecordCache.DaemonThreadFactory(
+                "dane-credential-reload"));
+        reloadExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reload();
+            }
+        }, reloadInterval, reloadInterval, TimeUnit.MILLISECONDS);
+        log.debug("[DaneExtension] checking trusted credentials in {} every {}ms", path, reloadInterval);
+    }
+
+    /** Stops checking the files for changes. */
+    public synchronized void stop() {
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdownNow();
+            reloadExecutor = null;
+        }
+    }
+
+    /**
+     * Loads the credentials if any file changed, keeping the current credentials if they can not be loaded.
+     *
+     * @return true if new credentials were published, otherwise false
+     */
+    public boolean reload() {
+        try {
+            return load();
+        } catch (IOException e) {
+            log.error("[DaneExtension] unable to reload trusted credentials from " + path
+                    + ", keeping the current credentials", e);
+        } catch (GeneralSecurityException e) {
+            log.error("[DaneExtension] unable to reload trusted credentials from " + path
+                    + ", keeping the current credentials", e);
+        }
+        return false;
+    }
+
+    /**
+     * Loads the credentials if any file changed since the previous load and publishes them to the resolver.
+     *
+     * @return true if new credentials were published, false if no file changed
+     *
+     * @throws IOException if the files can not be read
+     * @throws GeneralSecurityException if a file does not hold valid certificates
+     */
+    public synchronized boolean load() throws IOException, GeneralSecurityException {
+        File[] files;
+        if (path.isDirectory()) {
+            files = path.listFiles();
+            if (files == null) {
+                throw new IOException("Unable to list trusted credentials directory " + path);
+            }
+            Arrays.sort(files);
+        } else if (path.isFile()) {
+            files = new File[] {path};
+        } else {
+            throw new IOException("Trusted credentials path " + path + " does not exist");
+        }
+
+        Map<String, LoadedFile> previous = loadedFiles;
+        Map<String, LoadedFile> current = new HashMap<String, LoadedFile>();
+        boolean changed = false;
+        for (File file : files) {
+            if (!file.isFile() || file.isHidden()) {
+                continue;
+            }
+            String key = file.getPath();
+            LoadedFile loaded = previous.get(key);
+            if (loaded == null || !loaded.isCurrent(file)) {
+                long lastModified = file.lastModified();
+                long length = file.length();
+                loaded = new LoadedFile(lastModified, length, decode(file));
+                changed = true;
+            }
+            current.put(key, loaded);
+        }
+        if (!changed && current.size() == previous.size()) {
+            return false;
+        }
+
+        List<Credential> credentials = new ArrayList<Credential>(staticCredentials);
+        for (File file : files) {
+            LoadedFile loaded = current.get(file.getPath());
+            if (loaded != null) {
+                credentials.addAll(loaded.credentials);
+            }
+        }
+        resolver.setTrustedCredentials(credentials);
+        loadedFiles = current;
+        log.info("[DaneExtension] loaded {} trusted credentials from {} files in {}", new Object[] {
+                credentials.size() - staticCredentials.size(), current.size(), path});
+        return true;
+    }
+
+    /**
+     * Decodes the certificates of a file into credentials.
+     *
+     * @param file the file
+     *
+     * @return the credentials
+     *
+     * @throws IOException if the file can not be read
+     * @throws GeneralSecurityException if the file does not hold valid certificates
+     */
+    private List<Credential> decode(File file) throws IOException, GeneralSecurityException {
+        Collection<X509Certificate> certificates = X509Util.decodeCertificate(file);
+        if (certificates == null || certificates.isEmpty()) {
+            throw new GeneralSecurityException("No certificates found in " + file);
+        }
+        List<Credential> credentials = new ArrayList<Credential>(certificates.size());
+        for (X509Certificate certificate : certificates) {
+            credentials.add(SecurityHelper.getSimpleCredential(certificate, null));
+        }
+        log.debug("[DaneExtension] decoded {} certificates from {}", certificates.size(), file);
+        return credentials;
+    }
+
+    /** Credentials decoded from a file, with the state of the file they were decoded from. */
+    private static final class LoadedFile {
+
+        /** Modification time of the file. */
+        private final long lastModified;
+
+        /** Length of the file. */
+        private final long length;
+
+        /** The decoded credentials. */
+        private final List<Credential> credentials;
+
+        /**
+         * Constructor.
+         *
+         * @param fileLastModified modification time of the file before it was decoded
+         * @param fileLength length of the file before it was decoded
+         * @param decoded the credentials decoded from the file
+         */
+        LoadedFile(long fileLastModified, long fileLength, List<Credential> decoded) {
+            lastModified = fileLastModified;
+            length = fileLength;
+            credentials = decoded;
+        }
+
+        /**
+         * Checks whether the file is unchanged since the credentials were decoded.
+         *
+         * @param file the file
+         *
+         * @return true if the file is unchanged, otherwise false
+         */
+        boolean isCurrent(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+}
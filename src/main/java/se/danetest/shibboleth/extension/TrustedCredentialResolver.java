@@ -0,0 +1,51 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.CredentialResolver;
+import org.opensaml.xml.security.credential.UsageType;
+
+/**
+ * A {@link CredentialResolver} of trusted credentials which can be queried without building a new {@link CriteriaSet}.
+ * 
+ * <p>
+ * Signature trust engines add a key algorithm derived from the signature algorithm, and a default usage, to the trust
+ * basis criteria supplied by the caller. Resolvers implementing this interface take those two as arguments instead,
+ * so the caller's criteria can be used as they are.
+ * </p>
+ */
+public interface TrustedCredentialResolver extends CredentialResolver {
+
+    /**
+     * Resolves the trusted credentials satisfying a set of criteria.
+     * 
+     * @param criteriaSet the criteria, which are not modified
+     * @param keyAlgorithm JCA key algorithm the credentials must have, taking precedence over any
+     *            {@link org.opensaml.xml.security.criteria.KeyAlgorithmCriteria} in the criteria, may be null
+     * @param defaultUsage usage the credentials must allow if the criteria hold no
+     *            {@link org.opensaml.xml.security.criteria.UsageCriteria}, may be null
+     * 
+     * @return the trusted credentials
+     * 
+     * @throws SecurityException if the credentials can not be resolved
+     */
+    TrustedCredentialSet resolveTrusted(CriteriaSet criteriaSet, String keyAlgorithm, UsageType defaultUsage)
+            throws SecurityException;
+}
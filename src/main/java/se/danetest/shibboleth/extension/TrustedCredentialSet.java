@@ -0,0 +1,676 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.Key;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.x509.X509Credential;
+
+/**
+ * Immutable set of trusted credentials indexed by SubjectPublicKeyInfo digest, key algorithm, entity ID and usage.
+ *
+ * <p>
+ * The SHA-256 and SHA-512 SPKI digests are the forms DANE TLSA records use with selector 1 and matching types 1 and 2,
+ * so a KeyInfo-derived key or a TLSA association can be matched against the set with a single hash lookup. Subsets
+ * narrowed by key, key algorithm, entity ID or usage are built on first request and then reused, so they keep a stable
+ * {@link #getVersion() version} for as long as this set is in use. {@link #partition()} builds the subsets per key
+ * algorithm and key length up front.
+ * </p>
+ *
+ * <p>
+ * Besides credentials a set may hold bare SPKI or certificate digests, as published by DANE TLSA records with matching
+ * type 1 or 2. Such digests can not verify a signature on their own, but establish trust in a key or certificate
+ * obtained from a signature's KeyInfo.
+ * </p>
+ */
+public class TrustedCredentialSet implements Iterable<Credential> {
+
+    /**
+     * Number of leading zero octets an RSA signer may have dropped from a signature, making it shorter than the
+     * modulus.
+     */
+    public static final int RSA_SIGNATURE_SLACK = 3;
+
+    /**
+     * Number of octets by which the integers of an XML ECDSA signature may differ from the field length of the key,
+     * either because the signer dropped leading zero octets or because the order of the curve is longer than its
+     * field.
+     */
+    public static final int EC_SIGNATURE_SLACK = 2;
+
+    /** Source of set versions. */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    /** Version of this set, unique within the JVM. */
+    private final long version;
+
+    /** The credentials in configured order. */
+    private final List<Credential> credentials;
+
+    /** Credentials indexed by the SHA-256 digest of their key. */
+    private final Map<KeyFingerprint, List<Credential>> bySha256;
+
+    /** Credentials indexed by the SHA-512 digest of their key. */
+    private final Map<KeyFingerprint, List<Credential>> bySha512;
+
+    /** Credentials indexed by entity ID. */
+    private final Map<String, List<Credential>> byEntityId;
+
+    /** Trusted SPKI digests without an associated credential. */
+    private final Set<KeyFingerprint> keyDigests;
+
+    /** Trusted certificate digests without an associated credential. */
+    private final Set<KeyFingerprint> certificateDigests;
+
+    /** Whether any trusted digest is a SHA-512 digest. */
+    private final boolean hasSha512Digests;
+
+    /** Whether any credential carries a usage other than {@link UsageType#UNSPECIFIED}. */
+    private final boolean usageRestricted;
+
+    /** Subsets narrowed by key, keyed by the SHA-256 digest of the key. Only keys of this set are kept. */
+    private final ConcurrentMap<KeyFingerprint, TrustedCredentialSet> keySubsets;
+
+    /** Empty subset returned for keys not in this set, null until first requested. */
+    private volatile TrustedCredentialSet unknownKeySubset;
+
+    /** Subsets narrowed by key algorithm. */
+    private final ConcurrentMap<String, TrustedCredentialSet> algorithmSubsets;
+
+    /** Subsets narrowed by entity ID. */
+    private final ConcurrentMap<String, TrustedCredentialSet> entitySubsets;
+
+    /** Subsets narrowed by usage. */
+    private final ConcurrentMap<UsageType, TrustedCredentialSet> usageSubsets;
+
+    /** Subsets narrowed by key length, keyed by the packed range of key lengths present in this set. */
+    private final ConcurrentMap<Long, TrustedCredentialSet> keyLengthSubsets;
+
+    /** Distinct known key lengths of the credentials, in ascending order. */
+    private final int[] keyLengths;
+
+    /**
+     * Constructor.
+     *
+     * @param trustedCredentials the trusted credentials, in the order they should be tried
+     */
+    public TrustedCredentialSet(Collection<Credential> trustedCredentials) {
+        this(trustedCredentials, null, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param trustedCredentials the trusted credentials, in the order they should be tried
+     * @param trustedKeyDigests trusted SHA-256 or SHA-512 SPKI digests, may be null
+     * @param trustedCertificateDigests trusted SHA-256 or SHA-512 certificate digests, may be null
+     */
+    public TrustedCredentialSet(Collection<Credential> trustedCredentials,
+            Collection<KeyFingerprint> trustedKeyDigests, Collection<KeyFingerprint> trustedCertificateDigests) {
+        version = VERSIONS.incrementAndGet();
+        List<Credential> list = new ArrayList<Credential>();
+        if (trustedCredentials != null) {
+            for (Credential credential : trustedCredentials) {
+                if (credential != null) {
+                    list.add(credential);
+                }
+            }
+        }
+        credentials = Collections.unmodifiableList(list);
+
+        bySha256 = new HashMap<KeyFingerprint, List<Credential>>();
+        bySha512 = new HashMap<KeyFingerprint, List<Credential>>();
+        byEntityId = new HashMap<String, List<Credential>>();
+        boolean restricted = false;
+        Set<Integer> lengths = new HashSet<Integer>();
+        for (Credential credential : credentials) {
+            int length = getKeyLength(credential);
+            if (length > 0) {
+                lengths.add(Integer.valueOf(length));
+            }
+            Key key = SecurityHelper.extractVerificationKey(credential);
+            index(bySha256, KeyFingerprint.sha256(key), credential);
+            index(bySha512, KeyFingerprint.sha512(key), credential);
+            if (credential.getEntityId() != null) {
+                index(byEntityId, credential.getEntityId(), credential);
+            }
+            if (credential.getUsageType() != null && credential.getUsageType() != UsageType.UNSPECIFIED) {
+                restricted = true;
+            }
+        }
+        usageRestricted = restricted;
+        keyLengths = new int[lengths.size()];
+        int i = 0;
+        for (Integer length : lengths) {
+            keyLengths[i++] = length.intValue();
+        }
+        Arrays.sort(keyLengths);
+
+        keyDigests = toSet(trustedKeyDigests);
+        certificateDigests = toSet(trustedCertificateDigests);
+        boolean sha512 = false;
+        for (KeyFingerprint digest : keyDigests) {
+            sha512 |= digest.getValue().length == 64;
+        }
+        for (KeyFingerprint digest : certificateDigests) {
+            sha512 |= digest.getValue().length == 64;
+        }
+        hasSha512Digests = sha512;
+
+        keySubsets = new ConcurrentHashMap<KeyFingerprint, TrustedCredentialSet>();
+        algorithmSubsets = new ConcurrentHashMap<String, TrustedCredentialSet>();
+        entitySubsets = new ConcurrentHashMap<String, TrustedCredentialSet>();
+        usageSubsets = new ConcurrentHashMap<UsageType, TrustedCredentialSet>();
+        keyLengthSubsets = new ConcurrentHashMap<Long, TrustedCredentialSet>();
+    }
+
+    /**
+     * Copies a possibly null collection of digests into an immutable set.
+     *
+     * @param digests the digests
+     *
+     * @return the immutable set
+     */
+    private static Set<KeyFingerprint> toSet(Collection<KeyFingerprint> digests) {
+        if (digests == null || digests.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<KeyFingerprint> set = new HashSet<KeyFingerprint>();
+        for (KeyFingerprint digest : digests) {
+            if (digest != null) {
+                set.add(digest);
+            }
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * Builds the union of several sets. Credentials keep the order of the given sets.
+     *
+     * @param sets the sets to combine
+     *
+     * @return the union
+     */
+    public static TrustedCredentialSet union(List<TrustedCredentialSet> sets) {
+        if (sets.size() == 1) {
+            return sets.get(0);
+        }
+        List<Credential> credentials = new ArrayList<Credential>();
+        List<KeyFingerprint> keyDigests = new ArrayList<KeyFingerprint>();
+        List<KeyFingerprint> certificateDigests = new ArrayList<KeyFingerprint>();
+        for (TrustedCredentialSet set : sets) {
+            credentials.addAll(set.credentials);
+            keyDigests.addAll(set.keyDigests);
+            certificateDigests.addAll(set.certificateDigests);
+        }
+        return new TrustedCredentialSet(credentials, keyDigests, certificateDigests);
+    }
+
+    /**
+     * Adds a value to a multi-valued index.
+     *
+     * @param <K> type of the index key
+     * @param index the index
+     * @param key the index key, nothing is indexed if null
+     * @param credential the credential to index
+     */
+    private static <K> void index(Map<K, List<Credential>> index, K key, Credential credential) {
+        if (key == null) {
+            return;
+        }
+        List<Credential> values = index.get(key);
+        if (values == null) {
+            values = new ArrayList<Credential>(1);
+            index.put(key, values);
+        }
+        values.add(credential);
+    }
+
+    /**
+     * Gets the normalized JCA algorithm of a credential's verification key.
+     *
+     * @param credential the credential
+     *
+     * @return the key algorithm, or null if the credential holds no key
+     */
+    public static String getKeyAlgorithm(Credential credential) {
+        Key key = SecurityHelper.extractVerificationKey(credential);
+        if (key == null) {
+            return null;
+        }
+        return normalizeKeyAlgorithm(key.getAlgorithm());
+    }
+
+    /**
+     * Gets the length, in octets, of the signatures a credential's verification key produces: the modulus length of
+     * an RSA key or the field size of an EC key.
+     *
+     * @param credential the credential
+     *
+     * @return the key length, 0 if it is not known for the key's algorithm, or -1 if the credential holds no key
+     */
+    public static int getKeyLength(Credential credential) {
+        Key key = SecurityHelper.extractVerificationKey(credential);
+        if (key == null) {
+            return -1;
+        }
+        if (key instanceof RSAKey) {
+            return (((RSAKey) key).getModulus().bitLength() + 7) / 8;
+        }
+        if (key instanceof ECKey) {
+            return (((ECKey) key).getParams().getCurve().getField().getFieldSize() + 7) / 8;
+        }
+        return 0;
+    }
+
+    /**
+     * Normalizes the provider specific names of a JCA key algorithm.
+     *
+     * @param algorithm the key algorithm
+     *
+     * @return the normalized key algorithm
+     */
+    public static String normalizeKeyAlgorithm(String algorithm) {
+        if ("ECDSA".equalsIgnoreCase(algorithm)) {
+            return "EC";
+        }
+        return algorithm;
+    }
+
+    /**
+     * Gets the version of this set. Every set instance has a distinct version, so any change to the trusted
+     * credentials results in a new version.
+     *
+     * @return the version of this set
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<Credential> iterator() {
+        return credentials.iterator();
+    }
+
+    /**
+     * Gets the trusted credentials in the order they should be tried.
+     *
+     * @return unmodifiable list of the trusted credentials
+     */
+    public List<Credential> getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * Gets the number of credentials in this set.
+     *
+     * @return the number of credentials
+     */
+    public int size() {
+        return credentials.size();
+    }
+
+    /**
+     * Gets whether this set is empty.
+     *
+     * @return true if the set contains no credentials
+     */
+    public boolean isEmpty() {
+        return credentials.isEmpty() && keyDigests.isEmpty() && certificateDigests.isEmpty();
+    }
+
+    /**
+     * Gets the credentials whose key has the given SPKI digest. The digest algorithm is inferred from the length of the
+     * digest, which must be either SHA-256 or SHA-512.
+     *
+     * @param digest the SPKI digest
+     *
+     * @return the matching credentials, never null
+     */
+    public List<Credential> lookup(KeyFingerprint digest) {
+        if (digest == null) {
+            return Collections.emptyList();
+        }
+        List<Credential> matches = bySha256.get(digest);
+        if (matches == null) {
+            matches = bySha512.get(digest);
+        }
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(matches);
+    }
+
+    /**
+     * Gets whether the verification key of a credential is the key of one of the trusted credentials.
+     *
+     * @param untrustedCredential the credential to check
+     *
+     * @return true if the credential's key is trusted
+     */
+    public boolean contains(Credential untrustedCredential) {
+        Key key = SecurityHelper.extractVerificationKey(untrustedCredential);
+        return contains(untrustedCredential, key, KeyFingerprint.sha256(key));
+    }
+
+    /**
+     * Gets whether the verification key of a credential, whose SHA-256 fingerprint is already known, is the key of one
+     * of the trusted credentials.
+     *
+     * @param untrustedCredential the credential to check
+     * @param key the verification key of the credential, may be null
+     * @param keySha256 SHA-256 fingerprint of the verification key, may be null
+     *
+     * @return true if the credential's key is trusted
+     */
+    boolean contains(Credential untrustedCredential, Key key, KeyFingerprint keySha256) {
+        if (keySha256 != null && containsKey(key, keySha256)) {
+            return true;
+        }
+        if (certificateDigests.isEmpty() || !(untrustedCredential instanceof X509Credential)) {
+            return false;
+        }
+        X509Certificate certificate = ((X509Credential) untrustedCredential).getEntityCertificate();
+        if (certificate == null) {
+            return false;
+        }
+        byte[] encoded;
+        try {
+            encoded = certificate.getEncoded();
+        } catch (CertificateEncodingException e) {
+            return false;
+        }
+        if (certificateDigests.contains(new KeyFingerprint(KeyFingerprint.newDigest(KeyFingerprint.SHA256).digest(
+                encoded)))) {
+            return true;
+        }
+        return hasSha512Digests
+                && certificateDigests.contains(new KeyFingerprint(KeyFingerprint.newDigest(KeyFingerprint.SHA512)
+                        .digest(encoded)));
+    }
+
+    /**
+     * Gets whether a key is the key of one of the trusted credentials.
+     *
+     * @param key the key to check
+     *
+     * @return true if the key is trusted
+     */
+    public boolean contains(Key key) {
+        KeyFingerprint sha256 = KeyFingerprint.sha256(key);
+        if (sha256 == null) {
+            return false;
+        }
+        return containsKey(key, sha256);
+    }
+
+    /**
+     * Gets whether a key, whose SHA-256 fingerprint is already known, is the key of one of the trusted credentials.
+     *
+     * @param key the key to check
+     * @param sha256 SHA-256 fingerprint of the key
+     *
+     * @return true if the key is trusted
+     */
+    private boolean containsKey(Key key, KeyFingerprint sha256) {
+        if (bySha256.containsKey(sha256) || keyDigests.contains(sha256)) {
+            return true;
+        }
+        return hasSha512Digests && keyDigests.contains(KeyFingerprint.sha512(key));
+    }
+
+    /**
+     * Gets the subset of credentials whose key is the given key. Subsets are only kept for keys of this set, keys not
+     * in it all share one empty subset.
+     *
+     * @param key the key
+     *
+     * @return the subset of matching credentials
+     */
+    public TrustedCredentialSet forKey(Key key) {
+        KeyFingerprint digest = KeyFingerprint.sha256(key);
+        List<Credential> matches = lookup(digest);
+        if (matches.isEmpty()) {
+            TrustedCredentialSet subset = unknownKeySubset;
+            if (subset == null) {
+                subset = new TrustedCredentialSet(matches);
+                unknownKeySubset = subset;
+            }
+            return subset;
+        }
+        TrustedCredentialSet subset = keySubsets.get(digest);
+        if (subset == null) {
+            subset = new TrustedCredentialSet(matches);
+            TrustedCredentialSet existing = keySubsets.putIfAbsent(digest, subset);
+            if (existing != null) {
+                subset = existing;
+            }
+        }
+        return subset;
+    }
+
+    /**
+     * Gets the subset of credentials usable with the given key algorithm. Credentials holding no key are part of every
+     * subset since their algorithm can not be evaluated.
+     *
+     * @param keyAlgorithm the JCA key algorithm
+     *
+     * @return the subset of matching credentials
+     */
+    public TrustedCredentialSet forAlgorithm(String keyAlgorithm) {
+        String algorithm = normalizeKeyAlgorithm(keyAlgorithm);
+        TrustedCredentialSet subset = algorithmSubsets.get(algorithm);
+        if (subset == null) {
+            List<Credential> matches = new ArrayList<Credential>();
+            for (Credential credential : credentials) {
+                String credentialAlgorithm = getKeyAlgorithm(credential);
+                if (credentialAlgorithm == null || credentialAlgorithm.equalsIgnoreCase(algorithm)) {
+                    matches.add(credential);
+                }
+            }
+            subset = memoize(algorithmSubsets, algorithm, matches);
+        }
+        return subset;
+    }
+
+    /**
+     * Gets the subset of credentials whose key length, as given by {@link #getKeyLength(Credential)}, lies in a range.
+     * Credentials with a key of unknown length are part of every subset, credentials holding no key of none.
+     *
+     * <p>
+     * The range usually comes from an untrusted signature, so it is first narrowed to the key lengths present in this
+     * set and subsets are only kept for such narrowed ranges. Their number is bounded by the distinct key lengths of
+     * the credentials, whatever ranges are requested. A range holding no key length yields the credentials of unknown
+     * key length, usually none.
+     * </p>
+     *
+     * @param minLength minimum key length in octets
+     * @param maxLength maximum key length in octets
+     *
+     * @return the subset of matching credentials
+     */
+    public TrustedCredentialSet forKeyLength(int minLength, int maxLength) {
+        int low = 0;
+        int high = 0;
+        for (int length : keyLengths) {
+            if (length >= minLength && length <= maxLength) {
+                if (low == 0) {
+                    low = length;
+                }
+                high = length;
+            }
+        }
+        return forKnownKeyLength(low, high);
+    }
+
+    /**
+     * Gets the subset of credentials whose key length lies in a range of key lengths present in this set.
+     *
+     * @param minLength smallest key length of the range present in this set, 0 for no key length
+     * @param maxLength largest key length of the range present in this set, 0 for no key length
+     *
+     * @return the subset of matching credentials
+     */
+    private TrustedCredentialSet forKnownKeyLength(int minLength, int maxLength) {
+        Long range = Long.valueOf(((long) minLength << 32) | (maxLength & 0xffffffffL));
+        TrustedCredentialSet subset = keyLengthSubsets.get(range);
+        if (subset == null) {
+            List<Credential> matches = new ArrayList<Credential>();
+            for (Credential credential : credentials) {
+                int length = getKeyLength(credential);
+                if (length == 0 || (length >= minLength && length <= maxLength)) {
+                    matches.add(credential);
+                }
+            }
+            subset = memoize(keyLengthSubsets, range, matches);
+        }
+        return subset;
+    }
+
+    /**
+     * Builds the subsets of every key algorithm and, within those, of the credentials able to verify a signature of
+     * every key length present in this set, so that later requests for them are answered without scanning the
+     * credentials.
+     *
+     * @return this set
+     */
+    public TrustedCredentialSet partition() {
+        Set<String> algorithms = new HashSet<String>();
+        for (Credential credential : credentials) {
+            String algorithm = getKeyAlgorithm(credential);
+            if (algorithm != null) {
+                algorithms.add(algorithm);
+            }
+        }
+        for (String algorithm : algorithms) {
+            TrustedCredentialSet subset = forAlgorithm(algorithm);
+            Set<Integer> lengths = new HashSet<Integer>();
+            for (Credential credential : subset) {
+                int length = getKeyLength(credential);
+                if (length > 0 && lengths.add(Integer.valueOf(length))) {
+                    if ("RSA".equals(algorithm)) {
+                        subset.forKeyLength(length, length + RSA_SIGNATURE_SLACK);
+                    } else if ("EC".equals(algorithm)) {
+                        subset.forKeyLength(length - EC_SIGNATURE_SLACK, length + EC_SIGNATURE_SLACK);
+                    } else {
+                        subset.forKeyLength(length, length);
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Gets the subset of credentials bound to the given entity ID or not bound to any entity ID.
+     *
+     * @param entityId the entity ID
+     *
+     * @return the subset of matching credentials
+     */
+    public TrustedCredentialSet forEntity(String entityId) {
+        String key = byEntityId.containsKey(entityId) ? entityId : "";
+        TrustedCredentialSet subset = entitySubsets.get(key);
+        if (subset == null) {
+            List<Credential> matches = new ArrayList<Credential>();
+            List<Credential> bound = byEntityId.get(entityId);
+            for (Credential credential : credentials) {
+                if (credential.getEntityId() == null || (bound != null && bound.contains(credential))) {
+                    matches.add(credential);
+                }
+            }
+            subset = memoize(entitySubsets, key, matches);
+        }
+        return subset;
+    }
+
+    /**
+     * Gets the subset of credentials usable for the given usage. A credential with an unspecified usage is usable for
+     * every usage.
+     *
+     * @param usage the usage
+     *
+     * @return the subset of matching credentials
+     */
+    public TrustedCredentialSet forUsage(UsageType usage) {
+        if (!usageRestricted || usage == null || usage == UsageType.UNSPECIFIED) {
+            return this;
+        }
+        TrustedCredentialSet subset = usageSubsets.get(usage);
+        if (subset == null) {
+            List<Credential> matches = new ArrayList<Credential>();
+            for (Credential credential : credentials) {
+                UsageType credentialUsage = credential.getUsageType();
+                if (credentialUsage == null || credentialUsage == UsageType.UNSPECIFIED || credentialUsage == usage) {
+                    matches.add(credential);
+                }
+            }
+            subset = memoize(usageSubsets, usage, matches);
+        }
+        return subset;
+    }
+
+    /**
+     * Stores a newly built subset, returning the subset stored by a concurrent caller if there was one so that a
+     * subset keeps a single version.
+     *
+     * @param <K> type of the subset key
+     * @param subsets the subset cache
+     * @param key the subset key
+     * @param matches the credentials of the subset
+     *
+     * @return the cached subset
+     */
+    private <K> TrustedCredentialSet memoize(ConcurrentMap<K, TrustedCredentialSet> subsets, K key,
+            List<Credential> matches) {
+        TrustedCredentialSet subset;
+        if (matches.size() == credentials.size()) {
+            subset = this;
+        } else {
+            subset = new TrustedCredentialSet(matches, keyDigests, certificateDigests);
+        }
+        TrustedCredentialSet existing = subsets.putIfAbsent(key, subset);
+        return existing != null ? existing : subset;
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "TrustedCredentialSet[version=" + version + ", size=" + credentials.size() + ", digests="
+                + (keyDigests.size() + certificateDigests.size()) + "]";
+    }
+}
@@ -0,0 +1,317 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the work a {@link DaneExplicitKeySignatureTrustEngine} spends trying trusted credentials directly.
+ *
+ * <p>
+ * A signature without a usable KeyInfo makes the engine try every trusted credential of the signature's algorithm,
+ * so a peer can cheaply make the engine do many public key operations. A budget bounds the number of credentials
+ * tried and the CPU time spent trying them per validation, and optionally rate limits, per source entity, how often
+ * trusted credentials are tried at all with a token bucket. The CPU time is measured with {@link ThreadMXBean}, or as
+ * elapsed time if the JVM does not measure thread CPU time.
+ * </p>
+ *
+ * <p>
+ * Token buckets are kept for at most {@link #getMaxSources()} sources. Once that many are kept, buckets which have
+ * refilled completely, and so are no different from a new bucket, are discarded at most once per second. Sources
+ * which still find no room share a single overflow bucket, so that new sources can neither reset the buckets of
+ * others nor escape the rate limit.
+ * </p>
+ */
+public class VerificationBudget {
+
+    /** Source of CPU time measurements. */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /** Key of the token bucket of validations without a source entity. */
+    private static final String NO_SOURCE = "";
+
+    /** Minimum interval between discarding refilled token buckets, in nanoseconds. */
+    private static final long EVICTION_INTERVAL = 1000000000L;
+
+    /** Maximum number of trusted credentials tried per validation, 0 if unlimited. */
+    private int maxCredentials;
+
+    /** Maximum CPU time spent trying trusted credentials per validation, in nanoseconds, 0 if unlimited. */
+    private long maxCpuTime;
+
+    /** Number of times per second a source may have trusted credentials tried, 0 if unlimited. */
+    private int fallbackRate;
+
+    /** Number of times a source may have trusted credentials tried in a burst. Default value: 10 */
+    private int fallbackBurst = 10;
+
+    /** Maximum number of sources with a token bucket. Default value: 10000 */
+    private int maxSources = 10000;
+
+    /** Whether thread CPU time can be measured. */
+    private final boolean cpuTimeSupported;
+
+    /** Token buckets, keyed by source entity ID. */
+    private final ConcurrentMap<String, TokenBucket> buckets;
+
+    /** Token bucket shared by the sources which find no room for a bucket of their own. */
+    private final TokenBucket overflowBucket;
+
+    /** Time, from {@link System#nanoTime()}, refilled token buckets may next be discarded. */
+    private final AtomicLong nextEviction;
+
+    /** Constructor. */
+    public VerificationBudget() {
+        boolean supported = false;
+        try {
+            supported = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+        } catch (UnsupportedOperationException e) {
+            supported = false;
+        }
+        cpuTimeSupported = supported;
+        buckets = new ConcurrentHashMap<String, TokenBucket>();
+        overflowBucket = new TokenBucket(0);
+        nextEviction = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Gets the maximum number of trusted credentials tried per validation.
+     *
+     * @return maximum number of credentials, 0 if unlimited
+     */
+    public int getMaxCredentials() {
+        return maxCredentials;
+    }
+
+    /**
+     * Sets the maximum number of trusted credentials tried per validation.
+     *
+     * @param max maximum number of credentials, 0 for no limit
+     */
+    public void setMaxCredentials(int max) {
+        maxCredentials = max;
+    }
+
+    /**
+     * Gets the maximum CPU time spent trying trusted credentials per validation.
+     *
+     * @return maximum CPU time in milliseconds, 0 if unlimited
+     */
+    public long getMaxCpuTime() {
+        return maxCpuTime / 1000000L;
+    }
+
+    /**
+     * Sets the maximum CPU time spent trying trusted credentials per validation.
+     *
+     * @param max maximum CPU time in milliseconds, 0 for no limit
+     */
+    public void setMaxCpuTime(long max) {
+        maxCpuTime = max * 1000000L;
+    }
+
+    /**
+     * Gets the number of times per second a source may have trusted credentials tried.
+     *
+     * @return the rate, 0 if unlimited
+     */
+    public int getFallbackRate() {
+        return fallbackRate;
+    }
+
+    /**
+     * Sets the number of times per second a source may have trusted credentials tried.
+     *
+     * @param rate the rate, 0 for no limit
+     */
+    public void setFallbackRate(int rate) {
+        fallbackRate = rate;
+    }
+
+    /**
+     * Gets the number of times a source may have trusted credentials tried in a burst.
+     *
+     * @return the burst size
+     */
+    public int getFallbackBurst() {
+        return fallbackBurst;
+    }
+
+    /**
+     * Sets the number of times a source may have trusted credentials tried in a burst.
+     *
+     * @param burst the burst size, at least 1
+     */
+    public void setFallbackBurst(int burst) {
+        fallbackBurst = Math.max(1, burst);
+    }
+
+    /**
+     * Gets the maximum number of sources with a token bucket.
+     *
+     * @return maximum number of sources
+     */
+    public int getMaxSources() {
+        return maxSources;
+    }
+
+    /**
+     * Sets the maximum number of sources with a token bucket.
+     *
+     * @param max maximum number of sources
+     */
+    public void setMaxSources(int max) {
+        maxSources = max;
+    }
+
+    /**
+     * Takes a token from the bucket of a source, allowing it to have trusted credentials tried once.
+     *
+     * @param source the source entity ID, may be null
+     *
+     * @return true if trusted credentials may be tried, false if the source exceeded its rate
+     */
+    public boolean tryAcquire(String source) {
+        if (fallbackRate <= 0) {
+            return true;
+        }
+        String key = source != null ? source : NO_SOURCE;
+        long now = System.nanoTime();
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxSources) {
+                evictRefilled(now);
+            }
+            if (buckets.size() >= maxSources) {
+                bucket = overflowBucket;
+            } else {
+                TokenBucket newBucket = new TokenBucket(fallbackBurst);
+                bucket = buckets.putIfAbsent(key, newBucket);
+                if (bucket == null) {
+                    bucket = newBucket;
+                }
+            }
+        }
+        return bucket.tryAcquire(fallbackRate, fallbackBurst, now);
+    }
+
+    /**
+     * Discards the token buckets which have refilled completely, unless that was done less than a second ago.
+     *
+     * @param now the current time, from {@link System#nanoTime()}
+     */
+    private void evictRefilled(long now) {
+        long eviction = nextEviction.get();
+        if (now - eviction < 0 || !nextEviction.compareAndSet(eviction, now + EVICTION_INTERVAL)) {
+            return;
+        }
+        Iterator<TokenBucket> iterator = buckets.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isRefilled(fallbackRate, fallbackBurst, now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the CPU time used by the current thread, to measure the CPU time spent trying trusted credentials.
+     *
+     * @return the CPU time in nanoseconds, or the elapsed time if thread CPU time can not be measured
+     */
+    public long getCpuTime() {
+        if (cpuTimeSupported) {
+            return THREADS.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Checks whether a validation may not try any more trusted credentials.
+     *
+     * @param tried number of trusted credentials tried so far
+     * @param cpuTime CPU time spent trying them so far, in nanoseconds
+     *
+     * @return true if the budget is spent, otherwise false
+     */
+    public boolean isExceeded(int tried, long cpuTime) {
+        return (maxCredentials > 0 && tried >= maxCredentials) || (maxCpuTime > 0 && cpuTime >= maxCpuTime);
+    }
+
+    /** Token bucket of a source, refilled at the fallback rate up to the burst size. */
+    private static final class TokenBucket {
+
+        /** Number of available tokens, in billionths of a token. */
+        private long tokens;
+
+        /** Time, from {@link System#nanoTime()}, the bucket was last refilled. */
+        private long refilled;
+
+        /**
+         * Constructor.
+         *
+         * @param burst initial number of tokens
+         */
+        TokenBucket(int burst) {
+            tokens = burst * 1000000000L;
+            refilled = System.nanoTime();
+        }
+
+        /**
+         * Checks whether the bucket has refilled completely.
+         *
+         * @param rate tokens added per second
+         * @param burst maximum number of tokens
+         * @param now the current time, from {@link System#nanoTime()}
+         *
+         * @return true if the bucket holds the maximum number of tokens
+         */
+        synchronized boolean isRefilled(int rate, int burst, long now) {
+            long capacity = burst * 1000000000L;
+            long elapsed = now - refilled;
+            return tokens >= capacity || (elapsed > 0 && elapsed >= (capacity - tokens) / rate);
+        }
+
+        /**
+         * Refills the bucket and takes a token if one is available.
+         *
+         * @param rate tokens added per second
+         * @param burst maximum number of tokens
+         * @param now the current time, from {@link System#nanoTime()}
+         *
+         * @return true if a token was taken, otherwise false
+         */
+        synchronized boolean tryAcquire(int rate, int burst, long now) {
+            long elapsed = now - refilled;
+            if (elapsed > 0) {
+                long capacity = burst * 1000000000L;
+                long added = elapsed >= capacity / rate ? capacity : elapsed * rate;
+                tokens = Math.min(capacity, tokens + added);
+                refilled = now;
+            }
+            if (tokens < 1000000000L) {
+                return false;
+            }
+            tokens -= 1000000000L;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Master;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.RelativeNameException;
+import org.xbill.DNS.TLSARecord;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * {@link TlsaRecordSource} which answers lookups from the TLSA records of a local DNS zone file, or of every zone file
+ * in a directory, without sending any DNS queries.
+ *
+ * <p>
+ * The files are in standard master file format and are parsed once into an in-memory index keyed by owner name; records
+ * of any other type are ignored. Owner names must be absolute or the file must set <code>$ORIGIN</code>. Records for
+ * the same owner name found in several files are merged into one record set.
+ * </p>
+ *
+ * <p>
+ * Lookups check the modification time and length of the files at most once per reload interval. Only files which
+ * changed since they were last parsed are parsed again, by the lookup which noticed the change; concurrent lookups keep
+ * being answered from the previous index until the new one is published. Changes to files pulled in through
+ * <code>$INCLUDE</code> are not detected. If a file can not be parsed the previous index stays in use. The time-to-live
+ * of the returned record sets is capped at the reload interval so cached record sets do not outlive a change to the
+ * files for longer than the cache's minimum lifetime.
+ * </p>
+ *
+ * <p>
+ * If a {@link DnssecValidator} is set, the DS, DNSKEY and RRSIG records of the files are kept as well, TLSA record
+ * sets are validated with them and only secure ones are used. This allows DANE with DNSSEC to be tested against a
+ * locally signed zone.
+ * </p>
+ */
+public class ZoneFileTlsaRecordSource implements TlsaRecordSource, DnssecRecordSource {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ZoneFileTlsaRecordSource.class);
+
+    /** The zone file or directory of zone files. */
+    private final File path;
+
+    /** Interval, in milliseconds, at which the files are checked for changes. Default value: 1 minute */
+    private long reloadInterval = 60 * 1000;
+
+    /** Time, in milliseconds, at which the files are next checked for changes. */
+    private final AtomicLong nextCheck;
+
+    /** Validator TLSA record sets are validated with, null if they are not validated. */
+    private DnssecValidator validator;
+
+    /** Record sets of all files. */
+    private volatile ZoneIndex index;
+
+    /** Records of the files parsed so far, keyed by file path. */
+    private Map<String, ParsedZoneFile> parsedFiles;
+
+    /**
+     * Constructor.
+     *
+     * @param zonePath the zone file or directory of zone files
+     */
+    public ZoneFileTlsaRecordSource(File zonePath) {
+        if (zonePath == null) {
+            throw new IllegalArgumentException("Zone file path may not be null");
+        }
+        path = zonePath;
+        nextCheck = new AtomicLong();
+        index = new ZoneIndex(Collections.<Name, TlsaRRset> emptyMap(), Collections.<Name, List<RRset>> emptyMap());
+        parsedFiles = Collections.emptyMap();
+    }
+
+    /**
+     * Gets the zone file or directory of zone files.
+     *
+     * @return the zone file path
+     */
+    public File getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the interval at which the files are checked for changes.
+     *
+     * @return the reload interval in milliseconds
+     */
+    public long getReloadInterval() {
+        return reloadInterval;
+    }
+
+    /**
+     * Sets the interval at which the files are checked for changes.
+     *
+     * @param interval the reload interval in milliseconds, 0 disables reloading once the files have been loaded
+     */
+    public void setReloadInterval(long interval) {
+        reloadInterval = interval;
+    }
+
+    /**
+     * Gets the validator TLSA record sets are validated with.
+     *
+     * @return the DNSSEC validator, or null if record sets are not validated
+     */
+    public DnssecValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Sets the validator TLSA record sets are validated with. Record sets which are not secure are treated as empty.
+     * The DS, DNSKEY and RRSIG records of the files are only kept if the validator is set before the files are loaded.
+     *
+     * @param dnssecValidator the DNSSEC validator, or null to not validate record sets
+     */
+    public void setValidator(DnssecValidator dnssecValidator) {
+        validator = dnssecValidator;
+    }
+
+    /**
+     * Gets the number of owner names with TLSA records in the current index.
+     *
+     * @return the number of owner names
+     */
+    public int size() {
+        return index.rrsets.size();
+    }
+
+    /** {@inheritDoc} */
+    public TlsaRRset lookup(String ownerName) throws IOException {
+        checkForChanges();
+        Name name = Name.fromString(ownerName, Name.root);
+        if (validator != null) {
+            return lookupValidated(ownerName, name);
+        }
+        TlsaRRset rrset = index.rrsets.get(name);
+        if (rrset == null) {
+            log.debug("[DaneExtension] no TLSA records at {} in zone files {}", name, path);
+            return new TlsaRRset(ownerName, null, getNegativeTTL());
+        }
+        log.debug("[DaneExtension] found {} TLSA records at {} in zone files", rrset.getAssociations().size(), name);
+        return new TlsaRRset(ownerName, rrset.getAssociations(), rrset.getTTL());
+    }
+
+    /** {@inheritDoc} */
+    public RRset lookupSigned(Name name, int type) throws IOException {
+        List<RRset> rrsets = index.signed.get(name);
+        if (rrsets != null) {
+            for (RRset rrset : rrsets) {
+                if (rrset.getType() == type) {
+                    return rrset;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the TLSA record set at an owner name and validates it. A record set which is not secure is treated as
+     * empty, and the time-to-live of a secure one is capped at the expiry of its chain of trust.
+     *
+     * @param ownerName absolute TLSA owner name
+     * @param name the owner name as a DNS name
+     *
+     * @return the record set
+     *
+     * @throws IOException if the record set is bogus
+     */
+    private TlsaRRset lookupValidated(String ownerName, Name name) throws IOException {
+        TlsaRRset rrset = index.rrsets.get(name);
+        RRset signed = lookupSigned(name, Type.TLSA);
+        if (rrset == null || signed == null) {
+            log.debug("[DaneExtension] no TLSA records at {} in zone files {}", name, path);
+            return new TlsaRRset(ownerName, null, getNegativeTTL());
+        }
+        long validUntil = validator.validate(signed);
+        if (validUntil == 0) {
+            log.warn("[DaneExtension] ignoring TLSA records at {}, they are not secured by DNSSEC", name);
+            return new TlsaRRset(ownerName, null, getNegativeTTL());
+        }
+        long ttl = Math.min(rrset.getTTL(), Math.max(0, (validUntil - System.currentTimeMillis()) / 1000));
+        log.debug("[DaneExtension] found {} DNSSEC validated TLSA records at {} in zone files", rrset
+                .getAssociations().size(), name);
+        return new TlsaRRset(ownerName, rrset.getAssociations(), ttl);
+    }
+
+    /**
+     * Loads the files if any of them changed since the previous load and publishes the new index.
+     *
+     * @return true if a new index was published, false if no file changed
+     *
+     * @throws IOException if the files can not be read or parsed
+     */
+    public synchronized boolean load() throws IOException {
+        File[] files;
+        if (path.isDirectory()) {
+            files = path.listFiles();
+            if (files == null) {
+                throw new IOException("Unable to list zone file directory " + path);
+            }
+            Arrays.sort(files);
+        } else if (path.isFile()) {
+            files = new File[] {path};
+        } else {
+            throw new IOException("Zone file path " + path + " does not exist");
+        }
+
+        Map<String, ParsedZoneFile> previous = parsedFiles;
+        Map<String, ParsedZoneFile> current = new HashMap<String, ParsedZoneFile>();
+        boolean changed = false;
+        for (File file : files) {
+            if (!file.isFile() || file.isHidden()) {
+                continue;
+            }
+            String key = file.getPath();
+            ParsedZoneFile parsed = previous.get(key);
+            if (parsed == null || !parsed.isCurrent(file)) {
+                long lastModified = file.lastModified();
+                long length = file.length();
+                parsed = parse(file, lastModified, length);
+                changed = true;
+            }
+            current.put(key, parsed);
+        }
+        if (!changed && current.size() == previous.size()) {
+            return false;
+        }
+
+        index = buildIndex(files, current);
+        parsedFiles = current;
+        log.info("[DaneExtension] loaded TLSA records for {} owner names from {} zone files in {}", new Object[] {
+                index.rrsets.size(), current.size(), path});
+        return true;
+    }
+
+    /**
+     * Loads the files if the reload interval elapsed since they were last checked. Only the first lookup after the
+     * interval elapsed checks the files; if they can not be loaded the previous index stays in use, unless nothing was
+     * ever loaded.
+     *
+     * @throws IOException if the files have never been loaded and can not be loaded now
+     */
+    private void checkForChanges() throws IOException {
+        long check = nextCheck.get();
+        long now = System.currentTimeMillis();
+        if (check == 0) {
+            synchronized (this) {
+                if (nextCheck.get() == 0) {
+                    load();
+                    nextCheck.set(nextCheckTime(now));
+                }
+            }
+            return;
+        }
+        if (reloadInterval <= 0 || now < check || !nextCheck.compareAndSet(check, nextCheckTime(now))) {
+            return;
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            log.error("[DaneExtension] unable to reload TLSA records from " + path
+                    + ", keeping the current records", e);
+        }
+    }
+
+    /**
+     * Gets how long the absence of TLSA records may be cached, which is until the files are next checked for changes.
+     *
+     * @return the negative time-to-live in seconds
+     */
+    private long getNegativeTTL() {
+        return reloadInterval > 0 ? Math.max(1, reloadInterval / 1000) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Computes when the files are next checked for changes.
+     *
+     * @param now the current time in milliseconds
+     *
+     * @return the time of the next check in milliseconds, never 0
+     */
+    private long nextCheckTime(long now) {
+        if (reloadInterval <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(1, now + reloadInterval);
+    }
+
+    /**
+     * Parses the TLSA records of a zone file, and its DS, DNSKEY and RRSIG records if a validator is set.
+     *
+     * @param file the zone file
+     * @param lastModified modification time of the file before it is parsed
+     * @param length length of the file before it is parsed
+     *
+     * @return the parsed file
+     *
+     * @throws IOException if the file can not be read or parsed
+     */
+    private ParsedZoneFile parse(File file, long lastModified, long length) throws IOException {
+        Map<Name, ParsedRRset> rrsets = new HashMap<Name, ParsedRRset>();
+        List<Record> dnssecRecords = null;
+        if (validator != null) {
+            dnssecRecords = new ArrayList<Record>();
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            Master master = new Master(in);
+            int count = 0;
+            Record record;
+            while ((record = master.nextRecord()) != null) {
+                if (dnssecRecords != null && isDnssecRecord(record)) {
+                    dnssecRecords.add(record);
+                }
+                if (!(record instanceof TLSARecord)) {
+                    continue;
+                }
+                TLSARecord tlsa = (TLSARecord) record;
+                ParsedRRset rrset = rrsets.get(tlsa.getName());
+                if (rrset == null) {
+                    rrset = new ParsedRRset();
+                    rrsets.put(tlsa.getName(), rrset);
+                }
+                rrset.add(new TlsaAssociation(tlsa.getCertificateUsage(), tlsa.getSelector(), tlsa
+                        .getMatchingType(), tlsa.getCertificateAssociationData()), tlsa.getTTL());
+                count++;
+            }
+            log.debug("[DaneExtension] parsed {} TLSA records from zone file {}", count, file);
+        } catch (TextParseException e) {
+            throw new IOException("Unable to parse zone file " + file + ": " + e.getMessage());
+        } catch (RelativeNameException e) {
+            throw new IOException("Zone file " + file + " holds a relative name but does not set $ORIGIN: "
+                    + e.getMessage());
+        } finally {
+            in.close();
+        }
+        return new ParsedZoneFile(lastModified, length, rrsets, dnssecRecords);
+    }
+
+    /**
+     * Checks whether a record is needed to validate TLSA record sets.
+     *
+     * @param record the record
+     *
+     * @return true for TLSA, DS and DNSKEY records and the RRSIG records covering them
+     */
+    private static boolean isDnssecRecord(Record record) {
+        int type = record.getRRsetType();
+        return type == Type.TLSA || type == Type.DS || type == Type.DNSKEY;
+    }
+
+    /**
+     * Merges the records of the parsed files into the index answering lookups.
+     *
+     * @param files the files, in the order their records are merged
+     * @param parsed the parsed files, keyed by file path
+     *
+     * @return the index
+     */
+    private ZoneIndex buildIndex(File[] files, Map<String, ParsedZoneFile> parsed) {
+        Map<Name, ParsedRRset> merged = new HashMap<Name, ParsedRRset>();
+        Map<Name, List<RRset>> signed = new HashMap<Name, List<RRset>>();
+        for (File file : files) {
+            ParsedZoneFile zoneFile = parsed.get(file.getPath());
+            if (zoneFile == null) {
+                continue;
+            }
+            for (Map.Entry<Name, ParsedRRset> entry : zoneFile.rrsets.entrySet()) {
+                ParsedRRset rrset = merged.get(entry.getKey());
+                if (rrset == null) {
+                    rrset = new ParsedRRset();
+                    merged.put(entry.getKey(), rrset);
+                }
+                rrset.addAll(entry.getValue());
+            }
+            if (zoneFile.dnssecRecords != null) {
+                for (Record record : zoneFile.dnssecRecords) {
+                    addSigned(signed, record);
+                }
+            }
+        }
+
+        long maxTTL = Long.MAX_VALUE;
+        if (reloadInterval > 0) {
+            maxTTL = Math.max(1, reloadInterval / 1000);
+        }
+        Map<Name, TlsaRRset> rrsets = new HashMap<Name, TlsaRRset>(merged.size() * 4 / 3 + 1);
+        for (Map.Entry<Name, ParsedRRset> entry : merged.entrySet()) {
+            ParsedRRset rrset = entry.getValue();
+            rrsets.put(entry.getKey(), new TlsaRRset(entry.getKey().toString(), rrset.associations, Math.min(
+                    rrset.ttl, maxTTL)));
+        }
+        return new ZoneIndex(rrsets, signed);
+    }
+
+    /**
+     * Adds a record to the record set of its name and type.
+     *
+     * @param signed the record sets, keyed by owner name
+     * @param record the record
+     */
+    private static void addSigned(Map<Name, List<RRset>> signed, Record record) {
+        List<RRset> rrsets = signed.get(record.getName());
+        if (rrsets == null) {
+            rrsets = new ArrayList<RRset>(2);
+            signed.put(record.getName(), rrsets);
+        }
+        for (RRset rrset : rrsets) {
+            if (rrset.getType() == record.getRRsetType()) {
+                rrset.addRR(record);
+                return;
+            }
+        }
+        rrsets.add(new RRset(record));
+    }
+
+    /** The record sets answering lookups, published as one unit. */
+    private static final class ZoneIndex {
+
+        /** The TLSA record sets, keyed by owner name. */
+        private final Map<Name, TlsaRRset> rrsets;
+
+        /** The TLSA, DS and DNSKEY record sets with their signatures, keyed by owner name. */
+        private final Map<Name, List<RRset>> signed;
+
+        /**
+         * Constructor.
+         *
+         * @param tlsaRRsets the TLSA record sets
+         * @param signedRRsets the record sets with their signatures
+         */
+        ZoneIndex(Map<Name, TlsaRRset> tlsaRRsets, Map<Name, List<RRset>> signedRRsets) {
+            rrsets = tlsaRRsets;
+            signed = signedRRsets;
+        }
+    }
+
+    /** The certificate associations found for one owner name while parsing. */
+    private static final class ParsedRRset {
+
+        /** The certificate associations. */
+        private final List<TlsaAssociation> associations = new ArrayList<TlsaAssociation>(2);
+
+        /** Lowest time-to-live of the records, in seconds. */
+        private long ttl = Long.MAX_VALUE;
+
+        /**
+         * Adds a certificate association.
+         *
+         * @param association the certificate association
+         * @param recordTTL time-to-live of the record, in seconds
+         */
+        void add(TlsaAssociation association, long recordTTL) {
+            associations.add(association);
+            ttl = Math.min(ttl, recordTTL);
+        }
+
+        /**
+         * Adds the certificate associations of another record set.
+         *
+         * @param other the other record set
+         */
+        void addAll(ParsedRRset other) {
+            associations.addAll(other.associations);
+            ttl = Math.min(ttl, other.ttl);
+        }
+    }
+
+    /** TLSA records parsed from a zone file, with the state of the file they were parsed from. */
+    private static final class ParsedZoneFile {
+
+        /** Modification time of the file. */
+        private final long lastModified;
+
+        /** Length of the file. */
+        private final long length;
+
+        /** The record sets of the file, keyed by owner name. */
+        private final Map<Name, ParsedRRset> rrsets;
+
+        /** The TLSA, DS, DNSKEY and RRSIG records of the file, null if they were not kept. */
+        private final List<Record> dnssecRecords;
+
+        /**
+         * Constructor.
+         *
+         * @param fileLastModified modification time of the file before it was parsed
+         * @param fileLength length of the file before it was parsed
+         * @param parsed the record sets parsed from the file
+         * @param records the TLSA, DS, DNSKEY and RRSIG records of the file, null if they were not kept
+         */
+        ParsedZoneFile(long fileLastModified, long fileLength, Map<Name, ParsedRRset> parsed, List<Record> records) {
+            lastModified = fileLastModified;
+            length = fileLength;
+            rrsets = parsed;
+            dnssecRecords = records;
+        }
+
+        /**
+         * Checks whether the file is unchanged since it was parsed.
+         *
+         * @param file the file
+         *
+         * @return true if the file is unchanged, otherwise false
+         */
+        boolean isCurrent(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+}
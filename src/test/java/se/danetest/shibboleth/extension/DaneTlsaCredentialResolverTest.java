@@ -0,0 +1,153 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+
+/** Tests {@link DaneTlsaCredentialResolver} and the TLSA association matching it relies on. */
+public class DaneTlsaCredentialResolverTest {
+
+    /** Entity ID of the signer. */
+    private static final String ENTITY_ID = "https://IdP.example.org/idp/shibboleth";
+
+    /** TLSA owner name of the signer. */
+    private static final String OWNER_NAME = "_443._tcp.idp.example.org.";
+
+    /** Key published with an exact DANE-EE association. */
+    private KeyPair exactKey;
+
+    /** Key published with a SHA-256 DANE-EE association. */
+    private KeyPair digestKey;
+
+    /** Key published with a PKIX-EE association, which is not usable as trust material. */
+    private KeyPair pkixKey;
+
+    /** Zone file holding the TLSA records of {@link #OWNER_NAME}. */
+    private File zoneFile;
+
+    /** The resolver under test. */
+    private DaneTlsaCredentialResolver resolver;
+
+    /**
+     * Generates the keys, writes the zone file and builds the resolver.
+     *
+     * @throws Exception if the keys can not be generated or the file can not be written
+     */
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        exactKey = generator.generateKeyPair();
+        digestKey = generator.generateKeyPair();
+        pkixKey = generator.generateKeyPair();
+        zoneFile = TlsaRecordCacheTest.writeZoneFile(
+                OWNER_NAME + " 300 IN TLSA 3 1 0 " + TlsaRecordCacheTest.hex(exactKey.getPublic().getEncoded()),
+                OWNER_NAME + " 300 IN TLSA 3 1 1 "
+                        + TlsaRecordCacheTest.hex(KeyFingerprint.sha256(digestKey.getPublic()).getValue()),
+                OWNER_NAME + " 300 IN TLSA 1 1 0 " + TlsaRecordCacheTest.hex(pkixKey.getPublic().getEncoded()));
+        resolver = new DaneTlsaCredentialResolver(new TlsaRecordCache(new ZoneFileTlsaRecordSource(zoneFile)));
+    }
+
+    /** Deletes the zone file. */
+    @After
+    public void tearDown() {
+        zoneFile.delete();
+    }
+
+    /**
+     * The DANE-EE associations of the signer's owner name are resolved into trusted keys, other usages are ignored.
+     *
+     * @throws Exception if the resolution fails
+     */
+    @Test
+    public void testResolveEntity() throws Exception {
+        TrustedCredentialSet credentials = resolver.resolveTrusted(criteria(ENTITY_ID), null, null);
+
+        assertEquals(1, credentials.size());
+        assertTrue(credentials.contains(exactKey.getPublic()));
+        assertTrue(credentials.contains(digestKey.getPublic()));
+        assertFalse(credentials.contains(pkixKey.getPublic()));
+        assertSame(credentials, resolver.resolveTrusted(criteria(ENTITY_ID), null, null));
+    }
+
+    /**
+     * Entity IDs without TLSA records, or without a host name to look them up at, resolve to no trusted credentials.
+     *
+     * @throws Exception if the resolution fails
+     */
+    @Test
+    public void testResolveWithoutRecords() throws Exception {
+        assertTrue(resolver.resolveTrusted(criteria("https://sp.example.org/shibboleth"), null, null).isEmpty());
+        assertTrue(resolver.resolveTrusted(criteria("urn:mace:example.org:idp"), null, null).isEmpty());
+        assertTrue(resolver.resolveTrusted(new CriteriaSet(), null, null).isEmpty());
+        assertTrue(resolver.resolveTrusted(null, null, null).isEmpty());
+    }
+
+    /** Owner names are derived from the host name of the entity ID. */
+    @Test
+    public void testOwnerName() {
+        assertEquals("IdP.example.org", DaneTlsaCredentialResolver.getHostName(ENTITY_ID));
+        assertEquals("idp.example.org", DaneTlsaCredentialResolver.getHostName(" idp.example.org "));
+        assertNull(DaneTlsaCredentialResolver.getHostName("urn:mace:example.org:idp"));
+        assertEquals(OWNER_NAME, resolver.getOwnerName("IdP.example.org"));
+        assertEquals(OWNER_NAME, resolver.getOwnerName("idp.example.org."));
+    }
+
+    /** Only DANE-EE associations with a selector and matching type defined by RFC 6698 are usable. */
+    @Test
+    public void testAssociationMatching() {
+        byte[] digest = KeyFingerprint.sha256(digestKey.getPublic()).getValue();
+        TlsaAssociation association = new TlsaAssociation(TlsaAssociation.USAGE_DANE_EE,
+                TlsaAssociation.SELECTOR_SPKI, TlsaAssociation.MATCHING_SHA256, digest);
+
+        assertTrue(association.isUsable());
+        assertFalse(association.isExact());
+        assertTrue(association.getDigest().matches(digest));
+        assertEquals(association, new TlsaAssociation(3, 1, 1, digest.clone()));
+        assertFalse(new TlsaAssociation(1, 1, 1, digest).isUsable());
+        assertFalse(new TlsaAssociation(3, 2, 1, digest).isUsable());
+        assertFalse(new TlsaAssociation(3, 1, 3, digest).isUsable());
+        assertNull(new TlsaAssociation(3, 1, 0, exactKey.getPublic().getEncoded()).getDigest());
+    }
+
+    /**
+     * Builds criteria identifying an entity.
+     *
+     * @param entityId the entity ID
+     *
+     * @return the criteria
+     */
+    private static CriteriaSet criteria(String entityId) {
+        return new CriteriaSet(new EntityIDCriteria(entityId));
+    }
+}
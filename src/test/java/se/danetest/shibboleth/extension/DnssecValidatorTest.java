@@ -0,0 +1,414 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNSKEYRecord;
+import org.xbill.DNS.DNSSEC;
+import org.xbill.DNS.DSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRSIGRecord;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.TLSARecord;
+import org.xbill.DNS.Type;
+
+/**
+ * Tests {@link DnssecValidator} and {@link ZoneFileTlsaRecordSource} against a small zone signed at test time. The
+ * trust anchor is the DS record of <code>example.</code>, which delegates to <code>sub.example.</code>, which holds
+ * the TLSA record set.
+ */
+public class DnssecValidatorTest {
+
+    /** Time-to-live of the test records, in seconds. */
+    private static final long TTL = 3600;
+
+    /** Signed parent zone. */
+    private static final Name PARENT = name("example.");
+
+    /** Signed child zone. */
+    private static final Name CHILD = name("sub.example.");
+
+    /** TLSA owner name in the child zone. */
+    private static final Name TLSA_NAME = name("_443._tcp.www.sub.example.");
+
+    /** Key of the parent zone. */
+    private DNSKEYRecord parentKey;
+
+    /** Private key of the parent zone. */
+    private KeyPair parentKeyPair;
+
+    /** Key of the child zone. */
+    private DNSKEYRecord childKey;
+
+    /** Private key of the child zone. */
+    private KeyPair childKeyPair;
+
+    /** Trust anchor: DS record of the parent zone. */
+    private DSRecord trustAnchor;
+
+    /** Signature inception of valid signatures. */
+    private Date inception;
+
+    /** Signature expiration of valid signatures. */
+    private Date expiration;
+
+    /**
+     * Generates the zone keys.
+     *
+     * @throws Exception if the keys can not be generated
+     */
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        parentKeyPair = generator.generateKeyPair();
+        childKeyPair = generator.generateKeyPair();
+        parentKey = newKey(PARENT, parentKeyPair);
+        childKey = newKey(CHILD, childKeyPair);
+        trustAnchor = new DSRecord(PARENT, DClass.IN, TTL, DSRecord.Digest.SHA256, parentKey);
+        long now = System.currentTimeMillis();
+        inception = new Date(now - 60 * 60 * 1000L);
+        expiration = new Date(now + 24 * 60 * 60 * 1000L);
+    }
+
+    /**
+     * A TLSA record set signed along an unbroken chain of trust is secure.
+     *
+     * @throws Exception if the test zone can not be built
+     */
+    @Test
+    public void testSecureZone() throws Exception {
+        InMemorySource source = newSignedZone();
+        DnssecValidator validator = new DnssecValidator(source, Collections.<Record> singletonList(trustAnchor));
+
+        long validUntil = validator.validate(source.lookupSigned(TLSA_NAME, Type.TLSA));
+
+        assertTrue(validUntil > System.currentTimeMillis());
+        assertTrue(validUntil <= System.currentTimeMillis() + TTL * 1000);
+    }
+
+    /**
+     * A TLSA record set whose signature has been tampered with is bogus.
+     *
+     * @throws Exception if the test zone can not be built
+     */
+    @Test
+    public void testTamperedSignature() throws Exception {
+        InMemorySource source = newSignedZone();
+        RRset tlsa = source.lookupSigned(TLSA_NAME, Type.TLSA);
+        RRset tampered = new RRset();
+        Iterator<?> rrs = tlsa.rrs();
+        while (rrs.hasNext()) {
+            tampered.addRR((Record) rrs.next());
+        }
+        Iterator<?> sigs = tlsa.sigs();
+        while (sigs.hasNext()) {
+            RRSIGRecord sig = (RRSIGRecord) sigs.next();
+            byte[] signature = sig.getSignature().clone();
+            signature[signature.length / 2] ^= 0x01;
+            tampered.addRR(new RRSIGRecord(sig.getName(), sig.getDClass(), sig.getTTL(), sig.getTypeCovered(),
+                    sig.getAlgorithm(), sig.getOrigTTL(), sig.getExpire(), sig.getTimeSigned(), sig.getFootprint(),
+                    sig.getSigner(), signature));
+        }
+        DnssecValidator validator = new DnssecValidator(source, Collections.<Record> singletonList(trustAnchor));
+
+        try {
+            validator.validate(tampered);
+            fail("Tampered signature was accepted");
+        } catch (DnssecValidationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A TLSA record set in a zone without DS records at its parent is insecure, not secure.
+     *
+     * @throws Exception if the test zone can not be built
+     */
+    @Test
+    public void testMissingDS() throws Exception {
+        InMemorySource source = newSignedZone();
+        source.remove(CHILD, Type.DS);
+        DnssecValidator validator = new DnssecValidator(source, Collections.<Record> singletonList(trustAnchor));
+
+        assertEquals(0, validator.validate(source.lookupSigned(TLSA_NAME, Type.TLSA)));
+    }
+
+    /**
+     * A TLSA record set whose only signature has expired is bogus.
+     *
+     * @throws Exception if the test zone can not be built
+     */
+    @Test
+    public void testExpiredSignature() throws Exception {
+        InMemorySource source = newSignedZone();
+        long now = System.currentTimeMillis();
+        source.add(sign(newTlsaSet(), childKey, childKeyPair, new Date(now - 48 * 60 * 60 * 1000L), new Date(now
+                - 24 * 60 * 60 * 1000L)));
+        DnssecValidator validator = new DnssecValidator(source, Collections.<Record> singletonList(trustAnchor));
+
+        try {
+            validator.validate(source.lookupSigned(TLSA_NAME, Type.TLSA));
+            fail("Expired signature was accepted");
+        } catch (DnssecValidationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A zone not signed by the key the trust anchor names is bogus.
+     *
+     * @throws Exception if the test zone can not be built
+     */
+    @Test
+    public void testWrongTrustAnchor() throws Exception {
+        InMemorySource source = newSignedZone();
+        DSRecord otherAnchor = new DSRecord(PARENT, DClass.IN, TTL, DSRecord.Digest.SHA256, childKey);
+        DnssecValidator validator = new DnssecValidator(source, Collections.<Record> singletonList(otherAnchor));
+
+        try {
+            validator.validate(source.lookupSigned(TLSA_NAME, Type.TLSA));
+            fail("Zone was accepted with a trust anchor not matching its key");
+        } catch (DnssecValidationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A zone file source with a validator only returns TLSA records which are secure.
+     *
+     * @throws Exception if the zone file can not be written
+     */
+    @Test
+    public void testZoneFileSource() throws Exception {
+        InMemorySource zone = newSignedZone();
+        File secureFile = writeZoneFile(zone);
+        zone.remove(CHILD, Type.DS);
+        File insecureFile = writeZoneFile(zone);
+        try {
+            ZoneFileTlsaRecordSource secure = new ZoneFileTlsaRecordSource(secureFile);
+            secure.setValidator(new DnssecValidator(secure, Collections.<Record> singletonList(trustAnchor)));
+            TlsaRRset rrset = secure.lookup(TLSA_NAME.toString());
+            assertEquals(1, rrset.getAssociations().size());
+
+            ZoneFileTlsaRecordSource insecure = new ZoneFileTlsaRecordSource(insecureFile);
+            insecure.setValidator(new DnssecValidator(insecure, Collections.<Record> singletonList(trustAnchor)));
+            assertTrue(insecure.lookup(TLSA_NAME.toString()).isEmpty());
+        } finally {
+            assertTrue(secureFile.delete());
+            assertTrue(insecureFile.delete());
+        }
+    }
+
+    /**
+     * The trust anchor fingerprint does not depend on the order of the anchors.
+     *
+     * @throws Exception if the test zone can not be built
+     */
+    @Test
+    public void testTrustAnchorFingerprint() throws Exception {
+        InMemorySource source = newSignedZone();
+        DSRecord childAnchor = new DSRecord(CHILD, DClass.IN, TTL, DSRecord.Digest.SHA256, childKey);
+        List<Record> anchors = new ArrayList<Record>();
+        anchors.add(trustAnchor);
+        anchors.add(childAnchor);
+        KeyFingerprint fingerprint = new DnssecValidator(source, anchors).getTrustAnchorFingerprint();
+        Collections.reverse(anchors);
+
+        assertEquals(fingerprint, new DnssecValidator(source, anchors).getTrustAnchorFingerprint());
+        assertFalse(fingerprint.equals(new DnssecValidator(source, Collections.<Record> singletonList(trustAnchor))
+                .getTrustAnchorFingerprint()));
+    }
+
+    /**
+     * Builds the signed parent and child zones.
+     *
+     * @return the record sets of the zones
+     *
+     * @throws Exception if the record sets can not be signed
+     */
+    private InMemorySource newSignedZone() throws Exception {
+        InMemorySource source = new InMemorySource();
+        source.add(sign(newRRset(parentKey), parentKey, parentKeyPair, inception, expiration));
+        source.add(sign(newRRset(childKey), childKey, childKeyPair, inception, expiration));
+        DSRecord childDS = new DSRecord(CHILD, DClass.IN, TTL, DSRecord.Digest.SHA256, childKey);
+        source.add(sign(newRRset(childDS), parentKey, parentKeyPair, inception, expiration));
+        source.add(sign(newTlsaSet(), childKey, childKeyPair, inception, expiration));
+        return source;
+    }
+
+    /**
+     * Creates the TLSA record set of the child zone.
+     *
+     * @return the unsigned record set
+     */
+    private static RRset newTlsaSet() {
+        byte[] data = new byte[32];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        return newRRset(new TLSARecord(TLSA_NAME, DClass.IN, TTL, TLSARecord.CertificateUsage.DOMAIN_ISSUED_CERTIFICATE,
+                TLSARecord.Selector.SUBJECT_PUBLIC_KEY_INFO, TLSARecord.MatchingType.SHA256, data));
+    }
+
+    /**
+     * Creates a zone key.
+     *
+     * @param zone the zone
+     * @param keyPair the key pair
+     *
+     * @return the DNSKEY record
+     *
+     * @throws Exception if the key can not be encoded
+     */
+    private static DNSKEYRecord newKey(Name zone, KeyPair keyPair) throws Exception {
+        return new DNSKEYRecord(zone, DClass.IN, TTL, DNSKEYRecord.Flags.ZONE_KEY | DNSKEYRecord.Flags.SEP_KEY,
+                DNSKEYRecord.Protocol.DNSSEC, DNSSEC.Algorithm.RSASHA256, keyPair.getPublic());
+    }
+
+    /**
+     * Creates a record set of a single record.
+     *
+     * @param record the record
+     *
+     * @return the record set
+     */
+    private static RRset newRRset(Record record) {
+        RRset rrset = new RRset();
+        rrset.addRR(record);
+        return rrset;
+    }
+
+    /**
+     * Signs a record set.
+     *
+     * @param rrset the record set
+     * @param key the signing zone key
+     * @param keyPair the key pair of the zone key
+     * @param signatureInception start of the signature validity period
+     * @param signatureExpiration end of the signature validity period
+     *
+     * @return the record set with the signature added
+     *
+     * @throws Exception if the record set can not be signed
+     */
+    private static RRset sign(RRset rrset, DNSKEYRecord key, KeyPair keyPair, Date signatureInception,
+            Date signatureExpiration) throws Exception {
+        rrset.addRR(DNSSEC.sign(rrset, key, keyPair.getPrivate(), signatureInception, signatureExpiration));
+        return rrset;
+    }
+
+    /**
+     * Writes the record sets of a zone to a temporary zone file.
+     *
+     * @param zone the zone
+     *
+     * @return the zone file
+     *
+     * @throws IOException if the file can not be written
+     */
+    private static File writeZoneFile(InMemorySource zone) throws IOException {
+        File file = File.createTempFile("dnssec-test", ".zone");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "US-ASCII");
+        try {
+            for (RRset rrset : zone.rrsets.values()) {
+                Iterator<?> records = rrset.rrs();
+                while (records.hasNext()) {
+                    writer.write(records.next() + "\n");
+                }
+                Iterator<?> sigs = rrset.sigs();
+                while (sigs.hasNext()) {
+                    writer.write(sigs.next() + "\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Parses an absolute DNS name.
+     *
+     * @param name the name
+     *
+     * @return the DNS name
+     */
+    private static Name name(String name) {
+        try {
+            return Name.fromString(name);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** {@link DnssecRecordSource} answering from signed record sets held in memory. */
+    private static final class InMemorySource implements DnssecRecordSource {
+
+        /** Record sets, keyed by owner name and type. */
+        private final Map<String, RRset> rrsets = new HashMap<String, RRset>();
+
+        /**
+         * Adds or replaces a record set.
+         *
+         * @param rrset the record set
+         */
+        void add(RRset rrset) {
+            rrsets.put(rrset.getName() + "/" + rrset.getType(), rrset);
+        }
+
+        /**
+         * Removes a record set.
+         *
+         * @param name owner name
+         * @param type record type
+         */
+        void remove(Name name, int type) {
+            rrsets.remove(name + "/" + type);
+        }
+
+        /** {@inheritDoc} */
+        public RRset lookupSigned(Name name, int type) {
+            return rrsets.get(name + "/" + type);
+        }
+    }
+}
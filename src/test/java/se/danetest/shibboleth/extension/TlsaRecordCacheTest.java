@@ -0,0 +1,422 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests {@link TlsaRecordCache}, mostly against TLSA records of a zone file. */
+public class TlsaRecordCacheTest {
+
+    /** Owner name with TLSA records in the zone file. */
+    private static final String OWNER_NAME = "_443._tcp.idp.example.org.";
+
+    /** Owner name without TLSA records in the zone file. */
+    private static final String MISSING_NAME = "_443._tcp.missing.example.org.";
+
+    /** Owner name whose lookup occupies the refresh thread. */
+    private static final String BLOCKING_NAME = "_443._tcp.blocking.example.";
+
+    /** Owner name refreshed behind the blocking lookup. */
+    private static final String QUEUED_NAME = "_443._tcp.queued.example.";
+
+    /** Key published with an exact TLSA association. */
+    private KeyPair exactKey;
+
+    /** Key published with a SHA-256 TLSA association. */
+    private KeyPair digestKey;
+
+    /** Zone file holding the TLSA records of {@link #OWNER_NAME}. */
+    private File zoneFile;
+
+    /**
+     * Generates the keys and writes the zone file.
+     *
+     * @throws Exception if the keys can not be generated or the file can not be written
+     */
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        exactKey = generator.generateKeyPair();
+        digestKey = generator.generateKeyPair();
+        zoneFile = writeZoneFile(OWNER_NAME + " 300 IN TLSA 3 1 0 " + hex(exactKey.getPublic().getEncoded()),
+                OWNER_NAME + " 300 IN TLSA 3 1 1 "
+                        + hex(KeyFingerprint.sha256(digestKey.getPublic()).getValue()));
+    }
+
+    /** Deletes the zone file. */
+    @After
+    public void tearDown() {
+        zoneFile.delete();
+    }
+
+    /**
+     * The TLSA records of an owner name are materialised into trusted keys and digests, and served from the cache on
+     * later lookups as the same set.
+     *
+     * @throws Exception if the lookups fail
+     */
+    @Test
+    public void testPositiveAnswer() throws Exception {
+        CountingSource source = new CountingSource(new ZoneFileTlsaRecordSource(zoneFile));
+        TlsaRecordCache cache = new TlsaRecordCache(source);
+
+        TrustedCredentialSet credentials = cache.get(OWNER_NAME);
+
+        assertEquals(1, credentials.size());
+        assertTrue(credentials.contains(exactKey.getPublic()));
+        assertTrue(credentials.contains(digestKey.getPublic()));
+        assertSame(credentials, cache.get(OWNER_NAME));
+        assertEquals(1, source.getLookups(OWNER_NAME));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * An owner name without TLSA records yields an empty set, which is cached like any other answer.
+     *
+     * @throws Exception if the lookups fail
+     */
+    @Test
+    public void testNegativeAnswer() throws Exception {
+        CountingSource source = new CountingSource(new ZoneFileTlsaRecordSource(zoneFile));
+        TlsaRecordCache cache = new TlsaRecordCache(source);
+
+        TrustedCredentialSet credentials = cache.get(MISSING_NAME);
+
+        assertTrue(credentials.isEmpty());
+        assertFalse(credentials.contains(exactKey.getPublic()));
+        assertSame(credentials, cache.get(MISSING_NAME));
+        assertEquals(1, source.getLookups(MISSING_NAME));
+    }
+
+    /**
+     * A record set is looked up again once it expired, and keeps its trusted credential set if it did not change.
+     *
+     * @throws Exception if the lookups fail
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        CountingSource source = new CountingSource(new ZoneFileTlsaRecordSource(zoneFile));
+        TlsaRecordCache cache = new TlsaRecordCache(source);
+        cache.setMinTTL(0);
+        cache.setMaxTTL(50);
+        cache.setMaxStale(0);
+
+        TrustedCredentialSet credentials = cache.get(OWNER_NAME);
+        Thread.sleep(100);
+
+        assertSame(credentials, cache.get(OWNER_NAME));
+        assertEquals(2, source.getLookups(OWNER_NAME));
+        assertEquals(2, cache.getMisses());
+    }
+
+    /**
+     * Concurrent misses for the same owner name result in a single lookup.
+     *
+     * @throws Exception if the lookups fail
+     */
+    @Test(timeout = 10000)
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountingSource source = new CountingSource(new ZoneFileTlsaRecordSource(zoneFile)) {
+            protected TlsaRRset answer(String ownerName) throws IOException {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                return super.answer(ownerName);
+            }
+        };
+        final TlsaRecordCache cache = new TlsaRecordCache(source);
+        final List<TrustedCredentialSet> results = new ArrayList<TrustedCredentialSet>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        TrustedCredentialSet credentials = cache.get(OWNER_NAME);
+                        synchronized (results) {
+                            results.add(credentials);
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e.getMessage());
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        entered.await();
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, source.getLookups(OWNER_NAME));
+        assertEquals(4, results.size());
+        for (TrustedCredentialSet credentials : results) {
+            assertSame(results.get(0), credentials);
+        }
+    }
+
+    /**
+     * The record sets cached when the cache is stopped are restored from the snapshot by a new cache, without looking
+     * them up again.
+     *
+     * @throws Exception if the lookups fail
+     */
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        File snapshotFile = File.createTempFile("tlsa-snapshot", ".bin");
+        try {
+            TlsaRecordCache cache = new TlsaRecordCache(new ZoneFileTlsaRecordSource(zoneFile));
+            cache.setSnapshotFile(snapshotFile);
+            cache.setRefreshAhead(1000);
+            cache.start();
+            cache.get(OWNER_NAME);
+            cache.stop();
+
+            CountingSource source = new CountingSource();
+            TlsaRecordCache restored = new TlsaRecordCache(source);
+            restored.setSnapshotFile(snapshotFile);
+
+            assertEquals(1, restored.loadSnapshot());
+            TrustedCredentialSet credentials = restored.get(OWNER_NAME);
+            assertTrue(credentials.contains(exactKey.getPublic()));
+            assertTrue(credentials.contains(digestKey.getPublic()));
+            assertEquals(0, source.getLookups(OWNER_NAME));
+        } finally {
+            snapshotFile.delete();
+        }
+    }
+
+    /**
+     * A failed lookup is remembered for the failure time-to-live, during which the owner name is not looked up again.
+     *
+     * @throws Exception if the test is interrupted
+     */
+    @Test
+    public void testFailureTTL() throws Exception {
+        CountingSource source = new CountingSource() {
+            protected TlsaRRset answer(String ownerName) throws IOException {
+                throw new IOException("SERVFAIL");
+            }
+        };
+        TlsaRecordCache cache = new TlsaRecordCache(source);
+        cache.setFailureTTL(100);
+
+        assertLookupFails(cache, OWNER_NAME);
+        assertLookupFails(cache, OWNER_NAME);
+        assertEquals(1, source.getLookups(OWNER_NAME));
+        Thread.sleep(200);
+        assertLookupFails(cache, OWNER_NAME);
+        assertEquals(2, source.getLookups(OWNER_NAME));
+    }
+
+    /**
+     * A lookup on the refresh thread of an owner name whose background refresh is queued behind it runs that refresh
+     * itself instead of waiting for it, which would never complete.
+     *
+     * @throws Exception if the lookups fail
+     */
+    @Test(timeout = 10000)
+    public void testLookupOfQueuedRefreshOnRefreshThread() throws Exception {
+        final CountDownLatch queued = new CountDownLatch(1);
+        final AtomicReference<TlsaRecordCache> cacheHolder = new AtomicReference<TlsaRecordCache>();
+        final AtomicReference<Object> nestedResult = new AtomicReference<Object>();
+        CountingSource source = new CountingSource() {
+            protected TlsaRRset answer(String ownerName) throws IOException {
+                if (BLOCKING_NAME.equals(ownerName)) {
+                    try {
+                        queued.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                    nestedResult.set(cacheHolder.get().get(QUEUED_NAME));
+                }
+                return super.answer(ownerName);
+            }
+        };
+        TlsaRecordCache cache = new TlsaRecordCache(source);
+        cacheHolder.set(cache);
+        cache.setRefreshAhead(60 * 1000);
+        cache.start();
+        try {
+            assertTrue(cache.refreshAsync(BLOCKING_NAME));
+            assertTrue(cache.refreshAsync(QUEUED_NAME));
+            queued.countDown();
+
+            assertNotNull(cache.load(BLOCKING_NAME));
+            assertNotNull(nestedResult.get());
+            assertEquals(1, source.getLookups(QUEUED_NAME));
+        } finally {
+            cache.stop();
+        }
+    }
+
+    /**
+     * Checks that a lookup fails.
+     *
+     * @param cache the cache
+     * @param ownerName absolute TLSA owner name
+     */
+    private static void assertLookupFails(TlsaRecordCache cache, String ownerName) {
+        try {
+            cache.get(ownerName);
+            fail("Lookup of " + ownerName + " did not fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Writes records to a temporary zone file.
+     *
+     * @param records the records in master file format
+     *
+     * @return the zone file
+     *
+     * @throws IOException if the file can not be written
+     */
+    static File writeZoneFile(String... records) throws IOException {
+        File file = File.createTempFile("tlsa-test", ".zone");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "US-ASCII");
+        try {
+            for (String record : records) {
+                writer.write(record + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Encodes bytes in hexadecimal, as TLSA association data is written in master files.
+     *
+     * @param bytes the bytes
+     *
+     * @return the hexadecimal string
+     */
+    static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * {@link TlsaRecordSource} counting the lookups and answering them from another source, or with an empty record
+     * set if there is none.
+     */
+    static class CountingSource implements TlsaRecordSource {
+
+        /** Time-to-live of the answers, in seconds. */
+        static final long TTL = 300;
+
+        /** Number of lookups, keyed by owner name. */
+        private final ConcurrentMap<String, AtomicInteger> lookups = new ConcurrentHashMap<String, AtomicInteger>();
+
+        /** Source answering the lookups, null to answer with empty record sets. */
+        private final TlsaRecordSource delegate;
+
+        /** Constructor answering with empty record sets. */
+        CountingSource() {
+            this(null);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param source source answering the lookups
+         */
+        CountingSource(TlsaRecordSource source) {
+            delegate = source;
+        }
+
+        /** {@inheritDoc} */
+        public TlsaRRset lookup(String ownerName) throws IOException {
+            AtomicInteger count = lookups.get(ownerName);
+            if (count == null) {
+                lookups.putIfAbsent(ownerName, new AtomicInteger());
+                count = lookups.get(ownerName);
+            }
+            count.incrementAndGet();
+            return answer(ownerName);
+        }
+
+        /**
+         * Answers a lookup.
+         *
+         * @param ownerName absolute TLSA owner name
+         *
+         * @return the record set
+         *
+         * @throws IOException if the lookup fails
+         */
+        protected TlsaRRset answer(String ownerName) throws IOException {
+            if (delegate != null) {
+                return delegate.lookup(ownerName);
+            }
+            return new TlsaRRset(ownerName, null, TTL);
+        }
+
+        /**
+         * Gets the number of lookups of an owner name.
+         *
+         * @param ownerName absolute TLSA owner name
+         *
+         * @return the number of lookups
+         */
+        int getLookups(String ownerName) {
+            AtomicInteger count = lookups.get(ownerName);
+            return count != null ? count.get() : 0;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package se.danetest.shibboleth.extension;
+
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests {@link TrustMaterialSnapshot}. */
+public class TrustMaterialSnapshotTest {
+
+    /** Validation the snapshots are written under. */
+    private static final String VALIDATION = "dnssec:. 20326";
+
+    /** Owner name of the first entry. */
+    private static final String OWNER_NAME = "_443._tcp.idp.example.org.";
+
+    /** Association data of the first entry. */
+    private static final byte[] DATA = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    /** The snapshot file. */
+    private File file;
+
+    /**
+     * Creates the name of the snapshot file.
+     *
+     * @throws IOException if the temporary file can not be created
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("tlsa-snapshot", ".bin");
+        file.delete();
+    }
+
+    /** Deletes the snapshot file. */
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    /**
+     * Entries are read back as written.
+     *
+     * @throws IOException if the snapshot can not be written or read
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<TrustMaterialSnapshot.Entry> written = write();
+
+        List<TrustMaterialSnapshot.Entry> read = TrustMaterialSnapshot.read(file, VALIDATION);
+
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            TlsaRRset expected = written.get(i).getRRset();
+            TlsaRRset actual = read.get(i).getRRset();
+            assertEquals(written.get(i).getExpiration(), read.get(i).getExpiration());
+            assertEquals(expected.getOwnerName(), actual.getOwnerName());
+            assertEquals(expected.getTTL(), actual.getTTL());
+            assertEquals(expected.getAssociations(), actual.getAssociations());
+        }
+        assertArrayEquals(DATA, read.get(0).getRRset().getAssociations().get(0).getData());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    /**
+     * A missing snapshot yields no entries.
+     *
+     * @throws IOException if the snapshot can not be read
+     */
+    @Test
+    public void testMissingFile() throws IOException {
+        assertTrue(TrustMaterialSnapshot.read(file, VALIDATION).isEmpty());
+    }
+
+    /**
+     * A snapshot written under another validation is rejected.
+     *
+     * @throws IOException if the snapshot can not be written
+     */
+    @Test
+    public void testValidationMismatch() throws IOException {
+        write();
+
+        assertRejected("unvalidated");
+    }
+
+    /**
+     * Every truncation of a snapshot is rejected.
+     *
+     * @throws IOException if the snapshot can not be written or truncated
+     */
+    @Test
+    public void testTruncated() throws IOException {
+        write();
+        long length = file.length();
+
+        for (long truncated = length - 1; truncated >= 0; truncated--) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(truncated);
+            } finally {
+                raf.close();
+            }
+            assertRejected(VALIDATION);
+        }
+    }
+
+    /**
+     * A snapshot whose lengths exceed the file, or which is not a snapshot at all, is rejected.
+     *
+     * @throws IOException if the snapshot can not be written or modified
+     */
+    @Test
+    public void testCorrupt() throws IOException {
+        write();
+        // magic, version, validation, count, owner name, expiration, ttl, association count, usage/selector/matching
+        long dataLength = 4 + 2 + 2 + VALIDATION.length() + 4 + 2 + OWNER_NAME.length() + 8 + 8 + 2 + 3;
+
+        overwrite(dataLength, Integer.MAX_VALUE);
+        assertRejected(VALIDATION);
+        overwrite(dataLength, -1);
+        assertRejected(VALIDATION);
+        overwrite(0, 0x3c3f786d);
+        assertRejected(VALIDATION);
+    }
+
+    /**
+     * Writes a snapshot of two entries.
+     *
+     * @return the written entries
+     *
+     * @throws IOException if the snapshot can not be written
+     */
+    private List<TrustMaterialSnapshot.Entry> write() throws IOException {
+        List<TrustMaterialSnapshot.Entry> entries = new ArrayList<TrustMaterialSnapshot.Entry>();
+        entries.add(new TrustMaterialSnapshot.Entry(new TlsaRRset(OWNER_NAME, Arrays.asList(new TlsaAssociation(3, 1,
+                0, DATA), new TlsaAssociation(3, 1, 1, new byte[32])), 300), System.currentTimeMillis() + 300000));
+        entries.add(new TrustMaterialSnapshot.Entry(new TlsaRRset("_443._tcp.sp.example.org.", null, 60), System
+                .currentTimeMillis() + 60000));
+        TrustMaterialSnapshot.write(file, VALIDATION, entries);
+        return entries;
+    }
+
+    /**
+     * Overwrites four bytes of the snapshot.
+     *
+     * @param position offset of the bytes
+     * @param value the value to write
+     *
+     * @throws IOException if the snapshot can not be modified
+     */
+    private void overwrite(long position, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks that the snapshot is rejected.
+     *
+     * @param validation the validation the snapshot is read under
+     */
+    private void assertRejected(String validation) {
+        try {
+            TrustMaterialSnapshot.read(file, validation);
+            fail("Snapshot of " + file.length() + " bytes was not rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}